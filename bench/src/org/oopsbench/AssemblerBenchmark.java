@@ -0,0 +1,70 @@
+package org.oopsbench;
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.oopsvm.Assembler;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Misst den Durchsatz von {@link Assembler#assemble(java.io.InputStream)} für den
+ * Assembler-Quelltext, den der Übersetzer für die Benchmark-Programme erzeugt.
+ * Neben der Anzahl der Durchläufe pro Sekunde werden die assemblierten
+ * Kilobyte pro Sekunde ausgegeben.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class AssemblerBenchmark {
+	@Param({ "factorial", "loop", "dispatch" })
+	public String program;
+
+	/** Wurde das Programm mit --optim übersetzt? */
+	@Param({ "false", "true" })
+	public boolean optim;
+
+	/** Der Assembler-Quelltext. */
+	private byte[] source;
+
+	/**
+	 * Zählt die assemblierten Kilobyte. JMH gibt den Wert pro Sekunde aus.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Counters {
+		public double kilobytes;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			this.kilobytes = 0;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setup() {
+		this.source = Programs.generate(
+				Programs.analyse(this.program, this.optim), this.optim);
+	}
+
+	@Benchmark
+	public int[] assemble(Counters counters) throws Exception {
+		int[] memory = new Assembler(false, false)
+				.assemble(new ByteArrayInputStream(this.source));
+		counters.kilobytes += this.source.length / 1024.0;
+		return memory;
+	}
+}
@@ -0,0 +1,82 @@
+package org.oopsbench;
+import java.util.concurrent.TimeUnit;
+
+import org.oopsc.Program;
+import org.oopsc.SyntaxAnalysis;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Misst die Phasen des Übersetzers einzeln: die syntaktische Analyse
+ * ({@link SyntaxAnalysis#parse()}), die semantische Analyse einschließlich der
+ * Optimierungen auf dem Syntaxbaum und die Code-Erzeugung.
+ *
+ * Da die semantische Analyse den Syntaxbaum verändert, wird er vor jedem Aufruf
+ * von {@link #semanticAnalysis(Parsed)} neu eingelesen. Die Code-Erzeugung
+ * verändert den Syntaxbaum nicht und verwendet daher denselben analysierten Baum.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CompilerBenchmark {
+	@Param({ "factorial", "loop", "dispatch" })
+	public String program;
+
+	/** Werden die Optimierungen des Übersetzers ausgeführt? */
+	@Param({ "false", "true" })
+	public boolean optim;
+
+	/** Der analysierte Syntaxbaum. */
+	private Program analysed;
+
+	/**
+	 * Der eingelesene, aber noch nicht analysierte Syntaxbaum.
+	 */
+	@State(Scope.Thread)
+	public static class Parsed {
+		Program program;
+
+		@Setup(Level.Invocation)
+		public void parse(CompilerBenchmark benchmark) {
+			this.program = new SyntaxAnalysis(
+					Programs.path(benchmark.program), false).parse();
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void analyse() {
+		this.analysed = Programs.analyse(this.program, this.optim);
+	}
+
+	@Benchmark
+	public Program syntaxAnalysis() {
+		return new SyntaxAnalysis(Programs.path(this.program), false).parse();
+	}
+
+	@Benchmark
+	public Program semanticAnalysis(Parsed parsed) {
+		parsed.program.semanticAnalysis();
+		if (this.optim) {
+			parsed.program.optimise();
+		}
+		return parsed.program;
+	}
+
+	@Benchmark
+	public byte[] generateCode() {
+		return Programs.generate(this.analysed, this.optim);
+	}
+}
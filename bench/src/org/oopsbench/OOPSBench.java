@@ -0,0 +1,27 @@
+package org.oopsbench;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Diese Klasse stellt die Hauptmethode der Benchmarks bereit. Sie akzeptiert
+ * dieselben Kommandozeilen-Optionen wie JMH, z.B. einen regulären Ausdruck für
+ * die auszuführenden Benchmarks oder <code>-p program=loop</code>.
+ *
+ * Zusätzlich wird immer der GC-Profiler von JMH aktiviert. Er gibt die pro
+ * Durchlauf allozierten Bytes aus (<code>gc.alloc.rate.norm</code>).
+ */
+class OOPSBench {
+	public static void main(String[] args) throws RunnerException,
+			CommandLineOptionException {
+		Options options = new OptionsBuilder()
+				.parent(new CommandLineOptions(args))
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(options).run();
+	}
+}
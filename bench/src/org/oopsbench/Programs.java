@@ -0,0 +1,154 @@
+package org.oopsbench;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.oopsc.CodeStream;
+import org.oopsc.CodeStream$;
+import org.oopsc.PeepholeOptimiser;
+import org.oopsc.Program;
+import org.oopsc.RegisterAllocator;
+import org.oopsc.SyntaxAnalysis;
+import org.oopsvm.AsmException;
+import org.oopsvm.Assembler;
+import org.oopsvm.Tracer;
+import org.oopsvm.VirtualMachine;
+
+import scala.Option;
+
+/**
+ * Die Klasse stellt die Programme bereit, mit denen die Benchmarks arbeiten.
+ * Die OOPS-Quelltexte liegen im Verzeichnis, das die System-Eigenschaft
+ * <code>oopsbench.programs</code> angibt (Vorgabe: <code>bench/programs</code>).
+ */
+final class Programs {
+	/** Die Größe des Stapels der übersetzten Programme. */
+	static final int STACK_SIZE = 1000;
+
+	/** Die Größe des Heaps der übersetzten Programme. */
+	static final int HEAP_SIZE = 10000;
+
+	/** Die Anzahl der Register, wenn Optimierungen aktiviert sind. */
+	static final int REGISTERS = 16;
+
+	private Programs() {
+	}
+
+	/**
+	 * Die Methode liefert den Pfad eines Programms.
+	 *
+	 * @param name
+	 *        Der Name des Programms ohne Endung.
+	 * @return Der Pfad des OOPS-Quelltexts.
+	 */
+	static String path(String name) {
+		String directory = System.getProperty("oopsbench.programs",
+				"bench/programs");
+		return new File(directory, name + ".oops").getPath();
+	}
+
+	/**
+	 * Die Methode führt die syntaktische und die semantische Analyse aus.
+	 *
+	 * @param name
+	 *        Der Name des Programms.
+	 * @param optim
+	 *        Sollen die Optimierungen des Übersetzers ausgeführt werden?
+	 * @return Der analysierte Syntaxbaum.
+	 */
+	static Program analyse(String name, boolean optim) {
+		Program p = new SyntaxAnalysis(path(name), false).parse();
+		p.semanticAnalysis();
+		if (optim) {
+			p.optimise();
+		}
+		return p;
+	}
+
+	/**
+	 * Die Methode erzeugt den Assembler-Quelltext eines analysierten Programms.
+	 *
+	 * @param p
+	 *        Der analysierte Syntaxbaum.
+	 * @param optim
+	 *        Sollen Register zugeteilt und der Peephole-Optimierer verwendet werden?
+	 * @return Der Assembler-Quelltext.
+	 */
+	static byte[] generate(Program p, boolean optim) {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		CodeStream code = CodeStream$.MODULE$.apply(buffer);
+		if (optim) {
+			code.registers_$eq(Option.apply(new RegisterAllocator(REGISTERS)));
+			code.optimiser_$eq(Option.apply(new PeepholeOptimiser()));
+		}
+		p.generateCode(code, STACK_SIZE, HEAP_SIZE);
+		return buffer.toByteArray();
+	}
+
+	/**
+	 * Die Methode übersetzt ein Programm und assembliert es.
+	 *
+	 * @return Das Speicherabbild des Programms.
+	 */
+	static int[] assemble(String name, boolean optim) throws IOException,
+			AsmException {
+		byte[] asm = generate(analyse(name, optim), optim);
+		return new Assembler(false, false).assemble(new ByteArrayInputStream(
+				asm));
+	}
+
+	/**
+	 * Die Methode liefert die Anzahl der Register, mit der ein Programm ausgeführt
+	 * werden muss.
+	 */
+	static int registers(boolean optim) {
+		return optim ? REGISTERS : 8;
+	}
+
+	/**
+	 * Die Methode erzeugt eine virtuelle Maschine für eine Kopie des Speicherabbilds.
+	 * Die Eingabe ist leer, die Ausgabe wird verworfen.
+	 */
+	static VirtualMachine load(int[] image, int registers, boolean jit) {
+		VirtualMachine vm = new VirtualMachine(image.clone(),
+				new int[registers]);
+		vm.setJit(jit);
+		vm.setStreams(new ByteArrayInputStream(new byte[0]), NULL_OUTPUT);
+		return vm;
+	}
+
+	/**
+	 * Die Methode zählt die Instruktionen, die ein Programm bei seiner Ausführung
+	 * ausführt.
+	 */
+	static long countInstructions(int[] image, int registers) throws Exception {
+		final long[] count = new long[1];
+		VirtualMachine vm = load(image, registers, false);
+		vm.setTracer(new Tracer() {
+			@Override
+			public void beforeInstruction(VirtualMachine vm, int address,
+					int instruction, int param1, int param2) {
+				++count[0];
+			}
+
+			@Override
+			public void afterInstruction(VirtualMachine vm) {
+			}
+		});
+		vm.run();
+		return count[0];
+	}
+
+	/** Ein Ausgabestrom, der alle Zeichen verwirft. */
+	private static final OutputStream NULL_OUTPUT = new OutputStream() {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	};
+}
@@ -0,0 +1,82 @@
+package org.oopsbench;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Misst die Ausführungsgeschwindigkeit von {@link org.oopsvm.VirtualMachine#run()}
+ * für rechenintensive Programme: rekursive Methodenaufrufe (factorial), enge
+ * Schleifen (loop) und dynamisch gebundene Aufrufe (dispatch). Neben der Anzahl
+ * der Programmläufe pro Sekunde wird die Anzahl der ausgeführten Instruktionen
+ * pro Sekunde ausgegeben.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class VmBenchmark {
+	@Param({ "factorial", "loop", "dispatch" })
+	public String program;
+
+	/** Wird das Programm vom JIT-Übersetzer in JVM-Bytecode übersetzt? */
+	@Param({ "false", "true" })
+	public boolean jit;
+
+	/** Wurde das Programm mit --optim übersetzt? */
+	@Param({ "false", "true" })
+	public boolean optim;
+
+	/** Das Speicherabbild des Programms. */
+	private int[] image;
+
+	/** Die Anzahl der Register. */
+	private int registers;
+
+	/** Die Anzahl der Instruktionen eines Programmlaufs. */
+	private long instructions;
+
+	/**
+	 * Zählt die ausgeführten Instruktionen. JMH gibt den Wert pro Sekunde aus.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Counters {
+		public long instructions;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			this.instructions = 0;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		this.image = Programs.assemble(this.program, this.optim);
+		this.registers = Programs.registers(this.optim);
+		this.instructions = Programs.countInstructions(this.image,
+				this.registers);
+	}
+
+	@Benchmark
+	public int[] run(Counters counters) throws Exception {
+		org.oopsvm.VirtualMachine vm = Programs.load(this.image,
+				this.registers, this.jit);
+		vm.run();
+		counters.instructions += this.instructions;
+		return vm.getRegisters();
+	}
+}
@@ -28,10 +28,16 @@ jarFiles = matchFiles('libs/', '*.jar')
 if not os.path.exists("build/"):
 	os.makedirs("build/")
 
+# oopsc writes object files through the assembler of oopsvm.
+dependencies = {"oopsc": ["oopsc", "oopsvm"], "oopsvm": ["oopsvm"]}
+
 for app in ["oopsc", "oopsvm"]:
-	javaFiles = matchFiles('src/org/' + app, '*.java')
+	javaFiles = []
+	scalaFiles = []
+	for package in dependencies[app]:
+		javaFiles += matchFiles('src/org/' + package, '*.java')
+		scalaFiles += matchFiles('src/org/' + package, '*.scala')
 
-	scalaFiles = matchFiles('src/org/' + app, '*.scala')
 	scalaFiles = [file for file in scalaFiles if "TestSuite.scala" not in file]
 
 	srcFiles = javaFiles + scalaFiles
@@ -45,13 +51,34 @@ for app in ["oopsc", "oopsvm"]:
 	run(cmdCompile)
 
 	classFiles = []
-	for file in matchFiles('build/org/' + app, '*.class'):
-		classFiles.append("-C")
-		classFiles.append("build/")
-		classFiles.append(file.replace("build/", ""))
+	for package in dependencies[app]:
+		for file in matchFiles('build/org/' + package, '*.class'):
+			classFiles.append("-C")
+			classFiles.append("build/")
+			classFiles.append(file.replace("build/", ""))
 
 	mainClass = "org." + app + "." + app.upper()
 
 	cmdPackage = ["/usr/bin/jar", "cvmfe", "Manifest.txt", app + ".jar", mainClass] + classFiles
 	print(" ".join(cmdPackage))
 	run(cmdPackage)
+
+# The JMH benchmarks are only built on request (build.py bench). JMH is not
+# bundled; its jars (jmh-core, jmh-generator-annprocess, jopt-simple and
+# commons-math3) must be placed in bench/libs/.
+if "bench" in sys.argv[1:]:
+	benchJarFiles = matchFiles('bench/libs/', '*.jar')
+	benchFiles = matchFiles('bench/src/', '*.java')
+
+	if not os.path.exists("build/bench/"):
+		os.makedirs("build/bench/")
+
+	# The annotation processor of JMH generates the benchmark classes and
+	# META-INF/BenchmarkList.
+	cmdCompile = ["/usr/bin/javac", "-cp", ":".join(jarFiles + benchJarFiles) + ":build/", "-d", "build/bench/"] + benchFiles
+	print(" ".join(cmdCompile))
+	run(cmdCompile)
+
+	cmdPackage = ["/usr/bin/jar", "cvfe", "oopsbench.jar", "org.oopsbench.OOPSBench", "-C", "build/bench/", "."]
+	print(" ".join(cmdPackage))
+	run(cmdPackage)
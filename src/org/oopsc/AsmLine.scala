@@ -0,0 +1,148 @@
+package org.oopsc
+
+/**
+ * A line of assembly code as buffered by the `CodeStream`.
+ */
+sealed abstract class AsmLine
+
+/**
+ * An empty line or a line only consisting of a comment.
+ */
+case class AsmComment(text: String) extends AsmLine {
+  override def toString = this.text
+}
+
+/**
+ * A label marking a jump target or data.
+ */
+case class AsmLabel(name: String, comment: Option[String] = None) extends AsmLine {
+  override def toString = this.name + ":" + this.comment.map(" ; " + _).getOrElse("")
+}
+
+/**
+ * An instruction or the DAT directive.
+ *
+ * @param op Mnemonic.
+ * @param args Operands as written in the assembly code, e.g. `R5` or `(R5)`.
+ */
+case class AsmInstruction(op: String, args: Seq[String], comment: Option[String] = None) extends AsmLine {
+  override def toString = this.op + " " + this.args.mkString(", ") + this.comment.map(" ; " + _).getOrElse("")
+
+  /**
+   * Returns the register number of an operand such as `R5` or `(R5)`. The
+   * register of a system call is given without prefix.
+   */
+  def register(i: Int): Int = this.args(i).stripPrefix("(").stripSuffix(")").stripPrefix("R").toInt
+
+  /** Is this an instruction of the VM, as opposed to DAT? */
+  def isExecutable = AsmInstruction.Mnemonics.contains(this.op)
+
+  /** Does the instruction compute its first register from its second one? */
+  def isArithmetic = AsmInstruction.Arithmetic.contains(this.op)
+
+  /** Does the instruction transfer control? Writing R0 is an unconditional jump. */
+  def isJump = this.isConditionalJump || this.writes.contains(0)
+
+  /** Does the instruction transfer control depending on a register? */
+  def isConditionalJump = this.op == "JPC" || this.op == "JPZ"
+
+  /** Does the instruction always transfer control? */
+  def isUnconditionalJump = !this.isConditionalJump && this.isJump
+
+  /**
+   * Registers read by the instruction. A system call may run the garbage
+   * collector, which reads the stack pointer R2.
+   */
+  def reads: Seq[Int] = this.op match {
+    case "SYS" => Seq(this.register(1), 2)
+    case "PSH" => Seq(this.register(0), this.register(1))
+    case "POP" => Seq(this.register(1))
+    case "ADI" | "LDO" => Seq(this.register(0))
+    case _ if this.isArithmetic => Seq(this.register(0), this.register(1))
+    case _ => this.sources.map(this.register)
+  }
+
+  /**
+   * Positions of the operands that are registers only read by the instruction.
+   */
+  def sources: Seq[Int] = this.op match {
+    case "MRR" | "MRM" | "ISZ" | "ISP" | "ISN" => Seq(1)
+    case "MMR" => Seq(0, 1)
+    case "PSH" => Seq(1)
+    case "JPC" | "JPZ" => Seq(0)
+    case _ if this.isArithmetic => Seq(1)
+    case _ => Nil
+  }
+
+  /**
+   * Replaces the registers that are only read by the instruction.
+   */
+  def mapSources(f: Int => Int): AsmInstruction =
+    this.copy(args = this.args.indices.map { i =>
+      if (!this.sources.contains(i)) this.args(i)
+      else if (this.args(i).startsWith("(")) s"(R${f(this.register(i))})"
+      else s"R${f(this.register(i))}"
+    })
+
+  /**
+   * Registers written by the instruction.
+   */
+  def writes: Seq[Int] = this.op match {
+    case "MRI" | "MRR" | "MRM" | "ISZ" | "ISP" | "ISN" => Seq(this.register(0))
+    case "SYS" => Seq(this.register(1))
+    case "PSH" | "ADI" | "LDO" => Seq(this.register(0))
+    case "POP" => Seq(this.register(0), this.register(1))
+    case _ if this.isArithmetic => Seq(this.register(0))
+    case _ => Nil
+  }
+
+  /**
+   * Can the instruction be removed if the register it writes is not read
+   * afterwards? Memory accesses may fail and divisions may divide by zero,
+   * therefore they are kept.
+   */
+  def isPure = this.op match {
+    case "MRI" | "MRR" | "ISZ" | "ISP" | "ISN" | "ADI" => true
+    case "DIV" | "MOD" => false
+    case _ => this.isArithmetic
+  }
+}
+
+object AsmInstruction {
+  /** Instructions with two register operands that compute the first one. */
+  val Arithmetic = Set("ADD", "SUB", "MUL", "DIV", "MOD", "AND", "OR", "XOR")
+
+  /** Superinstructions, only emitted with `--superinstructions`. */
+  val Superinstructions = Set("PSH", "POP", "ADI", "JPZ", "LDO")
+
+  /** All instructions of the VM. */
+  val Mnemonics = Arithmetic ++ Superinstructions ++ Set("MRI", "MRR", "MRM", "MMR", "ISZ", "ISP", "ISN", "JPC", "SYS")
+
+  def apply(op: String, args: String*): AsmInstruction = AsmInstruction(op, args, None)
+}
+
+object AsmLine {
+  /**
+   * Parses a line of assembly code as printed by the code generator.
+   */
+  def parse(line: String): AsmLine = {
+    val trimmed = line.trim
+
+    if (trimmed.isEmpty || trimmed.startsWith(";")) {
+      return AsmComment(line)
+    }
+
+    val (body, comment) = trimmed.indexOf(';') match {
+      case -1 => (trimmed, None)
+      case i => (trimmed.substring(0, i).trim, Some(trimmed.substring(i + 1).trim))
+    }
+
+    if (body.endsWith(":")) {
+      AsmLabel(body.substring(0, body.length - 1), comment)
+    } else {
+      val op = body.takeWhile(!_.isWhitespace)
+      val args = body.substring(op.length).split(',').map(_.trim).filter(_.nonEmpty)
+      AsmInstruction(op, args, comment)
+    }
+  }
+}
@@ -1,12 +1,21 @@
 package org.oopsc
 
+import java.io.ByteArrayOutputStream
 import java.io.File
 import java.io.OutputStream
 import java.io.PrintStream
+import org.oopsc.symbol.VariableSymbol
+import scala.collection.mutable.ArrayBuffer
 
 /**
  * Data stream printing the assembly code, allows to generate unique markers
  * based upon a custom namespace.
+ *
+ * Printed lines are buffered as structured instructions and only written on
+ * `flush`, so that the peephole optimiser can rewrite them beforehand.
+ *
+ * The code of independent parts of a program can be generated concurrently on
+ * streams obtained from `fork`, which are then appended in a fixed order.
  */
 trait CodeStream extends PrintStream {
   /** Current namespace, typically consisting of the class and method name. */
@@ -15,6 +24,152 @@ trait CodeStream extends PrintStream {
   /** Counter for generating unique markers. */
   private var counter = 0
 
+  /**
+   * Register allocator. If set, temporaries and frequently used local variables
+   * are kept in registers instead of on the stack.
+   */
+  var registers: Option[RegisterAllocator] = None
+
+  /** Peephole optimiser applied to the buffered code on `flush`. */
+  var optimiser: Option[PeepholeOptimiser] = None
+
+  /**
+   * Combine common instruction sequences into the superinstructions of the VM
+   * on `flush`? The code then no longer runs on VMs that only implement the
+   * original instruction set.
+   */
+  var superinstructions = false
+
+  /**
+   * Code ranges of the TRY blocks with the label of their handler, from which
+   * `Program` generates the exception table. Inner blocks precede the outer
+   * ones.
+   */
+  val handlers = new ArrayBuffer[(String, String, String)]
+
+  /** Lines printed since the last `flush`. */
+  private val lines = new ArrayBuffer[AsmLine]
+
+  /**
+   * Buffers a line of assembly code.
+   */
+  override def println(line: String) {
+    this.lines += AsmLine.parse(line)
+  }
+
+  /**
+   * Optimises the buffered code without writing it. Calling it again has no
+   * effect until further lines are printed.
+   */
+  def prepare() {
+    val optimised = this.optimiser match {
+      case Some(o) => o.optimise(this.lines)
+      case None => this.lines
+    }
+
+    val code = if (this.superinstructions) Superinstructions(optimised) else optimised
+
+    if (code ne this.lines) {
+      this.lines.clear()
+      this.lines ++= code
+    }
+  }
+
+  /**
+   * Optimises and writes the buffered code.
+   */
+  override def flush() {
+    this.prepare()
+    this.lines.foreach(line => super.println(line.toString))
+    this.lines.clear()
+    super.flush()
+  }
+
+  /**
+   * Creates a stream with the same settings that only buffers its code, but has
+   * its own register allocator and peephole optimiser. It can therefore be used
+   * on another thread. Its code is written with `append`.
+   */
+  def fork(): CodeStream = {
+    val part = new PrintStream(new ByteArrayOutputStream) with CodeStream
+    part.registers = this.registers.map(r => new RegisterAllocator(r.count))
+    part.optimiser = this.optimiser.map(o => new PeepholeOptimiser)
+    part.superinstructions = this.superinstructions
+    part
+  }
+
+  /**
+   * Writes the code of a stream obtained from `fork` after the code printed so
+   * far. The code of the part is optimised separately if this has not been done
+   * already by `prepare`.
+   */
+  def append(part: CodeStream) {
+    this.flush()
+    part.prepare()
+    part.lines.foreach(line => super.println(line.toString))
+    part.lines.clear()
+    this.handlers ++= part.handlers
+
+    for (o <- this.optimiser; p <- part.optimiser) {
+      o.add(p)
+    }
+  }
+
+  /**
+   * Registers the handler of a TRY block.
+   *
+   * @param start Label at the beginning of the block.
+   * @param end Label behind the block.
+   * @param handler Label of the handler.
+   */
+  def addHandler(start: String, end: String, handler: String) {
+    this.handlers += ((start, end, handler))
+  }
+
+  /**
+   * Allocates a register for a temporary if register allocation is enabled.
+   */
+  def allocateRegister: Option[Int] = this.registers.flatMap(_.allocate())
+
+  /**
+   * Releases a temporary obtained from `allocateRegister`. The scratch register
+   * R5 is ignored, so that the result of `Expression.generateValueCode` can
+   * always be passed.
+   */
+  def releaseRegister(register: Int) {
+    if (register != 5) {
+      this.registers.foreach(_.release(register))
+    }
+  }
+
+  /**
+   * Returns the register of a local variable if it is kept in a register.
+   */
+  def localRegister(v: VariableSymbol): Option[Int] = this.registers.flatMap(_.local(v))
+
+  /** Variables of an inlined method and the local variables taking their place. */
+  private var substitutions = Map[VariableSymbol, VariableSymbol]()
+
+  /**
+   * Returns the variable that takes the place of the given one while generating
+   * an inlined method.
+   */
+  def variable(v: VariableSymbol): VariableSymbol = this.substitutions.getOrElse(v, v)
+
+  /**
+   * Generates code with variables replaced by others.
+   */
+  def substitute(mapping: Map[VariableSymbol, VariableSymbol])(generate: => Unit) {
+    val previous = this.substitutions
+    this.substitutions = previous ++ mapping
+
+    try {
+      generate
+    } finally {
+      this.substitutions = previous
+    }
+  }
+
   /**
    * Sets the current namespace.
    *
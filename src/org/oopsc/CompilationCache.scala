@@ -0,0 +1,116 @@
+package org.oopsc
+
+import java.io.{File, IOException}
+import java.nio.file.{Files, NoSuchFileException, StandardCopyOption}
+import java.security.MessageDigest
+
+/**
+ * Persistent cache of compiled programs in a directory. An entry holds the
+ * output of the compiler, i.e. the assembly code or the object file, and is
+ * looked up by a hash of the source code, the compiler version and all options
+ * that affect the output. A hit skips the whole pipeline from parsing to code
+ * generation.
+ *
+ * Programs are cached as a whole. The code of a class depends on the rest of
+ * the program through the devirtualisation, inlining and escape analysis, so
+ * fragments of single classes could not be reused safely.
+ *
+ * The cache may only be used if the compiler can be identified, see
+ * `CompilationCache.compilerStamp`.
+ *
+ * Several compilers may share a directory: entries are written to a temporary
+ * file first and then renamed, so that no reader ever sees an incomplete entry.
+ *
+ * @param directory Directory holding the entries. It is created if necessary.
+ */
+class CompilationCache(directory: File) {
+  /**
+   * Computes the key of a program.
+   *
+   * @param source Source code of the program.
+   * @param options Options that affect the output.
+   */
+  def key(source: Array[Byte], options: Seq[String]): String = {
+    val digest = MessageDigest.getInstance("SHA-256")
+
+    for (part <- CompilationCache.compilerStamp.get +: options) {
+      digest.update(part.getBytes("UTF-8"))
+      digest.update(0.toByte)
+    }
+
+    digest.update(source)
+    digest.digest.map("%02x".format(_)).mkString
+  }
+
+  /**
+   * Returns the cached output for a key, if any.
+   */
+  def get(key: String): Option[Array[Byte]] = {
+    try {
+      Some(Files.readAllBytes(new File(this.directory, key).toPath))
+    } catch {
+      case e: NoSuchFileException => None
+    }
+  }
+
+  /**
+   * Stores the output for a key. Failing to write the cache is not an error of
+   * the compilation and is therefore ignored.
+   */
+  def put(key: String, output: Array[Byte]) {
+    try {
+      Files.createDirectories(this.directory.toPath)
+      val temp = Files.createTempFile(this.directory.toPath, key, ".tmp")
+
+      try {
+        Files.write(temp, output)
+        Files.move(temp, new File(this.directory, key).toPath, StandardCopyOption.ATOMIC_MOVE)
+      } finally {
+        Files.deleteIfExists(temp)
+      }
+    } catch {
+      case e: IOException =>
+    }
+  }
+}
+
+object CompilationCache {
+  /**
+   * Identifies the compiler: its version and, when running from a JAR, the size
+   * and modification time of the JAR, so that a rebuilt compiler does not use
+   * the entries of an older one. When running from a directory of class files,
+   * e.g. during development, their contents are hashed instead. None if the
+   * compiler cannot be identified, in which case the cache must not be used.
+   */
+  lazy val compilerStamp: Option[String] = {
+    val location = try {
+      Option(classOf[CompilationCache].getProtectionDomain.getCodeSource).map(s => new File(s.getLocation.toURI))
+    } catch {
+      case e: Exception => None
+    }
+
+    location match {
+      case Some(file) if file.isFile => Some(s"${OOPSC.Version}:${file.length}:${file.lastModified}")
+      case Some(dir) if dir.isDirectory => Some(s"${OOPSC.Version}:${this.hashClasses(dir)}")
+      case _ => None
+    }
+  }
+
+  /**
+   * Hashes the paths and contents of all class files in a directory.
+   */
+  private def hashClasses(dir: File): String = {
+    val digest = MessageDigest.getInstance("SHA-256")
+
+    def files(f: File): Seq[File] =
+      if (f.isDirectory) f.listFiles.sortBy(_.getName).flatMap(files) else Seq(f)
+
+    for (f <- files(dir) if f.getName.endsWith(".class")) {
+      digest.update(dir.toURI.relativize(f.toURI).getPath.getBytes("UTF-8"))
+      digest.update(0.toByte)
+      digest.update(Files.readAllBytes(f.toPath))
+    }
+
+    digest.digest.map("%02x".format(_)).mkString
+  }
+}
@@ -0,0 +1,898 @@
+package org.oopsc
+
+import java.util.IdentityHashMap
+import org.oopsc.expression._
+import org.oopsc.statement._
+import org.oopsc.symbol._
+import scala.collection.mutable.ListBuffer
+
+/**
+ * Tracks the values of local variables across the statements of a method:
+ *
+ *  - Conditional constant propagation: the constant values of the variables
+ *    are propagated along the control flow. A branch whose condition is
+ *    constant is only followed if it can be taken, so that the variables
+ *    assigned in a dead branch remain constant. Expressions that evaluate to a
+ *    constant are replaced by a literal, and unreachable statements, branches
+ *    and loops are removed.
+ *  - Copy propagation: after `x := y`, `x` is replaced by `y` as long as
+ *    neither of them is assigned again.
+ *  - Common-subexpression elimination: an arithmetic expression or comparison
+ *    of tracked variables that was already computed, with none of its
+ *    operands assigned since, is replaced by the variable holding its value.
+ *    This is either the variable it was assigned to or a new temporary
+ *    variable that is assigned before the statement first computing it.
+ *  - Dead-store elimination: an assignment whose value is never read is
+ *    removed, as determined by a liveness analysis.
+ *
+ * The analysis works on the syntax tree. As OOPS only has structured control
+ * flow, a loop is analysed by repeating its body until the values at its head
+ * do not change anymore. The handler of a TRY block is entered with the values
+ * at the beginning of the block, except for the variables assigned in it.
+ *
+ * Only the local variables and parameters that hold their value directly are
+ * tracked (see `EscapeAnalysis`). They cannot be NULL, and as they have no
+ * address, only the method itself can change them. Expressions are only
+ * replaced or removed if they are pure, i.e. if they neither call a method,
+ * access an object nor divide by a value that might be zero, so that no side
+ * effect and no exception is lost.
+ *
+ * @param method Method whose statements are optimised.
+ */
+class DataFlowOptimiser(method: MethodSymbol) {
+  import DataFlowOptimiser._
+
+  /** Tracked variables. */
+  private val tracked: Set[VariableSymbol] =
+    (this.method.parameters ++ this.method.locals).filter(v =>
+      (v.getResolvedType eq Types.intType) || (v.getResolvedType eq Types.boolType)).toSet
+
+  /**
+   * Values at the beginning of each reachable statement. For a loop, these are
+   * the values at its head, which hold whenever the condition is evaluated.
+   */
+  private val reached = new IdentityHashMap[Statement, Values]
+
+  /** Expressions whose value is already held by a variable, see `eliminate`. */
+  private val reused = new IdentityHashMap[Expression, Holder]
+
+  /** Holders for the expressions that may be reused, by their first occurrence. */
+  private val origins = new IdentityHashMap[Expression, Temporary]
+
+  /** Creates a reference to a variable. */
+  private def reference(v: VariableSymbol): EvaluateExpression = {
+    val ref = new EvaluateExpression(new ResolvableSymbol(v.identifier, Some(v)))
+    ref.lValue = true
+    ref
+  }
+
+  /** Returns the variable if the expression reads or writes a tracked one. */
+  private def variable(e: Expression): Option[VariableSymbol] =
+    e match {
+      case e: EvaluateExpression =>
+        e.ref.declaration match {
+          case Some(v: VariableSymbol) if this.tracked.contains(v) => Some(v)
+          case _ => None
+        }
+
+      case _ => None
+    }
+
+  /**
+   * Evaluates an expression if it is pure and its operands are constant.
+   */
+  private def evaluate(e: Expression, values: Values): Option[Value] =
+    e match {
+      case IntegerLiteralExpression(v, _) => Some(IntValue(v))
+      case CharacterLiteralExpression(v, _) => Some(IntValue(v.toInt))
+      case BooleanLiteralExpression(v, _) => Some(BoolValue(v))
+
+      case e: EvaluateExpression =>
+        this.variable(e).flatMap(values.get).filter(!_.isInstanceOf[CopyOf])
+
+      case UnaryExpression(op, operand, _) =>
+        (op, this.evaluate(operand, values)) match {
+          case (UnaryExpression.MINUS, Some(IntValue(v))) => Some(IntValue(-v))
+          case (UnaryExpression.NOT, Some(BoolValue(v))) => Some(BoolValue(!v))
+          case _ => None
+        }
+
+      case e: BinaryExpression =>
+        val operands = (this.evaluate(e.leftOperand, values), this.evaluate(e.rightOperand, values))
+
+        import BinaryExpression._
+
+        operands match {
+          case (Some(IntValue(l)), Some(IntValue(r))) =>
+            e.operator match {
+              case PLUS => Some(IntValue(l + r))
+              case MINUS => Some(IntValue(l - r))
+              case MUL => Some(IntValue(l * r))
+              case DIV if r != 0 => Some(IntValue(l / r))
+              case MOD if r != 0 => Some(IntValue(l % r))
+              case EQ => Some(BoolValue(l == r))
+              case NEQ => Some(BoolValue(l != r))
+              case GT => Some(BoolValue(l > r))
+              case GTEQ => Some(BoolValue(l >= r))
+              case LT => Some(BoolValue(l < r))
+              case LTEQ => Some(BoolValue(l <= r))
+              case _ => None
+            }
+
+          case (Some(BoolValue(l)), Some(BoolValue(r))) =>
+            e.operator match {
+              case AND => Some(BoolValue(l && r))
+              case OR => Some(BoolValue(l || r))
+              case EQ => Some(BoolValue(l == r))
+              case NEQ => Some(BoolValue(l != r))
+              case _ => None
+            }
+
+          case _ => None
+        }
+
+      case _ => None
+    }
+
+  /**
+   * Determines whether evaluating the expression has no effect besides its
+   * value and cannot raise an exception.
+   */
+  private def isPure(e: Expression): Boolean =
+    e match {
+      case _: IntegerLiteralExpression | _: CharacterLiteralExpression | _: BooleanLiteralExpression => true
+      case e: EvaluateExpression => this.variable(e).isDefined
+      case e: UnaryExpression => this.isPure(e.operand)
+      case e: BinaryExpression =>
+        val divisor = e.operator != BinaryExpression.DIV && e.operator != BinaryExpression.MOD ||
+          (e.rightOperand match {
+            case IntegerLiteralExpression(v, _) => v != 0
+            case _ => false
+          })
+
+        divisor && this.isPure(e.leftOperand) && this.isPure(e.rightOperand)
+
+      case _ => false
+    }
+
+  /**
+   * Returns the tracked variables read by an expression.
+   */
+  private def reads(e: Expression): Set[VariableSymbol] =
+    e match {
+      case null => Set()
+      case e: EvaluateExpression =>
+        this.variable(e).toSet ++ e.arguments.flatMap(this.reads)
+      case e: AccessExpression => this.reads(e.leftOperand) ++ this.reads(e.rightOperand)
+      case e: BinaryExpression => this.reads(e.leftOperand) ++ this.reads(e.rightOperand)
+      case e: UnaryExpression => this.reads(e.operand)
+      case e: TypeCheckExpression => this.reads(e.oper)
+      case _ => Set()
+    }
+
+  /**
+   * Returns the tracked variables assigned by the statements, including nested
+   * ones.
+   */
+  private def writes(statements: Seq[Statement]): Set[VariableSymbol] =
+    statements.flatMap {
+      case s: Assignment => this.variable(s.leftOperand).toSet
+      case s: ReadStatement => this.variable(s.operand).toSet
+      case s: IfStatement => this.writes(s.branches.flatMap(_._2) ++ s.elseBranch)
+      case s: WhileStatement => this.writes(s.statements)
+      case s: TryStatement => this.writes(s.tryStatements ++ s.catchStatements.flatMap(_._2))
+      case _ => Set[VariableSymbol]()
+    }.toSet
+
+  /**
+   * Removes the values of the given variables and the copies of them.
+   */
+  private def kill(values: Values, vars: Set[VariableSymbol]): Values =
+    values.filter {
+      case (v, CopyOf(w)) => !vars.contains(v) && !vars.contains(w)
+      case (v, _) => !vars.contains(v)
+    }
+
+  /**
+   * Combines the values, or the available expressions, of two paths.
+   * Unreachable paths are None.
+   */
+  private def join[K, V](a: Option[Map[K, V]], b: Option[Map[K, V]]): Option[Map[K, V]] =
+    (a, b) match {
+      case (Some(x), Some(y)) => Some(x.filter { case (v, value) => y.get(v) == Some(value) })
+      case _ => a.orElse(b)
+    }
+
+  /**
+   * Propagates the values through a list of statements.
+   *
+   * @param values Values at the beginning or None if it is unreachable.
+   * @return Values at the end or None if it is unreachable.
+   */
+  private def propagate(statements: Seq[Statement], values: Option[Values]): Option[Values] =
+    statements.foldLeft(values) { (in, s) =>
+      in.flatMap(this.propagate(s, _))
+    }
+
+  private def propagate(s: Statement, values: Values): Option[Values] = {
+    this.reached.put(s, values)
+
+    s match {
+      case s: Assignment =>
+        this.variable(s.leftOperand) match {
+          case Some(v) =>
+            val value = this.evaluate(s.rightOperand, values).orElse {
+              this.variable(s.rightOperand).filter(_ ne v).map(w => values.getOrElse(w, CopyOf(w)))
+            }
+
+            val killed = this.kill(values, Set(v))
+            Some(value match {
+              case Some(CopyOf(w)) if w eq v => killed
+              case Some(x) => killed + (v -> x)
+              case None => killed
+            })
+
+          case None =>
+            Some(values)
+        }
+
+      case s: ReadStatement =>
+        Some(this.kill(values, this.variable(s.operand).toSet))
+
+      case _: ReturnStatement | _: ThrowStatement =>
+        None
+
+      case s: IfStatement =>
+        var out: Option[Values] = None
+        var open = true
+
+        for ((cond, stmts) <- s.branches if open) {
+          this.evaluate(cond, values) match {
+            case Some(BoolValue(false)) =>
+
+            case Some(BoolValue(true)) =>
+              out = this.join(out, this.propagate(stmts, Some(values)))
+              open = false
+
+            case _ =>
+              out = this.join(out, this.propagate(stmts, Some(values)))
+          }
+        }
+
+        if (open) {
+          out = this.join(out, this.propagate(s.elseBranch, Some(values)))
+        }
+
+        out
+
+      case s: WhileStatement =>
+        var head = values
+        var stable = false
+
+        while (!stable) {
+          this.reached.put(s, head)
+
+          val end = this.evaluate(s.condition, head) match {
+            case Some(BoolValue(false)) => None
+            case _ => this.propagate(s.statements, Some(head))
+          }
+
+          val next = this.join(Some(head), end).get
+          stable = next == head
+          head = next
+        }
+
+        /* There is no BREAK, so that the loop can only be left if the condition
+         * may be false. */
+        this.evaluate(s.condition, head) match {
+          case Some(BoolValue(true)) => None
+          case _ => Some(head)
+        }
+
+      case s: TryStatement =>
+        val end = this.propagate(s.tryStatements, Some(values))
+        val handler = this.kill(values, this.writes(s.tryStatements))
+
+        s.catchStatements.foldLeft(end) { (out, c) =>
+          this.join(out, this.propagate(c._2, Some(handler)))
+        }
+
+      case _ =>
+        Some(values)
+    }
+  }
+
+  /**
+   * Replaces constant expressions by literals and copies by the original
+   * variable.
+   */
+  private def rewrite(e: Expression, values: Values): Expression = {
+    /* Only pure expressions have a constant value. */
+    if (!e.isInstanceOf[LiteralExpression]) {
+      this.evaluate(e, values) match {
+        case Some(IntValue(v)) => return IntegerLiteralExpression(v, e.position)
+        case Some(BoolValue(v)) => return BooleanLiteralExpression(v, e.position)
+        case _ =>
+      }
+    }
+
+    e match {
+      case e: EvaluateExpression =>
+        this.variable(e).flatMap(values.get) match {
+          case Some(CopyOf(w)) =>
+            this.reference(w)
+
+          case _ =>
+            for (i <- e.arguments.indices) {
+              e.arguments(i) = this.rewrite(e.arguments(i), values)
+            }
+
+            e
+        }
+
+      case e: AccessExpression =>
+        e.leftOperand = this.rewrite(e.leftOperand, values)
+        this.rewrite(e.rightOperand, values)
+        e
+
+      case e: BinaryExpression =>
+        e.leftOperand = this.rewrite(e.leftOperand, values)
+        e.rightOperand = this.rewrite(e.rightOperand, values)
+        e
+
+      case e: UnaryExpression =>
+        e.operand = this.rewrite(e.operand, values)
+        e
+
+      case e: TypeCheckExpression =>
+        e.oper = this.rewrite(e.oper, values)
+        e
+
+      case _ => e
+    }
+  }
+
+  /**
+   * Rewrites the reachable statements with the propagated values and removes
+   * the others.
+   */
+  private def rewrite(statements: ListBuffer[Statement]): ListBuffer[Statement] = {
+    val result = new ListBuffer[Statement]
+
+    for (s <- statements if this.reached.containsKey(s)) {
+      val values = this.reached.get(s)
+
+      s match {
+        case s: Assignment =>
+          s.rightOperand = this.rewrite(s.rightOperand, values)
+          result += s
+
+        case s: CallStatement =>
+          s.call = this.rewrite(s.call, values)
+          result += s
+
+        case s: WriteStatement =>
+          s.operand = this.rewrite(s.operand, values)
+          result += s
+
+        case s: ReturnStatement =>
+          if (s.value != null) {
+            s.value = this.rewrite(s.value, values)
+          }
+
+          result += s
+
+        case s: ThrowStatement =>
+          s.value = this.rewrite(s.value, values)
+          result += s
+
+        case s: IfStatement =>
+          val branches = new ListBuffer[(Expression, ListBuffer[Statement])]
+          var open = true
+
+          for ((cond, stmts) <- s.branches if open) {
+            this.rewrite(cond, values) match {
+              case BooleanLiteralExpression(false, _) =>
+
+              case c @ BooleanLiteralExpression(true, _) =>
+                branches += (c -> this.rewrite(stmts))
+                open = false
+
+              case c =>
+                branches += (c -> this.rewrite(stmts))
+            }
+          }
+
+          val elseBranch = if (open) this.rewrite(s.elseBranch) else new ListBuffer[Statement]
+
+          branches.headOption match {
+            case None =>
+              result ++= elseBranch
+
+            case Some((BooleanLiteralExpression(true, _), stmts)) =>
+              result ++= stmts
+
+            case _ =>
+              s.branches = branches
+              s.elseBranch = elseBranch
+              result += s
+          }
+
+        case s: WhileStatement =>
+          this.rewrite(s.condition, values) match {
+            case BooleanLiteralExpression(false, _) =>
+
+            case c =>
+              s.condition = c
+              s.statements = this.rewrite(s.statements)
+              result += s
+          }
+
+        case s: TryStatement =>
+          /* Without statements, nothing can be thrown. */
+          val stmts = this.rewrite(s.tryStatements)
+
+          if (stmts.nonEmpty) {
+            s.tryStatements = stmts
+            s.catchStatements = s.catchStatements.map(c => (c._1, this.rewrite(c._2)))
+            result += s
+          }
+
+        case _ =>
+          result += s
+      }
+    }
+
+    result
+  }
+
+  /**
+   * Returns a key identifying the value of an expression of tracked variables
+   * and literals, if it is an arithmetic expression or comparison that cannot
+   * fail.
+   */
+  private def key(e: Expression): Option[Any] = {
+    def operand(e: Expression): Option[Any] =
+      e match {
+        case IntegerLiteralExpression(v, _) => Some(v)
+        case CharacterLiteralExpression(v, _) => Some(v.toInt)
+        case BooleanLiteralExpression(v, _) => Some(v)
+        case e: EvaluateExpression => this.variable(e)
+        case _ => this.key(e)
+      }
+
+    e match {
+      case e: UnaryExpression if this.isPure(e) =>
+        operand(e.operand).map(k => (e.operator, k))
+
+      case e: BinaryExpression if this.isPure(e) =>
+        for (l <- operand(e.leftOperand); r <- operand(e.rightOperand)) yield (e.operator, l, r)
+
+      case _ => None
+    }
+  }
+
+  /** Returns the variables read by the expression of a key. */
+  private def keyReads(k: Any): Set[VariableSymbol] =
+    k match {
+      case v: VariableSymbol => Set(v)
+      case p: Product => p.productIterator.flatMap(this.keyReads).toSet
+      case _ => Set()
+    }
+
+  /**
+   * Removes the expressions that read one of the given variables or are held
+   * by one of them.
+   */
+  private def killAvailable(available: Available, vars: Set[VariableSymbol]): Available =
+    available.filter {
+      case (k, holder) =>
+        (this.keyReads(k) & vars).isEmpty && (holder match {
+          case InVariable(v) => !vars.contains(v)
+          case _ => true
+        })
+    }
+
+  /**
+   * Records the reuse of the available expressions within an expression, from
+   * the outside in.
+   *
+   * @param origin May the expressions computed here be reused later on? This
+   *               is only the case if they are always evaluated once before
+   *               the following statements.
+   * @return Available expressions after the evaluation.
+   */
+  private def available(e: Expression, in: Available, origin: Boolean): Available = {
+    val k = this.key(e)
+
+    k.flatMap(in.get) match {
+      case Some(holder) =>
+        this.reused.put(e, holder)
+        return in
+
+      case None =>
+        this.reused.remove(e)
+    }
+
+    val out = e match {
+      case e: EvaluateExpression => e.arguments.foldLeft(in)((a, arg) => this.available(arg, a, origin))
+      case e: AccessExpression => this.available(e.rightOperand, this.available(e.leftOperand, in, origin), origin)
+      case e: BinaryExpression => this.available(e.rightOperand, this.available(e.leftOperand, in, origin), origin)
+      case e: UnaryExpression => this.available(e.operand, in, origin)
+      case e: TypeCheckExpression => this.available(e.oper, in, origin)
+      case _ => in
+    }
+
+    k match {
+      case Some(k) if origin =>
+        if (!this.origins.containsKey(e)) {
+          this.origins.put(e, new Temporary(e))
+        }
+
+        out + (k -> this.origins.get(e))
+
+      case _ => out
+    }
+  }
+
+  /**
+   * Determines the expressions available in a variable after a list of
+   * statements. Works like `propagate`.
+   */
+  private def available(statements: Seq[Statement], in: Option[Available]): Option[Available] =
+    statements.foldLeft(in) { (a, s) =>
+      a.flatMap(this.available(s, _))
+    }
+
+  private def available(s: Statement, in: Available): Option[Available] =
+    s match {
+      case s: Assignment =>
+        this.variable(s.leftOperand) match {
+          case Some(v) =>
+            /* The variable itself holds the value of the whole expression. */
+            val top = this.key(s.rightOperand).filter(!in.contains(_))
+            val out = s.rightOperand match {
+              case e: UnaryExpression if top.isDefined => this.available(e.operand, in, true)
+              case e: BinaryExpression if top.isDefined =>
+                this.available(e.rightOperand, this.available(e.leftOperand, in, true), true)
+              case e => this.available(e, in, true)
+            }
+
+            if (top.isDefined) {
+              this.reused.remove(s.rightOperand)
+            }
+
+            val killed = this.killAvailable(out, Set(v))
+            Some(top.filter(k => !this.keyReads(k).contains(v)) match {
+              case Some(k) if !killed.contains(k) => killed + (k -> InVariable(v))
+              case _ => killed
+            })
+
+          case None =>
+            Some(this.available(s.rightOperand, this.available(s.leftOperand, in, true), true))
+        }
+
+      case s: ReadStatement =>
+        Some(this.killAvailable(in, this.variable(s.operand).toSet))
+
+      case s: CallStatement =>
+        Some(this.available(s.call, in, true))
+
+      case s: WriteStatement =>
+        Some(this.available(s.operand, in, true))
+
+      case s: ReturnStatement =>
+        if (s.value != null) {
+          this.available(s.value, in, true)
+        }
+
+        None
+
+      case s: ThrowStatement =>
+        this.available(s.value, in, true)
+        None
+
+      case s: IfStatement =>
+        /* Only the first condition is always evaluated. */
+        val conditions = s.branches.zipWithIndex.foldLeft(in) {
+          case (a, ((cond, _), i)) => this.available(cond, a, i == 0)
+        }
+
+        (s.branches.map(_._2) :+ s.elseBranch).foldLeft(None: Option[Available]) { (out, stmts) =>
+          this.join(out, this.available(stmts, Some(conditions)))
+        }
+
+      case s: WhileStatement =>
+        var head = in
+        var stable = false
+
+        while (!stable) {
+          this.available(s.condition, head, false)
+          val next = this.join(Some(head), this.available(s.statements, Some(head))).get
+          stable = next == head
+          head = next
+        }
+
+        s.condition match {
+          case BooleanLiteralExpression(true, _) => None
+          case _ => Some(head)
+        }
+
+      case s: TryStatement =>
+        val end = this.available(s.tryStatements, Some(in))
+        val handler = this.killAvailable(in, this.writes(s.tryStatements))
+
+        s.catchStatements.foldLeft(end) { (out, c) =>
+          this.join(out, this.available(c._2, Some(handler)))
+        }
+
+      case _ =>
+        Some(in)
+    }
+
+  /**
+   * Replaces the reused expressions by the variables holding them.
+   *
+   * @param pending Assignments of temporary variables to be inserted before the
+   *                current statement.
+   */
+  private def eliminate(e: Expression, pending: ListBuffer[Statement]): Expression = {
+    Option(this.reused.get(e)) match {
+      case Some(InVariable(v)) => return this.reference(v)
+      case Some(t: Temporary) => return this.reference(t.variable)
+      case _ =>
+    }
+
+    e match {
+      case e: EvaluateExpression =>
+        for (i <- e.arguments.indices) {
+          e.arguments(i) = this.eliminate(e.arguments(i), pending)
+        }
+
+      case e: AccessExpression =>
+        e.leftOperand = this.eliminate(e.leftOperand, pending)
+        this.eliminate(e.rightOperand, pending)
+
+      case e: BinaryExpression =>
+        e.leftOperand = this.eliminate(e.leftOperand, pending)
+        e.rightOperand = this.eliminate(e.rightOperand, pending)
+
+      case e: UnaryExpression =>
+        e.operand = this.eliminate(e.operand, pending)
+
+      case e: TypeCheckExpression =>
+        e.oper = this.eliminate(e.oper, pending)
+
+      case _ =>
+    }
+
+    Option(this.origins.get(e)).filter(_.variable != null) match {
+      case Some(t) =>
+        pending += new Assignment(this.reference(t.variable), e)
+        this.reference(t.variable)
+
+      case None => e
+    }
+  }
+
+  /**
+   * Eliminates the common subexpressions in a list of statements.
+   */
+  private def eliminate(statements: ListBuffer[Statement]): ListBuffer[Statement] = {
+    val result = new ListBuffer[Statement]
+
+    for (s <- statements) {
+      val pending = new ListBuffer[Statement]
+
+      s match {
+        case s: Assignment =>
+          s.rightOperand = this.eliminate(s.rightOperand, pending)
+
+        case s: CallStatement =>
+          s.call = this.eliminate(s.call, pending)
+
+        case s: WriteStatement =>
+          s.operand = this.eliminate(s.operand, pending)
+
+        case s: ReturnStatement =>
+          if (s.value != null) {
+            s.value = this.eliminate(s.value, pending)
+          }
+
+        case s: ThrowStatement =>
+          s.value = this.eliminate(s.value, pending)
+
+        case s: IfStatement =>
+          s.branches = s.branches.map(b => (this.eliminate(b._1, pending), this.eliminate(b._2)))
+          s.elseBranch = this.eliminate(s.elseBranch)
+
+        case s: WhileStatement =>
+          s.condition = this.eliminate(s.condition, pending)
+          s.statements = this.eliminate(s.statements)
+
+        case s: TryStatement =>
+          s.tryStatements = this.eliminate(s.tryStatements)
+          s.catchStatements = s.catchStatements.map(c => (c._1, this.eliminate(c._2)))
+
+        case _ =>
+      }
+
+      result ++= pending
+      result += s
+    }
+
+    result
+  }
+
+  /**
+   * Eliminates the common subexpressions of the method. Only expressions that
+   * are reused receive a temporary variable.
+   */
+  private def eliminateCommonSubexpressions() {
+    this.available(this.method.statements, Some(Map[Any, Holder]()))
+
+    import scala.collection.JavaConversions._
+
+    /* Temporaries are compared by identity. */
+    val uses = this.reused.values.toSeq.collect {
+      case t: Temporary => t
+    }.groupBy(t => t).mapValues(_.size)
+
+    for (t <- this.origins.values; n <- uses.get(t)) {
+      val bool = (t.origin.resolvedType() eq Types.boolType) || (t.origin.resolvedType() eq Types.boolClass)
+      t.variable = this.method.addTemporary(if (bool) Types.boolType else Types.intType, n + 1)
+    }
+
+    this.method.statements = this.eliminate(this.method.statements)
+  }
+
+  /**
+   * Determines the variables live before a list of statements.
+   *
+   * @param live Variables live after the statements.
+   * @param handlers Variables live at the beginning of the exception handlers
+   *                 of the enclosing TRY blocks.
+   */
+  private def liveness(statements: Seq[Statement], live: Set[VariableSymbol], handlers: Set[VariableSymbol]): Set[VariableSymbol] =
+    statements.foldRight(live)(this.liveness(_, _, handlers))
+
+  private def liveness(s: Statement, live: Set[VariableSymbol], handlers: Set[VariableSymbol]): Set[VariableSymbol] = {
+    val in = s match {
+      case s: Assignment =>
+        this.variable(s.leftOperand) match {
+          case Some(v) => live - v ++ this.reads(s.rightOperand)
+          case None => live ++ this.reads(s.leftOperand) ++ this.reads(s.rightOperand)
+        }
+
+      case s: ReadStatement =>
+        this.variable(s.operand) match {
+          case Some(v) => live - v
+          case None => live ++ this.reads(s.operand)
+        }
+
+      case s: CallStatement => live ++ this.reads(s.call)
+      case s: WriteStatement => live ++ this.reads(s.operand)
+      case s: ReturnStatement => this.reads(s.value)
+      case s: ThrowStatement => this.reads(s.value)
+
+      case s: IfStatement =>
+        s.branches.foldRight(this.liveness(s.elseBranch, live, handlers)) {
+          case ((cond, stmts), next) => this.reads(cond) ++ this.liveness(stmts, live, handlers) ++ next
+        }
+
+      case s: WhileStatement =>
+        this.loopLiveness(s, live, handlers)
+
+      case s: TryStatement =>
+        val handler = this.handlerLiveness(s, live, handlers)
+        this.liveness(s.tryStatements, live, handlers ++ handler) ++ handler
+
+      case _ => live
+    }
+
+    /* Each statement may throw an exception. */
+    in ++ handlers
+  }
+
+  /** Variables live at the head of a loop. */
+  private def loopLiveness(s: WhileStatement, live: Set[VariableSymbol], handlers: Set[VariableSymbol]): Set[VariableSymbol] = {
+    var head = live ++ this.reads(s.condition)
+    var stable = false
+
+    while (!stable) {
+      val next = head ++ this.liveness(s.statements, head, handlers)
+      stable = next == head
+      head = next
+    }
+
+    head
+  }
+
+  /** Variables live at the beginning of the handler of a TRY block. */
+  private def handlerLiveness(s: TryStatement, live: Set[VariableSymbol], handlers: Set[VariableSymbol]): Set[VariableSymbol] =
+    handlers ++ s.catchStatements.flatMap(c => this.liveness(c._2, live, handlers))
+
+  /**
+   * Removes the assignments whose value is never read.
+   *
+   * @param live Variables live after the statements.
+   * @param handlers See `liveness`.
+   */
+  private def removeDeadStores(statements: ListBuffer[Statement], live: Set[VariableSymbol], handlers: Set[VariableSymbol]): ListBuffer[Statement] = {
+    val result = new ListBuffer[Statement]
+    var out = live
+
+    for (s <- statements.reverse) {
+      s match {
+        case s: Assignment if this.variable(s.leftOperand).exists(!out.contains(_)) && this.isPure(s.rightOperand) =>
+          out = out ++ handlers
+
+        case _ =>
+          s match {
+            case s: IfStatement =>
+              s.branches = s.branches.map(b => (b._1, this.removeDeadStores(b._2, out, handlers)))
+              s.elseBranch = this.removeDeadStores(s.elseBranch, out, handlers)
+
+            case s: WhileStatement =>
+              s.statements = this.removeDeadStores(s.statements, this.loopLiveness(s, out, handlers), handlers)
+
+            case s: TryStatement =>
+              val handler = this.handlerLiveness(s, out, handlers)
+              s.catchStatements = s.catchStatements.map(c => (c._1, this.removeDeadStores(c._2, out, handlers)))
+              s.tryStatements = this.removeDeadStores(s.tryStatements, out, handlers ++ handler)
+
+            case _ =>
+          }
+
+          out = this.liveness(s, out, handlers)
+          s +=: result
+      }
+    }
+
+    result
+  }
+
+  /**
+   * Optimises the statements of the method.
+   */
+  def optimise() {
+    if (this.tracked.isEmpty) {
+      return
+    }
+
+    this.propagate(this.method.statements, Some(Map[VariableSymbol, Value]()))
+    this.method.statements = this.rewrite(this.method.statements)
+    this.eliminateCommonSubexpressions()
+    this.method.statements = this.removeDeadStores(this.method.statements, Set(), Set())
+  }
+}
+
+object DataFlowOptimiser {
+  /** Known value of a variable. */
+  private sealed abstract class Value
+  private case class IntValue(value: Int) extends Value
+  private case class BoolValue(value: Boolean) extends Value
+
+  /** The variable has the same value as another one. */
+  private case class CopyOf(v: VariableSymbol) extends Value
+
+  /** Known values of the tracked variables. Variables without entry may have any value. */
+  private type Values = Map[VariableSymbol, Value]
+
+  /** Variable holding the value of an expression. */
+  private sealed abstract class Holder
+
+  /** The expression was assigned to a tracked variable. */
+  private case class InVariable(v: VariableSymbol) extends Holder
+
+  /**
+   * The expression is assigned to a new variable before the statement that
+   * first computes it. The variable is only created if the value is reused.
+   */
+  private class Temporary(val origin: Expression) extends Holder {
+    var variable: VariableSymbol = null
+  }
+
+  /** Expressions available in a variable, by their keys (see `key`). */
+  private type Available = Map[Any, Holder]
+}
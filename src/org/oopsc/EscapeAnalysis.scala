@@ -0,0 +1,334 @@
+package org.oopsc
+
+import org.oopsc.expression._
+import org.oopsc.statement._
+import org.oopsc.symbol._
+import scala.collection.mutable.{ HashSet, ListBuffer }
+
+/**
+ * Determines the local variables and parameters of type Integer or Boolean that
+ * can hold their value directly instead of a reference to a boxed object.
+ *
+ * Boxing allocates a new object for every value that is assigned to such a
+ * variable, and every read unboxes it again. This is only necessary if the
+ * object escapes, i.e. if the reference itself is used: when it is assigned to a
+ * variable or attribute of a class type, passed to a method, returned, compared
+ * with NULL or used as the object of an access, cast or type check. A variable
+ * whose value never escapes is changed to the internal type _Integer or _Boolean
+ * after the semantic analysis, so that the code generator neither boxes nor
+ * unboxes its value.
+ *
+ * Parameters are only considered for methods that neither override nor are
+ * overridden, because all calls then have the same target and the callers can
+ * pass the value directly. Requires the class hierarchy analysis.
+ *
+ * A boxed variable may be NULL, which raises an exception when it is read. To
+ * preserve this, only values that are primitive or read from a variable or an
+ * attribute (which checks for NULL) may be assigned to an unboxed variable.
+ * Likewise, a local variable is NULL until it is assigned, so it stays boxed if
+ * it might be read before.
+ */
+class EscapeAnalysis(methods: Seq[MethodSymbol]) {
+  /** Variables that may be unboxed. */
+  private val candidates = new HashSet[VariableSymbol]
+
+  /** Variables whose reference escapes. */
+  private val escapes = new HashSet[VariableSymbol]
+
+  /**
+   * Pairs of variables where the reference of the first one is assigned to the
+   * second one, e.g. passed as an argument. The reference of the first one only
+   * does not escape if the second one is unboxed as well.
+   */
+  private val flows = new ListBuffer[(VariableSymbol, VariableSymbol)]
+
+  /** Variables that are assigned a value that might be NULL. */
+  private val nullable = new HashSet[VariableSymbol]
+
+  private def isBoxed(t: ClassSymbol) = (t eq Types.intClass) || (t eq Types.boolClass)
+
+  /** Returns the variable if the expression reads a candidate. */
+  private def candidate(e: Expression): Option[VariableSymbol] =
+    e match {
+      case e: EvaluateExpression =>
+        e.ref.declaration match {
+          case Some(v: VariableSymbol) if this.candidates.contains(v) => Some(v)
+          case _ => None
+        }
+
+      case _ => None
+    }
+
+  /**
+   * Records that a value is assigned to the variable.
+   */
+  private def assign(v: VariableSymbol, value: Expression) {
+    val t = value.resolvedType()
+
+    if ((t ne Types.intType) && (t ne Types.boolType) && !value.lValue) {
+      this.nullable += v
+    }
+  }
+
+  /**
+   * Visits an expression.
+   *
+   * @param box Is the value of the expression required as a reference?
+   * @param target Variable the value is assigned to, if any.
+   */
+  private def visit(e: Expression, box: Boolean, target: Option[VariableSymbol] = None) {
+    e match {
+      case e: EvaluateExpression =>
+        e.ref.declaration.get match {
+          case m: MethodSymbol =>
+            for ((arg, param) <- e.arguments.zip(m.parameters)) {
+              if (this.candidates.contains(param)) {
+                this.assign(param, arg)
+                this.visit(arg, true, Some(param))
+              } else {
+                this.visit(arg, true)
+              }
+            }
+
+          case c: ClassSymbol =>
+            this.visit(e.arguments(0), true)
+
+          case v: VariableSymbol =>
+            if (box && this.candidates.contains(v)) {
+              target match {
+                case Some(t) => this.flows += ((v, t))
+                case None => this.escapes += v
+              }
+            }
+        }
+
+      case e: AccessExpression =>
+        this.visit(e.leftOperand, true)
+        this.visit(e.rightOperand, box)
+
+      case e: BinaryExpression =>
+        val boxOperands = (e.leftOperand.resolvedType() eq Types.nullType) || (e.rightOperand.resolvedType() eq Types.nullType)
+        this.visit(e.leftOperand, boxOperands)
+        this.visit(e.rightOperand, boxOperands)
+
+      case e: UnaryExpression =>
+        this.visit(e.operand, false)
+
+      case e: TypeCheckExpression =>
+        this.visit(e.oper, true)
+
+      case _ =>
+    }
+  }
+
+  /** Returns the local variables among the candidates that the expression reads. */
+  private def reads(e: Expression, locals: Set[VariableSymbol]): Seq[VariableSymbol] =
+    e match {
+      case e: EvaluateExpression =>
+        val v = e.ref.declaration match {
+          case Some(v: VariableSymbol) if locals.contains(v) => Seq(v)
+          case _ => Nil
+        }
+
+        v ++ e.arguments.flatMap(this.reads(_, locals))
+
+      case e: AccessExpression => this.reads(e.leftOperand, locals) ++ this.reads(e.rightOperand, locals)
+      case e: BinaryExpression => this.reads(e.leftOperand, locals) ++ this.reads(e.rightOperand, locals)
+      case e: UnaryExpression => this.reads(e.operand, locals)
+      case e: TypeCheckExpression => this.reads(e.oper, locals)
+      case _ => Nil
+    }
+
+  /**
+   * Records the local variables that might be read before they are assigned as
+   * nullable.
+   *
+   * @param locals Local variables among the candidates.
+   * @param assigned Variables assigned on every path to the statements.
+   * @return Variables assigned on every path through the statements, or None if
+   *         the statements never complete normally, e.g. because they return.
+   */
+  private def checkAssigned(statements: Seq[Statement], locals: Set[VariableSymbol],
+                            assigned: Set[VariableSymbol]): Option[Set[VariableSymbol]] = {
+    /* Joins the variables assigned on paths that meet. */
+    def join(paths: Seq[Option[Set[VariableSymbol]]]) =
+      paths.flatten.reduceOption(_ intersect _)
+
+    def read(e: Expression, assigned: Set[VariableSymbol]) {
+      this.nullable ++= this.reads(e, locals).filterNot(assigned.contains)
+    }
+
+    def target(e: Expression, assigned: Set[VariableSymbol]): Set[VariableSymbol] = {
+      e match {
+        case e: EvaluateExpression =>
+          e.ref.declaration match {
+            case Some(v: VariableSymbol) if locals.contains(v) => return assigned + v
+            case _ =>
+          }
+
+        case _ =>
+      }
+
+      read(e, assigned)
+      assigned
+    }
+
+    var current = assigned
+
+    for (s <- statements) {
+      s match {
+        case s: Assignment =>
+          read(s.rightOperand, current)
+          current = target(s.leftOperand, current)
+
+        case s: ReadStatement =>
+          current = target(s.operand, current)
+
+        case s: CallStatement =>
+          read(s.call, current)
+
+        case s: WriteStatement =>
+          read(s.operand, current)
+
+        case s: ThrowStatement =>
+          read(s.value, current)
+          return None
+
+        case s: ReturnStatement =>
+          if (s.value != null) {
+            read(s.value, current)
+          }
+
+          return None
+
+        case s: IfStatement =>
+          s.branches.foreach(b => read(b._1, current))
+          val before = current
+
+          join((s.branches.map(_._2) :+ s.elseBranch).map(this.checkAssigned(_, locals, before))) match {
+            case Some(a) => current = a
+            case None => return None
+          }
+
+        case s: WhileStatement =>
+          read(s.condition, current)
+          this.checkAssigned(s.statements, locals, current)
+
+        case s: TryStatement =>
+          val before = current
+
+          join(this.checkAssigned(s.tryStatements, locals, before) +:
+            s.catchStatements.map(c => this.checkAssigned(c._2, locals, before))) match {
+            case Some(a) => current = a
+            case None => return None
+          }
+
+        case _ =>
+      }
+    }
+
+    Some(current)
+  }
+
+  /**
+   * Visits a list of statements.
+   */
+  private def visit(statements: Seq[Statement]) {
+    for (s <- statements) {
+      s match {
+        case s: Assignment =>
+          this.candidate(s.leftOperand) match {
+            case Some(v) =>
+              this.assign(v, s.rightOperand)
+              this.visit(s.rightOperand, true, Some(v))
+
+            case None =>
+              this.visit(s.leftOperand, false)
+              this.visit(s.rightOperand, true)
+          }
+
+        case s: ReadStatement =>
+          if (this.candidate(s.operand).isEmpty) {
+            this.visit(s.operand, false)
+          }
+
+        case s: CallStatement =>
+          this.visit(s.call, false)
+
+        case s: WriteStatement =>
+          this.visit(s.operand, false)
+
+        case s: ThrowStatement =>
+          this.visit(s.value, false)
+
+        case s: ReturnStatement =>
+          if (s.value != null) {
+            this.visit(s.value, true)
+          }
+
+        case s: IfStatement =>
+          for ((cond, stmts) <- s.branches) {
+            this.visit(cond, false)
+            this.visit(stmts)
+          }
+
+          this.visit(s.elseBranch)
+
+        case s: WhileStatement =>
+          this.visit(s.condition, false)
+          this.visit(s.statements)
+
+        case s: TryStatement =>
+          this.visit(s.tryStatements)
+          s.catchStatements.foreach(c => this.visit(c._2))
+
+        case _ =>
+      }
+    }
+  }
+
+  /**
+   * Performs the analysis and changes the type of all variables that can be
+   * unboxed.
+   *
+   * @return Unboxed variables.
+   */
+  def unbox(): Seq[VariableSymbol] = {
+    for (m <- this.methods) {
+      this.candidates ++= m.locals.filter(v => this.isBoxed(v.getResolvedType))
+
+      if (m.isMonomorphic && m.overrides.isEmpty) {
+        this.candidates ++= m.parameters.filter(v => this.isBoxed(v.getResolvedType))
+      }
+    }
+
+    this.methods.foreach(m => this.visit(m.statements))
+
+    for (m <- this.methods) {
+      this.checkAssigned(m.statements, m.locals.filter(this.candidates.contains).toSet, Set())
+    }
+
+    val unboxed = this.candidates -- this.escapes -- this.nullable
+
+    /* A reference that is assigned to a boxed variable escapes. */
+    var changed = true
+    while (changed) {
+      changed = false
+
+      for ((from, to) <- this.flows) {
+        if (unboxed.contains(from) && !unboxed.contains(to)) {
+          unboxed -= from
+          changed = true
+        }
+      }
+    }
+
+    val result = this.methods.flatMap(m => m.parameters ++ m.locals).filter(unboxed.contains)
+
+    for (v <- result) {
+      v.resolvedType = Some(if (v.getResolvedType eq Types.intClass) Types.intType else Types.boolType)
+    }
+
+    result
+  }
+}
@@ -0,0 +1,698 @@
+package org.oopsc
+
+import org.oopsc.expression._
+import org.oopsc.statement._
+import org.oopsc.symbol._
+import scala.collection.mutable.{ HashSet, LinkedHashMap, ListBuffer }
+
+/**
+ * Optimises the WHILE loops of a method, innermost loops first:
+ *
+ *  - Loop-invariant code motion: an expression whose operands the loop does
+ *    not change is computed once before the loop and stored in a new local
+ *    variable. Besides arithmetic, this includes reading the value of a boxed
+ *    variable or of an attribute, which dereferences and checks it.
+ *  - Strength reduction: a product `i * k` of an induction variable `i`, which
+ *    the loop only changes by adding or subtracting an invariant step, and an
+ *    invariant factor `k` is replaced by a variable that is initialised before
+ *    the loop and updated along with `i`.
+ *  - NULL checks: a variable that is read at the beginning of the condition and
+ *    not changed by the loop is checked once before the loop instead of on
+ *    every read (see `WhileStatement.checked`).
+ *
+ * An attribute is only invariant if the loop neither assigns it nor calls a
+ * method, which might assign it. Evaluating an expression earlier must not
+ * raise an exception that the loop would not have raised at this point. An
+ * expression that might fail, e.g. because it dereferences NULL or divides by
+ * zero, is therefore only moved out of the condition, which is evaluated at
+ * least once, or out of the first statement of the body, in which case it is
+ * computed after the guard of the loop (see `WhileStatement.entry`). In both
+ * cases, nothing evaluated before it may fail for a different reason.
+ *
+ * The new variables hold their values directly (see `EscapeAnalysis`).
+ *
+ * @param method Method whose loops are optimised.
+ */
+class LoopOptimiser(method: MethodSymbol) {
+  import LoopOptimiser._
+
+  /** Creates a reference to a variable, i.e. a read or the target of an assignment. */
+  private def reference(v: VariableSymbol): EvaluateExpression = {
+    val e = new EvaluateExpression(new ResolvableSymbol(v.identifier, Some(v)))
+    e.lValue = true
+    e
+  }
+
+  private def isUnboxed(v: VariableSymbol) =
+    (v.getResolvedType eq Types.intType) || (v.getResolvedType eq Types.boolType)
+
+  private def isInteger(t: ClassSymbol) = (t eq Types.intType) || (t eq Types.intClass)
+
+  private def isBoolean(t: ClassSymbol) = (t eq Types.boolType) || (t eq Types.boolClass)
+
+  /** Returns the variable or attribute an expression refers to. */
+  private def variable(e: Expression): Option[VariableSymbol] =
+    e match {
+      case e: EvaluateExpression =>
+        e.ref.declaration match {
+          case Some(v: VariableSymbol) => Some(v)
+          case _ => None
+        }
+
+      case e: AccessExpression => this.variable(e.rightOperand)
+      case _ => None
+    }
+
+  /** Returns the local variable or parameter an expression reads, if it holds its value directly. */
+  private def unboxed(e: Expression): Option[VariableSymbol] =
+    e match {
+      case e: EvaluateExpression => this.variable(e).filter(v => !v.isInstanceOf[AttributeSymbol] && this.isUnboxed(v))
+      case _ => None
+    }
+
+  /** Returns the expression and all of its subexpressions. */
+  private def subexpressions(e: Expression): Seq[Expression] =
+    e +: (e match {
+      case e: EvaluateExpression => e.arguments.flatMap(this.subexpressions)
+      case e: AccessExpression => this.subexpressions(e.leftOperand) ++ this.subexpressions(e.rightOperand)
+      case e: BinaryExpression => this.subexpressions(e.leftOperand) ++ this.subexpressions(e.rightOperand)
+      case e: UnaryExpression => this.subexpressions(e.operand)
+      case e: TypeCheckExpression => this.subexpressions(e.oper)
+      case _ => Nil
+    })
+
+  /** Returns the statements and all statements nested in them. */
+  private def statements(stmts: Seq[Statement]): Seq[Statement] =
+    stmts.flatMap(s => s +: this.statements(s match {
+      case s: IfStatement => s.branches.flatMap(_._2) ++ s.elseBranch
+      case s: WhileStatement => s.entry ++ s.statements
+      case s: TryStatement => s.tryStatements ++ s.catchStatements.flatMap(_._2)
+      case _ => Nil
+    }))
+
+  /** Returns the expressions of a statement, excluding those of nested statements. */
+  private def expressions(s: Statement): Seq[Expression] =
+    s match {
+      case s: Assignment => Seq(s.leftOperand, s.rightOperand)
+      case s: ReadStatement => Seq(s.operand)
+      case s: CallStatement => Seq(s.call)
+      case s: WriteStatement => Seq(s.operand)
+      case s: ReturnStatement => Option(s.value).toSeq
+      case s: ThrowStatement => Seq(s.value)
+      case s: IfStatement => s.branches.map(_._1)
+      case s: WhileStatement => Seq(s.condition)
+      case _ => Nil
+    }
+
+  /**
+   * Identifies the value of an expression that only reads variables and
+   * attributes. Expressions with the same key have the same value as long as
+   * none of these is assigned.
+   */
+  private def key(e: Expression): Option[Any] =
+    e match {
+      case IntegerLiteralExpression(v, _) => Some(v)
+      case CharacterLiteralExpression(v, _) => Some(v.toInt)
+      case BooleanLiteralExpression(v, _) => Some(v)
+
+      case e: EvaluateExpression if e.arguments.isEmpty =>
+        e.ref.declaration match {
+          case Some(a: AttributeSymbol) => Some((this.method.self, a))
+          case Some(v: VariableSymbol) => Some(v)
+          case _ => None
+        }
+
+      case e: AccessExpression => this.key(e.leftOperand).map((_, e.rightOperand.ref.declaration.get))
+      case e: UnaryExpression => this.key(e.operand).map((e.operator, _))
+      case e: BinaryExpression => for (l <- this.key(e.leftOperand); r <- this.key(e.rightOperand)) yield (e.operator, l, r)
+      case _ => None
+    }
+
+  /**
+   * Determines what evaluating the expression might do besides computing its
+   * value: nothing (`Pure`), raising the exception for NULL (`NullCheck`) or
+   * anything else (`Effect`), e.g. a division by zero or a method call.
+   *
+   * @param checked Variables that are known not to be NULL.
+   */
+  private def effect(e: Expression, checked: Set[VariableSymbol] = Set()): Int =
+    e match {
+      case _: LiteralExpression => Pure
+
+      case e: EvaluateExpression =>
+        e.ref.declaration match {
+          case Some(_: AttributeSymbol) => NullCheck
+          case Some(v: VariableSymbol) =>
+            if (this.isUnboxed(v) || (v eq this.method.self) || (v eq this.method.base) || checked.contains(v)) Pure else NullCheck
+          case _ => Effect
+        }
+
+      case e: AccessExpression =>
+        if (e.rightOperand.isMethodCall) Effect else math.max(NullCheck, this.effect(e.leftOperand, checked))
+
+      case e: UnaryExpression => this.effect(e.operand, checked)
+
+      case e: BinaryExpression =>
+        val divisor = (e.operator == BinaryExpression.DIV || e.operator == BinaryExpression.MOD) &&
+          (e.rightOperand match {
+            case IntegerLiteralExpression(v, _) => v == 0
+            case _ => true
+          })
+
+        math.max(if (divisor) Effect else Pure, math.max(this.effect(e.leftOperand, checked), this.effect(e.rightOperand, checked)))
+
+      case _ => Effect
+    }
+
+  /**
+   * Rewrites an expression top-down. If `f` returns a replacement, it is not
+   * visited any further. Otherwise, the operands are rewritten in the order of
+   * their evaluation and `after` is called with the expression.
+   *
+   * @param value Is the value of the expression used without its box?
+   */
+  private def transform(e: Expression, value: Boolean, f: (Expression, Boolean) => Option[Expression],
+                        after: Expression => Unit): Expression =
+    f(e, value) match {
+      case Some(replacement) =>
+        replacement
+
+      case None =>
+        e match {
+          case e: EvaluateExpression =>
+            this.transformArguments(e, f, after)
+
+          case e: AccessExpression =>
+            e.leftOperand = this.transform(e.leftOperand, false, f, after)
+            this.transformArguments(e.rightOperand, f, after)
+
+          case e: BinaryExpression =>
+            /* Operands compared with NULL are boxed. */
+            val unboxed = (e.leftOperand.resolvedType() ne Types.nullType) && (e.rightOperand.resolvedType() ne Types.nullType)
+            e.leftOperand = this.transform(e.leftOperand, unboxed, f, after)
+            e.rightOperand = this.transform(e.rightOperand, unboxed, f, after)
+
+          case e: UnaryExpression =>
+            e.operand = this.transform(e.operand, true, f, after)
+
+          case e: TypeCheckExpression =>
+            e.oper = this.transform(e.oper, false, f, after)
+
+          case _ =>
+        }
+
+        after(e)
+        e
+    }
+
+  private def transformArguments(e: EvaluateExpression, f: (Expression, Boolean) => Option[Expression],
+                                 after: Expression => Unit) {
+    for (i <- e.arguments.indices) {
+      e.arguments(i) = this.transform(e.arguments(i), false, f, after)
+    }
+  }
+
+  /**
+   * Rewrites the expressions of a statement in the order of their evaluation,
+   * excluding those of nested statements.
+   *
+   * @param first Only rewrite the expressions that are always evaluated, i.e.
+   *              only the first condition of an IF statement.
+   */
+  private def transform(s: Statement, f: (Expression, Boolean) => Option[Expression], after: Expression => Unit,
+                        first: Boolean) {
+    /* The object of an assigned attribute is read. */
+    def target(e: Expression) {
+      e match {
+        case e: AccessExpression => e.leftOperand = this.transform(e.leftOperand, false, f, after)
+        case _ =>
+      }
+    }
+
+    s match {
+      case s: Assignment =>
+        target(s.leftOperand)
+        val value = this.isUnboxed(this.variable(s.leftOperand).get)
+        s.rightOperand = this.transform(s.rightOperand, value, f, after)
+
+      case s: ReadStatement =>
+        target(s.operand)
+
+      case s: CallStatement =>
+        s.call = this.transform(s.call, false, f, after)
+
+      case s: WriteStatement =>
+        s.operand = this.transform(s.operand, true, f, after)
+
+      case s: ReturnStatement =>
+        if (s.value != null) {
+          s.value = this.transform(s.value, false, f, after)
+        }
+
+      case s: ThrowStatement =>
+        s.value = this.transform(s.value, true, f, after)
+
+      case s: IfStatement =>
+        for (i <- if (first) s.branches.indices.take(1) else s.branches.indices) {
+          s.branches(i) = (this.transform(s.branches(i)._1, true, f, after), s.branches(i)._2)
+        }
+
+      case s: WhileStatement =>
+        s.condition = this.transform(s.condition, true, f, after)
+
+      case _ =>
+    }
+  }
+
+  /**
+   * Rewrites the expressions of the statements, including nested ones.
+   */
+  private def transform(stmts: Seq[Statement], f: (Expression, Boolean) => Option[Expression]) {
+    for (s <- stmts) {
+      this.transform(s, f, _ => (), false)
+
+      s match {
+        case s: IfStatement =>
+          s.branches.foreach(b => this.transform(b._2, f))
+          this.transform(s.elseBranch, f)
+
+        case s: WhileStatement =>
+          this.transform(s.entry, f)
+          this.transform(s.statements, f)
+
+        case s: TryStatement =>
+          this.transform(s.tryStatements, f)
+          s.catchStatements.foreach(c => this.transform(c._2, f))
+
+        case _ =>
+      }
+    }
+  }
+
+  /**
+   * Optimises a loop.
+   *
+   * @param depth Number of loops the loop is nested in, including itself.
+   */
+  private class Loop(loop: WhileStatement, depth: Int) {
+    /** Weight of an access in the loop and before it, see `VariableSymbol.uses`. */
+    private val weight = math.pow(10, math.min(depth, 4)).toInt
+    private val outerWeight = math.pow(10, math.min(depth - 1, 4)).toInt
+
+    private val body = LoopOptimiser.this.statements(this.loop.statements)
+
+    /** Variables and attributes assigned in the loop. */
+    private val assigned: Set[VariableSymbol] =
+      this.body.flatMap {
+        case s: Assignment => LoopOptimiser.this.variable(s.leftOperand)
+        case s: ReadStatement => LoopOptimiser.this.variable(s.operand)
+        case _ => None
+      }.toSet
+
+    /** Does the loop call a method? */
+    private val calls =
+      (this.loop.condition +: this.body.flatMap(LoopOptimiser.this.expressions))
+        .flatMap(LoopOptimiser.this.subexpressions).exists {
+          case e: EvaluateExpression => e.isMethodCall
+          case _ => false
+        }
+
+    /** Statements to be inserted before the loop. */
+    val preheader = new ListBuffer[Statement]
+
+    /** Variables holding the values computed before the loop, by key. */
+    private val hoisted = new LinkedHashMap[Any, VariableSymbol]
+
+    /** Variables computed when the loop is entered. */
+    private val entered = new HashSet[VariableSymbol]
+
+    /** Variables checked for NULL before the loop. */
+    private val checked = new ListBuffer[VariableSymbol]
+
+    /**
+     * Strongest effect of the expressions evaluated so far, see `effect`. An
+     * expression that is moved before them must not change which exception is
+     * raised first.
+     */
+    private var evaluated = Pure
+
+    private def invariant(e: Expression): Boolean =
+      e match {
+        case _: LiteralExpression => true
+
+        case e: EvaluateExpression =>
+          e.arguments.isEmpty && (e.ref.declaration match {
+            case Some(a: AttributeSymbol) => !this.calls && !this.assigned.contains(a)
+            case Some(v: VariableSymbol) => !this.assigned.contains(v)
+            case _ => false
+          })
+
+        case e: AccessExpression => this.invariant(e.leftOperand) && this.invariant(e.rightOperand)
+        case e: UnaryExpression => this.invariant(e.operand)
+        case e: BinaryExpression => this.invariant(e.leftOperand) && this.invariant(e.rightOperand)
+        case _ => false
+      }
+
+    /**
+     * Determines whether an expression is worth computing before the loop: an
+     * invariant operation or a read of a boxed Integer or Boolean value. Reads
+     * are only replaced where the value is used without its box.
+     */
+    private def isCandidate(e: Expression, value: Boolean): Boolean = {
+      val kind = e match {
+        case _: BinaryExpression => true
+        case _: UnaryExpression | _: EvaluateExpression | _: AccessExpression =>
+          value && (isInteger(e.resolvedType()) || isBoolean(e.resolvedType()))
+        case _ => false
+      }
+
+      kind && unboxed(e).isEmpty && subexpressions(e).exists(_.isInstanceOf[EvaluateExpression]) &&
+        key(e).isDefined && this.invariant(e)
+    }
+
+    /**
+     * Can an expression with the given effect be evaluated before the
+     * expressions evaluated so far? Only exceptions for NULL can be swapped, as
+     * they are indistinguishable.
+     */
+    private def mayPrecede(effect: Int) =
+      effect == Pure || this.evaluated == Pure || this.evaluated == NullCheck && effect == NullCheck
+
+    /**
+     * Returns the variable holding the value of an invariant expression. Pure
+     * expressions are computed before the loop.
+     *
+     * @param target Statements to which an expression is added that might fail
+     *               and may precede the expressions evaluated so far, if any.
+     */
+    private def hoist(e: Expression, value: Boolean, target: Option[ListBuffer[Statement]]): Option[Expression] =
+      if (!this.isCandidate(e, value)) {
+        None
+      } else {
+        val k = key(e).get
+        val eff = effect(e)
+
+        this.hoisted.get(k).orElse {
+          if (eff == Pure) {
+            Some(this.introduce(k, e, this.preheader))
+          } else {
+            target.filter(_ => this.mayPrecede(eff)).map(this.introduce(k, e, _))
+          }
+        }.map { v =>
+          v.uses += this.weight
+          reference(v)
+        }
+      }
+
+    /**
+     * Computes an expression in a new variable.
+     *
+     * @param target Statements to which the assignment is added.
+     */
+    private def introduce(k: Any, e: Expression, target: ListBuffer[Statement]): VariableSymbol = {
+      val t = if (isInteger(e.resolvedType())) Types.intType else Types.boolType
+      val v = method.addTemporary(t, this.outerWeight)
+      target += new Assignment(reference(v), e)
+      this.hoisted(k) = v
+
+      if (target eq this.loop.entry) {
+        this.entered += v
+      }
+
+      v
+    }
+
+    /**
+     * Moves the NULL check of an invariant variable in the condition out of the
+     * loop.
+     */
+    private def check(e: Expression) {
+      e match {
+        case e: EvaluateExpression if this.invariant(e) && effect(e) == NullCheck && this.mayPrecede(NullCheck) =>
+          e.ref.declaration match {
+            case Some(v: VariableSymbol) if !v.isInstanceOf[AttributeSymbol] =>
+              if (!this.checked.contains(v)) {
+                this.checked += v
+              }
+
+              this.evaluated = math.max(this.evaluated, NullCheck)
+
+            case _ =>
+          }
+
+        case _ =>
+      }
+    }
+
+    private def moveInvariants() {
+      val track = (e: Expression) => this.evaluated = math.max(this.evaluated, effect(e, this.checked.toSet))
+
+      /* Expressions of the condition are computed before the loop. */
+      this.evaluated = Pure
+      this.loop.condition = transform(this.loop.condition, true, { (e, value) =>
+        val replacement = this.hoist(e, value, Some(this.preheader))
+
+        if (replacement.isEmpty) {
+          this.check(e)
+        }
+
+        replacement
+      }, track)
+
+      /* Expressions that the first statement of the body always evaluates are
+       * computed when the loop is entered, right after the condition. */
+      this.evaluated = Pure
+      for (s <- this.loop.statements.headOption) {
+        transform(s, this.hoist(_, _, Some(this.loop.entry)), track, true)
+      }
+
+      /* The remaining ones are computed before the loop if they cannot fail. */
+      transform(this.loop.statements, this.hoist(_, _, None))
+
+      /* The checked variables are not assigned in the loop. Their reads in the
+       * loop cannot fail anymore. */
+      for (e <- (this.loop.condition +: (this.loop.entry ++ this.body).flatMap(expressions)).flatMap(subexpressions)) {
+        e match {
+          case e: EvaluateExpression if variable(e).exists(this.checked.contains) => e.nonNull = true
+          case _ =>
+        }
+      }
+
+      this.loop.checked ++= this.checked.map(reference)
+    }
+
+    /**
+     * Returns the step if the statement adds an invariant value to the
+     * variable or subtracts it.
+     */
+    private def step(s: Statement, v: VariableSymbol): Option[(BinaryExpression.Operator, Expression)] =
+      s match {
+        case s: Assignment if unboxed(s.leftOperand) == Some(v) =>
+          s.rightOperand match {
+            case e: BinaryExpression if e.operator == BinaryExpression.PLUS || e.operator == BinaryExpression.MINUS =>
+              if (unboxed(e.leftOperand) == Some(v) && this.isFactor(e.rightOperand, v)) {
+                Some((e.operator, e.rightOperand))
+              } else if (e.operator == BinaryExpression.PLUS && unboxed(e.rightOperand) == Some(v) && this.isFactor(e.leftOperand, v)) {
+                Some((e.operator, e.leftOperand))
+              } else {
+                None
+              }
+
+            case _ => None
+          }
+
+        case _ => None
+      }
+
+    /** Is the expression a literal or an invariant variable other than v? */
+    private def isFactor(e: Expression, v: VariableSymbol): Boolean =
+      e match {
+        case _: IntegerLiteralExpression | _: CharacterLiteralExpression => true
+        case _ => unboxed(e).exists(w => (w ne v) && !this.assigned.contains(w) && !this.entered.contains(w))
+      }
+
+    private def copy(e: Expression): Expression =
+      e match {
+        case IntegerLiteralExpression(v, p) => IntegerLiteralExpression(v, p)
+        case CharacterLiteralExpression(v, p) => IntegerLiteralExpression(v.toInt, p)
+        case _ => reference(unboxed(e).get)
+      }
+
+    private def literal(e: Expression): Option[Int] =
+      e match {
+        case IntegerLiteralExpression(v, _) => Some(v)
+        case CharacterLiteralExpression(v, _) => Some(v.toInt)
+        case _ => None
+      }
+
+    private def binary(l: Expression, op: BinaryExpression.Operator, r: Expression) = {
+      val e = new BinaryExpression(l, op, r)
+      e.t = Types.intType
+      e
+    }
+
+    /**
+     * Replaces products of induction variables and invariant factors.
+     */
+    private def reduceStrength() {
+      /* Induction variables: unboxed Integer variables that are only assigned by
+       * adding or subtracting an invariant step. */
+      val writes = this.body.filter {
+        case s: Assignment => unboxed(s.leftOperand).isDefined
+        case s: ReadStatement => unboxed(s.operand).isDefined
+        case _ => false
+      }
+
+      val induction = writes.flatMap(s => unboxed(expressions(s).head)).distinct.filter { v =>
+        isInteger(v.getResolvedType) && writes.forall(s => unboxed(expressions(s).head) != Some(v) || this.step(s, v).isDefined)
+      }.toSet
+
+      /* Products by induction variable and factor. */
+      def product(e: Expression): Option[(VariableSymbol, Expression)] =
+        e match {
+          case e: BinaryExpression if e.operator == BinaryExpression.MUL =>
+            val (l, r) = (e.leftOperand, e.rightOperand)
+            unboxed(l).filter(induction.contains).filter(this.isFactor(r, _)).map((_, r)).orElse(
+              unboxed(r).filter(induction.contains).filter(this.isFactor(l, _)).map((_, l)))
+
+          case _ => None
+        }
+
+      /* Variables holding the products and the factors, by induction variable and factor. */
+      val products = new LinkedHashMap[(VariableSymbol, Any), (VariableSymbol, Expression)]
+
+      val replace = { (e: Expression, value: Boolean) =>
+        product(e).map { case (v, factor) =>
+          val (t, _) = products.getOrElseUpdate((v, key(factor).get), {
+            val t = method.addTemporary(Types.intType, this.outerWeight)
+            this.preheader += new Assignment(reference(t), this.binary(reference(v), BinaryExpression.MUL, this.copy(factor)))
+            (t, factor)
+          })
+
+          t.uses += this.weight
+          reference(t)
+        }
+      }
+
+      this.loop.condition = transform(this.loop.condition, true, replace, _ => ())
+      transform(this.loop.statements, replace)
+
+      if (products.nonEmpty) {
+        this.loop.statements = this.update(this.loop.statements, products.toSeq.groupBy(_._1._1).mapValues(_.map(_._2)))
+      }
+    }
+
+    /**
+     * Adds a statement after each step of an induction variable that updates
+     * the products of the variable accordingly.
+     *
+     * @param products Variables holding the products and the factors, by
+     *                 induction variable.
+     */
+    private def update(stmts: ListBuffer[Statement], products: Map[VariableSymbol, Iterable[(VariableSymbol, Expression)]]): ListBuffer[Statement] = {
+      val result = new ListBuffer[Statement]
+
+      for (s <- stmts) {
+        result += s
+
+        s match {
+          case s: IfStatement =>
+            s.branches = s.branches.map(b => (b._1, this.update(b._2, products)))
+            s.elseBranch = this.update(s.elseBranch, products)
+
+          case s: WhileStatement =>
+            s.statements = this.update(s.statements, products)
+
+          case s: TryStatement =>
+            s.tryStatements = this.update(s.tryStatements, products)
+            s.catchStatements = s.catchStatements.map(c => (c._1, this.update(c._2, products)))
+
+          case s: Assignment =>
+            for (v <- unboxed(s.leftOperand); (t, factor) <- products.getOrElse(v, Nil); (op, step) <- this.step(s, v)) {
+              result += new Assignment(reference(t), this.binary(reference(t), op, this.increment(step, factor)))
+            }
+
+          case _ =>
+        }
+      }
+
+      result
+    }
+
+    /** Steps of the products, by product and step. */
+    private val increments = new LinkedHashMap[(Expression, Any), VariableSymbol]
+
+    /**
+     * Returns the amount by which a product changes when the induction variable
+     * changes by the given step.
+     */
+    private def increment(step: Expression, factor: Expression): Expression =
+      (this.literal(step), this.literal(factor)) match {
+        case (Some(s), Some(k)) => IntegerLiteralExpression(s * k, step.position)
+        case (Some(1), _) => this.copy(factor)
+        case (_, Some(1)) => this.copy(step)
+        case _ =>
+          val d = this.increments.getOrElseUpdate((factor, key(step).get), {
+            val d = method.addTemporary(Types.intType, this.outerWeight)
+            this.preheader += new Assignment(reference(d), this.binary(this.copy(step), BinaryExpression.MUL, this.copy(factor)))
+            d
+          })
+
+          d.uses += this.weight
+          reference(d)
+      }
+
+    def optimise() {
+      this.moveInvariants()
+      this.reduceStrength()
+    }
+  }
+
+  /**
+   * Optimises the loops in the statements, including nested ones. Code moved
+   * out of a loop is inserted before it.
+   *
+   * @param depth Number of loops the statements are nested in.
+   */
+  private def optimise(stmts: ListBuffer[Statement], depth: Int): ListBuffer[Statement] = {
+    val result = new ListBuffer[Statement]
+
+    for (s <- stmts) {
+      s match {
+        case s: IfStatement =>
+          s.branches = s.branches.map(b => (b._1, this.optimise(b._2, depth)))
+          s.elseBranch = this.optimise(s.elseBranch, depth)
+
+        case s: WhileStatement =>
+          s.statements = this.optimise(s.statements, depth + 1)
+          val loop = new Loop(s, depth + 1)
+          loop.optimise()
+          result ++= loop.preheader
+
+        case s: TryStatement =>
+          s.tryStatements = this.optimise(s.tryStatements, depth)
+          s.catchStatements = s.catchStatements.map(c => (c._1, this.optimise(c._2, depth)))
+
+        case _ =>
+      }
+
+      result += s
+    }
+
+    result
+  }
+
+  /**
+   * Optimises the loops of the method.
+   */
+  def optimise() {
+    this.method.statements = this.optimise(this.method.statements, 0)
+  }
+}
+
+object LoopOptimiser {
+  /** Effects of evaluating an expression, see `LoopOptimiser.effect`. */
+  private val Pure = 0
+  private val NullCheck = 1
+  private val Effect = 2
+}
@@ -2,6 +2,9 @@ package org.oopsc
 
 import com.typesafe.scalalogging.slf4j.Logging
 import org.rogach.scallop._
+import org.oopsvm.{AsmException, Assembler, ObjectFile}
+import java.io.{ByteArrayInputStream, ByteArrayOutputStream, File, IOException}
+import java.nio.file.{Files, Paths}
 
 class Conf(args : Seq[String]) extends ScallopConf(args) {
   version(s"oopsc ${OOPSC.Version} (c) 2013-2014 Tim Nieradzik")
@@ -19,6 +22,11 @@ class Conf(args : Seq[String]) extends ScallopConf(args) {
   val optimisations = opt[Boolean]("optim", descr = "enable optimisations")
   val heapSize = opt[Int](descr = "heap size", default = Some(100))
   val stackSize = opt[Int](descr = "stack size", default = Some(100))
+  val registers = opt[Int](descr = "number of registers of the VM, used with --optim (default = 8)", default = Some(8))
+  val peepholeStats = opt[Boolean](descr = "print the number of instructions each peephole rule removed, used with --optim")
+  val binary = opt[Boolean](descr = "write an object file that the VM loads without assembling")
+  val superinstructions = opt[Boolean](descr = "emit the superinstructions PSH, POP, ADI, LDO and JPZ of the VM")
+  val cache = opt[String](descr = "directory of a cache of compiled programs, which are only compiled again if they changed")
   val inputFile = trailArg[String]("input", descr = "input file")
   val outputFile = trailArg[String]("output", descr = "output file (default: stdout)", required = false)
 }
@@ -26,6 +34,118 @@ class Conf(args : Seq[String]) extends ScallopConf(args) {
 object OOPSC extends Logging {
   val Version = "0.1"
 
+  /**
+   * With optimisations enabled, temporaries and local variables are kept in the
+   * registers of the VM and the code is passed through the peephole optimiser.
+   */
+  def configure(stream: CodeStream, conf: Conf): CodeStream = {
+    if (conf.optimisations.apply()) {
+      stream.registers = Some(new RegisterAllocator(conf.registers.apply()))
+      stream.optimiser = Some(new PeepholeOptimiser)
+    }
+
+    stream.superinstructions = conf.superinstructions.apply()
+    stream
+  }
+
+  /**
+   * Prints the number of instructions each peephole rule removed.
+   */
+  def printStats(stream: CodeStream) {
+    for (optimiser <- stream.optimiser) {
+      for ((rule, count) <- optimiser.stats) {
+        logger.info(s"Peephole rule '$rule' removed $count instructions.")
+      }
+
+      logger.info(s"Peephole optimiser removed ${optimiser.stats.values.sum} instructions in total.")
+    }
+  }
+
+  /**
+   * Assembles the generated code in memory and returns the resulting image as an
+   * object file, so that the VM does not need to assemble it on every start. The
+   * object file records the number of registers the code was generated for.
+   */
+  def objectFile(p: Program, conf: Conf): ObjectFile = {
+    val buffer = new ByteArrayOutputStream
+    val stream = this.configure(CodeStream.apply(buffer), conf)
+    p.generateCode(stream, conf.stackSize.apply(), conf.heapSize.apply())
+
+    if (conf.peepholeStats.apply()) {
+      this.printStats(stream)
+    }
+
+    val assembler = new Assembler(false, false)
+    val memory = assembler.assemble(new ByteArrayInputStream(buffer.toByteArray))
+    val registers = if (conf.optimisations.apply()) conf.registers.apply() else ObjectFile.DEFAULT_REGISTERS
+    new ObjectFile(memory, assembler.getLabels, registers)
+  }
+
+  /**
+   * Parses and analyses the input file.
+   */
+  def analyse(conf: Conf): Program = {
+    val p = new SyntaxAnalysis(conf.inputFile.apply(), conf.symbols.apply()).parse
+
+    p.semanticAnalysis
+
+    if (conf.optimisations.apply()) {
+      p.optimise
+    }
+
+    if (conf.ast.apply()) {
+      p.printTree
+    }
+
+    p
+  }
+
+  /**
+   * Options that change the output of the compiler and are therefore part of
+   * the cache key.
+   */
+  def outputOptions(conf: Conf): Seq[String] =
+    Seq(s"binary=${conf.binary.apply()}", s"optim=${conf.optimisations.apply()}",
+      s"registers=${conf.registers.apply()}", s"heap=${conf.heapSize.apply()}",
+      s"stack=${conf.stackSize.apply()}", s"superinstructions=${conf.superinstructions.apply()}")
+
+  /**
+   * Compiles the program unless its output is already in the cache and writes
+   * the output. The cache is only used if the compiler has no other effects,
+   * such as printing the symbols, the AST or statistics.
+   */
+  def compileCached(cache: CompilationCache, conf: Conf) {
+    val source = try {
+      Files.readAllBytes(Paths.get(conf.inputFile.apply()))
+    } catch {
+      case e: IOException => throw new CompileException(s"Cannot read ${conf.inputFile.apply()}: ${e.getMessage}")
+    }
+
+    val key = cache.key(source, this.outputOptions(conf))
+    val output = cache.get(key).getOrElse {
+      val p = this.analyse(conf)
+      val buffer = new ByteArrayOutputStream
+
+      if (conf.binary.apply()) {
+        this.objectFile(p, conf).write(buffer)
+      } else {
+        val stream = this.configure(CodeStream.apply(buffer), conf)
+        p.generateCode(stream, conf.stackSize.apply(), conf.heapSize.apply())
+        stream.flush
+      }
+
+      cache.put(key, buffer.toByteArray)
+      buffer.toByteArray
+    }
+
+    conf.outputFile.get match {
+      case Some(out) => Files.write(Paths.get(out), output)
+      case None =>
+        System.out.write(output)
+        System.out.flush
+    }
+  }
+
   def main(args: Array[String]) {
     val conf = new Conf(args)
 
@@ -35,29 +155,41 @@ object OOPSC extends Logging {
     }
 
     try {
-      val p = new SyntaxAnalysis(conf.inputFile.apply(), conf.symbols.apply()).parse
+      if (conf.binary.apply() && !conf.outputFile.isDefined) {
+        throw new CompileException("An output file is required for object files.")
+      }
 
-      p.semanticAnalysis
+      val cacheable = conf.generateCode.apply() && !conf.symbols.apply() && !conf.ast.apply() &&
+        !conf.peepholeStats.apply() && CompilationCache.compilerStamp.isDefined
 
-      if (conf.optimisations.apply()) {
-        p.optimise
+      if (conf.cache.isDefined && cacheable) {
+        this.compileCached(new CompilationCache(new File(conf.cache.apply())), conf)
+        return
       }
 
-      if (conf.ast.apply()) {
-        p.printTree
-      }
+      val p = this.analyse(conf)
 
-      val stream = conf.outputFile.get match {
-        case Some(out) => CodeStream.apply(out)
-        case None => CodeStream.apply()
-      }
+      if (conf.binary.apply()) {
+        if (conf.generateCode.apply()) {
+          this.objectFile(p, conf).write(new File(conf.outputFile.apply()))
+        }
+      } else {
+        val stream = this.configure(conf.outputFile.get match {
+          case Some(out) => CodeStream.apply(out)
+          case None => CodeStream.apply()
+        }, conf)
 
-      if (conf.generateCode.apply()) {
-        p.generateCode(stream, conf.stackSize.apply(), conf.heapSize.apply())
-      }
+        if (conf.generateCode.apply()) {
+          p.generateCode(stream, conf.stackSize.apply(), conf.heapSize.apply())
 
-      if (conf.outputFile.isDefined) {
-        stream.close
+          if (conf.peepholeStats.apply()) {
+            this.printStats(stream)
+          }
+        }
+
+        if (conf.outputFile.isDefined) {
+          stream.close
+        }
       }
     } catch {
       case e: CompileException => {
@@ -69,6 +201,10 @@ object OOPSC extends Logging {
 
         System.exit(1)
       }
+      case e @ (_: AsmException | _: IOException) => {
+        logger.error(s"Cannot write ${if (conf.binary.apply()) "object file" else "output"}: ${e.getMessage}")
+        System.exit(1)
+      }
     }
   }
 }
\ No newline at end of file
@@ -0,0 +1,380 @@
+package org.oopsc
+
+import scala.collection.mutable.{ArrayBuffer, HashMap, LinkedHashMap}
+
+/**
+ * Rewrites and removes instructions of the generated code before it is written.
+ * The code generator evaluates every expression on the stack, which results in
+ * many pushes that are immediately followed by a pop, repeated loads of the same
+ * constant and values that are never used.
+ *
+ * Except for the removal of dead code, all rules only look at a single basic
+ * block, i.e. the instructions between two labels or jumps. Every jump target
+ * is a label. The rules rely on the calling convention that R1 is always 1 and
+ * R2 is the stack pointer.
+ *
+ * The rules are applied until none of them changes the code anymore. The number
+ * of instructions each rule removed is available in `stats`.
+ */
+class PeepholeOptimiser {
+  /** Number of removed instructions per rule. */
+  val stats = LinkedHashMap(PeepholeOptimiser.Rules.map(_ -> 0): _*)
+
+  /**
+   * Optimises the given lines. Comments are kept.
+   */
+  def optimise(lines: Seq[AsmLine]): Seq[AsmLine] = {
+    var code = ArrayBuffer(lines: _*)
+    var changed = true
+
+    while (changed) {
+      changed = false
+
+      for (rule <- Seq[ArrayBuffer[AsmLine] => Boolean](this.matchPatterns, this.propagateValues,
+        this.removeUnreachable, this.removeDeadCode)) {
+        changed |= rule(code)
+
+        /* Removed lines are set to null by the rules. */
+        code = code.filter(_ != null)
+      }
+    }
+
+    code
+  }
+
+  /**
+   * Adds the statistics of another optimiser, e.g. one that optimised a part of
+   * the program on another thread.
+   */
+  def add(other: PeepholeOptimiser) {
+    for ((rule, count) <- other.stats) {
+      this.stats(rule) += count
+    }
+  }
+
+  /**
+   * Removes a line and counts it for the given rule.
+   */
+  private def remove(code: ArrayBuffer[AsmLine], i: Int, rule: String) {
+    code(i) = null
+    this.stats(rule) += 1
+  }
+
+  /**
+   * Replaces patterns of adjacent instructions. Comments in between are ignored.
+   */
+  private def matchPatterns(code: ArrayBuffer[AsmLine]): Boolean = {
+    val idx = code.indices.filter(!code(_).isInstanceOf[AsmComment])
+    var changed = false
+    var k = 0
+
+    while (k < idx.size) {
+      val window = idx.slice(k, k + 4).map(code(_))
+      changed = true
+
+      window match {
+        /* ADD R2, R1; MMR (R2), Ra; ...; MRM Rb, (R2); SUB R2, R1 => ...; MRR Rb, Ra */
+        case Seq(AsmInstruction("ADD", Seq("R2", "R1"), _), push @ AsmInstruction("MMR", Seq("(R2)", a), _), _*)
+          if a != "R2" && this.findPop(code, idx, k + 2, push.register(1)).isDefined =>
+          val pop = this.findPop(code, idx, k + 2, push.register(1)).get
+          val b = code(idx(pop)).asInstanceOf[AsmInstruction].args(0)
+
+          Seq(k, k + 1, pop).foreach(i => this.remove(code, idx(i), "push/pop"))
+
+          if (a == b) {
+            this.remove(code, idx(pop + 1), "push/pop")
+          } else {
+            code(idx(pop + 1)) = AsmInstruction("MRR", Seq(b, a), None)
+          }
+
+          k = pop + 2
+
+        /* MRM Ra, (R2); SUB R2, R1; ADD R2, R1 => MRM Ra, (R2) */
+        case Seq(AsmInstruction("MRM", Seq(a, "(R2)"), _), AsmInstruction("SUB", Seq("R2", "R1"), _),
+          AsmInstruction("ADD", Seq("R2", "R1"), _), _*) if a != "R2" =>
+          this.remove(code, idx(k + 1), "pop/push")
+          this.remove(code, idx(k + 2), "pop/push")
+          k += 3
+
+        /* MMR (Rx), Ra; MRM Rb, (Rx) => MMR (Rx), Ra; MRR Rb, Ra */
+        case Seq(AsmInstruction("MMR", Seq(x, a), _), AsmInstruction("MRM", Seq(b, y), c), _*) if x == y =>
+          if (a == b) {
+            this.remove(code, idx(k + 1), "store/load")
+          } else {
+            code(idx(k + 1)) = AsmInstruction("MRR", Seq(b, a), c)
+          }
+
+          k += 2
+
+        /* MRR Ra, Ra */
+        case Seq(AsmInstruction("MRR", Seq(a, b), _), _*) if a == b =>
+          this.remove(code, idx(k), "redundant load")
+          k += 1
+
+        /* Jump to one of the directly following labels. */
+        case Seq(jump: AsmInstruction, _*) if jump.isJump && jump.op != "MRM" && jump.op != "MRR" &&
+          idx.drop(k + 1).map(code(_)).takeWhile(_.isInstanceOf[AsmLabel]).exists(_.asInstanceOf[AsmLabel].name == jump.args(1)) =>
+          this.remove(code, idx(k), "jump to next")
+          k += 1
+
+        case _ =>
+          changed = false
+          k += 1
+      }
+    }
+
+    changed
+  }
+
+  /**
+   * Finds the pop matching a push of the given register. Only instructions
+   * that neither access the stack or memory nor overwrite the pushed register
+   * may be in between.
+   *
+   * @return Position in `idx` of `MRM Rb, (R2)`, which is followed by `SUB R2, R1`.
+   */
+  private def findPop(code: ArrayBuffer[AsmLine], idx: IndexedSeq[Int], from: Int, register: Int): Option[Int] = {
+    var k = from
+
+    while (k + 1 < idx.size) {
+      (code(idx(k)), code(idx(k + 1))) match {
+        case (AsmInstruction("MRM", Seq(b, "(R2)"), _), AsmInstruction("SUB", Seq("R2", "R1"), _)) if b != "R2" =>
+          return Some(k)
+
+        case (ins: AsmInstruction, _) if ins.op != "MRM" && ins.op != "MMR" && ins.op != "SYS" && ins.isExecutable &&
+          !ins.isJump && !(ins.reads ++ ins.writes).contains(2) && !ins.writes.contains(register) =>
+          k += 1
+
+        case _ =>
+          return None
+      }
+    }
+
+    None
+  }
+
+  /**
+   * Tracks the constants and copies of registers within a basic block. Loading
+   * a value a register already contains is removed, reads of a copy are
+   * replaced by the original register, arithmetic on constants is folded and a
+   * register containing 1 is replaced by R1. The latter leave loads that the
+   * removal of dead code deletes.
+   */
+  private def propagateValues(code: ArrayBuffer[AsmLine]): Boolean = {
+    val constants = new HashMap[Int, String]
+    val copies = new HashMap[Int, Int]
+    var changed = false
+
+    for (i <- code.indices) {
+      code(i) match {
+        case ins @ AsmInstruction("MRI", Seq(_, value), _) if constants.get(ins.register(0)) == Some(value) =>
+          this.remove(code, i, "redundant load")
+          changed = true
+
+        case ins @ AsmInstruction("MRR", _, _) if copies.get(ins.register(0)) == Some(ins.register(1)) =>
+          this.remove(code, i, "redundant load")
+          changed = true
+
+        case ins: AsmInstruction if ins.isExecutable =>
+          var current = ins.mapSources(r => copies.getOrElse(r, r))
+
+          if (current.op == "MRR") {
+            for (value <- constants.get(current.register(1))) {
+              current = AsmInstruction("MRI", Seq(current.args(0), value), current.comment)
+            }
+          } else if (current.isArithmetic) {
+            (constants.get(current.register(0)).flatMap(PeepholeOptimiser.number),
+              constants.get(current.register(1)).flatMap(PeepholeOptimiser.number)) match {
+              case (Some(x), Some(y)) if (current.op != "DIV" && current.op != "MOD") || y != 0 =>
+                val result = PeepholeOptimiser.evaluate(current.op, x, y)
+                current = AsmInstruction("MRI", Seq(current.args(0), result.toString), current.comment)
+
+              case (_, Some(1)) if current.register(1) != 1 =>
+                current = current.copy(args = Seq(current.args(0), "R1"))
+
+              case _ =>
+            }
+          }
+
+          if (current != ins) {
+            code(i) = current
+            changed = true
+          }
+
+          for (r <- current.writes) {
+            constants -= r
+            copies -= r
+            copies.retain((_, original) => original != r)
+          }
+
+          if (current.isJump) {
+            constants.clear()
+            copies.clear()
+          } else if (current.op == "MRI") {
+            constants(current.register(0)) = current.args(1)
+          } else if (current.op == "MRR" && current.register(1) != 0 && current.register(0) != current.register(1)) {
+            copies(current.register(0)) = current.register(1)
+          }
+
+        case _: AsmComment =>
+
+        case _ =>
+          constants.clear()
+          copies.clear()
+      }
+    }
+
+    changed
+  }
+
+  /**
+   * Removes the instructions following an unconditional jump up to the next label.
+   */
+  private def removeUnreachable(code: ArrayBuffer[AsmLine]): Boolean = {
+    var reachable = true
+    var changed = false
+
+    for (i <- code.indices) {
+      code(i) match {
+        case ins: AsmInstruction if ins.isExecutable =>
+          if (!reachable) {
+            this.remove(code, i, "unreachable")
+            changed = true
+          } else if (ins.isUnconditionalJump) {
+            reachable = false
+          }
+
+        case _: AsmComment =>
+
+        case _ =>
+          reachable = true
+      }
+    }
+
+    changed
+  }
+
+  /**
+   * Removes instructions whose result is never read. The live registers are
+   * determined for each basic block from its successors, i.e. the following
+   * block and the labels it jumps to. After a jump to a computed address, such as
+   * a return or a dynamic method call, all registers are considered live.
+   */
+  private def removeDeadCode(code: ArrayBuffer[AsmLine]): Boolean = {
+    val instructions = code.collect { case ins: AsmInstruction if ins.isExecutable => ins }
+    val all = (0 to (instructions.flatMap(ins => ins.reads ++ ins.writes) :+ 2).max).toSet
+
+    /* Split the code into basic blocks, given as ranges of lines. */
+    val blocks = new ArrayBuffer[Range]
+    val labels = new HashMap[String, Int]
+    var start = 0
+
+    for (i <- code.indices) {
+      code(i) match {
+        case label: AsmLabel =>
+          if (i > start) {
+            blocks += (start until i)
+          }
+
+          start = i
+          labels(label.name) = blocks.size
+
+        case ins: AsmInstruction if ins.isJump =>
+          blocks += (start to i)
+          start = i + 1
+
+        case _ =>
+      }
+    }
+
+    blocks += (start until code.size)
+
+    /* Determines the registers live at the end of a block from the registers
+     * live at the beginning of its successors. */
+    val liveIn = Array.fill(blocks.size)(Set[Int]())
+
+    def liveOut(b: Int): Set[Int] = {
+      val last = blocks(b).reverse.map(code(_)).collectFirst { case ins: AsmInstruction => ins }
+      def block(label: String) = labels.get(label).map(liveIn).getOrElse(all)
+      def next = if (b + 1 < blocks.size) liveIn(b + 1) else all
+
+      last match {
+        case Some(ins) if ins.isConditionalJump => next ++ block(ins.args(1))
+        case Some(AsmInstruction("MRI", Seq("R0", target), _)) => block(target)
+        case Some(ins) if ins.isJump => all
+        case _ => next
+      }
+    }
+
+    /* Registers live at the beginning of a block. Blocks containing data are
+     * not analysed. */
+    def transfer(b: Int, live: Set[Int]): Set[Int] =
+      blocks(b).reverse.map(code(_)).foldLeft(live) {
+        case (_, ins: AsmInstruction) if !ins.isExecutable => all
+        case (l, ins: AsmInstruction) => (l -- ins.writes) ++ ins.reads
+        case (l, _) => l
+      }
+
+    var stable = false
+
+    while (!stable) {
+      stable = true
+
+      for (b <- blocks.indices.reverse) {
+        val live = transfer(b, liveOut(b))
+
+        if (live != liveIn(b)) {
+          liveIn(b) = live
+          stable = false
+        }
+      }
+    }
+
+    var changed = false
+
+    for (b <- blocks.indices) {
+      var live = liveOut(b)
+
+      for (i <- blocks(b).reverse) {
+        code(i) match {
+          case ins: AsmInstruction if !ins.isExecutable =>
+            live = all
+
+          case ins: AsmInstruction =>
+            if (ins.isPure && ins.writes.forall(r => r != 0 && !live.contains(r))) {
+              this.remove(code, i, "dead code")
+              changed = true
+            } else {
+              live = (live -- ins.writes) ++ ins.reads
+            }
+
+          case _ =>
+        }
+      }
+    }
+
+    changed
+  }
+}
+
+object PeepholeOptimiser {
+  /** Names of the rules in the order of the statistics. */
+  val Rules = Seq("push/pop", "pop/push", "store/load", "redundant load", "jump to next", "unreachable", "dead code")
+
+  private def number(value: String): Option[Int] =
+    if (value.matches("-?[0-9]+")) Some(value.toInt) else None
+
+  /**
+   * Evaluates an arithmetic instruction like the VM.
+   */
+  private def evaluate(op: String, x: Int, y: Int): Int = op match {
+    case "ADD" => x + y
+    case "SUB" => x - y
+    case "MUL" => x * y
+    case "DIV" => x / y
+    case "MOD" => x % y
+    case "AND" => x & y
+    case "OR" => x | y
+    case "XOR" => x ^ y
+  }
+}
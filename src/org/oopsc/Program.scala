@@ -50,11 +50,15 @@ class Program {
       c.defPass(this.sem)
     }
 
+    this.numberClasses
+
     for (c <- this.classes) {
       c.refPass(this.sem)
     }
 
-    /* Resolve dependencies for startup statements. */
+    /* Resolve dependencies for startup statements. They are not part of any method. */
+    this.sem.currentMethod = null
+
     for (stmt <- this.init) {
       stmt.refPass(this.sem)
     }
@@ -66,11 +70,96 @@ class Program {
     }
   }
 
+  /**
+   * Numbers the classes in a pre-order traversal of the class hierarchy, i.e.
+   * the subclasses of a class follow it. This allows for checking in constant
+   * time whether a class derives from another one (see `ClassSymbol.isA`).
+   * Classes in a cycle are not reached and keep the number -1; the cycle is
+   * reported by the referential pass.
+   */
+  private def numberClasses {
+    val subclasses = this.classes.filter(_ ne Types.objectClass).groupBy(_.getSuperClass().get)
+    var next = 0
+
+    def visit(c: ClassSymbol) {
+      c.classId = next
+      next += 1
+      subclasses.getOrElse(c, Nil).foreach(visit)
+      c.lastSubclassId = next - 1
+    }
+
+    for (c <- this.classes) {
+      c.classId = -1
+      c.lastSubclassId = -1
+    }
+
+    visit(Types.objectClass)
+  }
+
   /**
    * Optimisation pass for all classes.
    */
   def optimise {
+    this.analyseClassHierarchy
     this.classes.foreach(_.optimPass())
+    this.unboxVariables
+    this.propagateValues
+    this.optimiseLoops
+    this.inlineMethods
+  }
+
+  /**
+   * Propagates constants and copies of local variables and removes dead
+   * assignments and unreachable statements. Requires the escape analysis.
+   */
+  def propagateValues {
+    this.classes.flatMap(_.methods).foreach(new DataFlowOptimiser(_).optimise())
+  }
+
+  /**
+   * Moves invariant code and NULL checks out of loops and replaces products of
+   * induction variables. Requires the escape analysis.
+   */
+  def optimiseLoops {
+    this.classes.flatMap(_.methods).foreach(new LoopOptimiser(_).optimise())
+  }
+
+  /**
+   * Stores the values of Integer and Boolean variables directly if their boxes
+   * never escape. Requires the class hierarchy analysis.
+   */
+  def unboxVariables {
+    new EscapeAnalysis(this.classes.flatMap(_.methods)).unbox()
+  }
+
+  /**
+   * Determines the methods that are not overridden in any class of the program.
+   * As all classes are known at compile time, calls to these methods have
+   * exactly one possible target.
+   */
+  def analyseClassHierarchy {
+    val methods = this.classes.flatMap(_.methods)
+    val overridden = methods.flatMap(_.overrides).toSet
+
+    for (m <- methods) {
+      m.isMonomorphic = !overridden.contains(m)
+    }
+  }
+
+  /**
+   * Replaces calls to small methods by their statements. Requires the class
+   * hierarchy analysis.
+   */
+  def inlineMethods {
+    val methods = this.classes.flatMap(_.methods)
+
+    for (m <- methods) {
+      m.isInlinable = m.canBeInlined
+    }
+
+    for (m <- methods; call <- m.calls) {
+      call.inline(m)
+    }
   }
 
   /**
@@ -95,18 +184,10 @@ class Program {
     code.println(s"; Generated by OOPS-0 compiler, v${OOPSC.Version}.")
     code.println("MRI R1, 1 ; R1 is always 1.")
     code.println("MRI R2, _stack ; R2 points to the stack.")
-    code.println("MRI R4, _heap ; R4 points to the next free slot on the heap.")
-
-    /* Initialise the initial exception frame, i.e., the first element is a
-     * pointer to the second one which itself points to the default exception
-     * handler (_uncaughtException). */
-    code.println("MRI R5, _currentExceptionFrame")
-    code.println("MRI R6, _currentExceptionFrame")
-    code.println("ADD R6, R1")
-    code.println("MMR (R5), R6")
-    code.println("ADD R5, R1")
-    code.println("MRI R6, _uncaughtException")
-    code.println("MMR (R5), R6")
+
+    /* Pass the heap to the garbage collector of the VM. */
+    code.println("MRI R5, _heapDescriptor")
+    code.println("SYS 3, 5")
 
     /* Generate code for initialisation statements. */
     for (stmt <- this.init) {
@@ -115,17 +196,33 @@ class Program {
 
     code.println("MRI R0, _end ; Stop program.")
 
-    /* Generate code for user-defined classes. */
-    for (c <- this.classes) {
-      c.generateCode(code)
+    /* Generate and optimise the code of the classes in parallel. Each class is
+     * written to its own stream; appending them in the order of the classes
+     * keeps the output independent of the scheduling. */
+    val parts = this.classes.toVector.par.map { c =>
+      val part = code.fork()
+      c.generateCode(part)
+      part.prepare()
+      part
     }
 
-    /* Allocate space for the default exception frame. */
-    code.println("_currentExceptionFrame:")
-    code.println("DAT 2, 0")
+    parts.seq.foreach(code.append)
+
+    /* The VM needs to know the bounds of the heap and the stack as well as the
+     * stack register in order to find the roots for the garbage collection. */
+    code.println("_heapDescriptor:")
+    code.println("DAT 1, _heap")
+    code.println(s"DAT 1, $heapSize")
+    code.println("DAT 1, _stack")
+    code.println("DAT 1, 2")
 
-    /* Generate VMT for each class. */
+    /* Generate VMT for each class. The garbage collector expects the object
+     * size at offset -1 and the address of the pointer map at offset -2. The
+     * type checks read the number of the class at offset -3. */
     for (c <- this.classes) {
+      code.println(s"DAT 1, ${c.classId}")
+      code.println(s"DAT 1, _pointers_${c.identifier.name}")
+      code.println(s"DAT 1, ${c.objectSize}")
       code.println(c.identifier.name + ":")
 
       /* Add an entry for the super class. */
@@ -142,6 +239,15 @@ class Program {
       }
     }
 
+    /* Generate pointer map for each class: the number of attributes holding
+     * references, followed by their offsets. */
+    for (c <- this.classes) {
+      val offsets = c.pointerOffsets
+      code.println(s"_pointers_${c.identifier.name}:")
+      code.println(s"DAT 1, ${offsets.size}")
+      offsets.foreach(o => code.println(s"DAT 1, $o"))
+    }
+
     /* Allocate space for the stack and the heap. */
     code.println("_stack: ; Beginning of the stack.")
     code.println(s"DAT $stackSize, 0")
@@ -156,6 +262,18 @@ class Program {
       s.foreach(c => code.println(s"DAT 1, ${c.asInstanceOf[Int]}"))
     }
 
+    /* The exception table holds the handler of uncaught exceptions, the number
+     * of TRY blocks and their code ranges with their handlers (see SYS 4). */
+    code.println("_exceptionTable:")
+    code.println("DAT 1, _uncaughtException")
+    code.println(s"DAT 1, ${code.handlers.size}")
+
+    for ((start, end, handler) <- code.handlers) {
+      code.println(s"DAT 1, $start")
+      code.println(s"DAT 1, $end")
+      code.println(s"DAT 1, $handler")
+    }
+
     /* Function being jumped to when an exception could not be caught. */
     code.println("_uncaughtException:")
     val s = "ABORT "
@@ -167,5 +285,6 @@ class Program {
     code.println("SYS 1, 5")
 
     code.println("_end: ; End of the program.")
+    code.flush()
   }
 }
\ No newline at end of file
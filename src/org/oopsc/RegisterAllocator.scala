@@ -0,0 +1,120 @@
+package org.oopsc
+
+import org.oopsc.symbol.{MethodSymbol, VariableSymbol}
+import scala.collection.mutable.{ArrayBuffer, HashMap}
+
+/**
+ * Assigns the registers that are not reserved by the calling convention to
+ * temporaries and local variables. R0-R3 are reserved for the program counter,
+ * the constant 1, the stack and the frame pointer; R5-R7 are scratch registers
+ * of the code generator. Therefore, R4 as well as R8 and above are available.
+ *
+ * The upper part of these registers is reserved for the most frequently used
+ * local variables of a method. A method saves the registers of its local
+ * variables in its stack frame and restores them on return (callee-saved). As
+ * an exception skips the epilogues of the methods it unwinds, a method
+ * containing a TRY statement saves all of them instead of using them.
+ *
+ * The remaining registers hold temporaries, which only live during the
+ * evaluation of a single statement. They are allocated in a stack-like
+ * fashion and saved by the caller around method calls (caller-saved).
+ *
+ * @param count Number of registers of the VM.
+ */
+class RegisterAllocator(val count: Int) {
+  if (count < 8) {
+    throw new CompileException("At least 8 registers are required.")
+  }
+
+  /** Registers that are available for allocation. */
+  val pool = 4 +: (8 until count)
+
+  /** Registers reserved for local variables. At least four registers are left for temporaries. */
+  val localPool = this.pool.reverse.take(math.max(0, this.pool.size - 4))
+
+  /** Registers for temporaries. */
+  private val temporaryPool = this.pool.take(this.pool.size - this.localPool.size)
+
+  /** Registers of the local variables of the current method. */
+  private val locals = new HashMap[VariableSymbol, Int]
+
+  /** Registers the current method saves in its stack frame. */
+  private var saved: Seq[Int] = Nil
+
+  /** Temporaries in the order of their allocation. */
+  private val temporaries = new ArrayBuffer[Int]
+
+  /**
+   * Assigns registers to the local variables of a method, preferring those
+   * with the most accesses.
+   */
+  def enter(method: MethodSymbol) {
+    this.locals.clear()
+
+    if (method.containsTry) {
+      this.saved = this.localPool
+    } else {
+      val candidates = method.locals.filter(_.uses > 0).sortBy(-_.uses)
+      this.locals ++= candidates.zip(this.localPool)
+      this.saved = this.locals.values.toSeq.sorted
+    }
+  }
+
+  /**
+   * Releases the registers of the local variables after a method.
+   */
+  def leave() {
+    if (this.temporaries.nonEmpty) {
+      throw new CompileException("Temporaries still allocated at the end of a method.")
+    }
+
+    this.locals.clear()
+    this.saved = Nil
+  }
+
+  /**
+   * Returns the register of a local variable if it is kept in a register.
+   */
+  def local(v: VariableSymbol): Option[Int] = this.locals.get(v)
+
+  /**
+   * Returns all local variables kept in registers with their register.
+   */
+  def allLocals: Seq[(VariableSymbol, Int)] = this.locals.toSeq.sortBy(_._2)
+
+  /**
+   * Returns the registers the current method must save in its stack frame.
+   */
+  def calleeSaved: Seq[Int] = this.saved
+
+  /**
+   * Allocates a register for a temporary.
+   *
+   * @return The register or None if all registers are in use.
+   */
+  def allocate(): Option[Int] =
+    if (this.temporaries.size == this.temporaryPool.size) {
+      None
+    } else {
+      val register = this.temporaryPool(this.temporaries.size)
+      this.temporaries += register
+      Some(register)
+    }
+
+  /**
+   * Releases a temporary. Temporaries must be released in the reverse order of
+   * their allocation.
+   */
+  def release(register: Int) {
+    if (this.temporaries.isEmpty || this.temporaries.last != register) {
+      throw new CompileException(s"Temporary R$register released out of order.")
+    }
+
+    this.temporaries.remove(this.temporaries.size - 1)
+  }
+
+  /**
+   * Returns the temporaries whose values must survive a method call.
+   */
+  def inUse: Seq[Int] = this.temporaries
+}
@@ -23,6 +23,9 @@ class SemanticAnalysis {
   var currentClass: ClassSymbol = null
   var currentMethod: MethodSymbol = null
 
+  /** Number of WHILE loops enclosing the current statement. */
+  var loopDepth = 0
+
   /**
    * Read-only data segment.
    */
@@ -0,0 +1,148 @@
+package org.oopsc
+
+import scala.collection.mutable.{ArrayBuffer, HashMap, HashSet, Stack}
+
+/**
+ * Replaces idioms of the generated code by the superinstructions of the VM:
+ *
+ *  - `ADD Rs, R1; MMR (Rs), Ra` => `PSH Rs, Ra` (push)
+ *  - `MRM Ra, (Rs); SUB Rs, R1` => `POP Ra, Rs` (pop)
+ *  - `MRI Rb, n; ADD Ra, Rb` => `ADI Ra, n` (address of an attribute or variable)
+ *  - `MRI Rb, n; SUB Ra, Rb` => `ADI Ra, -n` (freeing stack space)
+ *  - `ADI Ra, n; MRM Ra, (Ra)` => `LDO Ra, n` (reading an attribute)
+ *  - `ISZ Ra, Rb; JPC Ra, l` => `JPZ Rb, l` (condition of IF and WHILE)
+ *
+ * The superinstruction leaves the registers in the same state as the original
+ * instructions, except for the register holding the constant and the result of
+ * `ISZ`. These rules are therefore only applied if the register is overwritten
+ * before it is read again on every path. Like the peephole optimiser, push and
+ * pop rely on R1 being 1.
+ *
+ * Only adjacent instructions are combined. As every jump target is a label, no
+ * jump can lead into the middle of a superinstruction.
+ */
+object Superinstructions {
+  /** Scratch registers that are not read after a jump to a computed address. */
+  private val Scratch = Set(5, 6)
+
+  def apply(lines: Seq[AsmLine]): Seq[AsmLine] = {
+    val code = ArrayBuffer(lines: _*)
+    val labels = new HashMap[String, Int]
+
+    for (i <- code.indices) {
+      code(i) match {
+        case label: AsmLabel => labels(label.name) = i
+        case _ =>
+      }
+    }
+
+    /* Positions of all lines except comments. Fused instructions replace the
+     * second one, so that they can be combined with the next instruction, and the
+     * first one is set to null. */
+    val idx = code.indices.filter(!code(_).isInstanceOf[AsmComment])
+    var k = 0
+
+    while (k + 1 < idx.size) {
+      val (first, second) = (code(idx(k)), code(idx(k + 1)))
+      val after = idx(k + 1) + 1
+
+      val fused = (first, second) match {
+        case (AsmInstruction("ADD", Seq(s, "R1"), c), AsmInstruction("MMR", Seq(t, a), _)) if t == s"($s)" && a != s && !Seq(a, s).contains("R0") =>
+          Some(AsmInstruction("PSH", Seq(s, a), c))
+
+        case (AsmInstruction("MRM", Seq(a, t), c), AsmInstruction("SUB", Seq(s, "R1"), _)) if t == s"($s)" && a != s && !Seq(a, s).contains("R0") =>
+          Some(AsmInstruction("POP", Seq(a, s), c))
+
+        case (load @ AsmInstruction("MRI", Seq(b, n), c), AsmInstruction("ADD", Seq(a, b2), _))
+          if b == b2 && a != b && !Seq(a, b).contains("R0") && this.isDead(code, labels, after, load.register(0)) =>
+          Some(AsmInstruction("ADI", Seq(a, n), c))
+
+        case (load @ AsmInstruction("MRI", Seq(b, n), c), AsmInstruction("SUB", Seq(a, b2), _))
+          if b == b2 && a != b && !Seq(a, b).contains("R0") && n.matches("-?[0-9]+") && n.toInt != Int.MinValue &&
+          this.isDead(code, labels, after, load.register(0)) =>
+          Some(AsmInstruction("ADI", Seq(a, (-n.toInt).toString), c))
+
+        case (test @ AsmInstruction("ISZ", Seq(a, b), c), AsmInstruction("JPC", Seq(a2, l), c2))
+          if a == a2 && a != "R0" && b != "R0" && labels.contains(l) &&
+          this.isDead(code, labels, after, test.register(0)) && this.isDead(code, labels, labels(l), test.register(0)) =>
+          Some(AsmInstruction("JPZ", Seq(b, l), c2.orElse(c)))
+
+        case (AsmInstruction("ADI", Seq(a, n), c), AsmInstruction("MRM", Seq(a2, t), c2)) if a == a2 && t == s"($a)" =>
+          Some(AsmInstruction("LDO", Seq(a, n), c2.orElse(c)))
+
+        case _ => None
+      }
+
+      fused match {
+        case Some(ins) =>
+          code(idx(k)) = null
+          code(idx(k + 1)) = ins
+          k += 1
+
+        case None =>
+          k += 1
+      }
+    }
+
+    code.filter(_ != null)
+  }
+
+  /**
+   * Determines whether a register is overwritten before it is read on every
+   * path starting at the given line. A jump to a computed address is a return,
+   * a dynamic method call or a THROW, whose targets overwrite the scratch
+   * registers R5 and R6 before reading them; all other registers are considered
+   * to be read there. The same applies to data and the end of the code.
+   */
+  private def isDead(code: ArrayBuffer[AsmLine], labels: HashMap[String, Int], from: Int, register: Int): Boolean = {
+    val visited = new HashSet[Int]
+    val work = Stack(from)
+
+    while (work.nonEmpty) {
+      var i = work.pop()
+      var done = false
+
+      while (!done && !visited.contains(i)) {
+        visited += i
+
+        if (i >= code.size) {
+          return false
+        }
+
+        code(i) match {
+          case null =>
+            i += 1
+
+          case ins: AsmInstruction =>
+            if (!ins.isExecutable || ins.reads.contains(register)) {
+              return false
+            }
+
+            if (ins.writes.contains(register)) {
+              done = true
+            } else if (ins.isConditionalJump) {
+              labels.get(ins.args(1)) match {
+                case Some(target) => work.push(target)
+                case None => return false
+              }
+
+              i += 1
+            } else if (ins.isUnconditionalJump) {
+              ins match {
+                case AsmInstruction("MRI", Seq("R0", target), _) if labels.contains(target) => i = labels(target)
+                case _ if Superinstructions.Scratch.contains(register) => done = true
+                case _ => return false
+              }
+            } else {
+              i += 1
+            }
+
+          case _ =>
+            i += 1
+        }
+      }
+    }
+
+    true
+  }
+}
@@ -1,14 +1,17 @@
 package org.oopsc
 
+import org.junit.Assert.assertArrayEquals
 import org.junit.Assert.assertEquals
 import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertTrue
 import org.junit.Assert.fail
 import java.io._
 import java.nio.ByteBuffer
 import java.nio.charset.Charset
 import java.nio.charset.StandardCharsets
-import java.nio.file.{NoSuchFileException, Files, Paths}
+import java.nio.file.{NoSuchFileException, Files, Paths, StandardOpenOption}
 import java.util.Collection
+import java.util.concurrent.Executors
 import org.antlr.v4.runtime.ANTLRInputStream
 import org.antlr.v4.runtime.CommonTokenStream
 import org.junit.Test
@@ -16,6 +19,10 @@ import org.junit.runner.RunWith
 import org.junit.runners.Parameterized
 import org.junit.runners.Parameterized.Parameters
 import org.oopsvm.Assembler
+import org.oopsvm.ObjectFile
+import org.oopsvm.Profiler
+import org.oopsvm.ProgramImage
+import org.oopsvm.Snapshot
 import org.oopsvm.VirtualMachine
 import com.typesafe.scalalogging.slf4j.Logging
 
@@ -23,19 +30,134 @@ import com.typesafe.scalalogging.slf4j.Logging
 class TestSuite(var path: String) extends Logging {
   private var p: Program = null
 
-  def runVM(asm: String, input: String): String = {
+  def runVM(asm: String, input: String, jit: Boolean, registers: Int = 8): String = {
     val asmStream = new ByteArrayInputStream(asm.getBytes("UTF-8"))
-    val vm = new VirtualMachine(new Assembler(false, false).assemble(asmStream), new Array[Int](8), false, false, false, false, false, false, false)
+    val vm = new VirtualMachine(new Assembler(false, false).assemble(asmStream), new Array[Int](registers))
     val output = new ByteArrayOutputStream
 
+    vm.setJit(jit)
     vm.setStreams(new ByteArrayInputStream(input.getBytes), output)
     vm.run
 
     return output.toString("UTF-8")
   }
 
+  /**
+   * Assembles the program once and runs it concurrently for all inputs.
+   *
+   * @return Concatenated outputs in the order of the inputs.
+   */
+  def runConcurrently(asm: String, inputs: Seq[String]): String = {
+    val image = ProgramImage.assemble(new ByteArrayInputStream(asm.getBytes("UTF-8")), 8)
+    val executor = Executors.newFixedThreadPool(inputs.length)
+
+    try {
+      val runs = inputs.map { input =>
+        val output = new ByteArrayOutputStream
+        (image.submit(executor, new ByteArrayInputStream(input.getBytes), output), output)
+      }
+
+      return runs.map { case (future, output) =>
+        future.get
+        output.toString("UTF-8")
+      }.mkString
+    } finally {
+      executor.shutdown
+    }
+  }
+
+  /**
+   * Runs the program up to its first input, writes the state to a snapshot and
+   * resumes it from the snapshot for all inputs.
+   *
+   * @return Concatenated outputs in the order of the inputs.
+   */
+  def runFromSnapshot(asm: String, inputs: Seq[String]): String = {
+    val memory = new Assembler(false, false).assemble(new ByteArrayInputStream(asm.getBytes("UTF-8")))
+    val file = new ByteArrayOutputStream
+    Snapshot.capture(memory, 8).write(file)
+    val snapshot = Snapshot.read(ByteBuffer.wrap(file.toByteArray))
+
+    return inputs.map { input =>
+      val output = new ByteArrayOutputStream
+      snapshot.newInstance(new ByteArrayInputStream(input.getBytes), output).run
+      output.toString("UTF-8")
+    }.mkString
+  }
+
+  /**
+   * Writes the assembled program to an object file, reads it back and runs it
+   * for all inputs with the number of registers stored in the file. Damaged
+   * object files must be rejected.
+   *
+   * @return Concatenated outputs in the order of the inputs.
+   */
+  def runFromObjectFile(asm: String, inputs: Seq[String], registers: Int = 8): String = {
+    val assembler = new Assembler(false, false)
+    val memory = assembler.assemble(new ByteArrayInputStream(asm.getBytes("UTF-8")))
+    val file = TestSuite.writeObjectFile(new ObjectFile(memory, assembler.getLabels, registers))
+    val program = ObjectFile.read(ByteBuffer.wrap(file))
+
+    /* The segments must restore the memory exactly. */
+    assertArrayEquals(memory, program.getMemory)
+    assertEquals(assembler.getLabels, program.getLabels)
+    assertEquals(registers, program.getRegisters)
+
+    /* Runs of zeros within and at the end of the memory split it into several
+     * segments. */
+    val gaps = memory.take(100) ++ new Array[Int](15) ++ Array(-1) ++ new Array[Int](16) ++ memory.take(100) ++ Array(1)
+    assertArrayEquals(gaps, ObjectFile.read(ByteBuffer.wrap(
+      TestSuite.writeObjectFile(new ObjectFile(gaps, assembler.getLabels)))).getMemory)
+
+    /* A flipped bit in the middle of the file and a truncated file fail the
+     * checksum. */
+    val damaged = file.clone
+    damaged(damaged.length / 2) = (damaged(damaged.length / 2) ^ 0x10).toByte
+    TestSuite.assertRejected(damaged)
+    TestSuite.assertRejected(file.take(file.length - 1))
+    TestSuite.assertRejected(file.take(file.length / 2))
+
+    return inputs.map { input =>
+      val vm = new VirtualMachine(program.getMemory.clone, new Array[Int](program.getRegisters))
+      val output = new ByteArrayOutputStream
+      vm.setStreams(new ByteArrayInputStream(input.getBytes), output)
+      vm.run
+      output.toString("UTF-8")
+    }.mkString
+  }
+
+  /**
+   * Runs the program for all inputs in time slices on the shared scheduler. The
+   * input is only supplied after the programs were started, so that a program
+   * reading it has to wait.
+   *
+   * @return Concatenated outputs in the order of the inputs.
+   */
+  def runScheduled(asm: String, inputs: Seq[String]): String = {
+    val image = ProgramImage.assemble(new ByteArrayInputStream(asm.getBytes("UTF-8")), 8)
+
+    val runs = inputs.map { input =>
+      val output = new ByteArrayOutputStream
+      (TestSuite.Scheduler.submit(image.newInstance, output), input, output)
+    }
+
+    for ((job, input, _) <- runs) {
+      job.write(input.getBytes)
+      job.closeInput
+    }
+
+    return runs.map { case (job, _, output) =>
+      job.get
+      output.toString("UTF-8")
+    }.mkString
+  }
+
   @Test
   def testGrammar {
+    if (this.path.endsWith(".asm")) {
+      return
+    }
+
     val stream = new FileInputStream(this.path)
     val input = new ANTLRInputStream(stream)
     val lexer = new GrammarLexer(input)
@@ -59,7 +181,7 @@ class TestSuite(var path: String) extends Logging {
   @Test
   def testEverything {
     val supposedToFail = this.path.contains("_se")
-    val pathExpected = this.path.substring(0, this.path.length - 5) + ".out"
+    val pathExpected = this.path.substring(0, this.path.lastIndexOf('.')) + ".out"
     val expected =
        try {
          TestSuite.readFile(pathExpected, StandardCharsets.UTF_8)
@@ -67,6 +189,11 @@ class TestSuite(var path: String) extends Logging {
          case e: NoSuchFileException => ""
        }
 
+    if (this.path.endsWith(".asm")) {
+      this.testAssembly(TestSuite.readFile(this.path, StandardCharsets.UTF_8), expected)
+      return
+    }
+
     try {
       this.p = new SyntaxAnalysis(this.path, false).parse
       this.p.semanticAnalysis
@@ -84,8 +211,63 @@ class TestSuite(var path: String) extends Logging {
       logger.debug(asm)
 
       /* Run the VM twice with different inputs. */
-      val output = this.runVM(asm, "abc\n") + this.runVM(asm, "xyz\n")
+      val output = this.runVM(asm, "abc\n", false) + this.runVM(asm, "xyz\n", false)
       assertEquals(expected, output)
+
+      /* Both runs may share the assembled program and execute concurrently. */
+      assertEquals(expected, this.runConcurrently(asm, Seq("abc\n", "xyz\n")))
+
+      /* Interrupting the programs after every time slice must not change the
+       * output. */
+      assertEquals(expected, this.runScheduled(asm, Seq("abc\n", "xyz\n")))
+
+      /* Resuming the programs after their initialisation must not change the
+       * output either. */
+      assertEquals(expected, this.runFromSnapshot(asm, Seq("abc\n", "xyz\n")))
+
+      /* The same applies to loading the program from an object file. */
+      assertEquals(expected, this.runFromObjectFile(asm, Seq("abc\n", "xyz\n")))
+
+      /* The JIT compiler must produce exactly the same output. */
+      val outputJit = this.runVM(asm, "abc\n", true) + this.runVM(asm, "xyz\n", true)
+      assertEquals(expected, outputJit)
+
+      /* Keeping temporaries and local variables in registers and the peephole
+       * optimiser must not change the output either. */
+      val streamRegs = new ByteArrayOutputStream
+      val codeRegs = CodeStream.apply(streamRegs)
+      codeRegs.registers = Some(new RegisterAllocator(TestSuite.Registers))
+      codeRegs.optimiser = Some(new PeepholeOptimiser)
+      this.p.generateCode(codeRegs, 1000, 1000)
+      val asmRegs = streamRegs.toString("UTF-8")
+
+      val outputRegs = this.runVM(asmRegs, "abc\n", false, TestSuite.Registers) +
+        this.runVM(asmRegs, "xyz\n", true, TestSuite.Registers)
+      assertEquals(expected, outputRegs)
+
+      /* The object file tells the VM how many registers the code uses. */
+      assertEquals(expected, this.runFromObjectFile(asmRegs, Seq("abc\n", "xyz\n"), TestSuite.Registers))
+
+      /* The same applies to the superinstructions, with and without the other
+       * optimisations. */
+      for (optimise <- Seq(false, true)) {
+        val streamSuper = new ByteArrayOutputStream
+        val codeSuper = CodeStream.apply(streamSuper)
+        val registers = if (optimise) TestSuite.Registers else 8
+
+        if (optimise) {
+          codeSuper.registers = Some(new RegisterAllocator(registers))
+          codeSuper.optimiser = Some(new PeepholeOptimiser)
+        }
+
+        codeSuper.superinstructions = true
+        this.p.generateCode(codeSuper, 1000, 1000)
+        val asmSuper = streamSuper.toString("UTF-8")
+
+        val outputSuper = this.runVM(asmSuper, "abc\n", false, registers) +
+          this.runVM(asmSuper, "xyz\n", true, registers)
+        assertEquals(expected, outputSuper)
+      }
     } catch {
       case e: CompileException => {
         if (supposedToFail) {
@@ -101,14 +283,161 @@ class TestSuite(var path: String) extends Logging {
       fail
     }
   }
+
+  /**
+   * Profiles the unoptimised programs listed in `TestSuite.ProfiledStacks`,
+   * recording the call stack at every instruction. Every instruction must be
+   * attributed to exactly one region and one call stack, and each call must be
+   * removed from the stack when it returns or an exception leaves it.
+   */
+  @Test
+  def testProfiler {
+    val expectedStacks = TestSuite.ProfiledStacks.get(new File(this.path).getName) match {
+      case Some(stacks) => stacks
+      case None => return
+    }
+
+    val p = new SyntaxAnalysis(this.path, false).parse
+    p.semanticAnalysis
+    val stream = new ByteArrayOutputStream
+    p.generateCode(CodeStream.apply(stream), 1000, 1000)
+
+    val assembler = new Assembler(false, false)
+    val memory = assembler.assemble(new ByteArrayInputStream(stream.toByteArray))
+    val profiler = new Profiler(assembler.getLabels, memory.length, 1)
+    val vm = new VirtualMachine(memory, new Array[Int](8))
+    vm.setTracer(profiler)
+    vm.setStreams(new ByteArrayInputStream("abc\n".getBytes), new ByteArrayOutputStream)
+    vm.run
+
+    val total = profiler.getCounts.sum
+
+    /* The self counts of the regions add up to the number of instructions. */
+    val report = new ByteArrayOutputStream
+    profiler.printReport(new PrintStream(report, true, "UTF-8"))
+    val lines = report.toString("UTF-8").split("\n")
+    assertEquals("Profil: " + total + " Instruktionen", lines(0))
+    assertEquals(total, lines.drop(2).takeWhile(!_.isEmpty).map(_.trim.split(" +")(0).toLong).sum)
+
+    /* With a sample at every instruction, so do the counts of the stacks. */
+    val folded = new ByteArrayOutputStream
+    profiler.printCollapsedStacks(new PrintStream(folded, true, "UTF-8"))
+    val stacks = folded.toString("UTF-8").split("\n").map { line =>
+      val separator = line.lastIndexOf(' ')
+      (line.substring(0, separator), line.substring(separator + 1).toLong)
+    }
+    assertEquals(total, stacks.map(_._2).sum)
+    assertEquals(expectedStacks, stacks.map(_._1).toSet)
+  }
+
+  /**
+   * Compiles `TestSuite.CachedProgram` repeatedly with a cache. The same source
+   * and options must be a hit, while changing either must be a miss.
+   */
+  @Test
+  def testCompilationCache {
+    if (new File(this.path).getName != TestSuite.CachedProgram) {
+      return
+    }
+
+    assertTrue(CompilationCache.compilerStamp.isDefined)
+
+    val dir = Files.createTempDirectory("oopsc")
+    val cache = dir.resolve("cache")
+    val source = dir.resolve(TestSuite.CachedProgram)
+    Files.copy(Paths.get(this.path), source)
+
+    def compile(options: String*): Array[Byte] = {
+      val output = dir.resolve("out.asm")
+      OOPSC.main((Seq("--cache", cache.toString) ++ options ++ Seq(source.toString, output.toString)).toArray)
+      Files.readAllBytes(output)
+    }
+
+    def entries = cache.toFile.list.length
+
+    try {
+      val first = compile()
+      assertEquals(1, entries)
+      assertArrayEquals(first, compile())
+      assertEquals(1, entries)
+
+      /* Other options result in another output. */
+      compile("--optim")
+      assertEquals(2, entries)
+
+      /* So does another source, even if only a comment changed. */
+      Files.write(source, "| geaendert\n".getBytes("UTF-8"), StandardOpenOption.APPEND)
+      compile()
+      assertEquals(3, entries)
+    } finally {
+      for (f <- TestSuite.recursiveListFiles(dir.toFile).reverse) {
+        f.delete
+      }
+
+      dir.toFile.delete
+    }
+  }
+
+  /**
+   * Runs an assembly program, which tests the VM directly, in all modes of the
+   * VM.
+   */
+  def testAssembly(asm: String, expected: String) {
+    val inputs = Seq("abc\n", "xyz\n")
+
+    assertEquals(expected, inputs.map(this.runVM(asm, _, false)).mkString)
+    assertEquals(expected, inputs.map(this.runVM(asm, _, true)).mkString)
+    assertEquals(expected, this.runConcurrently(asm, inputs))
+    assertEquals(expected, this.runScheduled(asm, inputs))
+    assertEquals(expected, this.runFromSnapshot(asm, inputs))
+    assertEquals(expected, this.runFromObjectFile(asm, inputs))
+  }
 }
 
 object TestSuite {
+  /** Number of registers when testing the register allocation. */
+  val Registers = 16
+
+  /**
+   * Call stacks that `testProfiler` must record for a program. Each recursive
+   * call is another frame, and no stack may contain a frame that was left.
+   */
+  val ProfiledStacks: Map[String, Set[String]] = {
+    def down(main: String, depth: Int) = (1 to depth).map(n => main + ";Main_down" * n)
+    val main = "<Anfang>;Main_main"
+
+    Map(
+      "profile.oops" -> (Set("<Anfang>", main) ++ down(main, 4)),
+      "try18.oops" -> (Set("<Anfang>", main, main + ";Main_check", main + ";_uncaughtException") ++ down(main, 16)))
+  }
+
+  /** Program that `testCompilationCache` compiles. */
+  val CachedProgram = "dataflow.oops"
+
+  /** Scheduler for all tests, using a short time slice to switch programs often. */
+  val Scheduler = new org.oopsvm.Scheduler(2, 100)
+
   def readFile(path: String, encoding: Charset): String = {
     val encoded = Files.readAllBytes(Paths.get(path))
     return encoding.decode(ByteBuffer.wrap(encoded)).toString
   }
 
+  def writeObjectFile(program: ObjectFile): Array[Byte] = {
+    val file = new ByteArrayOutputStream
+    program.write(file)
+    return file.toByteArray
+  }
+
+  /** Asserts that a damaged object file cannot be read. */
+  def assertRejected(file: Array[Byte]) {
+    try {
+      ObjectFile.read(ByteBuffer.wrap(file))
+      fail("Damaged object file was accepted")
+    } catch {
+      case e: IOException =>
+    }
+  }
+
   def recursiveListFiles(f: File): Array[File] = {
     val these = f.listFiles
     these ++ these.filter(_.isDirectory).flatMap(recursiveListFiles)
@@ -116,7 +445,7 @@ object TestSuite {
 
   @Parameters(name = "{0}")
   def data: Collection[Array[AnyRef]] = {
-    val files = recursiveListFiles(new File("tests/")).map(_.toString).filter(_.endsWith(".oops")).sorted.map(Array[AnyRef](_))
+    val files = recursiveListFiles(new File("tests/")).map(_.toString).filter(f => f.endsWith(".oops") || f.endsWith(".asm")).sorted.map(Array[AnyRef](_))
     return scala.collection.JavaConversions.mutableSeqAsJavaList(files)
   }
 }
\ No newline at end of file
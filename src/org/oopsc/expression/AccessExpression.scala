@@ -6,7 +6,7 @@ import org.oopsc.{ CodeStream, TreeStream, SemanticAnalysis }
 /**
  * Represents a method or attribute access.
  */
-class AccessExpression(var leftOperand: Expression, rightOperand: EvaluateExpression) extends Expression(leftOperand.position) {
+class AccessExpression(var leftOperand: Expression, val rightOperand: EvaluateExpression) extends Expression(leftOperand.position) {
   override def refPass(sem: SemanticAnalysis) {
     this.leftOperand.refPass(sem)
 
@@ -50,7 +50,30 @@ class AccessExpression(var leftOperand: Expression, rightOperand: EvaluateExpres
   }
 
   def generateCode(code: CodeStream) {
-    this.leftOperand.generateCode(code, true)
-    this.rightOperand.generateCode(code)
+    if (this.rightOperand.isInlined) {
+      /* The inlined statements only use registers that are not in use. */
+      this.leftOperand.generateCode(code, true)
+      this.rightOperand.generateCallCode(code)
+    } else if (this.rightOperand.isMethodCall) {
+      /* The registers must be saved before the object is pushed. */
+      val saved = this.generateSaveRegistersCode(code)
+      this.leftOperand.generateCode(code, true)
+      this.rightOperand.generateCallCode(code)
+      this.generateRestoreRegistersCode(code, saved)
+    } else {
+      this.leftOperand.generateCode(code, true)
+      this.rightOperand.generateCode(code)
+    }
+  }
+
+  override def inRegisters = this.rightOperand.inRegisters
+
+  override def generateCode(code: CodeStream, target: Int) {
+    if (this.inRegisters) {
+      this.leftOperand.generateCode(code, true, target)
+      this.rightOperand.generateCode(code, target)
+    } else {
+      super.generateCode(code, target)
+    }
   }
 }
\ No newline at end of file
@@ -200,79 +200,135 @@ class BinaryExpression(var leftOperand: Expression, var operator: BinaryExpressi
     tree.unindent
   }
 
-  def generateCode(code: CodeStream) {
-    /* If one of the operands is NULL, then the other one must be an object, too.
-     * Box the other value if this is the case. */
-    val box = (this.leftOperand.resolvedType() eq Types.nullType) || (this.rightOperand.resolvedType() eq Types.nullType)
-
-    this.leftOperand.generateCode(code, box)
-    this.rightOperand.generateCode(code, box)
-
-    code.println("; " + this.operator)
-
-    code.println("MRM R5, (R2)")
-
-    if (this.operator == DIV) {
-      /* For the DIV operator, throw an exception if the right operand is zero. */
-      val nextLabel = code.nextLabel
-      code.println("JPC R5, " + nextLabel)
-      new ThrowStatement(new IntegerLiteralExpression(0)).generateCode(code)
-      code.println(nextLabel + ":")
-    }
+  /**
+   * Throws an exception if the right operand of a division is zero.
+   */
+  private def generateZeroCheckCode(code: CodeStream, right: Int) {
+    val nextLabel = code.nextLabel
+    code.println(s"JPC R$right, $nextLabel")
+    new ThrowStatement(new IntegerLiteralExpression(0)).generateCode(code)
+    code.println(nextLabel + ":")
+  }
 
-    code.println("SUB R2, R1")
-    code.println("MRM R6, (R2)")
+  /**
+   * Applies the operator to two registers. The result is stored in the register
+   * of the left operand.
+   */
+  private def generateOperatorCode(code: CodeStream, left: Int, right: Int) {
+    val l = s"R$left"
+    val r = s"R$right"
 
     this.operator match {
       case AND =>
-        code.println("AND R6, R5")
+        code.println(s"AND $l, $r")
 
       case OR =>
-        code.println("OR R6, R5")
+        code.println(s"OR $l, $r")
 
       case PLUS =>
-        code.println("ADD R6, R5")
+        code.println(s"ADD $l, $r")
 
       case MINUS =>
-        code.println("SUB R6, R5")
+        code.println(s"SUB $l, $r")
 
       case MUL =>
-        code.println("MUL R6, R5")
+        code.println(s"MUL $l, $r")
 
       case DIV =>
-        code.println("DIV R6, R5")
+        code.println(s"DIV $l, $r")
 
       case MOD =>
-        code.println("MOD R6, R5")
+        code.println(s"MOD $l, $r")
 
       case GT =>
-        code.println("SUB R6, R5")
-        code.println("ISP R6, R6")
+        code.println(s"SUB $l, $r")
+        code.println(s"ISP $l, $l")
 
       case GTEQ =>
-        code.println("SUB R6, R5")
-        code.println("ISN R6, R6")
-        code.println("XOR R6, R1")
+        code.println(s"SUB $l, $r")
+        code.println(s"ISN $l, $l")
+        code.println(s"XOR $l, R1")
 
       case LT =>
-        code.println("SUB R6, R5")
-        code.println("ISN R6, R6")
+        code.println(s"SUB $l, $r")
+        code.println(s"ISN $l, $l")
 
       case LTEQ =>
-        code.println("SUB R6, R5")
-        code.println("ISP R6, R6")
-        code.println("XOR R6, R1")
+        code.println(s"SUB $l, $r")
+        code.println(s"ISP $l, $l")
+        code.println(s"XOR $l, R1")
 
       case EQ =>
-        code.println("SUB R6, R5")
-        code.println("ISZ R6, R6")
+        code.println(s"SUB $l, $r")
+        code.println(s"ISZ $l, $l")
 
       case NEQ =>
-        code.println("SUB R6, R5")
-        code.println("ISZ R6, R6")
-        code.println("XOR R6, R1")
+        code.println(s"SUB $l, $r")
+        code.println(s"ISZ $l, $l")
+        code.println(s"XOR $l, R1")
+    }
+  }
+
+  /* If one of the operands is NULL, then the other one must be an object, too.
+   * Box the other value if this is the case. */
+  private def boxOperands =
+    (this.leftOperand.resolvedType() eq Types.nullType) || (this.rightOperand.resolvedType() eq Types.nullType)
+
+  def generateCode(code: CodeStream) {
+    val box = this.boxOperands
+
+    this.leftOperand.generateCode(code, box)
+    this.rightOperand.generateCode(code, box)
+
+    code.println("; " + this.operator)
+
+    code.println("MRM R5, (R2)")
+
+    if (this.operator == DIV) {
+      /* For the DIV operator, throw an exception if the right operand is zero. */
+      this.generateZeroCheckCode(code, 5)
     }
 
+    code.println("SUB R2, R1")
+    code.println("MRM R6, (R2)")
+    this.generateOperatorCode(code, 6, 5)
     code.println("MMR (R2), R6")
   }
-}
\ No newline at end of file
+
+  override def inRegisters = true
+
+  override def generateCode(code: CodeStream, target: Int) {
+    val box = this.boxOperands
+
+    this.leftOperand.generateCode(code, box, target)
+
+    code.allocateRegister match {
+      case Some(right) =>
+        this.rightOperand.generateCode(code, box, right)
+        code.println("; " + this.operator)
+
+        if (this.operator == DIV) {
+          this.generateZeroCheckCode(code, right)
+        }
+
+        this.generateOperatorCode(code, target, right)
+        code.releaseRegister(right)
+
+      case None =>
+        /* All registers are in use. Keep the left operand on the stack. */
+        code.println("ADD R2, R1")
+        code.println(s"MMR (R2), R$target")
+        this.rightOperand.generateCode(code, box, target)
+        code.println("; " + this.operator)
+
+        if (this.operator == DIV) {
+          this.generateZeroCheckCode(code, target)
+        }
+
+        code.println(s"MRR R5, R$target")
+        code.println(s"MRM R$target, (R2)")
+        code.println("SUB R2, R1")
+        this.generateOperatorCode(code, target, 5)
+    }
+  }
+}
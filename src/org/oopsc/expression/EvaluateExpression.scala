@@ -2,6 +2,7 @@ package org.oopsc.expression
 
 import org.oopsc._
 import org.oopsc.scope._
+import org.oopsc.statement.ReturnStatement
 import org.oopsc.symbol._
 import scala.collection.mutable.ArrayBuffer
 
@@ -16,6 +17,15 @@ class EvaluateExpression(var ref: ResolvableSymbol) extends Expression(ref.ident
 
   var arguments = new ArrayBuffer[Expression]
 
+  /** Weight of an access in the current loop nesting, see `VariableSymbol.uses`. */
+  private var weight = 1
+
+  /**
+   * If the called method is inlined, maps its SELF, BASE, parameters and local
+   * variables to the local variables of the caller that take their place.
+   */
+  private var inlined: Option[Map[VariableSymbol, VariableSymbol]] = None
+
   def generateContextCode(value: Boolean) {
     this.generateContextCode = value
   }
@@ -64,11 +74,18 @@ class EvaluateExpression(var ref: ResolvableSymbol) extends Expression(ref.ident
       }
     }
 
+    this.weight = math.pow(10, math.min(sem.loopDepth, 4)).toInt
+
     this.ref.declaration.get match {
       case sym: VariableSymbol =>
         this.lValue = true
+        sym.uses += this.weight
 
       case decl: MethodSymbol =>
+        if (sem.currentMethod != null) {
+          sem.currentMethod.calls += this
+        }
+
         /* Verify that the passed arguments match the expected parameters. */
         if (this.arguments.size != decl.parameters.size) {
           throw new CompileException(s"Parameter count mismatch: ${decl.parameters.size} expected, ${this.arguments.size} given.", this.ref.identifier.position)
@@ -115,6 +132,116 @@ class EvaluateExpression(var ref: ResolvableSymbol) extends Expression(ref.ident
     }
   }
 
+  override def inRegisters = this.ref.declaration.get.isInstanceOf[VariableSymbol]
+
+  override def register(code: CodeStream): Option[Int] =
+    this.ref.declaration.get match {
+      case sym: AttributeSymbol => None
+      case sym: VariableSymbol => code.localRegister(code.variable(sym))
+      case _ => None
+    }
+
+  /**
+   * True if the expression refers to a variable that holds its value instead of a
+   * box, see `EscapeAnalysis`. Such a variable cannot be NULL.
+   */
+  private def isUnboxed =
+    this.ref.declaration.get.isInstanceOf[VariableSymbol] &&
+      ((this.resolvedType() eq Types.intType) || (this.resolvedType() eq Types.boolType))
+
+  override def generateCode(code: CodeStream, box: Boolean) {
+    this.register(code) match {
+      case Some(r) if this.isUnboxed =>
+        if (box) {
+          super.generateCode(code, box)
+        } else {
+          code.println(s"; Local variable ${this.ref.identifier.name} in R$r")
+          code.println("ADD R2, R1")
+          code.println(s"MMR (R2), R$r")
+        }
+
+      case Some(r) =>
+        /* The variable has no address. Push its value directly. */
+        code.println(s"; Local variable ${this.ref.identifier.name} in R$r")
+        code.println("ADD R2, R1")
+        code.println(s"MMR (R2), R$r")
+        this.generateNullCheckCode(code, r)
+
+        if (!box && ((this.resolvedType() eq Types.boolClass) || (this.resolvedType() eq Types.intClass))) {
+          this.generateUnBoxCode(code)
+        }
+
+      case None =>
+        super.generateCode(code, box)
+    }
+  }
+
+  override protected def generateDeRefCode(code: CodeStream) {
+    if (this.isUnboxed) {
+      code.println("; DEREF")
+      code.println("MRM R5, (R2)")
+      code.println("MRM R5, (R5)")
+      code.println("MMR (R2), R5")
+    } else {
+      super.generateDeRefCode(code)
+    }
+  }
+
+  override protected def generateDeRefCode(code: CodeStream, target: Int) {
+    if (this.register(code).isDefined) {
+      /* generateCode(code, target) already loaded the value. */
+      if (!this.isUnboxed) {
+        this.generateNullCheckCode(code, target)
+      }
+    } else if (this.isUnboxed) {
+      code.println("; DEREF")
+      code.println(s"MRM R$target, (R$target)")
+    } else {
+      super.generateDeRefCode(code, target)
+    }
+  }
+
+  /**
+   * Generates an argument. Unboxed parameters are passed by value.
+   */
+  private def generateArgumentCode(code: CodeStream, e: Expression, p: VariableSymbol) {
+    val t = p.getResolvedType
+    e.generateCode(code, (t ne Types.intType) && (t ne Types.boolType))
+  }
+
+  override def generateCode(code: CodeStream, target: Int) {
+    this.ref.declaration.get match {
+      case sym: AttributeSymbol =>
+        code.println(s"; Referencing attribute ${this.ref.identifier.name}")
+
+        if (this.context != null) {
+          code.println("; Context: " + this.context.identifier.name)
+          val `var` = new EvaluateExpression(new ResolvableSymbol(this.context.identifier, new Some[Symbol](this.context)))
+          `var`.lValue = true
+          `var`.generateCode(code, false, target)
+        }
+
+        /* Otherwise, the target register already contains the object. */
+        code.println(s"MRI R5, ${sym.offset}")
+        code.println(s"ADD R$target, R5")
+
+      case sym: VariableSymbol =>
+        this.register(code) match {
+          case Some(r) =>
+            code.println(s"; Local variable ${this.ref.identifier.name} in R$r")
+            code.println(s"MRR R$target, R$r")
+
+          case None =>
+            code.println(s"; Referencing local variable ${this.ref.identifier.name}")
+            code.println(s"MRI R$target, ${code.variable(sym).offset}")
+            code.println(s"ADD R$target, R3")
+        }
+
+      case _ =>
+        super.generateCode(code, target)
+    }
+  }
+
   def generateCode(code: CodeStream) {
     this.ref.declaration.get match {
       case sym: ClassSymbol =>
@@ -129,7 +256,7 @@ class EvaluateExpression(var ref: ResolvableSymbol) extends Expression(ref.ident
         code.println("MRM R5, (R2)") // R5 = Evaluated value of this.oper.
 
         val endLabel = code.nextLabel
-        TypeCheckExpression.checkType(code, sym.identifier.name, endLabel)
+        TypeCheckExpression.checkType(code, sym, endLabel)
 
         /* Code to be executed upon type mismatch: *R2 = NULL */
         code.println("MRI R5, 0")
@@ -152,68 +279,188 @@ class EvaluateExpression(var ref: ResolvableSymbol) extends Expression(ref.ident
 
       case sym: VariableSymbol =>
         /* A variable is stored in the stack frame. */
+        if (code.localRegister(sym).isDefined) {
+          throw new CompileException(s"Variable ${this.ref.identifier.name} is kept in a register and has no address.", this.position)
+        }
+
         code.println("; Referencing local variable " + this.ref.identifier.name)
-        code.println("MRI R5, " + sym.offset)
+        code.println("MRI R5, " + code.variable(sym).offset)
         code.println("ADD R5, R3")
         code.println("ADD R2, R1")
         code.println("MMR (R2), R5")
 
       case m: MethodSymbol =>
-        val returnLabel = code.nextLabel
-        if (this.context != null && this.isStaticContext) {
-          code.println("; Static method call: " + this.ref.identifier.name)
-          code.println("; Arguments")
-          code.println("")
-
-          /* Push arguments on the stack. */
-          for ((e, i) <- this.arguments.zipWithIndex) {
-            code.println("; Argument " + i)
-            code.println("; " + e.getClass)
-            e.generateCode(code, true)
-          }
+        if (this.isInlined) {
+          this.generateCallCode(code)
+        } else {
+          /* The callee may overwrite all registers. Save those that are in use. */
+          val saved = this.generateSaveRegistersCode(code)
+          this.generateCallCode(code)
+          this.generateRestoreRegistersCode(code, saved)
+        }
+    }
+  }
 
-          /* Push return address on the stack. */
-          code.println("MRI R5, " + returnLabel + " ; Return address.")
-          code.println("ADD R2, R1")
-          code.println("MMR (R2), R5 ; Save return address on the stack.")
+  def isMethodCall = this.ref.declaration.get.isInstanceOf[MethodSymbol]
 
-          /* Jump to method by overwriting PC. */
-          code.println("MRI R0, " + m.getAsmMethodName)
-        } else {
-          this._generateContextCode(code)
-          code.println("; Dynamic method call: " + this.ref.identifier.name)
-          code.println("; VMT index = " + m.vmtIndex)
-          code.println("; Arguments")
-          code.println("")
-
-          /* Push arguments on the stack. */
-          for ((e, i) <- this.arguments.zipWithIndex) {
-            code.println("; Argument " + i)
-            code.println("; " + e.getClass)
-            e.generateCode(code, true)
-          }
+  def isInlined = this.inlined.isDefined
 
-          /* Push return address on the stack. */
-          code.println("MRI R5, " + returnLabel + " ; Return address.")
-          code.println("ADD R2, R1")
-          code.println("MMR (R2), R5 ; Save return address on the stack.")
+  /**
+   * Inlines the called method if it is small enough and the call has only one
+   * possible target, i.e. it is static or the method is not overridden. The
+   * variables of the callee are added to the local variables of the caller.
+   * Requires the class hierarchy analysis.
+   *
+   * @param caller Method containing this call.
+   */
+  def inline(caller: MethodSymbol) {
+    val m = this.ref.declaration.get.asInstanceOf[MethodSymbol]
+
+    if (this.inlined.isEmpty && m.isInlinable && (m ne caller) && (m.isMonomorphic || (this.context != null && this.isStaticContext))) {
+      val variables = (m.self +: m.parameters) ++ m.locals
+      val locals = variables.map(v => caller.addInlinedVariable(m, v, this.weight * math.max(v.uses, 1)))
+      val mapping = variables.zip(locals).toMap
+
+      this.inlined = Some(if (m.base == null) mapping else mapping + (m.base -> mapping(m.self)))
+    }
+  }
+
+  /**
+   * Pops the value on top of the stack into a local variable.
+   */
+  private def generatePopCode(code: CodeStream, v: VariableSymbol) {
+    code.localRegister(v) match {
+      case Some(r) =>
+        code.println(s"MRM R$r, (R2) ; ${v.identifier.name} is kept in R$r.")
+        code.println("SUB R2, R1")
+
+      case None =>
+        code.println(s"MRM R5, (R2) ; ${v.identifier.name}")
+        code.println("SUB R2, R1")
+        code.println(s"MRI R6, ${v.offset}")
+        code.println("ADD R6, R3")
+        code.println("MMR (R6), R5")
+    }
+  }
+
+  /**
+   * Generates the statements of an inlined method in the frame of the caller.
+   * Instead of building a stack frame, the object and the arguments are stored in
+   * the variables that take the place of SELF and the parameters. The result, if
+   * any, is left on the stack like after a call.
+   */
+  private def generateInlineCode(code: CodeStream) {
+    val m = this.ref.declaration.get.asInstanceOf[MethodSymbol]
+    val mapping = this.inlined.get
+
+    if (!this.isStaticContext) {
+      this._generateContextCode(code)
+    }
 
-          /* Resolve function address from VMT. */
-          code.println("MRR R5, R2")
-          code.println("MRI R6, " + (1 + this.arguments.size))
-          code.println("SUB R5, R6")
+    code.println("; Inlined call: " + m.getAsmMethodName)
+    this.generatePopCode(code, mapping(m.self))
 
-          code.println("MRM R6, (R5)") // R5 = Object address.
-          code.println("MRM R6, (R6)") // R6 = VMT address.
+    for ((e, p) <- this.arguments.zip(m.parameters)) {
+      this.generateArgumentCode(code, e, p)
+      this.generatePopCode(code, mapping(p))
+    }
 
-          code.println("MRI R5, " + m.vmtIndex)
-          code.println("ADD R6, R5")
+    code.substitute(mapping) {
+      for (s <- m.statements) {
+        s match {
+          case ret: ReturnStatement =>
+            if (ret.value != null) {
+              ret.value.generateCode(code, true)
+            }
 
-          /* Jump to method by overwriting PC. */
-          code.println("MRM R0, (R6)")
+          case _ =>
+            s.generateCode(code, 0)
         }
+      }
+    }
+
+    code.println("; End of inlined call.")
+  }
+
+  /**
+   * Generates the code for a method call. The context, i.e. the object, must
+   * already be on the stack unless it is generated by this expression. Registers
+   * in use are not saved.
+   */
+  def generateCallCode(code: CodeStream) {
+    if (this.isInlined) {
+      this.generateInlineCode(code)
+    } else {
+      this.generateJumpCode(code)
+    }
+  }
+
+  /**
+   * Generates the code for calling the method by jumping to it.
+   */
+  private def generateJumpCode(code: CodeStream) {
+    val m = this.ref.declaration.get.asInstanceOf[MethodSymbol]
+    val returnLabel = code.nextLabel
+
+    if (this.context != null && this.isStaticContext) {
+      code.println("; Static method call: " + this.ref.identifier.name)
+      code.println("; Arguments")
+      code.println("")
+
+      /* Push arguments on the stack. */
+      for (((e, p), i) <- this.arguments.zip(m.parameters).zipWithIndex) {
+        code.println("; Argument " + i)
+        code.println("; " + e.getClass)
+        this.generateArgumentCode(code, e, p)
+      }
 
-        code.println(returnLabel + ":")
+      /* Push return address on the stack. */
+      code.println("MRI R5, " + returnLabel + " ; Return address.")
+      code.println("ADD R2, R1")
+      code.println("MMR (R2), R5 ; Save return address on the stack.")
+
+      /* Jump to method by overwriting PC. */
+      code.println("MRI R0, " + m.getAsmMethodName)
+    } else {
+      this._generateContextCode(code)
+      code.println("; Dynamic method call: " + this.ref.identifier.name)
+      code.println("; VMT index = " + m.vmtIndex)
+      code.println("; Arguments")
+      code.println("")
+
+      /* Push arguments on the stack. */
+      for (((e, p), i) <- this.arguments.zip(m.parameters).zipWithIndex) {
+        code.println("; Argument " + i)
+        code.println("; " + e.getClass)
+        this.generateArgumentCode(code, e, p)
+      }
+
+      /* Push return address on the stack. */
+      code.println("MRI R5, " + returnLabel + " ; Return address.")
+      code.println("ADD R2, R1")
+      code.println("MMR (R2), R5 ; Save return address on the stack.")
+
+      if (m.isMonomorphic) {
+        /* The method is not overridden, therefore the VMT would always yield
+         * the same address. */
+        code.println("MRI R0, " + m.getAsmMethodName + " ; Not overridden.")
+      } else {
+        /* Resolve function address from VMT. */
+        code.println("MRR R5, R2")
+        code.println("MRI R6, " + (1 + this.arguments.size))
+        code.println("SUB R5, R6")
+
+        code.println("MRM R6, (R5)") // R5 = Object address.
+        code.println("MRM R6, (R6)") // R6 = VMT address.
+
+        code.println("MRI R5, " + m.vmtIndex)
+        code.println("ADD R6, R5")
+
+        /* Jump to method by overwriting PC. */
+        code.println("MRM R0, (R6)")
+      }
     }
+
+    code.println(returnLabel + ":")
   }
-}
\ No newline at end of file
+}
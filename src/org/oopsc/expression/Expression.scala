@@ -19,6 +19,12 @@ abstract class Expression(var position: Position) {
    */
   var lValue = false
 
+  /**
+   * True if the value of the expression was already checked for NULL, so that
+   * dereferencing it does not need to check it again.
+   */
+  var nonNull = false
+
   /**
    * Performs the reference pass of the semantic analysis.
    *
@@ -56,12 +62,34 @@ abstract class Expression(var position: Position) {
     code.println("MRM R5, (R5)")
 
     /* Throw an exception if the address is NULL. */
+    if (!this.nonNull) {
+      val nextLabel = code.nextLabel
+      code.println(s"JPC R5, $nextLabel")
+      new ThrowStatement(new IntegerLiteralExpression(1)).generateCode(code)
+      code.println(s"$nextLabel:")
+    }
+
+    code.println("MMR (R2), R5")
+  }
+
+  protected def generateDeRefCode(code: CodeStream, target: Int) {
+    code.println("; DEREF")
+    code.println(s"MRM R$target, (R$target)")
+    this.generateNullCheckCode(code, target)
+  }
+
+  /**
+   * Throws an exception if the given register contains NULL.
+   */
+  protected def generateNullCheckCode(code: CodeStream, target: Int) {
+    if (this.nonNull) {
+      return
+    }
+
     val nextLabel = code.nextLabel
-    code.println(s"JPC R5, $nextLabel")
+    code.println(s"JPC R$target, $nextLabel")
     new ThrowStatement(new IntegerLiteralExpression(1)).generateCode(code)
-
     code.println(s"$nextLabel:")
-    code.println("MMR (R2), R5")
   }
 
   protected def generateBoxCode(code: CodeStream) {
@@ -83,10 +111,161 @@ abstract class Expression(var position: Position) {
     code.println("MMR (R2), R5 ; ...and put on the stack.")
   }
 
+  protected def generateBoxCode(code: CodeStream, target: Int) {
+    val clazz = if (this.resolvedType() eq Types.intType) Types.intClass else Types.boolClass
+    code.println(s"; BOX ${this.resolvedType().identifier.name}")
+    code.println(s"MRI R5, ${clazz.identifier.name}")
+    code.println("SYS 2, 5 ; Allocate object.")
+    code.println(s"MRI R6, ${ClassSymbol.HEADERSIZE}")
+    code.println("ADD R6, R5 ; Calculate memory position in the new object.")
+    code.println(s"MMR (R6), R$target ; Save value in the object.")
+    code.println(s"MRR R$target, R5")
+  }
+
+  protected def generateUnBoxCode(code: CodeStream, target: Int) {
+    code.println(s"; UNBOX ${this.resolvedType().identifier.name}")
+    code.println(s"MRI R6, ${ClassSymbol.HEADERSIZE}")
+    code.println(s"ADD R$target, R6 ; Calculate address of the value.")
+    code.println(s"MRM R$target, (R$target) ; Read value.")
+  }
+
+  /**
+   * Saves all registers in use on the stack before a method call.
+   *
+   * @return Saved registers.
+   */
+  protected def generateSaveRegistersCode(code: CodeStream): Seq[Int] = {
+    val saved = code.registers.map(_.inUse).getOrElse(Nil)
+
+    if (saved.nonEmpty) {
+      code.println("; Save registers.")
+      for (r <- saved) {
+        code.println("ADD R2, R1")
+        code.println(s"MMR (R2), R$r")
+      }
+    }
+
+    saved
+  }
+
+  /**
+   * Restores the registers saved by `generateSaveRegistersCode` after a method
+   * call. The result of the call, if any, stays on top of the stack.
+   */
+  protected def generateRestoreRegistersCode(code: CodeStream, saved: Seq[Int]) {
+    if (saved.nonEmpty) {
+      code.println("; Restore registers.")
+      val hasResult = this.resolvedType() ne Types.voidType
+      if (hasResult) {
+        code.println("MRM R5, (R2) ; Take the result from the stack.")
+        code.println("SUB R2, R1")
+      }
+
+      for (r <- saved.reverse) {
+        code.println(s"MRM R$r, (R2)")
+        code.println("SUB R2, R1")
+      }
+
+      if (hasResult) {
+        code.println("ADD R2, R1")
+        code.println("MMR (R2), R5")
+      }
+    }
+  }
+
+  /**
+   * Returns the register if the expression refers to a local variable that is
+   * kept in a register.
+   */
+  def register(code: CodeStream): Option[Int] = None
+
+  /**
+   * True if the expression can be evaluated in registers, i.e. overrides
+   * `generateCode(code, target)`.
+   */
+  def inRegisters = false
+
+  /**
+   * Generates assembly code that leaves the result in the given register instead
+   * of on the stack. For variable references, this is the address. By default,
+   * the expression is evaluated on the stack and the result is popped into the
+   * register.
+   *
+   * @param code Output stream.
+   * @param target Target register.
+   */
+  def generateCode(code: CodeStream, target: Int) {
+    this.generateCode(code)
+    code.println(s"MRM R$target, (R2)")
+    code.println("SUB R2, R1")
+  }
+
+  /**
+   * Generates assembly code leaving the result in the given register, taking into
+   * account boxing/unboxing and dereferencing.
+   */
+  def generateCode(code: CodeStream, box: Boolean, target: Int) {
+    if (box && ((this.resolvedType() eq Types.intType) || (this.resolvedType() eq Types.boolType))) {
+      this.generateCode(code, target)
+
+      /* Unboxed variables, see `EscapeAnalysis`. */
+      if (this.lValue) {
+        this.generateDeRefCode(code, target)
+      }
+
+      this.generateBoxCode(code, target)
+    } else {
+      this.generateCode(code, target)
+
+      if (this.lValue) {
+        this.generateDeRefCode(code, target)
+      }
+
+      if (!box && ((this.resolvedType() eq Types.boolClass) || (this.resolvedType() eq Types.intClass))) {
+        this.generateUnBoxCode(code, target)
+      }
+    }
+  }
+
+  /**
+   * Generates assembly code that leaves the value of the expression in a
+   * register. If no register is free, the value is computed on the stack and
+   * popped into R5. The returned register must be passed to
+   * `CodeStream.releaseRegister` afterwards.
+   *
+   * @return Register containing the value.
+   */
+  def generateValueCode(code: CodeStream, box: Boolean): Int =
+    code.allocateRegister match {
+      case Some(r) =>
+        this.generateCode(code, box, r)
+        r
+
+      case None =>
+        this.generateCode(code, box)
+        code.println("MRM R5, (R2)")
+        code.println("SUB R2, R1")
+        5
+    }
+
   /**
    * Generates assembly code, taking into account boxing/unboxing and dereferencing.
    */
   def generateCode(code: CodeStream, box: Boolean) {
+    if (this.inRegisters) {
+      code.allocateRegister match {
+        case Some(r) =>
+          /* Compute the value in a register and only push the result. */
+          this.generateCode(code, box, r)
+          code.println("ADD R2, R1")
+          code.println(s"MMR (R2), R$r")
+          code.releaseRegister(r)
+          return
+
+        case None =>
+      }
+    }
+
     if (box && ((this.resolvedType() eq Types.intType) || (this.resolvedType() eq Types.boolType))) {
       var newType: NewExpression = null
 
@@ -101,6 +280,11 @@ abstract class Expression(var position: Position) {
       newType.generateCode(code)
 
       this.generateCode(code)
+
+      if (this.lValue) {
+        this.generateDeRefCode(code)
+      }
+
       this.generateBoxCode(code)
     } else {
       this.generateCode(code)
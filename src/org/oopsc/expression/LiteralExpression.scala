@@ -17,6 +17,12 @@ abstract class LiteralExpression(`type`: ClassSymbol, position: Position = new P
     code.println("MMR (R2), R5")
   }
 
+  def _generateIntCode(value: Int, code: CodeStream, target: Int) {
+    code.println(s"MRI R$target, $value")
+  }
+
+  override def inRegisters = true
+
   /* For compatibility purposes only. Needed as exceptions can be thrown with integers or characters. */
   @deprecated
   def intValue: Int = throw new CompileException("Literal does not have a compatible value.")
@@ -31,6 +37,11 @@ case class BooleanLiteralExpression(value: Boolean, var _position: Position = ne
     code.println(s"; ${this.value}")
     _generateIntCode(if (value) 1 else 0, code)
   }
+
+  override def generateCode(code: CodeStream, target: Int) {
+    code.println(s"; ${this.value}")
+    _generateIntCode(if (value) 1 else 0, code, target)
+  }
 }
 
 case class IntegerLiteralExpression(var value: Int, var _position: Position = new Position()) extends LiteralExpression(Types.intType, _position) {
@@ -43,6 +54,11 @@ case class IntegerLiteralExpression(var value: Int, var _position: Position = ne
     _generateIntCode(value, code)
   }
 
+  override def generateCode(code: CodeStream, target: Int) {
+    code.println(s"; ${this.value}")
+    _generateIntCode(value, code, target)
+  }
+
   override def intValue: Int = value
 }
 
@@ -58,6 +74,11 @@ case class CharacterLiteralExpression(value: Char, var _position: Position = new
     _generateIntCode(value, code)
   }
 
+  override def generateCode(code: CodeStream, target: Int) {
+    code.println(s"; ${this.value}")
+    _generateIntCode(value, code, target)
+  }
+
   override def intValue: Int = value.asInstanceOf[Int]
 }
 
@@ -78,6 +99,11 @@ case class StringLiteralExpression(value: String, var _position: Position = new
     code.println("ADD R2, R1")
     code.println("MMR (R2), R5")
   }
+
+  override def generateCode(code: CodeStream, target: Int) {
+    code.println(s"; '${this.value}'")
+    code.println(s"MRI R$target, _rodata_${this.offset}")
+  }
 }
 
 case class NullLiteralExpression(var _position: Position = new Position()) extends LiteralExpression(Types.nullType, _position) {
@@ -89,4 +115,9 @@ case class NullLiteralExpression(var _position: Position = new Position()) exten
     code.println("; NULL")
     _generateIntCode(0, code)
   }
+
+  override def generateCode(code: CodeStream, target: Int) {
+    code.println("; NULL")
+    _generateIntCode(0, code, target)
+  }
 }
\ No newline at end of file
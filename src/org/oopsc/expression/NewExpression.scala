@@ -20,15 +20,13 @@ class NewExpression(var newType: ResolvableClassSymbol) extends Expression(newTy
 
   def generateCode(code: CodeStream) {
     code.println(s"; NEW ${this.newType.identifier.name}")
-    code.println("ADD R2, R1")
-    code.println("MMR (R2), R4 ; Put reference to new object on the stack.")
-    code.println(s"MRI R5, ${this.newType.declaration.get.objectSize}")
-
-    /* Insert the address pointing to the VMT at the relative position 0 of the
-     * object. The offsets 1.. denote the attributes. */
-    code.println(s"MRI R6, ${this.newType.identifier.name}")
-    code.println("MMR (R4), R6")
 
-    code.println("ADD R4, R5 ; Increase heap.")
+    /* The VM allocates the object and inserts the address pointing to the VMT
+     * at the relative position 0 of the object. The offsets 1.. denote the
+     * attributes and are initialised with 0. */
+    code.println(s"MRI R5, ${this.newType.identifier.name}")
+    code.println("SYS 2, 5 ; Allocate object.")
+    code.println("ADD R2, R1")
+    code.println("MMR (R2), R5 ; Put reference to new object on the stack.")
   }
 }
\ No newline at end of file
@@ -1,29 +1,58 @@
 package org.oopsc.expression
 
 import org.oopsc._
-import org.oopsc.symbol.{ResolvableClassSymbol}
+import org.oopsc.symbol.{ClassSymbol, ResolvableClassSymbol}
 import org.oopsc.{CodeStream, TreeStream, SemanticAnalysis}
 
 object TypeCheckExpression {
-  def checkType(code: CodeStream, className: String, endLabel: String) {
-    val iterLabel = code.nextLabel
-
-    /* Dereference the object to get the VMT (offset 0 of the object). */
-    code.println("MRM R5, (R5)") /* R5 = VMT of current class. */
-
-    code.println(s"MRI R7, $className")
-
-    code.println(s"$iterLabel:")
-    code.println("MRR R6, R5") /* R6 = VMT of current class. */
-    code.println("SUB R6, R7") /* R6 is 0 if the class matches. */
-    code.println("ISZ R6, R6") /* R6 is 1 if the class matches, 0 otherwise. */
-    code.println(s"JPC R6, $endLabel") /* Jump to $endLabel if the type matches. R6 is 1. */
-
-    /* The class does not match. */
-    code.println("MRM R5, (R5)") /* R5 = VMT address of the super class (offset 0 in VMT). */
-    code.println(s"JPC R5, $iterLabel") /* Next iteration if the current class is not Object, i.e. R5 != 0. */
-
-    /* Otherwise we found a type mismatch. Stop with R6 = 0. */
+  /**
+   * Generates code that checks whether the object in R5 is an instance of the
+   * given class. Upon a match, it jumps to `endLabel` with R6 = 1. Otherwise,
+   * the code falls through with R6 = 0.
+   *
+   * The classes are numbered in pre-order of the class hierarchy (see
+   * `Program.numberClasses`), so the check compares the number of the object's
+   * class, which is stored at offset -3 of its VMT, with the interval of the
+   * expected class instead of following the chain of super classes.
+   */
+  def checkType(code: CodeStream, cls: ClassSymbol, endLabel: String) {
+    if (cls eq Types.objectClass) {
+      /* Every object is an instance of Object. */
+      code.println("ISZ R6, R5")
+      code.println("ISZ R6, R6") /* R6 is 1 if the object is not NULL. */
+      code.println(s"JPC R6, $endLabel")
+    } else if (cls.lastSubclassId == cls.classId) {
+      /* Without subclasses, the VMT has to be the one of the class. The VMT of
+       * NULL is the first word of the program, i.e. 0. */
+      code.println("MRM R5, (R5)") /* R5 = VMT of current class. */
+      code.println(s"MRI R7, ${cls.identifier.name}")
+      code.println("SUB R5, R7") /* R5 is 0 if the class matches. */
+      code.println("ISZ R6, R5") /* R6 is 1 if the class matches, 0 otherwise. */
+      code.println(s"JPC R6, $endLabel")
+    } else {
+      val failLabel = code.nextLabel
+
+      /* NULL has no VMT. Stop with R6 = 0. */
+      code.println("MRR R6, R5")
+      code.println("ISZ R7, R5")
+      code.println(s"JPC R7, $failLabel")
+
+      code.println("MRM R5, (R5)") /* R5 = VMT of current class. */
+      code.println("MRI R6, -3")
+      code.println("ADD R6, R5")
+      code.println("MRM R6, (R6)") /* R6 = number of current class. */
+
+      code.println(s"MRI R7, ${cls.classId}")
+      code.println("SUB R6, R7")
+      code.println("ISN R7, R6") /* R7 is 1 if the number is below the interval. */
+      code.println(s"MRI R5, ${cls.lastSubclassId - cls.classId + 1}")
+      code.println("SUB R6, R5")
+      code.println("ISN R6, R6") /* R6 is 1 if the number is not above the interval. */
+      code.println("SUB R6, R7") /* R6 is 1 if the class matches, 0 otherwise. */
+      code.println(s"JPC R6, $endLabel")
+
+      code.println(s"$failLabel:")
+    }
   }
 }
 
@@ -59,12 +88,12 @@ class TypeCheckExpression(var oper: Expression, className: ResolvableClassSymbol
       /* Deal with special case: NULL ISA Object. */
       val beginLabel = code.nextLabel
       code.println(s"JPC R5, $beginLabel") /* Jump to beginLabel if R5 != NULL. */
-      code.println("MMR (R2), R1") /* Write the result on the stack. */
+      code.println("MRR R6, R1") /* The result is 1, see below. */
       code.println(s"MRI R0, $endLabel")
       code.println(s"$beginLabel:")
     }
 
-    TypeCheckExpression.checkType(code, this.className.identifier.name, endLabel)
+    TypeCheckExpression.checkType(code, this.className.declaration.get, endLabel)
 
     /* Code to be executed upon type mismatch. */
     code.println(s"$endLabel:")
@@ -81,4 +81,22 @@ case class UnaryExpression(var operator: UnaryExpression.Operator, var operand:
         code.println("MMR (R2), R6")
     }
   }
+
+  override def inRegisters = true
+
+  override def generateCode(code: CodeStream, target: Int) {
+    this.operand.generateCode(code, false, target)
+
+    code.println(s"; ${this.operator}")
+
+    this.operator match {
+      case NOT =>
+        code.println(s"XOR R$target, R1")
+
+      case MINUS =>
+        code.println("MRI R5, 0")
+        code.println(s"SUB R5, R$target")
+        code.println(s"MRR R$target, R5")
+    }
+  }
 }
\ No newline at end of file
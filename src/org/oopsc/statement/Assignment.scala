@@ -4,6 +4,7 @@ import org.oopsc.CodeStream
 import org.oopsc.CompileException
 import org.oopsc.SemanticAnalysis
 import org.oopsc.TreeStream
+import org.oopsc.Types
 import org.oopsc.expression.{EvaluateExpression, Expression}
 import org.oopsc.symbol.VariableSymbol
 
@@ -44,12 +45,53 @@ class Assignment(var leftOperand: Expression, var rightOperand: Expression) exte
     tree.unindent
   }
 
+  /**
+   * Unless the variable holds its value directly (see `EscapeAnalysis`), the
+   * assigned value must be boxed.
+   */
+  private def box = {
+    val t = this.leftOperand.resolvedType()
+    (t ne Types.intType) && (t ne Types.boolType)
+  }
+
   override def generateCode(code: CodeStream, tryContexts: Int) {
+    this.leftOperand.register(code) match {
+      case Some(r) =>
+        /* The variable is kept in a register. */
+        code.println("; ASSIGNMENT")
+        val value = this.rightOperand.generateValueCode(code, this.box)
+        code.println(s"MRR R$r, R$value ; Assign.")
+        code.releaseRegister(value)
+        code.println("; END ASSIGNMENT")
+
+      case None if this.leftOperand.inRegisters =>
+        code.allocateRegister match {
+          case Some(address) =>
+            code.println("; ASSIGNMENT")
+            code.println("; Left operand.")
+            this.leftOperand.generateCode(code, address)
+            code.println("; Right operand.")
+            val value = this.rightOperand.generateValueCode(code, this.box)
+            code.println(s"MMR (R$address), R$value ; Assign.")
+            code.releaseRegister(value)
+            code.releaseRegister(address)
+            code.println("; END ASSIGNMENT")
+
+          case None =>
+            this.generateStackCode(code)
+        }
+
+      case None =>
+        this.generateStackCode(code)
+    }
+  }
+
+  private def generateStackCode(code: CodeStream) {
     code.println("; ASSIGNMENT")
     code.println("; Left operand.")
     this.leftOperand.generateCode(code)
     code.println("; Right operand.")
-    this.rightOperand.generateCode(code, true)
+    this.rightOperand.generateCode(code, this.box)
     code.println("MRM R5, (R2) ; Take right value from the stack.")
     code.println("SUB R2, R1")
     code.println("MRM R6, (R2) ; Take reference to the left value from the stack.")
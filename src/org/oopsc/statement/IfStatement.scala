@@ -101,11 +101,10 @@ class IfStatement(_condition: Expression, _thenStatements: ListBuffer[Statement]
       case BooleanLiteralExpression(true, _) =>
         /* Minor optimisation: No need to generate evaluation code for the true literal. */
       case _ =>
-        condition.generateCode(code, false)
-        code.println("MRM R5, (R2) ; Bedingung vom Stapel nehmen")
-        code.println("SUB R2, R1")
-        code.println("ISZ R5, R5 ; Wenn 0, dann")
-        code.println("JPC R5, " + nextLabel + " ; Sprung zu END IF bzw. nächstem ELSEIF/ELSE")
+        val r = condition.generateValueCode(code, false)
+        code.println(s"ISZ R$r, R$r ; Wenn 0, dann")
+        code.println(s"JPC R$r, " + nextLabel + " ; Sprung zu END IF bzw. nächstem ELSEIF/ELSE")
+        code.releaseRegister(r)
         code.println("; THEN")
     }
 
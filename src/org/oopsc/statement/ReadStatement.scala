@@ -36,6 +36,30 @@ class ReadStatement(var operand: Expression) extends Statement {
 
   override def generateCode(code: CodeStream, tryContexts: Int) {
     code.println("; READ")
+
+    val t = this.operand.resolvedType()
+    if ((t eq Types.intType) || (t eq Types.boolType)) {
+      this.generateUnboxedCode(code)
+      return
+    }
+
+    this.operand.register(code) match {
+      case Some(r) =>
+        /* The variable is kept in a register. */
+        code.println("; Allocate memory for the character.")
+        this.newInt.generateCode(code)
+        code.println("MRM R5, (R2)")
+        code.println(s"MRI R6, ${ClassSymbol.HEADERSIZE}")
+        code.println("ADD R5, R6")
+        code.println("SYS 0, 6 ; Store read value in R6.")
+        code.println("MMR (R5), R6 ; Set the value of the Integer object to the read character.")
+        code.println(s"MRM R$r, (R2) ; Assign.")
+        code.println("SUB R2, R1")
+        return
+
+      case None =>
+    }
+
     code.println("; Push operand (lvalue) on the stack.")
     this.operand.generateCode(code)
 
@@ -57,4 +81,23 @@ class ReadStatement(var operand: Expression) extends Statement {
     code.println("SUB R2, R1")
     code.println("MMR (R6), R5 ; Assign.")
   }
+
+  /**
+   * Reads the character into a variable that holds its value directly instead
+   * of a box, see `EscapeAnalysis`.
+   */
+  private def generateUnboxedCode(code: CodeStream) {
+    this.operand.register(code) match {
+      case Some(r) =>
+        code.println(s"SYS 0, $r ; Store read value in R$r.")
+
+      case None =>
+        code.println("; Push operand (lvalue) on the stack.")
+        this.operand.generateCode(code)
+        code.println("SYS 0, 6 ; Store read value in R6.")
+        code.println("MRM R5, (R2) ; Read destination from the stack.")
+        code.println("SUB R2, R1")
+        code.println("MMR (R5), R6 ; Assign.")
+    }
+  }
 }
\ No newline at end of file
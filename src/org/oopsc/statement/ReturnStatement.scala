@@ -48,12 +48,6 @@ class ReturnStatement(var position: Position, var value: Expression = null) exte
     code.println("; RETURN")
 
     if (this.value == null) {
-      /* For each RETURN statement within a TRY block, we need to unwind the stack
-       * accordingly. */
-      for (c <- 1 to tryContexts) {
-        TryStatement.popException(code, false)
-      }
-
       this.method.generateMethodEpilogue(code, "")
     } else {
       this.value.generateCode(code, true)
@@ -62,12 +56,6 @@ class ReturnStatement(var position: Position, var value: Expression = null) exte
        * to the result of this.value. */
       code.println("MRM R7, (R2)")
 
-      /* For each RETURN statement within a TRY block, we need to unwind the stack
-       * accordingly. */
-      for (c <- 1 to tryContexts) {
-        TryStatement.popException(code, false)
-      }
-
       /* The epilogue modifies R2 by making it point to its original value before
        * the method call. Inject the following instruction to restore our copy of
        * the return value in the register R7. */
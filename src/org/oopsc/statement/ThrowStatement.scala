@@ -4,16 +4,16 @@ import org.oopsc._
 import org.oopsc.expression.Expression
 
 object ThrowStatement {
+  /**
+   * Passes the exception in R7 to its handler. The VM looks up the address of
+   * the throwing instruction in the exception table, unwinding the stack frames
+   * of the methods without a matching TRY block, and sets R3 to the frame of the
+   * method containing the handler.
+   */
   def throwException(code: CodeStream) {
-    /* Load the pointer to the global variable _currentExceptionFrame into R5. */
-    code.println("MRI R5, _currentExceptionFrame")
-
-    /* Dereference the value, i.e., load the exception frame. */
-    code.println("MRM R5, (R5)")
-
-    /* Load the address of the exception handler from the current exception frame
-     * and jump to it. */
-    code.println("MRM R0, (R5)")
+    code.println("MRI R5, _exceptionTable")
+    code.println("SYS 4, 5")
+    code.println("MRR R0, R5 ; Jump to the exception handler.")
   }
 }
 
@@ -2,42 +2,9 @@ package org.oopsc.statement
 
 import org.oopsc._
 import org.oopsc.expression._
+import org.oopsc.symbol.MethodSymbol
 import scala.collection.mutable.ListBuffer
 
-object TryStatement {
-  /**
-   * After the exception, the frame allocated by a TRY block is not used anymore. This
-   * method must be called to unwind the stack to its previous state.
-   */
-  def popException(code: CodeStream, restoreStackFp: Boolean) {
-    /* Load current exception frame and dereference it. */
-    code.println("MRI R6, _currentExceptionFrame")
-    code.println("MRM R6, (R6)")
-
-    /* Fix up the stack by making it point to the position right before the
-     * exception frame. */
-    code.println("MRR R2, R6")
-    code.println("SUB R2, R1")
-
-    if (restoreStackFp) {
-      code.println("MRM R3, (R2)")
-    }
-
-    code.println("SUB R2, R1")
-
-    /* Load the previous exception frame pointer into R6. */
-    code.println("ADD R6, R1")
-    code.println("MRM R6, (R6)") /* Dereference value. */
-
-    /* Load the pointer to the global variable _currentExceptionFrame into R5. */
-    code.println("MRI R5, _currentExceptionFrame")
-
-    /* Make the global exception frame marker point to the previous exception
-     * frame pointer. */
-    code.println("MMR (R5), R6")
-  }
-}
-
 /**
  * Implements a TRY statement which is used for exception handling.
  */
@@ -48,7 +15,12 @@ class TryStatement(var tryStatements: ListBuffer[Statement], position: Position)
    */
   var catchStatements = new ListBuffer[(ListBuffer[LiteralExpression], ListBuffer[Statement])]
 
+  /** Method containing the statement. */
+  private var method: MethodSymbol = null
+
   override def refPass(sem: SemanticAnalysis) {
+    this.method = sem.currentMethod
+    sem.currentMethod.containsTry = true
     this.tryStatements.foreach(_.refPass(sem))
 
     val allExprs = this.catchStatements.flatMap(b => b._1.map(_.intValue))
@@ -95,75 +67,61 @@ class TryStatement(var tryStatements: ListBuffer[Statement], position: Position)
   }
 
   /**
-   * We create a new exception frame on the stack. An exception frame consists of
-   * two variables: the address of the last exception frame and the address where
-   * to continue the execution when an exception was thrown.
+   * Entering and leaving the block costs nothing. Its code range is registered
+   * with the handler in the exception table instead, which the VM searches when
+   * an exception is thrown (see `ThrowStatement.throwException`). The handler
+   * compares the exception code in R7 with the CATCH branches and throws it
+   * again if none matches. As the handler lies behind the block, the exception is
+   * then passed to an enclosing TRY block.
    */
   override def generateCode(code: CodeStream, tryContexts: Int) {
     code.println("; TRY")
 
-    /* Push the frame pointer on the stack as we will need to restore it later. */
-    code.println("ADD R2, R1")
-    code.println("MMR (R2), R3")
-
-    var catchLabel = code.nextLabel
-
-    /* Push address to the exception handler on the stack. Denotes at the same
-     * time the beginning of our new exception frame. */
-    code.println(s"MRI R5, $catchLabel")
-    code.println("ADD R2, R1")
-    code.println("MMR (R2), R5")
-
-    /* Push the address pointing to the current exception frame on the stack. */
-    code.println("MRI R5, _currentExceptionFrame")
-    code.println("MRM R5, (R5)") /* Dereference the value. */
-    code.println("ADD R2, R1")
-    code.println("MMR (R2), R5")
-
-    /* Overwrite the global exception frame pointer with the address of the catch label.
-     * R5 = address of the global variable _currentExceptionFrame
-     * R6 = address of our new current exception frame */
-    code.println("MRR R6, R2")
-    code.println("SUB R6, R1")
-    code.println("MRI R5, _currentExceptionFrame")
-    code.println("MMR (R5), R6")
-
+    val startLabel = code.nextLabel
+    val rangeEndLabel = code.nextLabel
+    val handlerLabel = code.nextLabel
     val endLabel = code.nextLabel
 
+    code.println(s"$startLabel:")
     this.tryStatements.foreach(_.generateCode(code, tryContexts + 1))
+    code.println(s"$rangeEndLabel:")
+
+    /* Inner TRY blocks have been registered by now and therefore take precedence. */
+    code.addHandler(startLabel, rangeEndLabel, handlerLabel)
 
     /* This instruction is only reached if no exception was thrown. */
     code.println(s"MRI R0, $endLabel")
 
-    for ((exprs, stmts) <- this.catchStatements) {
-      /* An exception was thrown. */
-      code.println("; CATCH [" + exprs.map(_.intValue).mkString(",") + "]")
-
-      val catchStatementLabel = code.nextLabel
-
-      for (expr <- exprs) {
-        code.println(catchLabel + ":")
-        catchLabel = code.nextLabel
+    /* An exception was thrown. The VM has restored R3, but the stack may still
+     * contain the frames of the methods that were left and the temporaries of an
+     * expression. Reset it to the level between two statements. */
+    code.println(s"$handlerLabel:")
+    code.println("MRR R2, R3")
 
-        /* When an exception is thrown, the associated error code is stored in R7. */
-        code.println(s"MRI R5, ${expr.intValue}")
-        code.println("SUB R5, R7")
+    if (this.method.frameSize(code) != 0) {
+      code.println(s"MRI R5, ${this.method.frameSize(code)}")
+      code.println("ADD R2, R5")
+    }
 
-        /* If error code matches... */
-        code.println("ISZ R5, R5")
+    val catchLabels = this.catchStatements.map(b => code.nextLabel)
 
-        /* ...then jump to the statement block of this catch branch. */
-        code.println(s"JPC R5, $catchStatementLabel")
+    for (((exprs, stmts), catchLabel) <- this.catchStatements.zip(catchLabels); expr <- exprs) {
+      /* When an exception is thrown, the associated error code is stored in R7. */
+      code.println(s"MRI R5, ${expr.intValue}")
+      code.println("SUB R5, R7")
 
-        /* Otherwise jump to next catch. */
-        code.println(s"MRI R0, $catchLabel")
-      }
+      /* If error code matches, jump to the statement block of this catch branch. */
+      code.println("ISZ R5, R5")
+      code.println(s"JPC R5, $catchLabel")
+    }
 
-      code.println(s"$catchStatementLabel:")
+    /* The exception could not be dealt with. Propagate it to the next exception
+     * handler. */
+    ThrowStatement.throwException(code)
 
-      /* The exception was caught. Therefore, pop the exception off the stack
-       * before executing the statements. */
-      TryStatement.popException(code, true)
+    for (((exprs, stmts), catchLabel) <- this.catchStatements.zip(catchLabels)) {
+      code.println("; CATCH [" + exprs.map(_.intValue).mkString(",") + "]")
+      code.println(s"$catchLabel:")
 
       stmts.foreach(_.generateCode(code, tryContexts))
 
@@ -172,16 +130,7 @@ class TryStatement(var tryStatements: ListBuffer[Statement], position: Position)
       code.println("; END CATCH")
     }
 
-    /* The exception could not be dealt with. */
-    code.println(s"$catchLabel:")
-
-    /* Pop the exception off the stack, restoring the stack frame pointer. */
-    TryStatement.popException(code, true)
-
-    /* Propagate the exception to the next exception handler. */
-    ThrowStatement.throwException(code)
-
     code.println("; END TRY")
     code.println(s"$endLabel:")
   }
-}
\ No newline at end of file
+}
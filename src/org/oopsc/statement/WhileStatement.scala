@@ -6,9 +6,11 @@ import scala.collection.mutable.ListBuffer
 
 class WhileStatement(var condition: Expression, var statements: ListBuffer[Statement]) extends Statement {
   override def refPass(sem: SemanticAnalysis) {
+    sem.loopDepth += 1
     this.condition.refPass(sem)
     this.condition.resolvedType.check(Types.boolType, this.condition.position)
     this.statements.foreach(_.refPass(sem))
+    sem.loopDepth -= 1
   }
 
   override def optimPass() : Statement = {
@@ -41,32 +43,64 @@ class WhileStatement(var condition: Expression, var statements: ListBuffer[State
     tree.unindent
   }
 
+  /**
+   * Variables whose NULL check was moved out of the loop, see `LoopOptimiser`.
+   * They are checked once before the condition is evaluated for the first time.
+   */
+  var checked = new ListBuffer[Expression]
+
+  /**
+   * Statements executed once when the loop is entered, i.e. after the condition
+   * held for the first time, see `LoopOptimiser`.
+   */
+  var entry = new ListBuffer[Statement]
+
+  /**
+   * The loop is inverted: the condition is tested once before the loop is
+   * entered and then at the end of each iteration, so that an iteration only
+   * requires one jump.
+   */
   override def generateCode(code: CodeStream, tryContexts: Int) {
-    val whileLabel = code.nextLabel
+    val bodyLabel = code.nextLabel
     val endLabel = code.nextLabel
 
     code.println("; WHILE")
-    code.println(s"$whileLabel:")
+
+    for (e <- this.checked) {
+      code.println("; NULL check moved out of the loop.")
+      code.releaseRegister(e.generateValueCode(code, true))
+    }
 
     this.condition match {
       case BooleanLiteralExpression(true, _) =>
         /* Minor optimisation: No need to generate evaluation code for the `true' literal. */
       case _ =>
-        this.condition.generateCode(code, false)
+        val r = this.condition.generateValueCode(code, false)
+        code.println(s"ISZ R$r, R$r ; If 0, then...")
+        code.println(s"JPC R$r, $endLabel ; ...skip the loop.")
+        code.releaseRegister(r)
+    }
 
-        code.println("MRM R5, (R2) ; Take condition from the stack.")
-        code.println("SUB R2, R1")
-        code.println("ISZ R5, R5 ; If 0, then...")
-        code.println(s"JPC R5, $endLabel ; ...leave the loop.")
+    for (s <- this.entry) {
+      s.generateCode(code, tryContexts)
     }
 
+    code.println(s"$bodyLabel:")
     code.println("; DO")
 
     for (s <- this.statements) {
       s.generateCode(code, tryContexts)
     }
 
-    code.println(s"MRI R0, $whileLabel ; Another iteration.")
+    this.condition match {
+      case BooleanLiteralExpression(true, _) =>
+        code.println(s"MRI R0, $bodyLabel ; Another iteration.")
+      case _ =>
+        val r = this.condition.generateValueCode(code, false)
+        code.println(s"JPC R$r, $bodyLabel ; If not 0, another iteration.")
+        code.releaseRegister(r)
+    }
+
     code.println("; END WHILE")
     code.println(endLabel + ":")
   }
@@ -43,6 +43,18 @@ class ClassSymbol(ident: Identifier) extends ScopedSymbol(ident) {
    */
   var objectSize = ClassSymbol.HEADERSIZE
 
+  /**
+   * Number of the class in a pre-order traversal of the class hierarchy, or -1
+   * for internal types. Set by `Program.numberClasses`.
+   */
+  var classId = -1
+
+  /**
+   * Highest number of a direct or indirect subclass. The subclasses of a class
+   * are numbered from `classId + 1` to `lastSubclassId`.
+   */
+  var lastSubclassId = -1
+
   def this(ident: Identifier, superClass: ClassSymbol) {
     this(ident)
     this.superClass = Some(new ResolvableClassSymbol(superClass.identifier))
@@ -71,6 +83,21 @@ class ClassSymbol(ident: Identifier) extends ScopedSymbol(ident) {
    */
   def generateVMT = this.collectMethods().sortBy(_.vmtIndex)
 
+  /**
+   * Offsets of all attributes holding object references, including inherited
+   * ones. Attributes of the internal types Integer and Boolean hold plain values.
+   * Requires prior completion of the contextual analysis.
+   */
+  def pointerOffsets: List[Int] = {
+    val inherited = this.getSuperClass() match {
+      case Some(c) => c.pointerOffsets
+      case None => Nil
+    }
+
+    inherited ++ this.attributes.filter(a =>
+      (a.getResolvedType ne Types.intType) && (a.getResolvedType ne Types.boolType)).map(_.offset)
+  }
+
   /* Needed so that the definition pass can be performed multiple times for built-in classes. */
   // TODO find a better solution
   var first = true
@@ -316,17 +343,10 @@ class ClassSymbol(ident: Identifier) extends ScopedSymbol(ident) {
       return true
     }
 
-    /* Compare wrt. base type. */
-    var cmp = this
-
-    while (cmp ne expected) {
-      cmp.getSuperClass() match {
-        case Some(c) => cmp = c
-        case None => return false
-      }
-    }
-
-    true
+    /* Compare wrt. base type: the numbers of its subclasses follow the number
+     * of a class. */
+    (this eq expected) ||
+      (this.classId >= 0 && expected.classId <= this.classId && this.classId <= expected.lastSubclassId)
   }
 
   override def getParentScope(): Option[Scope] =
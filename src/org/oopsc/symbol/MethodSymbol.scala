@@ -1,10 +1,16 @@
 package org.oopsc.symbol
 
 import org.oopsc._
+import org.oopsc.expression.EvaluateExpression
 import org.oopsc.statement._
 import scala.collection.mutable.ListBuffer
 import java.util
 
+object MethodSymbol {
+  /** Maximum number of statements of a method that is inlined. */
+  final val InlineStatements = 3
+}
+
 class MethodSymbol(ident: Identifier) extends ScopedSymbol(ident) {
   /** Local variable SELF. */
   var self: VariableSymbol = null
@@ -28,8 +34,27 @@ class MethodSymbol(ident: Identifier) extends ScopedSymbol(ident) {
   var vmtIndex = -1
   var overrides: Option[MethodSymbol] = None
 
+  /**
+   * True if no subclass overrides the method, so that calls may jump to it
+   * directly instead of looking up its address in the VMT. Set by the class
+   * hierarchy analysis in `Program.optimise`.
+   */
+  var isMonomorphic = false
+
   private var needsEpilogue = false
 
+  /** True if the method contains a TRY statement. */
+  var containsTry = false
+
+  /** Method calls in the method body. Collected during the referential pass. */
+  var calls = new ListBuffer[EvaluateExpression]
+
+  /**
+   * True if calls may be replaced by the statements of the method. Set in
+   * `Program.optimise`.
+   */
+  var isInlinable = false
+
   /**
    * Returns method name in an assembly string. By accessing the declaring class,
    * it takes into account if a method was inherited.
@@ -164,6 +189,53 @@ class MethodSymbol(ident: Identifier) extends ScopedSymbol(ident) {
     this.statements = this.statements.map(_.optimPass())
   }
 
+  /**
+   * Determines whether the method is small enough to be inlined. Only methods
+   * without calls, branches, loops and TRY statements qualify, with at most a
+   * RETURN as their last statement. Without calls, inlining cannot recurse.
+   * Without other RETURN statements, the statements can run in the frame of the
+   * caller as they never jump to an epilogue.
+   */
+  def canBeInlined =
+    !this.containsTry && this.calls.isEmpty && this.statements.size <= MethodSymbol.InlineStatements &&
+      this.statements.zipWithIndex.forall {
+        case (_: Assignment | _: WriteStatement | _: ReadStatement | _: ThrowStatement | _: NullStatement, _) => true
+        case (_: ReturnStatement, i) => i == this.statements.size - 1
+        case _ => false
+      }
+
+  /**
+   * Adds a local variable that takes the place of a variable of an inlined method.
+   *
+   * @param m Inlined method.
+   * @param v Variable of the inlined method, i.e. SELF, a parameter or a local variable.
+   * @param uses Estimated number of accesses, see `VariableSymbol.uses`.
+   */
+  def addInlinedVariable(m: MethodSymbol, v: VariableSymbol, uses: Int): VariableSymbol = {
+    val local = new VariableSymbol(new Identifier(s"${m.getAsmMethodName}_${v.identifier.name}"), v.getResolvedType)
+    local.declaringClass = this.declaringClass
+    local.offset = this.locals.size + 1
+    local.uses = uses
+    this.locals += local
+    local
+  }
+
+  /**
+   * Adds a local variable that holds an intermediate value, e.g. an expression
+   * moved out of a loop.
+   *
+   * @param t Type of the variable.
+   * @param uses Estimated number of accesses, see `VariableSymbol.uses`.
+   */
+  def addTemporary(t: ClassSymbol, uses: Int): VariableSymbol = {
+    val local = new VariableSymbol(new Identifier(s"_t${this.locals.size + 1}"), t)
+    local.declaringClass = this.declaringClass
+    local.offset = this.locals.size + 1
+    local.uses = uses
+    this.locals += local
+    local
+  }
+
   def print(tree: TreeStream) {
     tree.println(s"${this.accessLevel} METHOD ${this.identifier.name} (${this.vmtIndex}): " +
       this.resolvedRetType.map(_.name()).getOrElse("<unresolved>"))
@@ -202,20 +274,54 @@ class MethodSymbol(ident: Identifier) extends ScopedSymbol(ident) {
     code.println("MMR (R2), R3 ; Save current stack frame in R2.")
     code.println("MRR R3, R2 ; Save current stack position in the new stack frame.")
 
-    if (!this.locals.isEmpty) {
-      code.println("MRI R5, " + this.locals.size)
+    if (this.frameSize(code) != 0) {
+      code.println("MRI R5, " + this.frameSize(code))
       code.println("ADD R2, R5 ; Allocate space for local variables.")
     }
+
+    /* Save the registers of the caller's local variables behind our own local
+     * variables. */
+    for ((r, i) <- this.calleeSaved(code).zipWithIndex) {
+      code.println(s"MRI R5, ${this.locals.size + 1 + i}")
+      code.println("ADD R5, R3")
+      code.println(s"MMR (R5), R$r ; Save R$r.")
+    }
+
+    /* Load the variables that are kept in registers from their (uninitialised)
+     * stack slots. */
+    for ((v, r) <- code.registers.map(_.allLocals).getOrElse(Nil)) {
+      code.println(s"MRI R5, ${v.offset}")
+      code.println("ADD R5, R3")
+      code.println(s"MRM R$r, (R5) ; ${v.identifier.name} is kept in R$r.")
+    }
   }
 
+  /** Registers to be saved in the stack frame. */
+  private def calleeSaved(code: CodeStream) =
+    code.registers.map(_.calleeSaved).getOrElse(Nil)
+
+  /**
+   * Number of stack slots for local variables and saved registers. Between two
+   * statements, R2 points to the last of them.
+   */
+  def frameSize(code: CodeStream) =
+    this.locals.size + this.calleeSaved(code).size
+
   /**
    * @param customInstruction Will be inserted after fixing up the stack.
    */
   def generateMethodEpilogue(code: CodeStream, customInstruction: String) {
+    /* Restore the registers of the caller. */
+    for ((r, i) <- this.calleeSaved(code).zipWithIndex) {
+      code.println(s"MRI R5, ${this.locals.size + 1 + i}")
+      code.println("ADD R5, R3")
+      code.println(s"MRM R$r, (R5) ; Restore R$r.")
+    }
+
     /* Calculate size of stack space occupied by this method and its call, +2 for old stack frame and
      * return address.
      */
-    val size = this.locals.size + this.parameters.size + 2
+    val size = this.frameSize(code) + this.parameters.size + 2
 
     /* Make R2 point to the same address as before the method was called. */
     code.println(s"MRI R5, ${size + 1}")
@@ -240,6 +346,7 @@ class MethodSymbol(ident: Identifier) extends ScopedSymbol(ident) {
 
   def generateCode(code: CodeStream, tryContexts: Int) {
     code.println(s"; METHOD ${this.identifier.name}")
+    code.registers.foreach(_.enter(this))
     this.generateMethodPrologue(code)
 
     code.println("")
@@ -256,6 +363,8 @@ class MethodSymbol(ident: Identifier) extends ScopedSymbol(ident) {
       this.generateMethodEpilogue(code, "")
     }
 
+    code.registers.foreach(_.leave())
+
     code.println("; END METHOD")
   }
 
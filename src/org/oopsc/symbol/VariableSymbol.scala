@@ -25,6 +25,12 @@ class VariableSymbol(ident: Identifier) extends Symbol(ident) {
    */
   var offset = 0
 
+  /**
+   * Number of accesses, where an access within a loop counts ten times as much
+   * as one outside of it. Determines which variables are kept in registers.
+   */
+  var uses = 0
+
   var scope: Scope = null
 
   /**
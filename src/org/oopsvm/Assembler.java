@@ -3,7 +3,14 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.util.TreeMap;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Die Klasse implementiert einen einfachen Assembler, der einen Quelltext
@@ -30,6 +37,11 @@ import java.util.TreeMap;
  *          | 'ISN' reg ',' reg
  *          | 'JPC' reg ',' addr
  *          | 'SYS' addr ',' addr
+ *          | 'PSH' reg ',' reg
+ *          | 'POP' reg ',' reg
+ *          | 'ADI' reg ',' addr
+ *          | 'JPZ' reg ',' addr
+ *          | 'LDO' reg ',' addr
  *          | 'DAT' number, addr
  * label  ::= ident
  * reg    ::= 'R'number
@@ -40,19 +52,56 @@ import java.util.TreeMap;
  * letter ::= 'A' .. 'Z' | 'a' .. 'z' | '_'
  * digit  :: = '0' .. '9'
  * </pre>
+ *
+ * Der Quelltext wird nur einmal gelesen. Verweise auf Marken, die erst später
+ * definiert werden, werden zunächst mit 0 belegt und am Ende nachgetragen.
  */
 public class Assembler {
 	/** Alle gültigen Instruktionen. Die Position im Feld entspricht ihrer Kodierung. */
-	private static final String[] instructions = {
+	static final String[] instructions = {
 		"MRI", "MRR", "MRM", "MMR", "ADD", "SUB", "MUL", "DIV", "MOD", "AND",
-		"OR", "XOR", "ISZ", "ISP", "ISN", "JPC", "SYS"
+		"OR", "XOR", "ISZ", "ISP", "ISN", "JPC", "SYS", "PSH", "POP", "ADI",
+		"JPZ", "LDO"
 	};
 
+	/** Die Größe des Lesepuffers. */
+	private static final int BUFFER_SIZE = 8192;
+
+	/** Ein Verweis auf eine Marke, der am Ende nachgetragen werden muss. */
+	private static final class Fixup {
+		/** Die erste Speicherstelle, die die Adresse der Marke erhält. */
+		final int position;
+
+		/** Die Anzahl der Speicherstellen, die die Adresse der Marke erhalten. */
+		final int count;
+
+		/** Die Marke. */
+		final String label;
+
+		Fixup(int position, int count, String label) {
+			this.position = position;
+			this.count = count;
+			this.label = label;
+		}
+	}
+
 	/** Die Zuordnung von textuellen Marken zu Speicheradressen. */
-	private TreeMap<String, Integer> labels;
+	private HashMap<String, Integer> labels;
+
+	/** Die Verweise auf Marken, die bei ihrer Verwendung noch nicht definiert waren. */
+	private List<Fixup> fixups;
 
 	/** Der Datenstrom, aus dem der Quelltext gelesen wird. */
-	private InputStreamReader reader;
+	private Reader reader;
+
+	/** Der Lesepuffer. */
+	private final char[] buffer = new char[BUFFER_SIZE];
+
+	/** Die Position des nächsten Zeichens im Lesepuffer. */
+	private int bufferPos;
+
+	/** Die Anzahl der Zeichen im Lesepuffer. */
+	private int bufferLength;
 
 	/**
 	 * Das zuletzt gelesenen Zeichen. Wird durch Aufruf von {@link #nextChar() nextChar}
@@ -60,65 +109,106 @@ public class Assembler {
 	 */
 	private int c;
 
+	/** Der Puffer für das aktuell gelesene Token. */
+	private final StringBuilder token = new StringBuilder();
+
 	/**
 	 * Die aktuell gelesene Zeile wird in diesem Puffer für eine mögliche Ausgabe
 	 * zwischengespeichert.
 	 */
-	private String line;
+	private final StringBuilder line = new StringBuilder();
+
+	/** Alle gelesenen Zeilen, falls eine Ausgabe erfolgen soll. */
+	private List<String> lines;
 
 	/**
-	 * In dieses Feld wird im zweiten Durchgang das Programm generiert. Im ersten Durchgang ist es
-	 * null.
+	 * Der für die Ausgabe erzeugte Code je Zeile: Zeilennummer, Adresse und Anzahl
+	 * der Speicherstellen bei DAT bzw. -1 bei Instruktionen.
 	 */
+	private List<int[]> listing;
+
+	/** Die Anzahl der bereits ausgegebenen Zeilen. */
+	private int printed;
+
+	/** Die Anzahl der bereits ausgegebenen Einträge aus {@link #listing listing}. */
+	private int listed;
+
+	/** Die Nummer der Zeile, in der das aktuelle Token beginnt. */
+	private int tokenLine;
+
+	/** In dieses Feld wird das Programm generiert. Es wird bei Bedarf vergrößert. */
 	private int[] output;
 
 	/** Die Adresse der nächsten zu beschreibenden Speicherzelle. */
 	private int writePos;
 
-	/** Soll eine Bildschirmausgabe während des ersten Durchgangs erfolgen? */
+	/** Die Adressen, an denen eine Instruktion beginnt. */
+	private BitSet instructionAddresses;
+
+	/** Soll eine Bildschirmausgabe während des Einlesens erfolgen? */
 	private final boolean showFirst;
 
-	/** Soll eine Bildschirmausgabe während des zweiten Durchgangs erfolgen? */
+	/** Soll eine Bildschirmausgabe nach dem Eintragen aller Marken erfolgen? */
 	private final boolean showSecond;
 
-	/** Soll eine Bildschirmausgabe während des aktuellen Durchgangs erfolgen? */
-	private boolean showCode;
-
-	/**
-	 * Die Methode erlaubt, zwischen dem ersten und dem zweiten Assemblierungslauf
-	 * zu unterscheiden.
-	 *
-	 * @return Ist der aktuelle Assemblierungsdurchgang der erste?
-	 */
-	private boolean isFirstPass() {
-		return this.output == null;
-	}
-
 	/**
 	 * Die Methode liest das nächste Zeichen aus der Eingabedatei.
 	 * Es wird im Attribut {@link #c c} bereitgestellt.
-	 * Wenn während der Assemblierung eine Ausgabe erfolgen soll, werden
-	 * zusätzlich die eingelesenen Zeichen im Attribut {@link #line line} gesammelt und jeweils beim
-	 * Lesen eines Zeilenendes ausgegeben.
-	 * Das ermöglicht es, an anderer Stelle der Ausgabe noch den erzeugten
-	 * Code voranzustellen.
+	 * Wenn eine Ausgabe erfolgen soll, werden zusätzlich die eingelesenen Zeichen
+	 * im Attribut {@link #line line} gesammelt und jeweils beim Lesen eines
+	 * Zeilenendes in {@link #lines lines} abgelegt.
 	 *
 	 * @throws IOException
 	 *         Die Ausnahme wird bei Leseproblemen der Datei erzeugt.
 	 */
 	private void nextChar() throws IOException {
-		this.c = this.reader.read();
-		if (this.showCode) {
-			if (this.c != -1) {
-				this.line += (char) this.c;
+		if (this.bufferPos == this.bufferLength) {
+			int length = this.reader.read(this.buffer);
+			if (length <= 0) {
+				this.c = -1;
+				return;
 			}
+			this.bufferPos = 0;
+			this.bufferLength = length;
+		}
+
+		this.c = this.buffer[this.bufferPos++];
+		if (this.lines != null) {
+			this.line.append((char) this.c);
 			if (this.c == '\n') {
-				System.out.print(this.line);
-				this.line = "";
+				this.lines.add(this.line.toString());
+				this.line.setLength(0);
 			}
 		}
 	}
 
+	/**
+	 * Die Methode gibt die noch nicht ausgegebenen Zeilen des Quelltexts zusammen
+	 * mit dem für sie erzeugten Code aus.
+	 *
+	 * @param upTo
+	 *        Die Nummer der ersten Zeile, die nicht mehr ausgegeben wird.
+	 */
+	private void printLines(int upTo) {
+		for (; this.printed < upTo; ++this.printed) {
+			if (this.listed < this.listing.size()
+					&& this.listing.get(this.listed)[0] == this.printed) {
+				int[] entry = this.listing.get(this.listed++);
+				int address = entry[1];
+				if (entry[2] < 0) {
+					System.out.format("%08x  %08x %08x %08x  ", address,
+							this.output[address], this.output[address + 1],
+							this.output[address + 2]);
+				} else {
+					System.out.format("%08x  %08x %3s                ",
+							address, this.output[address],
+							entry[2] == 1 ? "" : "...");
+				}
+			}
+			System.out.print(this.lines.get(this.printed));
+		}
+	}
+
 	/**
 	 * Die Methode liest ein Token ein. Dies sind ",", ":", "(", ")"
 	 * sowie Zeichenketten, die den nicht-Terminalen <i>ident</i> und <i>number</i>
@@ -137,16 +227,25 @@ public class Assembler {
 				this.nextChar();
 			}
 
+			if (this.lines != null) {
+				this.tokenLine = this.lines.size();
+			}
+
 			switch (this.c) {
 				case -1: // Dateiende
 					break;
 				case ',':
+					this.nextChar();
+					return ",";
 				case ':':
+					this.nextChar();
+					return ":";
 				case '(':
+					this.nextChar();
+					return "(";
 				case ')':
-					String token = "" + (char) this.c;
 					this.nextChar();
-					return token;
+					return ")";
 
 				case ';': // Kommentar: ignorieren bis Zeilenende
 					while (this.c != -1 && this.c != '\n') {
@@ -154,29 +253,30 @@ public class Assembler {
 					}
 					break;
 				default: // number oder ident
+					this.token.setLength(0);
 					if (this.c == '-' || Character.isDigit((char) this.c)) {
-						String number = "" + (char) this.c;
+						this.token.append((char) this.c);
 						this.nextChar();
 						while (this.c != -1 && Character.isDigit((char) this.c)) {
-							number += (char) this.c;
+							this.token.append((char) this.c);
 							this.nextChar();
 						}
-						if (number.equals("-")) {
+						if (this.token.length() == 1 && this.token.charAt(0) == '-') {
 							throw new AsmException(
 									"Zahl muss mindestens eine Ziffer haben: -");
 						}
-						return number;
+						return this.token.toString();
 					} else if (this.c == '_'
 							|| Character.isLetter((char) this.c)) {
-						String identifier = "" + (char) this.c;
+						this.token.append((char) this.c);
 						this.nextChar();
 						while (this.c != -1
 								&& (this.c == '_' || Character
 										.isLetterOrDigit((char) this.c))) {
-							identifier = identifier + (char) this.c;
+							this.token.append((char) this.c);
 							this.nextChar();
 						}
-						return identifier;
+						return this.token.toString();
 					} else {
 						throw new AsmException("Unerwartetes Zeichen: "
 								+ (char) this.c + " (" + this.c + ")");
@@ -193,18 +293,24 @@ public class Assembler {
 	 * der Parameter kein Register sein und die Zeichenkette enthält eine
 	 * Zahl, so wird diese direkt zurückgegeben. Enthält die Zeichenkette
 	 * hingegen einen Bezeichner, so wird die zugeordnete Adresse aus der
-	 * Tabelle der definierten Marken entnommen. Das passiert nur im 2.
-	 * Assemblierungslauf, im ersten wird stattdessen 0 zurückgeliefert.
+	 * Tabelle der definierten Marken entnommen. Ist die Marke noch nicht
+	 * definiert, wird 0 zurückgeliefert und die Adresse später an den angegebenen
+	 * Speicherstellen nachgetragen.
 	 *
 	 * @param word
 	 *        Der Parameter als Zeichenkette.
 	 * @param register
 	 *        Soll der Parameter ein Register sein?
+	 * @param position
+	 *        Die Speicherstelle, an die der Parameter geschrieben wird.
+	 * @param count
+	 *        Die Anzahl der Speicherstellen, an die der Parameter geschrieben wird.
 	 * @return Die dem Parameter entsprechende Zahl.
 	 * @throws AsmException
 	 *         Die Zeichenkette ist ungültig.
 	 */
-	private int parseParam(String word, boolean register) throws AsmException {
+	private int parseParam(String word, boolean register, int position,
+			int count) throws AsmException {
 		if (word.equals("")) {
 			throw new AsmException("Parameter fehlt");
 		} else if (register) {
@@ -218,36 +324,41 @@ public class Assembler {
 				throw new AsmException("Register erwartet: " + word);
 			}
 		} else if (Character.isLetter(word.charAt(0)) || word.charAt(0) == '_') {
-			if (this.isFirstPass()) {
+			Integer address = this.labels.get(word);
+			if (address == null) {
+				this.fixups.add(new Fixup(position, count, word));
 				return 0;
 			} else {
-				Integer address = this.labels.get(word);
-				if (address == null) {
-					throw new AsmException("Marke " + word + " nicht gefunden");
-				} else {
-					return address;
-				}
+				return address;
 			}
 		} else {
 			return Integer.parseInt(word);
 		}
 	}
 
+	/**
+	 * Die Methode stellt sicher, dass das erzeugte Programm die angegebene Größe
+	 * aufnehmen kann.
+	 *
+	 * @param size
+	 *        Die benötigte Anzahl von Speicherstellen.
+	 */
+	private void ensureCapacity(int size) {
+		if (size > this.output.length) {
+			this.output = Arrays.copyOf(this.output,
+					Math.max(size, this.output.length * 2));
+		}
+	}
+
 	/**
 	 * Die Methode schreibt den generierten Code in den Speicher.
-	 * Im ersten Assemblierungslauf wird kein Code geschrieben,
-	 * sondern nur mitgezählt, wie viel Platz verbraucht würde.
-	 * Dadurch lassen sich die Adressen der verwendeten Marken
-	 * bestimmen.
 	 *
 	 * @param code
 	 *        Der Code, der in den Speicher geschrieben wird.
 	 */
 	private void writeCode(int code) {
-		if (!this.isFirstPass()) {
-			this.output[this.writePos] = code;
-		}
-		++this.writePos;
+		this.ensureCapacity(this.writePos + 1);
+		this.output[this.writePos++] = code;
 	}
 
 	/**
@@ -261,25 +372,23 @@ public class Assembler {
 	 */
 	private void parseLine() throws IOException, AsmException {
 		String instruction = this.readToken();
+		int line = this.tokenLine;
 		String word1 = this.readToken();
 		String word2;
 
 		if (instruction.equals("")) { // Dateiende
 			return;
 		} else if (word1.equals(":")) { // Marke
-			if (this.isFirstPass()) {
-				String label = instruction;
-				if (label.charAt(0) != '_'
-						&& !Character.isLetter(label.charAt(0))) {
-					throw new AsmException(
-							"Marke beginnt nicht mit einem Buchstaben: "
-									+ label + ":");
-				} else if (this.labels.get(label) == null) {
-					this.labels.put(label, this.writePos);
-				} else {
-					throw new AsmException("Marke " + label
-							+ " wurde mehrfach definiert");
-				}
+			String label = instruction;
+			if (label.charAt(0) != '_' && !Character.isLetter(label.charAt(0))) {
+				throw new AsmException(
+						"Marke beginnt nicht mit einem Buchstaben: " + label
+								+ ":");
+			} else if (this.labels.get(label) == null) {
+				this.labels.put(label, this.writePos);
+			} else {
+				throw new AsmException("Marke " + label
+						+ " wurde mehrfach definiert");
 			}
 		} else { // Instruktion oder DAT
 			int i;
@@ -314,12 +423,17 @@ public class Assembler {
 									"Zweiter Parameter von MRM muss geklammert werden");
 						}
 					}
-					int param1 = this.parseParam(word1, i != 16);
-					int param2 = this.parseParam(word2, i != 0 && i < 15);
-					if (this.showCode) {
-						System.out.format("%08x  %08x %08x %08x  ",
-								this.writePos, i, param1, param2);
+					int param1 = this.parseParam(word1, i != 16,
+							this.writePos + 1, 1);
+					int param2 = this.parseParam(word2, (i != 0 && i < 15)
+							|| i == VirtualMachine.PSH || i == VirtualMachine.POP,
+							this.writePos + 2, 1);
+					if (this.listing != null) {
+						this.listing.add(new int[] {
+							line, this.writePos, -1
+						});
 					}
+					this.instructionAddresses.set(this.writePos);
 					this.writeCode(i);
 					this.writeCode(param1);
 					this.writeCode(param2);
@@ -333,27 +447,28 @@ public class Assembler {
 						throw new AsmException("Komma erwartet");
 					}
 					word2 = this.readToken();
-					int param1 = this.parseParam(word1, false);
-					int param2 = this.parseParam(word2, false);
-					if (this.showCode) {
-						System.out
-								.format("%08x  %08x %3s                ",
-										this.writePos, param2,
-										param1 == 1 ? "" : "...");
-					}
 					if (Character.isLetter(word1.charAt(0))) {
 						throw new AsmException(
 								"Erster Parameter von DAT kann keine Marke sein");
-					} else if (param1 <= 0) {
+					}
+					int param1 = this.parseParam(word1, false, this.writePos, 0);
+					if (param1 <= 0) {
 						throw new AsmException(
 								"Erster Parameter von DAT muss groesser als 0 sein");
-					} else if (param2 == 0) {
-						this.writePos += param1;
-					} else {
-						for (int j = 0; j < param1; ++j) {
-							this.writeCode(param2);
-						}
 					}
+					int param2 = this.parseParam(word2, false, this.writePos,
+							param1);
+					if (this.listing != null) {
+						this.listing.add(new int[] {
+							line, this.writePos, param1
+						});
+					}
+					this.ensureCapacity(this.writePos + param1);
+					if (param2 != 0) {
+						Arrays.fill(this.output, this.writePos, this.writePos
+								+ param1, param2);
+					}
+					this.writePos += param1;
 				} else { // ansonsten Fehler
 					throw new AsmException("Unbekannte Anweisung " + instruction);
 				}
@@ -362,30 +477,20 @@ public class Assembler {
 	}
 
 	/**
-	 * Die Methode führt einen Assemblierungsdurchgang aus.
-	 * Im ersten Durchgang wird dabei im Attribut {@link #writePos writePos} lediglich die Größe des
-	 * benötigten Speichers ermittelt. Im zweiten
-	 * Durchgang wird der Speicher im Attribut {@link #output output} tatsächlich gefüllt.
+	 * Die Methode trägt die Adressen aller Marken nach, die bei ihrer Verwendung noch
+	 * nicht definiert waren.
 	 *
-	 * @param fileName
-	 *        Der Name des Quelltexts.
-	 * @throws FileNotFoundException
-	 *         Der Quelltext existiert nicht.
-	 * @throws IOException
-	 *         Die Ausnahme wird bei Leseproblemen der Datei erzeugt.
 	 * @throws AsmException
-	 *         Beim Assemblieren ist ein Fehler aufgetreten.
+	 *         Eine Marke wurde nicht definiert.
 	 */
-	private void pass(InputStream stream) throws IOException, AsmException {
-		this.reader = new InputStreamReader(stream);
-		this.line = "";
-		this.nextChar();
-		this.writePos = 0;
-		while (this.c != -1) {
-			this.parseLine();
-		}
-		if (this.showCode && !this.line.equals("")) {
-			System.out.println(this.line);
+	private void resolveFixups() throws AsmException {
+		for (Fixup fixup : this.fixups) {
+			Integer address = this.labels.get(fixup.label);
+			if (address == null) {
+				throw new AsmException("Marke " + fixup.label + " nicht gefunden");
+			}
+			Arrays.fill(this.output, fixup.position, fixup.position
+					+ fixup.count, address);
 		}
 	}
 
@@ -393,20 +498,37 @@ public class Assembler {
 	 * Konstruktor.
 	 *
 	 * @param showFirst
-	 *        Soll eine Bildschirmausgabe während des ersten Durchgangs erfolgen?
+	 *        Soll eine Bildschirmausgabe während des Einlesens erfolgen? Verweise auf
+	 *        später definierte Marken sind dabei noch 0.
 	 * @param showSecond
-	 *        Soll eine Bildschirmausgabe während des zweiten Durchgangs erfolgen?
+	 *        Soll eine Bildschirmausgabe nach dem Eintragen aller Marken erfolgen?
 	 */
 	public Assembler(boolean showFirst, boolean showSecond) {
 		this.showFirst = showFirst;
 		this.showSecond = showSecond;
 	}
 
+	/**
+	 * @return Die Zuordnung von Marken zu Speicheradressen des zuletzt
+	 *         assemblierten Quelltexts.
+	 */
+	public Map<String, Integer> getLabels() {
+		return Collections.unmodifiableMap(this.labels);
+	}
+
+	/**
+	 * @return Die Adressen aller Instruktionen des zuletzt assemblierten Quelltexts.
+	 *         Alle übrigen Speicherstellen wurden mit DAT belegt.
+	 */
+	public BitSet getInstructions() {
+		return (BitSet) this.instructionAddresses.clone();
+	}
+
 	/**
 	 * Die Methode wandelt einen Quelltext in Code um aus.
 	 *
-	 * @param fileName
-	 *        Der Name des Quelltexts.
+	 * @param stream
+	 *        Der Quelltext.
 	 * @return Der Speicher, der das übersetze Programm enthält.
 	 * @throws FileNotFoundException
 	 *         Der Quelltext existiert nicht.
@@ -417,15 +539,56 @@ public class Assembler {
 	 */
 	public int[] assemble(InputStream stream) throws FileNotFoundException,
 			IOException, AsmException {
-		this.labels = new TreeMap<String, Integer>();
-		this.output = null;
-		this.showCode = this.showFirst;
-		stream.mark(1024 * 1024);
-		this.pass(stream);
-		this.output = new int[this.writePos];
-		this.showCode = this.showSecond;
-		stream.reset();
-		this.pass(stream);
-		return this.output;
+		this.labels = new HashMap<String, Integer>();
+		this.fixups = new ArrayList<Fixup>();
+		this.output = new int[1024];
+		this.writePos = 0;
+		this.instructionAddresses = new BitSet();
+		this.reader = new InputStreamReader(stream);
+		this.bufferPos = 0;
+		this.bufferLength = 0;
+		this.line.setLength(0);
+
+		if (this.showFirst || this.showSecond) {
+			this.lines = new ArrayList<String>();
+			this.listing = new ArrayList<int[]>();
+		} else {
+			this.lines = null;
+			this.listing = null;
+		}
+
+		this.printed = 0;
+		this.listed = 0;
+		this.nextChar();
+		while (this.c != -1) {
+			this.parseLine();
+			if (this.showFirst) {
+				this.printLines(this.lines.size());
+			}
+		}
+
+		boolean unterminated = this.lines != null && this.line.length() > 0;
+		if (unterminated) {
+			this.lines.add(this.line.toString());
+		}
+		if (this.showFirst) {
+			this.printLines(this.lines.size());
+			if (unterminated) {
+				System.out.println();
+			}
+		}
+
+		this.resolveFixups();
+
+		if (this.showSecond) {
+			this.printed = 0;
+			this.listed = 0;
+			this.printLines(this.lines.size());
+			if (unterminated) {
+				System.out.println();
+			}
+		}
+
+		return Arrays.copyOf(this.output, this.writePos);
 	}
-}
\ No newline at end of file
+}
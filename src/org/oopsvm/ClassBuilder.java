@@ -0,0 +1,384 @@
+package org.oopsvm;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Die Klasse erzeugt eine Klassendatei, die die Schnittstelle {@link CompiledCode}
+ * implementiert. Der Bytecode der Methode run wird über die Methoden dieser
+ * Klasse erzeugt. Die Klassendatei hat das Format der Version 49 (Java 5), damit
+ * keine StackMapTable berechnet werden muss; solche Klassen werden von der JVM
+ * noch mit der Typinferenz geprüft.
+ */
+class ClassBuilder {
+	static final int ICONST_0 = 0x03;
+	static final int ICONST_1 = 0x04;
+	static final int BIPUSH = 0x10;
+	static final int SIPUSH = 0x11;
+	static final int LDC = 0x12;
+	static final int LDC_W = 0x13;
+	static final int ILOAD = 0x15;
+	static final int ALOAD = 0x19;
+	static final int IALOAD = 0x2e;
+	static final int BALOAD = 0x33;
+	static final int ISTORE = 0x36;
+	static final int IASTORE = 0x4f;
+	static final int IADD = 0x60;
+	static final int ISUB = 0x64;
+	static final int IMUL = 0x68;
+	static final int IDIV = 0x6c;
+	static final int IREM = 0x70;
+	static final int IAND = 0x7e;
+	static final int IOR = 0x80;
+	static final int IXOR = 0x82;
+	static final int IFEQ = 0x99;
+	static final int IFNE = 0x9a;
+	static final int IFLT = 0x9b;
+	static final int IFGE = 0x9c;
+	static final int IFGT = 0x9d;
+	static final int IFLE = 0x9e;
+	static final int IF_ICMPGE = 0xa2;
+	static final int GOTO = 0xa7;
+	static final int LOOKUPSWITCH = 0xab;
+	static final int IRETURN = 0xac;
+	static final int ARRAYLENGTH = 0xbe;
+
+	/** Eine Sprungmarke im Bytecode. */
+	static final class Label {
+		/** Die Position im Bytecode oder -1, solange die Marke nicht gesetzt ist. */
+		private int position = -1;
+	}
+
+	/** Ein noch aufzulösender Verweis auf eine Sprungmarke. */
+	private static final class Fixup {
+		final Label label;
+
+		/** Die Position der Instruktion, auf die sich der Sprungabstand bezieht. */
+		final int base;
+
+		/** Die Position, an die der Sprungabstand geschrieben wird. */
+		final int at;
+
+		/** Ist der Sprungabstand vier statt zwei Bytes lang? */
+		final boolean wide;
+
+		Fixup(Label label, int base, int at, boolean wide) {
+			this.label = label;
+			this.base = base;
+			this.at = at;
+			this.wide = wide;
+		}
+	}
+
+	/** Die Einträge des Konstantenpools. */
+	private final ByteArrayOutputStream constants = new ByteArrayOutputStream();
+
+	/** Die Indizes der bereits angelegten Einträge des Konstantenpools. */
+	private final Map<String, Integer> constantIndices = new HashMap<String, Integer>();
+
+	/** Der nächste freie Index im Konstantenpool. */
+	private int nextConstant = 1;
+
+	/** Der Bytecode der Methode run. */
+	private byte[] code = new byte[4096];
+
+	/** Die Länge des Bytecodes. */
+	private int length;
+
+	/** Die noch aufzulösenden Sprünge. */
+	private final List<Fixup> fixups = new ArrayList<Fixup>();
+
+	/**
+	 * Die Methode legt einen Eintrag im Konstantenpool an, falls er noch nicht
+	 * existiert.
+	 *
+	 * @param key
+	 *        Ein eindeutiger Schlüssel für den Eintrag.
+	 * @param entry
+	 *        Der Eintrag in seiner binären Form.
+	 * @return Der Index des Eintrags.
+	 */
+	private int constant(String key, byte[] entry) {
+		Integer index = this.constantIndices.get(key);
+		if (index == null) {
+			index = this.nextConstant++;
+			this.constantIndices.put(key, index);
+			this.constants.write(entry, 0, entry.length);
+		}
+		return index;
+	}
+
+	private int utf8(String value) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(1);
+			out.writeUTF(value);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return this.constant("U" + value, bytes.toByteArray());
+	}
+
+	private int classRef(String name) {
+		int index = this.utf8(name);
+		return this.constant("C" + name, new byte[] {
+			7, (byte) (index >> 8), (byte) index
+		});
+	}
+
+	private int integer(int value) {
+		return this.constant("I" + value, new byte[] {
+			3, (byte) (value >> 24), (byte) (value >> 16), (byte) (value >> 8),
+			(byte) value
+		});
+	}
+
+	private int methodRef(String owner, String name, String descriptor) {
+		int ownerIndex = this.classRef(owner);
+		int nameIndex = this.utf8(name);
+		int descriptorIndex = this.utf8(descriptor);
+		int nameAndType = this.constant("N" + name + descriptor, new byte[] {
+			12, (byte) (nameIndex >> 8), (byte) nameIndex,
+			(byte) (descriptorIndex >> 8), (byte) descriptorIndex
+		});
+		return this.constant("M" + owner + "." + name + descriptor, new byte[] {
+			10, (byte) (ownerIndex >> 8), (byte) ownerIndex,
+			(byte) (nameAndType >> 8), (byte) nameAndType
+		});
+	}
+
+	private void put1(int value) {
+		if (this.length == this.code.length) {
+			byte[] code = new byte[this.code.length * 2];
+			System.arraycopy(this.code, 0, code, 0, this.length);
+			this.code = code;
+		}
+		this.code[this.length++] = (byte) value;
+	}
+
+	private void put2(int value) {
+		this.put1(value >> 8);
+		this.put1(value);
+	}
+
+	private void put4(int value) {
+		this.put2(value >> 16);
+		this.put2(value);
+	}
+
+	/**
+	 * @return Die aktuelle Länge des Bytecodes.
+	 */
+	int length() {
+		return this.length;
+	}
+
+	/**
+	 * Die Methode erzeugt eine Instruktion ohne Parameter.
+	 *
+	 * @param opcode
+	 *        Die Instruktion.
+	 */
+	void op(int opcode) {
+		this.put1(opcode);
+	}
+
+	/**
+	 * Die Methode legt eine Zahl auf den Operandenstapel.
+	 *
+	 * @param value
+	 *        Die Zahl.
+	 */
+	void pushInt(int value) {
+		if (value >= -1 && value <= 5) {
+			this.put1(ICONST_0 + value);
+		} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+			this.put1(BIPUSH);
+			this.put1(value);
+		} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+			this.put1(SIPUSH);
+			this.put2(value);
+		} else {
+			int index = this.integer(value);
+			if (index <= 0xff) {
+				this.put1(LDC);
+				this.put1(index);
+			} else {
+				this.put1(LDC_W);
+				this.put2(index);
+			}
+		}
+	}
+
+	/**
+	 * Die Methode erzeugt einen Zugriff auf eine lokale Variable. Es werden nur die
+	 * Indizes 0 bis 255 unterstützt.
+	 *
+	 * @param opcode
+	 *        {@link #ILOAD}, {@link #ISTORE} oder {@link #ALOAD}.
+	 * @param slot
+	 *        Der Index der lokalen Variable.
+	 */
+	void local(int opcode, int slot) {
+		if (slot <= 3) {
+			/* iload_0, istore_0 und aload_0 sowie die folgenden Kurzformen. */
+			int base = opcode == ILOAD ? 0x1a : opcode == ISTORE ? 0x3b : 0x2a;
+			this.put1(base + slot);
+		} else {
+			this.put1(opcode);
+			this.put1(slot);
+		}
+	}
+
+	/**
+	 * Die Methode erzeugt einen bedingten oder unbedingten Sprung.
+	 *
+	 * @param opcode
+	 *        Die Sprunginstruktion.
+	 * @param target
+	 *        Das Sprungziel.
+	 */
+	void jump(int opcode, Label target) {
+		int base = this.length;
+		this.put1(opcode);
+		this.fixups.add(new Fixup(target, base, this.length, false));
+		this.put2(0);
+	}
+
+	/**
+	 * Die Methode setzt eine Sprungmarke an die aktuelle Position.
+	 *
+	 * @param label
+	 *        Die Sprungmarke.
+	 */
+	void mark(Label label) {
+		label.position = this.length;
+	}
+
+	/**
+	 * Die Methode erzeugt eine Fallunterscheidung über den obersten Wert des
+	 * Operandenstapels.
+	 *
+	 * @param keys
+	 *        Die aufsteigend sortierten Werte.
+	 * @param targets
+	 *        Die Sprungziele der Werte.
+	 * @param otherwise
+	 *        Das Sprungziel für alle anderen Werte.
+	 */
+	void lookupSwitch(int[] keys, Label[] targets, Label otherwise) {
+		int base = this.length;
+		this.put1(LOOKUPSWITCH);
+		while (this.length % 4 != 0) {
+			this.put1(0);
+		}
+		this.fixups.add(new Fixup(otherwise, base, this.length, true));
+		this.put4(0);
+		this.put4(keys.length);
+		for (int i = 0; i < keys.length; ++i) {
+			this.put4(keys[i]);
+			this.fixups.add(new Fixup(targets[i], base, this.length, true));
+			this.put4(0);
+		}
+	}
+
+	/**
+	 * Die Methode löst alle Sprünge auf und erzeugt die Klassendatei.
+	 *
+	 * @param name
+	 *        Der interne Name der Klasse, z.B. org/oopsvm/Compiled1.
+	 * @param maxStack
+	 *        Die maximale Höhe des Operandenstapels in der Methode run.
+	 * @param maxLocals
+	 *        Die Anzahl der lokalen Variablen der Methode run.
+	 * @return Die Klassendatei.
+	 */
+	byte[] toClassFile(String name, int maxStack, int maxLocals) {
+		for (Fixup fixup : this.fixups) {
+			if (fixup.label.position < 0) {
+				throw new IllegalStateException("Sprungmarke nicht gesetzt");
+			}
+			int offset = fixup.label.position - fixup.base;
+			if (fixup.wide) {
+				this.code[fixup.at] = (byte) (offset >> 24);
+				this.code[fixup.at + 1] = (byte) (offset >> 16);
+				this.code[fixup.at + 2] = (byte) (offset >> 8);
+				this.code[fixup.at + 3] = (byte) offset;
+			} else {
+				if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+					throw new IllegalStateException("Sprungabstand zu groß");
+				}
+				this.code[fixup.at] = (byte) (offset >> 8);
+				this.code[fixup.at + 1] = (byte) offset;
+			}
+		}
+
+		int thisClass = this.classRef(name);
+		int superClass = this.classRef("java/lang/Object");
+		int iface = this.classRef("org/oopsvm/CompiledCode");
+		int objectInit = this.methodRef("java/lang/Object", "<init>", "()V");
+		int codeName = this.utf8("Code");
+		int initName = this.utf8("<init>");
+		int initDescriptor = this.utf8("()V");
+		int runName = this.utf8("run");
+		int runDescriptor = this.utf8("(I[I[I[Z)I");
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeInt(0xcafebabe);
+			out.writeShort(0);
+			out.writeShort(49);
+			out.writeShort(this.nextConstant);
+			this.constants.writeTo(out);
+			out.writeShort(0x0031); // public final super
+			out.writeShort(thisClass);
+			out.writeShort(superClass);
+			out.writeShort(1);
+			out.writeShort(iface);
+			out.writeShort(0); // Attribute
+			out.writeShort(2); // Methoden
+
+			/* Konstruktor: aload_0, invokespecial Object.<init>, return */
+			out.writeShort(0x0001);
+			out.writeShort(initName);
+			out.writeShort(initDescriptor);
+			out.writeShort(1);
+			out.writeShort(codeName);
+			out.writeInt(12 + 5);
+			out.writeShort(1);
+			out.writeShort(1);
+			out.writeInt(5);
+			out.writeByte(0x2a);
+			out.writeByte(0xb7);
+			out.writeShort(objectInit);
+			out.writeByte(0xb1);
+			out.writeShort(0);
+			out.writeShort(0);
+
+			/* Methode run */
+			out.writeShort(0x0001);
+			out.writeShort(runName);
+			out.writeShort(runDescriptor);
+			out.writeShort(1);
+			out.writeShort(codeName);
+			out.writeInt(12 + this.length);
+			out.writeShort(maxStack);
+			out.writeShort(maxLocals);
+			out.writeInt(this.length);
+			out.write(this.code, 0, this.length);
+			out.writeShort(0);
+			out.writeShort(0);
+
+			out.writeShort(0); // Klassenattribute
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+}
@@ -0,0 +1,42 @@
+package org.oopsvm;
+
+/**
+ * Schnittstelle für Programmabschnitte, die vom {@link JitCompiler} in
+ * JVM-Bytecode übersetzt wurden. Die erzeugten Klassen werden in einem
+ * eigenen Klassenlader definiert, weshalb die Schnittstelle öffentlich
+ * sein muss.
+ */
+public interface CompiledCode {
+	/** Der Abschnitt wurde verlassen, R0 enthält die nächste Instruktion. */
+	int CONTINUE = 0;
+
+	/**
+	 * Die Instruktion, auf die R0 zeigt, muss vom Interpreter ausgeführt werden
+	 * (Systemaufruf oder Fehler).
+	 */
+	int INTERPRET = 1;
+
+	/**
+	 * Das Programm hat eine Speicherstelle beschrieben, die zu übersetztem Code
+	 * gehört. Alle übersetzten Abschnitte müssen verworfen werden. R0 enthält die
+	 * nächste Instruktion.
+	 */
+	int INVALIDATED = 2;
+
+	/**
+	 * Die Methode führt den Programmabschnitt aus. Vor dem Verlassen werden alle
+	 * Register einschließlich R0 in den Registersatz zurückgeschrieben.
+	 *
+	 * @param pc
+	 *        Die Adresse, an der die Ausführung beginnt. Sie muss ein Einsprungpunkt
+	 *        des Abschnitts sein.
+	 * @param memory
+	 *        Der Hauptspeicher.
+	 * @param registers
+	 *        Der Registersatz.
+	 * @param code
+	 *        Markiert alle Speicherstellen, die zu übersetztem Code gehören.
+	 * @return {@link #CONTINUE}, {@link #INTERPRET} oder {@link #INVALIDATED}.
+	 */
+	int run(int pc, int[] memory, int[] registers, boolean[] code);
+}
@@ -0,0 +1,181 @@
+package org.oopsvm;
+
+/**
+ * Die Klasse gibt die ausgeführten Instruktionen, den Speicher, den
+ * Registersatz und Stapelauszüge auf der Konsole aus. Sie implementiert die
+ * Kommandozeilen-Optionen -i, -m, -r, -f2, -b2, -f4 und -b4 der virtuellen
+ * Maschine.
+ */
+class ConsoleTracer implements Tracer {
+	/** Sollen die ausgeführten Instruktionen angezeigt werden? */
+	private final boolean showInstructions;
+
+	/** Soll der Speicherinhalt nach jeder ausgeführten Instruktion angezeigt werden? */
+	private final boolean showMemory;
+
+	/** Soll der Registersatz nach jeder ausgeführten Instruktion angezeigt werden? */
+	private final boolean showRegisters;
+
+	/** Zeige R2 Speicherauszug vorwärts */
+	private final boolean showR2f;
+
+	/** Zeige R2 Speicherauszug rückwärts */
+	private final boolean showR2b;
+
+	/** Zeige R4 Speicherauszug vorwärts */
+	private final boolean showR4f;
+
+	/** Zeige R4 Speicherauszug rückwärts */
+	private final boolean showR4b;
+
+	/**
+	 * Konstruktor.
+	 *
+	 * @param showInstructions
+	 *        Sollen die ausgeführten Instruktionen angezeigt werden?
+	 * @param showMemory
+	 *        Soll der Speicherinhalt nach jeder ausgeführten Instruktion angezeigt werden?
+	 * @param showRegisters
+	 *        Soll der Registersatz nach jeder ausgeführten Instruktion angezeigt werden?
+	 */
+	ConsoleTracer(boolean showInstructions, boolean showMemory,
+			boolean showRegisters, boolean showR2f, boolean showR2b,
+			boolean showR4f, boolean showR4b) {
+		this.showInstructions = showInstructions;
+		this.showMemory = showMemory;
+		this.showRegisters = showRegisters;
+		this.showR2f = showR2f;
+		this.showR2b = showR2b;
+		this.showR4f = showR4f;
+		this.showR4b = showR4b;
+	}
+
+	/**
+	 * Die Methode wandelt eine Instruktion in ihre textuelle Darstellung um.
+	 *
+	 * @param instruction
+	 *        Die Kodierung der Instruktion.
+	 * @param param1
+	 *        Der erste Parameter.
+	 * @param param2
+	 *        Der zweite Parameter.
+	 * @return Die Instruktion mit ihren Parametern oder null, wenn die Instruktion
+	 *         ungültig ist.
+	 */
+	static String disassemble(int instruction, int param1, int param2) {
+		if (instruction < 0 || instruction >= Assembler.instructions.length) {
+			return null;
+		}
+
+		String name = Assembler.instructions[instruction];
+
+		switch (instruction) {
+			case 0: // MRI
+			case 15: // JPC
+			case 19: // ADI
+			case 20: // JPZ
+			case 21: // LDO
+				return name + " R" + param1 + ", " + param2;
+			case 2: // MRM
+				return name + " R" + param1 + ", (R" + param2 + ")";
+			case 3: // MMR
+				return name + " (R" + param1 + "), R" + param2;
+			case 16: // SYS
+				return name + " " + param1 + ", " + param2;
+			default:
+				return name + " R" + param1 + ", R" + param2;
+		}
+	}
+
+	public void beforeInstruction(VirtualMachine vm, int address,
+			int instruction, int param1, int param2) {
+		if (this.showInstructions) {
+			String text = disassemble(instruction, param1, param2);
+			if (text != null) {
+				System.out.format("%08x  %s%n", address, text);
+			}
+		}
+	}
+
+	public void afterInstruction(VirtualMachine vm) {
+		if (this.showMemory) {
+			this.printMemory(vm.getMemory());
+		}
+		if (this.showRegisters) {
+			this.printRegisters(vm.getRegisters());
+		}
+		this.printStacks(vm.getMemory(), vm.getRegisters());
+	}
+
+	/**
+	 * Die Methode gibt den Hauptspeicher aus.
+	 */
+	private void printMemory(int[] memory) {
+		StringBuilder text = new StringBuilder();
+		for (int m : memory) {
+			text.append(m).append(' ');
+		}
+		System.out.println(text);
+	}
+
+	/**
+	 * Die Methode gibt den Registersatz aus.
+	 */
+	private void printRegisters(int[] registers) {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < registers.length; ++i) {
+			text.append('R').append(i).append('=').append(registers[i])
+					.append(' ');
+		}
+		System.out.println(text);
+	}
+
+	/**
+	 * Hilfsfunktion für {@link ConsoleTracer#printStacks(int[], int[]) printStacks}.
+	 *
+	 * @param register
+	 *        Nummer des Registers, das die Basisadresse enthält
+	 * @param upDown
+	 *        ist -1 oder 1 für Abwärts/Aufwärts.
+	 * @return Einen Text, der einen Ausschnitt des Stacks in lesbarer Form
+	 *         enthält, die Adresse 'register' zusätzlich mit '*' markiert.
+	 */
+	private String mem(int[] memory, int[] registers, int register, int upDown) {
+		int limit = 20;
+		StringBuilder t = new StringBuilder();
+		for (int i = -2; i < limit; i++) {
+			int r = registers[register] + upDown * i;
+			if (i == 0) {
+				t.append('*');
+			}
+			if (r < 0) {
+				t.append("- ");
+			} else if (r > memory.length) {
+				t.append("+ ");
+			} else {
+				t.append(memory[r]).append(' ');
+			}
+		}
+		return t.toString();
+	}
+
+	/**
+	 * Ausgabe von Speicherauszügen ausgehend von den in Registern R2 bzw.
+	 * R4 gespeicherten Adressen. Dies kann man zur Anzeige von Stack-Inhalten
+	 * benutzen.
+	 */
+	private void printStacks(int[] memory, int[] registers) {
+		if (this.showR2f) {
+			System.out.println("R2 forward: " + this.mem(memory, registers, 2, 1));
+		}
+		if (this.showR2b) {
+			System.out.println("R2 backward: " + this.mem(memory, registers, 2, -1));
+		}
+		if (this.showR4f) {
+			System.out.println("R4 forward: " + this.mem(memory, registers, 4, 1));
+		}
+		if (this.showR4b) {
+			System.out.println("R4 backward: " + this.mem(memory, registers, 4, -1));
+		}
+	}
+}
@@ -0,0 +1,419 @@
+package org.oopsvm;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Die Klasse verwaltet den Heap eines Programms und gibt nicht mehr erreichbare
+ * Objekte frei (Mark-and-Sweep).
+ *
+ * Der Übersetzer legt Zwischenergebnisse, Rücksprungadressen und Referenzen
+ * gemeinsam auf dem Stapel ab. Die Register und der Stapel werden daher
+ * konservativ durchsucht: Jeder Wert, der in ein Objekt zeigt, hält dieses am
+ * Leben. Da ein solcher Wert auch eine Zahl sein kann, dürfen Objekte nicht
+ * verschoben werden. Die Attribute der Objekte werden dagegen exakt anhand der
+ * Zeigertabelle ihrer Klasse verfolgt.
+ *
+ * Jedes Objekt beginnt mit der Adresse der Methodentabelle (VMT) seiner Klasse.
+ * Vor der Methodentabelle stehen die Objektgröße ({@link #VMT_OBJECT_SIZE}) und die
+ * Adresse der Zeigertabelle ({@link #VMT_POINTER_MAP}). Die Zeigertabelle enthält
+ * die Anzahl der Referenzattribute, gefolgt von deren Positionen im Objekt.
+ *
+ * Freier Speicher wird als Liste zusammenhängender Bereiche verwaltet, in denen
+ * fortlaufend alloziert wird. Ist die Liste erschöpft, wird eine Speicherbereinigung
+ * durchgeführt.
+ */
+class GarbageCollector {
+	/** Position der Objektgröße relativ zur Methodentabelle. */
+	static final int VMT_OBJECT_SIZE = -1;
+
+	/** Position der Adresse der Zeigertabelle relativ zur Methodentabelle. */
+	static final int VMT_POINTER_MAP = -2;
+
+	/** Der Hauptspeicher. */
+	private final int[] memory;
+
+	/** Der Registersatz. */
+	private final int[] registers;
+
+	/** Die erste Adresse des Heaps. */
+	private final int heapStart;
+
+	/** Die erste Adresse hinter dem Heap. */
+	private final int heapEnd;
+
+	/** Die erste Adresse des Stapels. */
+	private final int stackStart;
+
+	/** Das Register, das auf das oberste Element des Stapels zeigt. */
+	private final int stackRegister;
+
+	/** Markiert den Anfang jedes allozierten Objekts, relativ zu {@link #heapStart}. */
+	private final BitSet objects;
+
+	/** Markiert die erreichbaren Objekte während einer Speicherbereinigung. */
+	private final BitSet marked;
+
+	/** Die freien Bereiche als Paare aus Anfang und Ende. */
+	private int[] free;
+
+	/** Die Anzahl der Einträge in {@link #free}. */
+	private int freeCount;
+
+	/** Der nächste zu verwendende Eintrag in {@link #free}. */
+	private int nextFree;
+
+	/** Die nächste freie Adresse im aktuellen Bereich. */
+	private int cursor;
+
+	/** Die erste Adresse hinter dem aktuellen Bereich. */
+	private int limit;
+
+	/** Die Objekte, deren Attribute noch verfolgt werden müssen. */
+	private int[] work = new int[256];
+
+	/**
+	 * Konstruktor.
+	 *
+	 * @param memory
+	 *        Der Hauptspeicher.
+	 * @param registers
+	 *        Der Registersatz.
+	 * @param descriptor
+	 *        Die Adresse der Heap-Beschreibung. Sie besteht aus vier Worten: Anfang und
+	 *        Größe des Heaps, Anfang des Stapels und Nummer des Stapelregisters.
+	 * @throws VMException
+	 *         Die Heap-Beschreibung ist ungültig.
+	 */
+	GarbageCollector(int[] memory, int[] registers, int descriptor)
+			throws VMException {
+		if (descriptor < 0 || descriptor > memory.length - 4) {
+			throw new VMException("Ungültige Heap-Beschreibung an Adresse "
+					+ descriptor);
+		}
+
+		this.memory = memory;
+		this.registers = registers;
+		this.heapStart = memory[descriptor];
+		this.heapEnd = this.heapStart + memory[descriptor + 1];
+		this.stackStart = memory[descriptor + 2];
+		this.stackRegister = memory[descriptor + 3];
+
+		if (this.heapStart < 0 || this.heapEnd < this.heapStart
+				|| this.heapEnd > memory.length || this.stackStart < 0
+				|| this.stackStart >= memory.length || this.stackRegister < 0
+				|| this.stackRegister >= registers.length) {
+			throw new VMException("Ungültige Heap-Beschreibung an Adresse "
+					+ descriptor);
+		}
+
+		this.objects = new BitSet(this.heapEnd - this.heapStart);
+		this.marked = new BitSet(this.heapEnd - this.heapStart);
+		this.free = new int[] {
+			this.heapStart, this.heapEnd
+		};
+		this.freeCount = 1;
+		this.nextFree = 0;
+		this.cursor = this.limit = this.heapStart;
+	}
+
+	/**
+	 * Konstruiert eine Kopie der Speicherverwaltung für einen kopierten Hauptspeicher,
+	 * z.B. beim Wiederherstellen eines {@link Snapshot Speicherabbilds}.
+	 *
+	 * @param heap
+	 *        Die Speicherverwaltung, deren Zustand übernommen wird.
+	 * @param memory
+	 *        Der kopierte Hauptspeicher.
+	 * @param registers
+	 *        Der kopierte Registersatz.
+	 */
+	GarbageCollector(GarbageCollector heap, int[] memory, int[] registers) {
+		this.memory = memory;
+		this.registers = registers;
+		this.heapStart = heap.heapStart;
+		this.heapEnd = heap.heapEnd;
+		this.stackStart = heap.stackStart;
+		this.stackRegister = heap.stackRegister;
+		this.objects = (BitSet) heap.objects.clone();
+		this.marked = new BitSet(this.heapEnd - this.heapStart);
+		this.free = heap.free.clone();
+		this.freeCount = heap.freeCount;
+		this.nextFree = heap.nextFree;
+		this.cursor = heap.cursor;
+		this.limit = heap.limit;
+	}
+
+	/**
+	 * Konstruiert die Speicherverwaltung aus ihrer binären Form (siehe
+	 * {@link #write(DataOutputStream) write}).
+	 *
+	 * @param buffer
+	 *        Der Puffer, der an der Position der Speicherverwaltung steht.
+	 * @param memory
+	 *        Der Hauptspeicher.
+	 * @param registers
+	 *        Der Registersatz.
+	 * @throws IOException
+	 *         Der Zustand ist ungültig.
+	 */
+	GarbageCollector(ByteBuffer buffer, int[] memory, int[] registers)
+			throws IOException {
+		this.memory = memory;
+		this.registers = registers;
+		this.heapStart = buffer.getInt();
+		this.heapEnd = buffer.getInt();
+		this.stackStart = buffer.getInt();
+		this.stackRegister = buffer.getInt();
+
+		if (this.heapStart < 0 || this.heapEnd < this.heapStart
+				|| this.heapEnd > memory.length || this.stackStart < 0
+				|| this.stackStart >= memory.length || this.stackRegister < 0
+				|| this.stackRegister >= registers.length) {
+			throw new IOException("Ungültige Heap-Beschreibung");
+		}
+
+		this.freeCount = buffer.getInt();
+		this.free = new int[Math.max(2, 2 * this.freeCount)];
+		for (int i = 0; i < 2 * this.freeCount; ++i) {
+			this.free[i] = buffer.getInt();
+			if (this.free[i] < this.heapStart || this.free[i] > this.heapEnd) {
+				throw new IOException("Ungültiger freier Bereich");
+			}
+		}
+		this.nextFree = buffer.getInt();
+		this.cursor = buffer.getInt();
+		this.limit = buffer.getInt();
+
+		if (this.nextFree < 0 || this.nextFree > this.freeCount
+				|| this.cursor < this.heapStart || this.limit > this.heapEnd
+				|| this.cursor > this.limit) {
+			throw new IOException("Ungültiger Zustand des Heaps");
+		}
+
+		long[] words = new long[buffer.getInt()];
+		for (int i = 0; i < words.length; ++i) {
+			words[i] = buffer.getLong();
+		}
+		this.objects = BitSet.valueOf(words);
+		if (this.objects.length() > this.heapEnd - this.heapStart) {
+			throw new IOException("Ungültiger Zustand des Heaps");
+		}
+		this.marked = new BitSet(this.heapEnd - this.heapStart);
+	}
+
+	/**
+	 * Die Methode schreibt den Zustand der Speicherverwaltung. Aufbau:
+	 *
+	 * <pre>
+	 * heap ::= heapStart heapEnd stackStart stackRegister
+	 *          freeCount (start end){freeCount} nextFree cursor limit
+	 *          objectWords long{objectWords}
+	 * </pre>
+	 *
+	 * @param out
+	 *        Der Datenstrom.
+	 * @throws IOException
+	 */
+	void write(DataOutputStream out) throws IOException {
+		out.writeInt(this.heapStart);
+		out.writeInt(this.heapEnd);
+		out.writeInt(this.stackStart);
+		out.writeInt(this.stackRegister);
+		out.writeInt(this.freeCount);
+		for (int i = 0; i < 2 * this.freeCount; ++i) {
+			out.writeInt(this.free[i]);
+		}
+		out.writeInt(this.nextFree);
+		out.writeInt(this.cursor);
+		out.writeInt(this.limit);
+
+		long[] words = this.objects.toLongArray();
+		out.writeInt(words.length);
+		for (long word : words) {
+			out.writeLong(word);
+		}
+	}
+
+	/**
+	 * Die Methode alloziert ein Objekt. Alle Attribute sind 0, das erste Wort
+	 * enthält die Adresse der Methodentabelle.
+	 *
+	 * @param vmt
+	 *        Die Adresse der Methodentabelle der Klasse.
+	 * @return Die Adresse des Objekts.
+	 * @throws VMException
+	 *         Die Methodentabelle ist ungültig oder der Heap ist erschöpft.
+	 */
+	int allocate(int vmt) throws VMException {
+		int size = this.objectSize(vmt);
+		if (size <= 0) {
+			throw new VMException("Ungültige Methodentabelle an Adresse " + vmt);
+		}
+
+		if (this.limit - this.cursor < size && !this.nextRange(size)) {
+			this.collect();
+			if (!this.nextRange(size)) {
+				throw new VMException("Heap erschöpft (" + size
+						+ " Worte angefordert)");
+			}
+		}
+
+		int address = this.cursor;
+		this.cursor += size;
+		Arrays.fill(this.memory, address + 1, address + size, 0);
+		this.memory[address] = vmt;
+		this.objects.set(address - this.heapStart);
+		return address;
+	}
+
+	/**
+	 * Die Methode liefert die Objektgröße einer Klasse.
+	 *
+	 * @param vmt
+	 *        Die Adresse der Methodentabelle.
+	 * @return Die Objektgröße oder 0, wenn die Adresse keine Methodentabelle sein kann.
+	 */
+	private int objectSize(int vmt) {
+		int address = vmt + VMT_OBJECT_SIZE;
+		if (address < 0 || address >= this.memory.length) {
+			return 0;
+		}
+		return this.memory[address];
+	}
+
+	/**
+	 * Die Methode wechselt zum nächsten freien Bereich, in dem ein Objekt der
+	 * angegebenen Größe Platz hat. Kleinere Bereiche werden bis zur nächsten
+	 * Speicherbereinigung übersprungen.
+	 *
+	 * @param size
+	 *        Die Größe des Objekts.
+	 * @return Wurde ein Bereich gefunden?
+	 */
+	private boolean nextRange(int size) {
+		while (this.nextFree < this.freeCount) {
+			int start = this.free[2 * this.nextFree];
+			int end = this.free[2 * this.nextFree + 1];
+			++this.nextFree;
+			if (end - start >= size) {
+				this.cursor = start;
+				this.limit = end;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Die Methode bestimmt das Objekt, in das ein Wert zeigt.
+	 *
+	 * @param value
+	 *        Der Wert.
+	 * @return Der Anfang des Objekts relativ zu {@link #heapStart} oder -1.
+	 */
+	private int findObject(int value) {
+		if (value < this.heapStart || value >= this.heapEnd) {
+			return -1;
+		}
+		int index = this.objects.previousSetBit(value - this.heapStart);
+		if (index < 0) {
+			return -1;
+		}
+		int size = this.objectSize(this.memory[this.heapStart + index]);
+		return value < this.heapStart + index + size ? index : -1;
+	}
+
+	/**
+	 * Die Methode markiert ein Objekt und vermerkt es zur Verfolgung seiner Attribute.
+	 *
+	 * @param index
+	 *        Der Anfang des Objekts relativ zu {@link #heapStart}.
+	 * @param count
+	 *        Die Anzahl der Einträge in {@link #work}.
+	 * @return Die neue Anzahl der Einträge in {@link #work}.
+	 */
+	private int mark(int index, int count) {
+		if (!this.marked.get(index)) {
+			this.marked.set(index);
+			if (count == this.work.length) {
+				this.work = Arrays.copyOf(this.work, count * 2);
+			}
+			this.work[count++] = index;
+		}
+		return count;
+	}
+
+	/**
+	 * Die Methode führt eine Speicherbereinigung durch und bestimmt die freien
+	 * Bereiche neu.
+	 */
+	void collect() {
+		this.marked.clear();
+		int count = 0;
+
+		/* Wurzeln: alle Register und der belegte Teil des Stapels. */
+		for (int value : this.registers) {
+			int index = this.findObject(value);
+			if (index >= 0) {
+				count = this.mark(index, count);
+			}
+		}
+
+		int stackEnd = Math.min(this.registers[this.stackRegister],
+				this.memory.length - 1);
+		for (int address = this.stackStart; address <= stackEnd; ++address) {
+			int index = this.findObject(this.memory[address]);
+			if (index >= 0) {
+				count = this.mark(index, count);
+			}
+		}
+
+		/* Attribute anhand der Zeigertabellen verfolgen. */
+		while (count > 0) {
+			int object = this.heapStart + this.work[--count];
+			int pointerMap = this.memory[this.memory[object] + VMT_POINTER_MAP];
+			int pointers = this.memory[pointerMap];
+			for (int i = 1; i <= pointers; ++i) {
+				int value = this.memory[object + this.memory[pointerMap + i]];
+				int index = value - this.heapStart;
+				if (value >= this.heapStart && value < this.heapEnd
+						&& this.objects.get(index)) {
+					count = this.mark(index, count);
+				}
+			}
+		}
+
+		/* Nicht markierte Objekte freigeben und die Lücken als freie Bereiche
+		 * vermerken. */
+		this.objects.and(this.marked);
+		this.freeCount = 0;
+		int start = this.heapStart;
+		for (int index = this.objects.nextSetBit(0); index >= 0; index = this.objects
+				.nextSetBit(index + 1)) {
+			int object = this.heapStart + index;
+			this.addRange(start, object);
+			start = object + this.objectSize(this.memory[object]);
+		}
+		this.addRange(start, this.heapEnd);
+
+		this.nextFree = 0;
+		this.cursor = this.limit = this.heapStart;
+	}
+
+	/**
+	 * Die Methode vermerkt einen freien Bereich, sofern er nicht leer ist.
+	 */
+	private void addRange(int start, int end) {
+		if (end > start) {
+			if (2 * this.freeCount == this.free.length) {
+				this.free = Arrays.copyOf(this.free, this.free.length * 2);
+			}
+			this.free[2 * this.freeCount] = start;
+			this.free[2 * this.freeCount + 1] = end;
+			++this.freeCount;
+		}
+	}
+}
@@ -0,0 +1,681 @@
+package org.oopsvm;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.oopsvm.ClassBuilder.Label;
+
+/**
+ * Die Klasse übersetzt Abschnitte eines Maschinenprogramms in JVM-Bytecode, der
+ * anschließend von der JVM selbst optimiert werden kann.
+ *
+ * Ein Abschnitt umfasst alle Instruktionen, die von seinem Einsprungpunkt aus über
+ * bedingte und unbedingte Sprünge an feste Adressen erreichbar sind. Zusätzlich werden
+ * Rücksprungadressen aufgenommen, d.h. Adressen, die mit MRI in ein Register geladen
+ * werden und direkt hinter einem Sprung liegen. Die Register R1 ... Rn werden zu lokalen
+ * Variablen. Indirekte Sprünge (MRR R0, reg und MRM R0, (reg)) werden über eine
+ * Sprungtabelle aller Einsprungpunkte des Abschnitts verteilt; liegt das Ziel nicht im
+ * Abschnitt, wird er verlassen.
+ *
+ * Systemaufrufe, ungültige Instruktionen und alle Instruktionen, die einen Fehler
+ * auslösen würden, führt weiterhin der Interpreter aus. Dadurch bleiben Ein- und
+ * Ausgabe sowie alle Fehlermeldungen unverändert.
+ */
+class JitCompiler {
+	/** Die maximale Anzahl der Instruktionen in einem Abschnitt. */
+	private static final int MAX_INSTRUCTIONS = 512;
+
+	/**
+	 * Die maximale Länge des erzeugten Bytecodes. HotSpot übersetzt keine Methoden, die
+	 * länger als 8000 Bytes sind.
+	 */
+	private static final int MAX_BYTECODE = 7900;
+
+	/* Die Belegung der lokalen Variablen in der Methode run. */
+	private static final int PC = 1;
+	private static final int MEMORY = 2;
+	private static final int REGISTERS = 3;
+	private static final int CODE = 4;
+
+	/** Die lokale Variable des Registers R1. Die weiteren Register folgen. */
+	private static final int FIRST_REGISTER = 5;
+
+	/** Abschnitt für Einsprungpunkte, die nur der Interpreter ausführen kann. */
+	private static final CompiledCode INTERPRETER = new CompiledCode() {
+		@Override
+		public int run(int pc, int[] memory, int[] registers, boolean[] code) {
+			registers[0] = pc;
+			return INTERPRET;
+		}
+	};
+
+	/** Der Klassenlader für die erzeugten Klassen. */
+	private static final class Loader extends ClassLoader {
+		Loader() {
+			super(CompiledCode.class.getClassLoader());
+		}
+
+		Class<?> define(String name, byte[] bytes) {
+			return this.defineClass(name, bytes, 0, bytes.length);
+		}
+	}
+
+	/** Die virtuelle Maschine, deren Programm übersetzt wird. */
+	private final VirtualMachine vm;
+
+	/** Der Hauptspeicher der virtuellen Maschine. */
+	private final int[] memory;
+
+	/** Die Anzahl der Register der virtuellen Maschine. */
+	private final int registerCount;
+
+	/** Der übersetzte Abschnitt für jeden bekannten Einsprungpunkt. */
+	private final CompiledCode[] units;
+
+	/** Markiert alle Speicherstellen, die zu übersetztem Code gehören. */
+	final boolean[] code;
+
+	private final Loader loader = new Loader();
+
+	/** Die Anzahl der bisher erzeugten Klassen. */
+	private int classes;
+
+	/**
+	 * Die Methode prüft, ob Programme mit der angegebenen Anzahl von Registern übersetzt
+	 * werden können. Jedes Register benötigt eine lokale Variable, deren Index in einem
+	 * Byte Platz haben muss.
+	 *
+	 * @param registerCount
+	 *        Die Anzahl der Register einschließlich R0.
+	 * @return Ist die Übersetzung möglich?
+	 */
+	static boolean supports(int registerCount) {
+		return FIRST_REGISTER + registerCount <= 256;
+	}
+
+	/**
+	 * Konstruktor.
+	 *
+	 * @param vm
+	 *        Die virtuelle Maschine, deren Programm übersetzt wird.
+	 */
+	JitCompiler(VirtualMachine vm) {
+		this.vm = vm;
+		this.memory = vm.getMemory();
+		this.registerCount = vm.getRegisters().length;
+		this.units = new CompiledCode[this.memory.length];
+		this.code = new boolean[this.memory.length];
+	}
+
+	/**
+	 * Die Methode liefert den Abschnitt zu einem Einsprungpunkt. Existiert er noch nicht,
+	 * wird er übersetzt.
+	 *
+	 * @param pc
+	 *        Der Einsprungpunkt.
+	 * @return Der übersetzte Abschnitt.
+	 */
+	CompiledCode lookup(int pc) {
+		CompiledCode unit = this.units[pc];
+		if (unit == null) {
+			unit = this.compile(pc);
+		}
+		return unit;
+	}
+
+	/**
+	 * Die Methode verwirft alle übersetzten Abschnitte, nachdem das Programm seinen
+	 * eigenen Code verändert hat.
+	 */
+	void invalidate() {
+		Arrays.fill(this.units, null);
+		Arrays.fill(this.code, false);
+	}
+
+	/**
+	 * Die Methode übersetzt den Abschnitt, der am angegebenen Einsprungpunkt beginnt, und
+	 * trägt ihn für alle seine Einsprungpunkte ein, für die noch kein Abschnitt existiert.
+	 *
+	 * @param entry
+	 *        Der Einsprungpunkt.
+	 * @return Der übersetzte Abschnitt.
+	 */
+	private CompiledCode compile(int entry) {
+		int kind = (int) (this.vm.decode(entry) >>> 48);
+		if (kind == VirtualMachine.SYS + 1 || kind == VirtualMachine.GENERIC) {
+			this.units[entry] = INTERPRETER;
+			return INTERPRETER;
+		}
+
+		for (int limit = MAX_INSTRUCTIONS;; limit /= 2) {
+			Region region = new Region(entry, limit);
+			byte[] bytes = region.translate(limit == 1);
+			if (bytes == null) {
+				continue;
+			}
+
+			String name = "org.oopsvm.Compiled" + this.classes++;
+			CompiledCode unit;
+			try {
+				unit = (CompiledCode) this.loader.define(name, bytes)
+						.getConstructor().newInstance();
+			} catch (ReflectiveOperationException e) {
+				throw new IllegalStateException(e);
+			}
+
+			for (int address : region.instructions.keySet()) {
+				this.code[address] = true;
+				this.code[address + 1] = true;
+				this.code[address + 2] = true;
+			}
+
+			for (int address = region.leaders.nextSetBit(0); address >= 0; address = region.leaders
+					.nextSetBit(address + 1)) {
+				if (this.units[address] == null) {
+					this.units[address] = unit;
+				}
+			}
+
+			this.units[entry] = unit;
+			return unit;
+		}
+	}
+
+	/**
+	 * Ein zu übersetzender Abschnitt.
+	 */
+	private final class Region {
+		/** Die Instruktionen des Abschnitts, sortiert nach ihrer Adresse. */
+		final TreeMap<Integer, Long> instructions = new TreeMap<Integer, Long>();
+
+		/** Die Einsprungpunkte, die über die Sprungtabelle erreichbar sind. */
+		final BitSet leaders = new BitSet();
+
+		/** Die im Abschnitt verwendeten Register. */
+		private final BitSet used = new BitSet();
+
+		private ClassBuilder builder;
+
+		/** Die Sprungmarken der Instruktionen. */
+		private final Map<Integer, Label> labels = new HashMap<Integer, Label>();
+
+		/** Ausgänge, an denen der Abschnitt verlassen wird, nach Zieladresse. */
+		private final Map<Integer, Label> exits = new LinkedHashMap<Integer, Label>();
+
+		/** Ausgänge zum Interpreter, nach Adresse der Instruktion. */
+		private final Map<Integer, Label> fallbacks = new LinkedHashMap<Integer, Label>();
+
+		private Label exitContinue;
+		private Label exitInterpret;
+		private Label exitInvalidated;
+
+		/** Die lokale Variable für Zwischenergebnisse. */
+		private final int temp = FIRST_REGISTER + JitCompiler.this.registerCount - 1;
+
+		/**
+		 * Bestimmt die Instruktionen des Abschnitts.
+		 *
+		 * @param entry
+		 *        Der Einsprungpunkt.
+		 * @param limit
+		 *        Die maximale Anzahl der Instruktionen.
+		 */
+		Region(int entry, int limit) {
+			Deque<Integer> work = new ArrayDeque<Integer>();
+			this.leaders.set(entry);
+			work.push(entry);
+
+			while (true) {
+				while (!work.isEmpty()) {
+					this.add(work.pop(), limit, work);
+				}
+
+				/* Rücksprungadressen hinter Sprüngen aufnehmen. */
+				for (long word : this.instructions.values()) {
+					int target = (int) word;
+					if ((int) (word >>> 48) == VirtualMachine.MRI + 1
+							&& this.isJump(target - 3)
+							&& !this.leaders.get(target)) {
+						this.leaders.set(target);
+						work.push(target);
+					}
+				}
+
+				if (work.isEmpty()) {
+					break;
+				}
+			}
+		}
+
+		/**
+		 * Die Methode prüft, ob an der angegebenen Adresse ein unbedingter Sprung des
+		 * Abschnitts liegt.
+		 */
+		private boolean isJump(int address) {
+			Long word = this.instructions.get(address);
+			if (word == null) {
+				return false;
+			}
+			int kind = (int) (word >>> 48);
+			return kind == VirtualMachine.JMP || kind == VirtualMachine.JMPR
+					|| kind == VirtualMachine.JMPM;
+		}
+
+		/**
+		 * Die Methode nimmt eine Instruktion in den Abschnitt auf und vermerkt ihre
+		 * Nachfolger.
+		 */
+		private void add(int address, int limit, Deque<Integer> work) {
+			int[] memory = JitCompiler.this.memory;
+			if (address < 0 || address > memory.length - 3
+					|| this.instructions.containsKey(address)
+					|| this.instructions.size() >= limit) {
+				return;
+			}
+
+			long word = JitCompiler.this.vm.decode(address);
+			this.instructions.put(address, word);
+
+			int param1 = (int) (word >>> 32) & 0xffff;
+			int param2 = (int) word;
+
+			switch ((int) (word >>> 48)) {
+				case VirtualMachine.MRI + 1:
+					this.used.set(param1);
+					work.push(address + 3);
+					break;
+				case VirtualMachine.ADI + 1:
+				case VirtualMachine.LDO + 1:
+					this.used.set(param1);
+					work.push(address + 3);
+					break;
+				case VirtualMachine.JPC + 1:
+				case VirtualMachine.JPZ + 1:
+					this.used.set(param1);
+					if (param2 >= 0) {
+						this.leaders.set(param2);
+					}
+					work.push(param2);
+					work.push(address + 3);
+					break;
+				case VirtualMachine.JMP:
+					if (param2 >= 0) {
+						this.leaders.set(param2);
+					}
+					work.push(param2);
+					break;
+				case VirtualMachine.JMPR:
+				case VirtualMachine.JMPM:
+					this.used.set(param2);
+					break;
+				case VirtualMachine.SYS + 1:
+				case VirtualMachine.GENERIC:
+					/* Der Interpreter kehrt hinter die Instruktion zurück. */
+					if (address + 3 <= memory.length - 3) {
+						this.leaders.set(address + 3);
+					}
+					work.push(address + 3);
+					break;
+				default:
+					this.used.set(param1);
+					this.used.set(param2);
+					work.push(address + 3);
+			}
+		}
+
+		/** Die lokale Variable eines Registers. */
+		private int slot(int register) {
+			return FIRST_REGISTER + register - 1;
+		}
+
+		private Label label(int address) {
+			Label label = this.labels.get(address);
+			if (label == null) {
+				label = new Label();
+				this.labels.put(address, label);
+			}
+			return label;
+		}
+
+		/** Die Sprungmarke für einen Sprung an die angegebene Adresse. */
+		private Label target(int address) {
+			if (this.instructions.containsKey(address)) {
+				return this.label(address);
+			}
+
+			Label label = this.exits.get(address);
+			if (label == null) {
+				label = new Label();
+				this.exits.put(address, label);
+			}
+			return label;
+		}
+
+		/** Die Sprungmarke, um die Instruktion an der angegebenen Adresse zu interpretieren. */
+		private Label fallback(int address) {
+			Label label = this.fallbacks.get(address);
+			if (label == null) {
+				label = new Label();
+				this.fallbacks.put(address, label);
+			}
+			return label;
+		}
+
+		/**
+		 * Die Methode erzeugt eine Prüfung, ob die Adresse in der lokalen Variable
+		 * {@link #temp temp} im Hauptspeicher liegt. Andernfalls wird die Instruktion
+		 * vom Interpreter ausgeführt, der den Fehler meldet.
+		 */
+		private void checkAddress(int address) {
+			ClassBuilder b = this.builder;
+			b.local(ClassBuilder.ILOAD, this.temp);
+			b.jump(ClassBuilder.IFLT, this.fallback(address));
+			b.local(ClassBuilder.ILOAD, this.temp);
+			b.local(ClassBuilder.ALOAD, MEMORY);
+			b.op(ClassBuilder.ARRAYLENGTH);
+			b.jump(ClassBuilder.IF_ICMPGE, this.fallback(address));
+		}
+
+		/**
+		 * Die Methode erzeugt das Speichern eines Registers an der Adresse in der lokalen
+		 * Variable {@link #temp temp}. Wird dabei übersetzter Code überschrieben, wird der
+		 * Abschnitt hinter der Instruktion verlassen.
+		 */
+		private void store(int address, int register) {
+			ClassBuilder b = this.builder;
+			Label unchanged = new Label();
+			b.local(ClassBuilder.ALOAD, MEMORY);
+			b.local(ClassBuilder.ILOAD, this.temp);
+			b.local(ClassBuilder.ILOAD, this.slot(register));
+			b.op(ClassBuilder.IASTORE);
+
+			/* Wurde übersetzter Code überschrieben? */
+			b.local(ClassBuilder.ALOAD, CODE);
+			b.local(ClassBuilder.ILOAD, this.temp);
+			b.op(ClassBuilder.BALOAD);
+			b.jump(ClassBuilder.IFEQ, unchanged);
+			this.leave(address + 3, this.exitInvalidated);
+			b.mark(unchanged);
+		}
+
+		/** Die Methode erzeugt eine Zuweisung der Zahl 1 oder 0 an ein Register. */
+		private void compare(int opcode, int param1, int param2) {
+			ClassBuilder b = this.builder;
+			Label otherwise = new Label();
+			Label done = new Label();
+			b.local(ClassBuilder.ILOAD, this.slot(param2));
+			b.jump(opcode, otherwise);
+			b.op(ClassBuilder.ICONST_1);
+			b.jump(ClassBuilder.GOTO, done);
+			b.mark(otherwise);
+			b.op(ClassBuilder.ICONST_0);
+			b.mark(done);
+			b.local(ClassBuilder.ISTORE, this.slot(param1));
+		}
+
+		private void arithmetic(int opcode, int param1, int param2) {
+			ClassBuilder b = this.builder;
+			b.local(ClassBuilder.ILOAD, this.slot(param1));
+			b.local(ClassBuilder.ILOAD, this.slot(param2));
+			b.op(opcode);
+			b.local(ClassBuilder.ISTORE, this.slot(param1));
+		}
+
+		/**
+		 * Die Methode erzeugt einen Ausgang des Abschnitts. Alle verwendeten Register und
+		 * R0 werden in den Registersatz zurückgeschrieben.
+		 */
+		private void exit(Label label, int result) {
+			ClassBuilder b = this.builder;
+			b.mark(label);
+			for (int r = this.used.nextSetBit(1); r >= 0; r = this.used.nextSetBit(r + 1)) {
+				b.local(ClassBuilder.ALOAD, REGISTERS);
+				b.pushInt(r);
+				b.local(ClassBuilder.ILOAD, this.slot(r));
+				b.op(ClassBuilder.IASTORE);
+			}
+			b.local(ClassBuilder.ALOAD, REGISTERS);
+			b.op(ClassBuilder.ICONST_0);
+			b.local(ClassBuilder.ILOAD, PC);
+			b.op(ClassBuilder.IASTORE);
+			b.pushInt(result);
+			b.op(ClassBuilder.IRETURN);
+		}
+
+		/** Die Methode verlässt den Abschnitt mit der angegebenen Adresse in R0. */
+		private void leave(int address, Label exit) {
+			this.builder.pushInt(address);
+			this.builder.local(ClassBuilder.ISTORE, PC);
+			this.builder.jump(ClassBuilder.GOTO, exit);
+		}
+
+		/**
+		 * Die Methode erzeugt die Klassendatei des Abschnitts.
+		 *
+		 * @param force
+		 *        Soll die Klassendatei auch erzeugt werden, wenn sie für HotSpot zu groß
+		 *        ist?
+		 * @return Die Klassendatei oder null, wenn sie zu groß ist.
+		 */
+		byte[] translate(boolean force) {
+			ClassBuilder b = new ClassBuilder();
+			this.builder = b;
+			this.used.clear(0);
+			this.leaders.and(this.mask());
+
+			Label dispatch = new Label();
+			this.exitContinue = new Label();
+			this.exitInterpret = new Label();
+			this.exitInvalidated = new Label();
+
+			for (int r = this.used.nextSetBit(1); r >= 0; r = this.used.nextSetBit(r + 1)) {
+				b.local(ClassBuilder.ALOAD, REGISTERS);
+				b.pushInt(r);
+				b.op(ClassBuilder.IALOAD);
+				b.local(ClassBuilder.ISTORE, this.slot(r));
+			}
+
+			/* Verteilung auf die Einsprungpunkte anhand der Adresse in PC. */
+			b.mark(dispatch);
+			int[] keys = new int[this.leaders.cardinality()];
+			Label[] targets = new Label[keys.length];
+			int n = 0;
+			for (int address = this.leaders.nextSetBit(0); address >= 0; address = this.leaders
+					.nextSetBit(address + 1)) {
+				keys[n] = address;
+				targets[n++] = this.label(address);
+			}
+			b.local(ClassBuilder.ILOAD, PC);
+			b.lookupSwitch(keys, targets, this.exitContinue);
+
+			for (Map.Entry<Integer, Long> entry : this.instructions.entrySet()) {
+				int address = entry.getKey();
+				long word = entry.getValue();
+				int param1 = (int) (word >>> 32) & 0xffff;
+				int param2 = (int) word;
+				boolean fallthrough = true;
+
+				b.mark(this.label(address));
+
+				switch ((int) (word >>> 48)) {
+					case VirtualMachine.MRI + 1:
+						b.pushInt(param2);
+						b.local(ClassBuilder.ISTORE, this.slot(param1));
+						break;
+					case VirtualMachine.MRR + 1:
+						b.local(ClassBuilder.ILOAD, this.slot(param2));
+						b.local(ClassBuilder.ISTORE, this.slot(param1));
+						break;
+					case VirtualMachine.MRM + 1:
+						b.local(ClassBuilder.ILOAD, this.slot(param2));
+						b.local(ClassBuilder.ISTORE, this.temp);
+						this.checkAddress(address);
+						b.local(ClassBuilder.ALOAD, MEMORY);
+						b.local(ClassBuilder.ILOAD, this.temp);
+						b.op(ClassBuilder.IALOAD);
+						b.local(ClassBuilder.ISTORE, this.slot(param1));
+						break;
+					case VirtualMachine.MMR + 1:
+						b.local(ClassBuilder.ILOAD, this.slot(param1));
+						b.local(ClassBuilder.ISTORE, this.temp);
+						this.checkAddress(address);
+						this.store(address, param2);
+						break;
+					case VirtualMachine.PSH + 1:
+						b.local(ClassBuilder.ILOAD, this.slot(param1));
+						b.op(ClassBuilder.ICONST_1);
+						b.op(ClassBuilder.IADD);
+						b.local(ClassBuilder.ISTORE, this.temp);
+						this.checkAddress(address);
+						b.local(ClassBuilder.ILOAD, this.temp);
+						b.local(ClassBuilder.ISTORE, this.slot(param1));
+						this.store(address, param2);
+						break;
+					case VirtualMachine.POP + 1:
+						b.local(ClassBuilder.ILOAD, this.slot(param2));
+						b.local(ClassBuilder.ISTORE, this.temp);
+						this.checkAddress(address);
+						b.local(ClassBuilder.ALOAD, MEMORY);
+						b.local(ClassBuilder.ILOAD, this.temp);
+						b.op(ClassBuilder.IALOAD);
+						b.local(ClassBuilder.ISTORE, this.slot(param1));
+						b.local(ClassBuilder.ILOAD, this.slot(param2));
+						b.op(ClassBuilder.ICONST_1);
+						b.op(ClassBuilder.ISUB);
+						b.local(ClassBuilder.ISTORE, this.slot(param2));
+						break;
+					case VirtualMachine.ADI + 1:
+						b.local(ClassBuilder.ILOAD, this.slot(param1));
+						b.pushInt(param2);
+						b.op(ClassBuilder.IADD);
+						b.local(ClassBuilder.ISTORE, this.slot(param1));
+						break;
+					case VirtualMachine.LDO + 1:
+						b.local(ClassBuilder.ILOAD, this.slot(param1));
+						b.pushInt(param2);
+						b.op(ClassBuilder.IADD);
+						b.local(ClassBuilder.ISTORE, this.temp);
+						this.checkAddress(address);
+						b.local(ClassBuilder.ALOAD, MEMORY);
+						b.local(ClassBuilder.ILOAD, this.temp);
+						b.op(ClassBuilder.IALOAD);
+						b.local(ClassBuilder.ISTORE, this.slot(param1));
+						break;
+					case VirtualMachine.ADD + 1:
+						this.arithmetic(ClassBuilder.IADD, param1, param2);
+						break;
+					case VirtualMachine.SUB + 1:
+						this.arithmetic(ClassBuilder.ISUB, param1, param2);
+						break;
+					case VirtualMachine.MUL + 1:
+						this.arithmetic(ClassBuilder.IMUL, param1, param2);
+						break;
+					case VirtualMachine.DIV + 1:
+						b.local(ClassBuilder.ILOAD, this.slot(param2));
+						b.jump(ClassBuilder.IFEQ, this.fallback(address));
+						this.arithmetic(ClassBuilder.IDIV, param1, param2);
+						break;
+					case VirtualMachine.MOD + 1:
+						b.local(ClassBuilder.ILOAD, this.slot(param2));
+						b.jump(ClassBuilder.IFEQ, this.fallback(address));
+						this.arithmetic(ClassBuilder.IREM, param1, param2);
+						break;
+					case VirtualMachine.AND + 1:
+						this.arithmetic(ClassBuilder.IAND, param1, param2);
+						break;
+					case VirtualMachine.OR + 1:
+						this.arithmetic(ClassBuilder.IOR, param1, param2);
+						break;
+					case VirtualMachine.XOR + 1:
+						this.arithmetic(ClassBuilder.IXOR, param1, param2);
+						break;
+					case VirtualMachine.ISZ + 1:
+						this.compare(ClassBuilder.IFNE, param1, param2);
+						break;
+					case VirtualMachine.ISP + 1:
+						this.compare(ClassBuilder.IFLE, param1, param2);
+						break;
+					case VirtualMachine.ISN + 1:
+						this.compare(ClassBuilder.IFGE, param1, param2);
+						break;
+					case VirtualMachine.JPC + 1:
+						b.local(ClassBuilder.ILOAD, this.slot(param1));
+						b.jump(ClassBuilder.IFNE, this.target(param2));
+						break;
+					case VirtualMachine.JPZ + 1:
+						b.local(ClassBuilder.ILOAD, this.slot(param1));
+						b.jump(ClassBuilder.IFEQ, this.target(param2));
+						break;
+					case VirtualMachine.JMP:
+						b.jump(ClassBuilder.GOTO, this.target(param2));
+						fallthrough = false;
+						break;
+					case VirtualMachine.JMPR:
+						b.local(ClassBuilder.ILOAD, this.slot(param2));
+						b.local(ClassBuilder.ISTORE, PC);
+						b.jump(ClassBuilder.GOTO, dispatch);
+						fallthrough = false;
+						break;
+					case VirtualMachine.JMPM:
+						b.local(ClassBuilder.ILOAD, this.slot(param2));
+						b.local(ClassBuilder.ISTORE, this.temp);
+						this.checkAddress(address);
+						b.local(ClassBuilder.ALOAD, MEMORY);
+						b.local(ClassBuilder.ILOAD, this.temp);
+						b.op(ClassBuilder.IALOAD);
+						b.local(ClassBuilder.ISTORE, PC);
+						b.jump(ClassBuilder.GOTO, dispatch);
+						fallthrough = false;
+						break;
+					default:
+						/* Systemaufrufe und ungültige Instruktionen. */
+						b.jump(ClassBuilder.GOTO, this.fallback(address));
+						fallthrough = false;
+				}
+
+				if (fallthrough) {
+					Integer next = this.instructions.higherKey(address);
+					if (next == null || next != address + 3) {
+						b.jump(ClassBuilder.GOTO, this.target(address + 3));
+					}
+				}
+			}
+
+			for (Map.Entry<Integer, Label> entry : this.exits.entrySet()) {
+				b.mark(entry.getValue());
+				this.leave(entry.getKey(), this.exitContinue);
+			}
+
+			for (Map.Entry<Integer, Label> entry : this.fallbacks.entrySet()) {
+				b.mark(entry.getValue());
+				this.leave(entry.getKey(), this.exitInterpret);
+			}
+
+			this.exit(this.exitContinue, CompiledCode.CONTINUE);
+			this.exit(this.exitInterpret, CompiledCode.INTERPRET);
+			this.exit(this.exitInvalidated, CompiledCode.INVALIDATED);
+
+			if (b.length() > MAX_BYTECODE && !force) {
+				return null;
+			}
+
+			return b.toClassFile(
+					"org/oopsvm/Compiled" + JitCompiler.this.classes,
+					4, this.temp + 1);
+		}
+
+		/** Die Adressen aller Instruktionen des Abschnitts. */
+		private BitSet mask() {
+			BitSet mask = new BitSet();
+			for (int address : this.instructions.keySet()) {
+				mask.set(address);
+			}
+			return mask;
+		}
+	}
+}
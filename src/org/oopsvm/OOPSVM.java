@@ -1,6 +1,9 @@
 package org.oopsvm;
 import java.io.BufferedInputStream;
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.PrintStream;
+import java.util.HashMap;
 
 /**
  * Diese Klasse stellt die Hauptmethode der virtuellen Maschine
@@ -12,7 +15,10 @@ class OOPSVM {
 	 * Die Hauptmethode der virtuellen Maschine.
 	 * Sie wertet die Kommandozeilen-Optionen aus und bietet eine Hilfe an, falls diese falsch sind.
 	 * Sind sie gültig, wird der Assembler benutzt, um den übergebenen Quelltext in ein
-	 * Maschinenprogramm zu übersetzen. Dieses wird dann von der virtuellen Maschine ausgeführt.
+	 * Maschinenprogramm zu übersetzen. Ist die Datei bereits eine {@link ObjectFile Objektdatei},
+	 * wird sie direkt geladen. Ist sie ein {@link Snapshot Speicherabbild}, wird das Programm an
+	 * der gesicherten Stelle fortgesetzt. Das Programm wird dann von der virtuellen Maschine
+	 * ausgeführt.
 	 *
 	 * @param args
 	 *        Die Kommandozeilenargumente. Diese sind im Quelltext der Methode {@link #usage usage}
@@ -30,9 +36,62 @@ class OOPSVM {
 		boolean showR2b = false;
 		boolean showR4f = false;
 		boolean showR4b = false;
+		boolean jit = false;
+		String objectFileName = null;
+		String snapshotFileName = null;
+		int registers = 0;
+		boolean profile = false;
+		String stacksFileName = null;
+		int interval = 1;
 
-		for (String arg : args) {
-			if (arg.equals("-i")) {
+		for (int i = 0; i < args.length; ++i) {
+			String arg = args[i];
+			if (arg.equals("-o")) {
+				if (i + 1 == args.length) {
+					System.out.println("Kein Dateiname fuer -o angegeben");
+					usage();
+					return;
+				}
+				objectFileName = args[++i];
+			} else if (arg.equals("-w")) {
+				if (i + 1 == args.length) {
+					System.out.println("Kein Dateiname fuer -w angegeben");
+					usage();
+					return;
+				}
+				snapshotFileName = args[++i];
+			} else if (arg.equals("-R")) {
+				try {
+					registers = Integer.parseInt(i + 1 < args.length ? args[++i] : "");
+				} catch (NumberFormatException e) {
+					registers = 0;
+				}
+				if (registers < 1) {
+					System.out.println("Ungueltige Anzahl Register fuer -R");
+					usage();
+					return;
+				}
+			} else if (arg.equals("-p")) {
+				profile = true;
+			} else if (arg.equals("-P")) {
+				if (i + 1 == args.length) {
+					System.out.println("Kein Dateiname fuer -P angegeben");
+					usage();
+					return;
+				}
+				stacksFileName = args[++i];
+			} else if (arg.equals("-S")) {
+				try {
+					interval = Integer.parseInt(i + 1 < args.length ? args[++i] : "");
+				} catch (NumberFormatException e) {
+					interval = 0;
+				}
+				if (interval < 1) {
+					System.out.println("Ungueltiges Intervall fuer -S");
+					usage();
+					return;
+				}
+			} else if (arg.equals("-i")) {
 				showInstructions = true;
 			} else if (arg.equals("-m")) {
 				showMemory = true;
@@ -52,6 +111,8 @@ class OOPSVM {
 				showR4f = true;
 			} else if (arg.equals("-b4")) {
 				showR4b = true;
+			} else if (arg.equals("-j")) {
+				jit = true;
 			} else if (arg.equals("-h")) {
 				usage();
 				return;
@@ -75,15 +136,84 @@ class OOPSVM {
 			return;
 		}
 
+		boolean trace = showInstructions || showMemory || showRegisters
+				|| showR2f || showR2b || showR4f || showR4b;
+		boolean profiling = profile || stacksFileName != null;
+		if (trace && profiling) {
+			System.out.println("Das Profil kann nicht zusammen mit einer Ablaufverfolgung erstellt werden");
+			usage();
+			return;
+		}
+
 		try {
-			BufferedInputStream stream = new BufferedInputStream(new FileInputStream(fileName));
+			File file = new File(fileName);
+			ObjectFile program;
+			Snapshot snapshot = null;
+			if (Snapshot.isSnapshot(file)) {
+				snapshot = Snapshot.read(file);
+				program = new ObjectFile(snapshot.getMemory(),
+						new HashMap<String, Integer>(), snapshot.getRegisters());
+			} else if (ObjectFile.isObjectFile(file)) {
+				program = ObjectFile.read(file);
+			} else {
+				BufferedInputStream stream = new BufferedInputStream(
+						new FileInputStream(file));
+				Assembler assembler = new Assembler(showFirst, showSecond);
+				program = new ObjectFile(assembler.assemble(stream),
+						assembler.getLabels());
+				stream.close();
+			}
+
+			/* Ohne -R werden so viele Register verwendet, wie das Programm
+			 * benötigt. Eine neue Objektdatei übernimmt die Anzahl. */
+			if (registers == 0) {
+				registers = program.getRegisters();
+			}
+
+			if (objectFileName != null) {
+				if (snapshot != null) {
+					System.out.println("Ein Speicherabbild kann nicht als Objektdatei geschrieben werden");
+					return;
+				}
+				new ObjectFile(program.getMemory(), program.getLabels(),
+						registers).write(new File(objectFileName));
+			}
 
-			VirtualMachine vm = new VirtualMachine(new Assembler(showFirst,
-					showSecond).assemble(stream), new int[8],
-					showInstructions, showMemory, showRegisters, showR2f,
-					showR2b, showR4f, showR4b);
+			/* Die Initialisierung bis zum ersten SYS 0 wird ohne Ablaufverfolgung
+			 * ausgeführt und danach mit dem Speicherabbild fortgesetzt. */
+			if (snapshotFileName != null && snapshot == null) {
+				snapshot = Snapshot.capture(program.getMemory(), registers);
+				snapshot.write(new File(snapshotFileName));
+			}
+
+			VirtualMachine vm = snapshot != null ? snapshot.newInstance()
+					: new VirtualMachine(program.getMemory(), new int[registers]);
+			Profiler profiler = null;
+			if (trace) {
+				vm.setTracer(new ConsoleTracer(showInstructions, showMemory,
+						showRegisters, showR2f, showR2b, showR4f, showR4b));
+			} else if (profiling) {
+				profiler = new Profiler(program.getLabels(),
+						program.getMemory().length, interval);
+				vm.setTracer(profiler);
+			}
+			vm.setJit(jit);
 			if (execution) {
-				vm.run();
+				try {
+					if (snapshot != null) {
+						System.out.write(snapshot.getOutput());
+					}
+					vm.run();
+				} finally {
+					if (profile) {
+						profiler.printReport(System.out);
+					}
+					if (stacksFileName != null) {
+						PrintStream stacks = new PrintStream(stacksFileName);
+						profiler.printCollapsedStacks(stacks);
+						stacks.close();
+					}
+				}
 			}
 		} catch (Exception e) {
 			System.out.println(e.getMessage());
@@ -95,15 +225,29 @@ class OOPSVM {
 	 */
 	private static void usage() {
 		System.out
-				.println("java -jar OOPSVM.jar [-1] [-2] [-c] [-h] [-i] [-m] [-r] [-f2] [-b2] [-f4] [-b4] <dateiname>");
-		System.out.println("    -1  Ausgabe beim ersten Assemblierungslauf");
-		System.out.println("    -2  Ausgabe beim zweiten Assemblierungslauf");
+				.println("java -jar OOPSVM.jar [-1] [-2] [-c] [-h] [-i] [-j] [-m] [-o <objektdatei>] [-p] [-P <datei>] [-r] [-R <anzahl>] [-S <intervall>] [-w <speicherabbild>] [-f2] [-b2] [-f4] [-b4] <dateiname>");
+		System.out.println("    -1  Ausgabe waehrend der Assemblierung");
+		System.out.println("    -2  Ausgabe nach dem Eintragen aller Marken");
 		System.out
 				.println("    -c  Programm wird nur uebersetzt, aber nicht ausgefuehrt");
 		System.out.println("    -h  Zeige diese Hilfe");
 		System.out.println("    -i  Zeige Instruktionen bei der Ausfuehrung");
+		System.out
+				.println("    -j  Programm wird vor der Ausfuehrung in JVM-Bytecode uebersetzt");
 		System.out.println("    -m  Zeige Speicher bei der Ausfuehrung");
+		System.out
+				.println("    -o  Schreibe das assemblierte Programm in eine Objektdatei");
+		System.out
+				.println("    -p  Gib nach der Ausfuehrung ein Profil je Methode und den Aufrufgraphen aus");
+		System.out
+				.println("    -P  Schreibe die Aufrufstapel des Profils fuer Flame-Graphs in eine Datei");
 		System.out.println("    -r  Zeige Registersatz bei der Ausfuehrung");
+		System.out
+				.println("    -R  Anzahl der Register der virtuellen Maschine (Standard: aus der Objektdatei, sonst 8)");
+		System.out
+				.println("    -S  Erfasse die Aufrufstapel nur alle <intervall> Instruktionen (Standard: 1)");
+		System.out
+				.println("    -w  Schreibe den Zustand vor der ersten Eingabe in ein Speicherabbild");
 		System.out.println("    -f2 Zeige Stapelauszug für Register R2");
 		System.out
 				.println("    -b2 Zeige Stapelauszug für Register R2 rückwärts");
@@ -0,0 +1,372 @@
+package org.oopsvm;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Die Klasse beschreibt ein assembliertes Programm in binärer Form. Eine
+ * Objektdatei kann ohne erneutes Assemblieren direkt in den Hauptspeicher
+ * geladen werden. Aufbau (alle Zahlen als 32-Bit-Werte im Big-Endian-Format):
+ *
+ * <pre>
+ * file    ::= header { segment } { symbol } checksum
+ * header  ::= MAGIC VERSION memorySize registerCount segmentCount symbolCount
+ * segment ::= address length word{length}
+ * symbol  ::= address byteLength utf8{byteLength}
+ * </pre>
+ *
+ * Segmente enthalten nur die Bereiche des Hauptspeichers, die nicht mit 0
+ * belegt sind. Reservierter Speicher (z.B. Stapel und Heap) kostet daher keinen
+ * Platz. Die Symboltabelle enthält die Marken des Quelltexts und dient nur der
+ * Diagnose. Die Prüfsumme ist eine CRC32 über alle vorherigen Bytes.
+ *
+ * Die Anzahl der Register ist die, für die das Programm übersetzt wurde. Mit
+ * Registerzuteilung verwendet es auch Register oberhalb von R7.
+ */
+public class ObjectFile {
+	/** Die Kennung einer Objektdatei ("OOPS"). */
+	public static final int MAGIC = 0x4f4f5053;
+
+	/** Die Version des Formats. */
+	public static final int VERSION = 2;
+
+	/** Die Anzahl der Register, wenn sie nicht angegeben ist. */
+	public static final int DEFAULT_REGISTERS = 8;
+
+	/**
+	 * Die Anzahl aufeinanderfolgender Nullen, ab der ein Segment beendet wird.
+	 * Kürzere Folgen, wie sie im Code häufig vorkommen, bleiben im Segment.
+	 */
+	private static final int MIN_GAP = 16;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** Der Inhalt des Hauptspeichers. */
+	private final int[] memory;
+
+	/** Die Zuordnung von Marken zu Speicheradressen. */
+	private final Map<String, Integer> labels;
+
+	/** Die Anzahl der Register, die das Programm benötigt. */
+	private final int registers;
+
+	/**
+	 * Konstruktor für ein Programm, das mit {@link #DEFAULT_REGISTERS}
+	 * Registern auskommt.
+	 *
+	 * @param memory
+	 *        Der Inhalt des Hauptspeichers.
+	 * @param labels
+	 *        Die Zuordnung von Marken zu Speicheradressen.
+	 */
+	public ObjectFile(int[] memory, Map<String, Integer> labels) {
+		this(memory, labels, DEFAULT_REGISTERS);
+	}
+
+	/**
+	 * Konstruktor.
+	 *
+	 * @param memory
+	 *        Der Inhalt des Hauptspeichers.
+	 * @param labels
+	 *        Die Zuordnung von Marken zu Speicheradressen.
+	 * @param registers
+	 *        Die Anzahl der Register, die das Programm benötigt.
+	 */
+	public ObjectFile(int[] memory, Map<String, Integer> labels, int registers) {
+		if (registers < 1) {
+			throw new IllegalArgumentException("Ungültige Anzahl Register "
+					+ registers);
+		}
+
+		this.memory = memory;
+		this.labels = new TreeMap<String, Integer>(labels);
+		this.registers = registers;
+	}
+
+	/**
+	 * @return Der Inhalt des Hauptspeichers.
+	 */
+	public int[] getMemory() {
+		return this.memory;
+	}
+
+	/**
+	 * @return Die Zuordnung von Marken zu Speicheradressen.
+	 */
+	public Map<String, Integer> getLabels() {
+		return Collections.unmodifiableMap(this.labels);
+	}
+
+	/**
+	 * @return Die Anzahl der Register, die das Programm benötigt.
+	 */
+	public int getRegisters() {
+		return this.registers;
+	}
+
+	/**
+	 * Die Methode bestimmt das Ende des Segments, das an der angegebenen Adresse
+	 * beginnt.
+	 *
+	 * @param memory
+	 *        Der Inhalt des Hauptspeichers.
+	 * @param start
+	 *        Die erste Adresse des Segments. Sie ist nicht mit 0 belegt.
+	 * @return Die erste Adresse hinter dem Segment.
+	 */
+	private static int segmentEnd(int[] memory, int start) {
+		int end = start;
+		int zeros = 0;
+		for (int i = start; i < memory.length && zeros < MIN_GAP; ++i) {
+			if (memory[i] == 0) {
+				++zeros;
+			} else {
+				zeros = 0;
+				end = i + 1;
+			}
+		}
+		return end;
+	}
+
+	/**
+	 * Die Methode zählt die Segmente eines Hauptspeichers.
+	 *
+	 * @param memory
+	 *        Der Inhalt des Hauptspeichers.
+	 * @return Die Anzahl der Segmente.
+	 */
+	static int countSegments(int[] memory) {
+		int segments = 0;
+		for (int i = 0; i < memory.length; ++i) {
+			if (memory[i] != 0) {
+				i = segmentEnd(memory, i);
+				++segments;
+			}
+		}
+		return segments;
+	}
+
+	/**
+	 * Die Methode schreibt die Segmente eines Hauptspeichers.
+	 *
+	 * @param out
+	 *        Der Datenstrom.
+	 * @param memory
+	 *        Der Inhalt des Hauptspeichers.
+	 * @throws IOException
+	 */
+	static void writeSegments(DataOutputStream out, int[] memory)
+			throws IOException {
+		for (int i = 0; i < memory.length; ++i) {
+			if (memory[i] != 0) {
+				int end = segmentEnd(memory, i);
+				out.writeInt(i);
+				out.writeInt(end - i);
+				for (; i < end; ++i) {
+					out.writeInt(memory[i]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Die Methode liest Segmente in den Hauptspeicher.
+	 *
+	 * @param buffer
+	 *        Der Puffer, der an der Position des ersten Segments steht.
+	 * @param memory
+	 *        Der Hauptspeicher. Er ist vollständig mit 0 belegt.
+	 * @param segments
+	 *        Die Anzahl der Segmente.
+	 * @throws IOException
+	 *         Ein Segment ist ungültig.
+	 */
+	static void readSegments(ByteBuffer buffer, int[] memory, int segments)
+			throws IOException {
+		for (int i = 0; i < segments; ++i) {
+			int address = buffer.getInt();
+			int size = buffer.getInt();
+			if (address < 0 || size < 0 || address > memory.length - size) {
+				throw new IOException("Ungültiges Segment");
+			}
+			buffer.asIntBuffer().get(memory, address, size);
+			buffer.position(buffer.position() + size * 4);
+		}
+	}
+
+	/**
+	 * Die Methode prüft die Prüfsumme am Ende eines Puffers.
+	 *
+	 * @param buffer
+	 *        Der Puffer, der die gesamte Datei enthält.
+	 * @param minLength
+	 *        Die Mindestlänge der Datei in Bytes.
+	 * @return Ein Puffer im Big-Endian-Format, der an der Prüfsumme endet.
+	 * @throws IOException
+	 *         Die Datei ist zu kurz oder die Prüfsumme ist falsch.
+	 */
+	static ByteBuffer verifyChecksum(ByteBuffer buffer, int minLength)
+			throws IOException {
+		buffer = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+		int length = buffer.remaining();
+		if (length < minLength) {
+			throw new IOException("Datei ist zu kurz");
+		}
+
+		/* Prüfsumme über alles außer den letzten vier Bytes. */
+		CRC32 crc = new CRC32();
+		ByteBuffer data = buffer.duplicate();
+		data.limit(data.position() + length - 4);
+		byte[] chunk = new byte[8192];
+		while (data.hasRemaining()) {
+			int n = Math.min(chunk.length, data.remaining());
+			data.get(chunk, 0, n);
+			crc.update(chunk, 0, n);
+		}
+		if (buffer.getInt(buffer.position() + length - 4) != (int) crc.getValue()) {
+			throw new IOException("Prüfsumme der Datei ist falsch");
+		}
+		buffer.limit(buffer.position() + length - 4);
+		return buffer;
+	}
+
+	/**
+	 * Die Methode schreibt die Objektdatei in einen Datenstrom.
+	 *
+	 * @param stream
+	 *        Der Datenstrom. Er wird nicht geschlossen.
+	 * @throws IOException
+	 */
+	public void write(OutputStream stream) throws IOException {
+		CRC32 crc = new CRC32();
+		BufferedOutputStream buffered = new BufferedOutputStream(stream);
+		DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+				buffered, crc));
+
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(this.memory.length);
+		out.writeInt(this.registers);
+		out.writeInt(countSegments(this.memory));
+		out.writeInt(this.labels.size());
+		writeSegments(out, this.memory);
+
+		for (Map.Entry<String, Integer> label : this.labels.entrySet()) {
+			byte[] name = label.getKey().getBytes(UTF8);
+			out.writeInt(label.getValue());
+			out.writeInt(name.length);
+			out.write(name);
+		}
+
+		out.flush();
+		new DataOutputStream(buffered).writeInt((int) crc.getValue());
+		buffered.flush();
+	}
+
+	/**
+	 * Die Methode schreibt die Objektdatei.
+	 *
+	 * @param file
+	 *        Die Datei.
+	 * @throws IOException
+	 */
+	public void write(File file) throws IOException {
+		try (FileOutputStream stream = new FileOutputStream(file)) {
+			this.write(stream);
+		}
+	}
+
+	/**
+	 * Die Methode prüft, ob eine Datei mit der Kennung einer Objektdatei beginnt.
+	 *
+	 * @param file
+	 *        Die Datei.
+	 * @return Ist die Datei eine Objektdatei?
+	 * @throws IOException
+	 */
+	public static boolean isObjectFile(File file) throws IOException {
+		try (DataInputStream stream = new DataInputStream(new FileInputStream(
+				file))) {
+			return file.length() >= 4 && stream.readInt() == MAGIC;
+		}
+	}
+
+	/**
+	 * Die Methode lädt eine Objektdatei, indem sie in den Speicher eingeblendet wird.
+	 *
+	 * @param file
+	 *        Die Datei.
+	 * @return Die Objektdatei.
+	 * @throws IOException
+	 *         Die Datei kann nicht gelesen werden oder ist ungültig.
+	 */
+	public static ObjectFile read(File file) throws IOException {
+		try (FileChannel channel = new FileInputStream(file).getChannel()) {
+			return read(channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					channel.size()));
+		}
+	}
+
+	/**
+	 * Die Methode liest eine Objektdatei aus einem Puffer.
+	 *
+	 * @param buffer
+	 *        Der Puffer, der die gesamte Objektdatei enthält.
+	 * @return Die Objektdatei.
+	 * @throws IOException
+	 *         Die Objektdatei ist ungültig.
+	 */
+	public static ObjectFile read(ByteBuffer buffer) throws IOException {
+		buffer = verifyChecksum(buffer, 28);
+
+		try {
+			if (buffer.getInt() != MAGIC) {
+				throw new IOException("Keine Objektdatei");
+			}
+			int version = buffer.getInt();
+			if (version != VERSION) {
+				throw new IOException("Nicht unterstützte Version der Objektdatei: "
+						+ version);
+			}
+
+			int memorySize = buffer.getInt();
+			int registers = buffer.getInt();
+			int segments = buffer.getInt();
+			int symbols = buffer.getInt();
+			if (memorySize < 0 || registers < 1 || segments < 0 || symbols < 0) {
+				throw new IOException("Ungültiger Kopf der Objektdatei");
+			}
+
+			int[] memory = new int[memorySize];
+			readSegments(buffer, memory, segments);
+
+			Map<String, Integer> labels = new TreeMap<String, Integer>();
+			for (int i = 0; i < symbols; ++i) {
+				int address = buffer.getInt();
+				byte[] name = new byte[buffer.getInt()];
+				buffer.get(name);
+				labels.put(new String(name, UTF8), address);
+			}
+
+			return new ObjectFile(memory, labels, registers);
+		} catch (RuntimeException e) {
+			/* BufferUnderflowException, NegativeArraySizeException usw. */
+			throw new IOException("Objektdatei ist beschädigt");
+		}
+	}
+}
@@ -0,0 +1,395 @@
+package org.oopsvm;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Die Klasse ermittelt, wo ein Programm seine Laufzeit verbringt. Sie zählt
+ * exakt, wie oft jede Adresse ausgeführt wird, und ordnet die Adressen der
+ * nächsten vorangehenden Marke zu. Interne Marken, deren Name aus einer anderen
+ * Marke und einer angehängten Nummer besteht (z.B. <code>Main_main_3</code>),
+ * werden dabei der anderen Marke zugeschlagen. So entsteht für jede Methode eines
+ * übersetzten Programms ein Bereich (z.B. <code>Main_main</code>).
+ *
+ * Aus den Sprüngen wird außerdem der Aufrufgraph rekonstruiert: Ein unbedingter
+ * Sprung an den Anfang eines Bereichs gilt als Aufruf, dessen Rücksprungadresse
+ * hinter dem Sprung liegt. Ein Sprung an eine dieser Adressen gilt als Rücksprung.
+ * Springt eine Ausnahme in einen Bereich, der weiter unten im Aufrufstapel liegt,
+ * werden die Aufrufe darüber verworfen. Alle {@link #Profiler(Map, int, int)
+ * interval} Instruktionen wird der aktuelle Aufrufstapel gezählt; daraus werden
+ * die inklusiven Anteile und Stapelauszüge für Flame-Graphs erzeugt.
+ *
+ * Der Profiler ist ein {@link Tracer}. Ohne ihn führt die virtuelle Maschine das
+ * Programm daher ohne zusätzliche Kosten aus.
+ */
+public class Profiler implements Tracer {
+	/**
+	 * Ein Knoten im Baum der Aufrufkontexte. Er steht für einen Bereich, der über
+	 * die Aufrufe seiner Vorgänger erreicht wurde.
+	 */
+	private static final class Node {
+		/** Der Bereich. */
+		final int region;
+
+		/** Der aufrufende Kontext oder null für die Wurzel. */
+		final Node parent;
+
+		/** Die aufgerufenen Kontexte, nach Bereich. */
+		final Map<Integer, Node> children = new TreeMap<Integer, Node>();
+
+		/** Die Anzahl der Stichproben in diesem Kontext. */
+		long samples;
+
+		Node(int region, Node parent) {
+			this.region = region;
+			this.parent = parent;
+		}
+
+		Node child(int region) {
+			Node child = this.children.get(region);
+			if (child == null) {
+				child = new Node(region, this);
+				this.children.put(region, child);
+			}
+			return child;
+		}
+	}
+
+	/** Die Namen der Bereiche. */
+	private final List<String> names = new ArrayList<String>();
+
+	/** Der Bereich jeder Adresse oder -1 vor der ersten Marke. */
+	private final int[] regions;
+
+	/** Beginnt an der Adresse ein Bereich? */
+	private final boolean[] entries;
+
+	/** Wie oft wurde jede Adresse ausgeführt? */
+	private final long[] counts;
+
+	/** Die Anzahl der Instruktionen zwischen zwei Stichproben. */
+	private final int interval;
+
+	/** Die Anzahl der Instruktionen bis zur nächsten Stichprobe. */
+	private int countdown;
+
+	/** Die Wurzel des Baums der Aufrufkontexte. */
+	private final Node root;
+
+	/** Die Kontexte des Aufrufstapels. */
+	private Node[] stack = new Node[64];
+
+	/** Die Rücksprungadressen des Aufrufstapels. */
+	private int[] returns = new int[64];
+
+	/** Die Anzahl der Einträge im Aufrufstapel. */
+	private int depth;
+
+	/** Die Anzahl der Aufrufe je Paar aus aufrufendem und aufgerufenem Bereich. */
+	private final Map<List<Integer>, Long> calls = new HashMap<List<Integer>, Long>();
+
+	/** Die Adresse der aktuellen Instruktion. */
+	private int address;
+
+	/** Die Kodierung der aktuellen Instruktion. */
+	private int instruction;
+
+	/**
+	 * Konstruktor.
+	 *
+	 * @param labels
+	 *        Die Marken des Programms, wie sie der {@link Assembler} liefert.
+	 * @param memorySize
+	 *        Die Größe des Hauptspeichers.
+	 * @param interval
+	 *        Die Anzahl der Instruktionen zwischen zwei Stichproben des
+	 *        Aufrufstapels. Bei 1 wird jede Instruktion erfasst.
+	 */
+	public Profiler(Map<String, Integer> labels, int memorySize, int interval) {
+		if (interval < 1) {
+			throw new IllegalArgumentException("Ungültiges Intervall "
+					+ interval);
+		}
+
+		this.regions = new int[memorySize];
+		this.entries = new boolean[memorySize];
+		this.counts = new long[memorySize];
+		this.interval = interval;
+		this.countdown = interval;
+
+		/* Bereiche bestimmen. Stehen mehrere Marken an einer Adresse, wird die
+		 * übergeordnete verwendet. */
+		TreeMap<Integer, String> starts = new TreeMap<Integer, String>();
+		for (Map.Entry<String, Integer> label : labels.entrySet()) {
+			String name = this.regionName(label.getKey(), labels);
+			int address = label.getValue();
+			String previous = starts.get(address);
+			if (previous == null || name.length() < previous.length()) {
+				starts.put(address, name);
+			}
+		}
+
+		Map<String, Integer> ids = new HashMap<String, Integer>();
+		Arrays.fill(this.regions, -1);
+		for (Map.Entry<Integer, String> start : starts.entrySet()) {
+			int address = start.getKey();
+			if (address < 0 || address >= memorySize) {
+				continue;
+			}
+
+			String name = start.getValue();
+			Integer id = ids.get(name);
+			if (id == null) {
+				id = this.names.size();
+				ids.put(name, id);
+				this.names.add(name);
+				this.entries[address] = true;
+			}
+
+			Integer end = starts.higherKey(address);
+			Arrays.fill(this.regions, address,
+					end == null ? memorySize : Math.min(end, memorySize), id);
+		}
+
+		this.root = new Node(-1, null);
+		this.stack[0] = this.root;
+		this.depth = 1;
+	}
+
+	/**
+	 * Die Methode liefert den Namen des Bereichs einer Marke. Endet die Marke auf
+	 * einen Unterstrich und eine Zahl und ist der Teil davor ebenfalls eine Marke,
+	 * gehört sie zu deren Bereich.
+	 */
+	private String regionName(String label, Map<String, Integer> labels) {
+		int separator = label.lastIndexOf('_');
+		while (separator > 0 && separator < label.length() - 1) {
+			String suffix = label.substring(separator + 1);
+			String prefix = label.substring(0, separator);
+			if (!suffix.matches("[0-9]+") || !labels.containsKey(prefix)) {
+				break;
+			}
+			label = prefix;
+			separator = label.lastIndexOf('_');
+		}
+		return label;
+	}
+
+	/**
+	 * @return Wie oft wurde jede Adresse ausgeführt?
+	 */
+	public long[] getCounts() {
+		return this.counts;
+	}
+
+	@Override
+	public void beforeInstruction(VirtualMachine vm, int address,
+			int instruction, int param1, int param2) {
+		++this.counts[address];
+		this.address = address;
+		this.instruction = instruction;
+
+		if (this.depth == 1) {
+			/* Die erste Instruktion oder ein Sprung aus allen Aufrufen heraus. */
+			this.push(this.root.child(this.regions[address]), -1);
+		}
+
+		if (--this.countdown == 0) {
+			++this.stack[this.depth - 1].samples;
+			this.countdown = this.interval;
+		}
+	}
+
+	@Override
+	public void afterInstruction(VirtualMachine vm) {
+		int pc = vm.getRegisters()[0];
+		if (pc == this.address + 3 || pc < 0 || pc >= this.regions.length) {
+			return;
+		}
+
+		/* Rücksprung, auch über mehrere Aufrufe hinweg. Sprünge an eine feste
+		 * Adresse sind keine Rücksprünge. */
+		boolean computed = this.instruction != VirtualMachine.MRI
+				&& this.instruction != VirtualMachine.JPC
+				&& this.instruction != VirtualMachine.JPZ;
+		for (int i = this.depth - 1; computed && i > 1; --i) {
+			if (this.returns[i] == pc) {
+				this.depth = i;
+				return;
+			}
+		}
+
+		Node current = this.stack[this.depth - 1];
+		if (this.entries[pc] && this.instruction != VirtualMachine.JPC
+				&& this.instruction != VirtualMachine.JPZ) {
+			Node callee = current.child(this.regions[pc]);
+			this.countCall(current.region, callee.region);
+			this.push(callee, this.address + 3);
+			return;
+		}
+
+		if (this.regions[pc] != current.region) {
+			/* Eine Ausnahme springt in einen aufrufenden Bereich. */
+			for (int i = this.depth - 2; i > 0; --i) {
+				if (this.stack[i].region == this.regions[pc]) {
+					this.depth = i + 1;
+					return;
+				}
+			}
+
+			/* Ein Sprung in einen anderen Bereich ersetzt den aktuellen Aufruf. */
+			this.stack[this.depth - 1] = current.parent.child(this.regions[pc]);
+		}
+	}
+
+	/**
+	 * Die Methode legt einen Aufruf auf den Aufrufstapel.
+	 */
+	private void push(Node node, int returnAddress) {
+		if (this.depth == this.stack.length) {
+			this.stack = Arrays.copyOf(this.stack, this.depth * 2);
+			this.returns = Arrays.copyOf(this.returns, this.depth * 2);
+		}
+		this.stack[this.depth] = node;
+		this.returns[this.depth] = returnAddress;
+		++this.depth;
+	}
+
+	private void countCall(int caller, int callee) {
+		List<Integer> edge = Arrays.asList(caller, callee);
+		Long count = this.calls.get(edge);
+		this.calls.put(edge, count == null ? 1 : count + 1);
+	}
+
+	/**
+	 * Die Methode liefert den Namen eines Bereichs.
+	 */
+	private String name(int region) {
+		return region < 0 ? "<Anfang>" : this.names.get(region);
+	}
+
+	/**
+	 * Die Methode summiert die Stichproben jedes Bereichs einschließlich der von
+	 * ihm aufgerufenen Bereiche. Bei Rekursion zählt jede Stichprobe nur einmal.
+	 *
+	 * @param active
+	 *        Die Anzahl der Vorkommen jedes Bereichs im aktuellen Kontext.
+	 */
+	private void inclusive(Node node, int[] active, long[] result) {
+		if (node.region >= 0 && active[node.region]++ == 0) {
+			result[node.region] += this.total(node);
+		}
+		for (Node child : node.children.values()) {
+			this.inclusive(child, active, result);
+		}
+		if (node.region >= 0) {
+			--active[node.region];
+		}
+	}
+
+	/**
+	 * Die Methode liefert die Anzahl der Stichproben eines Kontexts und aller
+	 * darin aufgerufenen Kontexte.
+	 */
+	private long total(Node node) {
+		long total = node.samples;
+		for (Node child : node.children.values()) {
+			total += this.total(child);
+		}
+		return total;
+	}
+
+	/**
+	 * Die Methode gibt das Profil aus: für jeden Bereich die Anzahl der darin
+	 * ausgeführten Instruktionen und den inklusiven Anteil der aufgerufenen
+	 * Bereiche, gefolgt von den Aufrufen zwischen den Bereichen.
+	 *
+	 * @param out
+	 *        Der Ausgabestrom.
+	 */
+	public void printReport(PrintStream out) {
+		int count = this.names.size() + 1;
+		final long[] self = new long[count];
+		long total = 0;
+		for (int address = 0; address < this.counts.length; ++address) {
+			self[this.regions[address] + 1] += this.counts[address];
+			total += this.counts[address];
+		}
+
+		long[] inclusive = new long[this.names.size()];
+		this.inclusive(this.root, new int[this.names.size()], inclusive);
+		long samples = this.total(this.root);
+
+		List<Integer> order = new ArrayList<Integer>();
+		for (int i = 0; i < count; ++i) {
+			if (self[i] > 0) {
+				order.add(i);
+			}
+		}
+		Collections.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Long.compare(self[b], self[a]);
+			}
+		});
+
+		out.println("Profil: " + total + " Instruktionen");
+		out.println(String.format("%14s %7s %10s  %s", "Instruktionen",
+				"Anteil", "Inklusive", "Bereich"));
+		for (int i : order) {
+			String share = samples == 0 || i == 0 ? "" : String.format(
+					"%.1f%%", 100.0 * inclusive[i - 1] / samples);
+			out.println(String.format("%14d %6.1f%% %10s  %s", self[i],
+					100.0 * self[i] / total, share, this.name(i - 1)));
+		}
+
+		out.println();
+		out.println("Aufrufgraph:");
+		for (Map.Entry<String, Long> call : this.sortedCalls().entrySet()) {
+			out.println(String.format("%14d  %s", call.getValue(), call.getKey()));
+		}
+	}
+
+	/**
+	 * Die Methode liefert die Aufrufe zwischen den Bereichen, sortiert nach
+	 * aufrufendem und aufgerufenem Bereich.
+	 */
+	private Map<String, Long> sortedCalls() {
+		Map<String, Long> sorted = new TreeMap<String, Long>();
+		for (Map.Entry<List<Integer>, Long> call : this.calls.entrySet()) {
+			sorted.put(this.name(call.getKey().get(0)) + " -> "
+					+ this.name(call.getKey().get(1)), call.getValue());
+		}
+		return sorted;
+	}
+
+	/**
+	 * Die Methode gibt die gezählten Aufrufstapel im Format
+	 * <code>Bereich;Bereich;... Anzahl</code> aus, das z.B. flamegraph.pl
+	 * verarbeitet.
+	 *
+	 * @param out
+	 *        Der Ausgabestrom.
+	 */
+	public void printCollapsedStacks(PrintStream out) {
+		for (Node child : this.root.children.values()) {
+			this.printCollapsedStacks(out, child, this.name(child.region));
+		}
+	}
+
+	private void printCollapsedStacks(PrintStream out, Node node, String path) {
+		if (node.samples > 0) {
+			out.println(path + " " + node.samples);
+		}
+		for (Node child : node.children.values()) {
+			this.printCollapsedStacks(out, child,
+					path + ";" + this.name(child.region));
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package org.oopsvm;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.BitSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Die Klasse beschreibt ein assembliertes Programm, das beliebig oft und auch
+ * gleichzeitig ausgeführt werden kann. Das Programm wird nur einmal assembliert
+ * und dekodiert. Jede Ausführung erhält eine eigene virtuelle Maschine mit einer
+ * Kopie des Hauptspeichers, einem eigenen Registersatz und eigenen Ein- und
+ * Ausgabeströmen. Die vordekodierten Instruktionen teilen sich alle virtuellen
+ * Maschinen; nur ein Programm, das seinen eigenen Code verändert, erhält eine
+ * eigene Kopie.
+ *
+ * Die Ausführungen können mit {@link #submit(ExecutorService, InputStream, OutputStream)
+ * submit} auf einem beliebigen {@link ExecutorService} gestartet werden, z.B. einem
+ * {@link java.util.concurrent.ForkJoinPool ForkJoinPool} oder, ab Java 21, mit
+ * <code>Executors.newVirtualThreadPerTaskExecutor()</code> auf virtuellen Threads.
+ */
+public class ProgramImage {
+	/** Der Hauptspeicher zu Beginn des Programms. Er wird nie verändert. */
+	private final int[] memory;
+
+	/** Die Anzahl der Register der virtuellen Maschinen. */
+	private final int registers;
+
+	/** Die vordekodierten Instruktionen, die sich alle virtuellen Maschinen teilen. */
+	private final long[] decoded;
+
+	/** Sollen die Programme in JVM-Bytecode übersetzt werden? */
+	private volatile boolean jit;
+
+	/**
+	 * Konstruiert ein Programmabbild und dekodiert alle Instruktionen. Daten werden
+	 * nicht dekodiert, selbst wenn sie wie eine Instruktion aussehen, da das Programm
+	 * sie beschreiben und damit die vordekodierten Instruktionen ungültig machen würde.
+	 *
+	 * @param memory
+	 *        Der Hauptspeicher mit dem assemblierten Programm. Er wird kopiert.
+	 * @param instructions
+	 *        Die Adressen der Instruktionen (siehe {@link Assembler#getInstructions()}).
+	 *        Instruktionen an anderen Adressen werden in jeder virtuellen Maschine
+	 *        erst bei ihrer Ausführung dekodiert.
+	 * @param registers
+	 *        Die Anzahl der Register der virtuellen Maschinen.
+	 */
+	public ProgramImage(int[] memory, BitSet instructions, int registers) {
+		this.memory = memory.clone();
+		this.registers = registers;
+		this.decoded = new long[memory.length];
+
+		VirtualMachine vm = new VirtualMachine(this.memory, new int[registers]);
+		for (int address = instructions.nextSetBit(0); address >= 0
+				&& address < memory.length; address = instructions
+				.nextSetBit(address + 1)) {
+			this.decoded[address] = vm.decode(address);
+		}
+	}
+
+	/**
+	 * Die Methode assembliert einen Quelltext zu einem Programmabbild.
+	 *
+	 * @param stream
+	 *        Der Quelltext.
+	 * @param registers
+	 *        Die Anzahl der Register der virtuellen Maschinen.
+	 * @return Das Programmabbild.
+	 * @throws IOException
+	 *         Die Ausnahme wird bei Leseproblemen erzeugt.
+	 * @throws AsmException
+	 *         Beim Assemblieren ist ein Fehler aufgetreten.
+	 */
+	public static ProgramImage assemble(InputStream stream, int registers)
+			throws IOException, AsmException {
+		Assembler assembler = new Assembler(false, false);
+		int[] memory = assembler.assemble(stream);
+		return new ProgramImage(memory, assembler.getInstructions(), registers);
+	}
+
+	/**
+	 * @return Die Anzahl der Register der virtuellen Maschinen.
+	 */
+	public int getRegisters() {
+		return this.registers;
+	}
+
+	/**
+	 * Die Methode legt fest, ob die Programme vor der Ausführung in JVM-Bytecode
+	 * übersetzt werden (siehe {@link VirtualMachine#setJit(boolean)}).
+	 *
+	 * @param jit
+	 *        Sollen die Programme übersetzt werden?
+	 */
+	public void setJit(boolean jit) {
+		this.jit = jit;
+	}
+
+	/**
+	 * Die Methode erzeugt eine virtuelle Maschine, die das Programm von Anfang an
+	 * ausführt. Sie kann unabhängig von allen anderen virtuellen Maschinen des
+	 * Programmabbilds in einem eigenen Thread laufen.
+	 *
+	 * @return Die virtuelle Maschine.
+	 */
+	public VirtualMachine newInstance() {
+		VirtualMachine vm = new VirtualMachine(this.memory.clone(),
+				new int[this.registers], this.decoded);
+		vm.setJit(this.jit);
+		return vm;
+	}
+
+	/**
+	 * Die Methode startet eine Ausführung des Programms.
+	 *
+	 * @param executor
+	 *        Der Dienst, der das Programm ausführt.
+	 * @param input
+	 *        Der Strom, aus dem SYS 0 liest.
+	 * @param output
+	 *        Der Strom, in den SYS 1 schreibt.
+	 * @return Das Ergebnis der Ausführung. Es liefert die virtuelle Maschine nach dem
+	 *         Ende des Programms bzw. die {@link VMException} oder {@link IOException},
+	 *         mit der es abgebrochen wurde.
+	 */
+	public Future<VirtualMachine> submit(ExecutorService executor,
+			InputStream input, OutputStream output) {
+		final VirtualMachine vm = this.newInstance();
+		vm.setStreams(input, output);
+		return executor.submit(new Callable<VirtualMachine>() {
+			@Override
+			public VirtualMachine call() throws VMException, IOException {
+				vm.run();
+				return vm;
+			}
+		});
+	}
+}
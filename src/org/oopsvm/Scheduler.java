@@ -0,0 +1,349 @@
+package org.oopsvm;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Die Klasse führt viele virtuelle Maschinen abwechselnd auf einer festen Anzahl von
+ * Threads aus. Jede Maschine führt höchstens eine Zeitscheibe von Instruktionen aus
+ * (siehe {@link VirtualMachine#step(int)}) und wird danach hinten in die Warteschlange
+ * eingereiht. Lang laufende Programme halten die übrigen daher nicht auf.
+ *
+ * Die Eingabe eines Programms wird mit {@link Job#write(byte[])} geliefert und mit
+ * {@link Job#closeInput()} beendet. Ein Programm, das auf eine Eingabe wartet, belegt
+ * keinen Thread, sondern wird erst wieder eingereiht, wenn Zeichen eintreffen oder die
+ * Eingabe beendet wird.
+ */
+public class Scheduler {
+	/** Die Anzahl der Instruktionen einer Zeitscheibe. */
+	private final int timeSlice;
+
+	/** Die Programme, die ausgeführt werden können. */
+	private final LinkedBlockingQueue<Job> ready = new LinkedBlockingQueue<Job>();
+
+	/** Die Threads, auf denen die Programme ausgeführt werden. */
+	private final Thread[] carriers;
+
+	/**
+	 * Konstruktor. Die Threads werden sofort gestartet.
+	 *
+	 * @param threads
+	 *        Die Anzahl der Threads.
+	 * @param timeSlice
+	 *        Die Anzahl der Instruktionen, die ein Programm ausführt, bevor das nächste
+	 *        an die Reihe kommt.
+	 */
+	public Scheduler(int threads, int timeSlice) {
+		if (threads < 1 || timeSlice < 1) {
+			throw new IllegalArgumentException(
+					"Anzahl der Threads und Zeitscheibe müssen positiv sein");
+		}
+
+		this.timeSlice = timeSlice;
+		this.carriers = new Thread[threads];
+		for (int i = 0; i < threads; ++i) {
+			this.carriers[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Scheduler.this.carry();
+				}
+			}, "oopsvm-scheduler-" + i);
+			this.carriers[i].setDaemon(true);
+			this.carriers[i].start();
+		}
+	}
+
+	/**
+	 * Die Methode reiht ein Programm zur Ausführung ein. Die Eingabe der virtuellen
+	 * Maschine wird durch die des Auftrags ersetzt.
+	 *
+	 * @param vm
+	 *        Die virtuelle Maschine, z.B. aus {@link ProgramImage#newInstance()}.
+	 * @param output
+	 *        Der Strom, in den SYS 1 schreibt. Er sollte nicht blockieren.
+	 * @return Der Auftrag.
+	 */
+	public Job submit(VirtualMachine vm, OutputStream output) {
+		Job job = new Job(vm);
+		vm.setStreams(job.input, output);
+		this.ready.add(job);
+		return job;
+	}
+
+	/**
+	 * Die Methode beendet alle Threads. Nicht beendete Programme werden nicht
+	 * fortgesetzt.
+	 */
+	public void shutdown() {
+		for (Thread carrier : this.carriers) {
+			carrier.interrupt();
+		}
+	}
+
+	/**
+	 * Die Methode wird von jedem Thread ausgeführt und führt die eingereihten Programme
+	 * für jeweils eine Zeitscheibe aus.
+	 */
+	private void carry() {
+		while (!Thread.currentThread().isInterrupted()) {
+			Job job;
+			try {
+				job = this.ready.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			job.runSlice();
+		}
+	}
+
+	/**
+	 * Ein Programm, das vom Scheduler ausgeführt wird. Das Ergebnis ist die virtuelle
+	 * Maschine nach dem Ende des Programms bzw. die {@link VMException} oder
+	 * {@link IOException}, mit der es abgebrochen wurde.
+	 */
+	public final class Job implements Future<VirtualMachine> {
+		private final VirtualMachine vm;
+
+		/** Die Eingabe des Programms. */
+		private final Input input = new Input();
+
+		/** Wird beim Ende des Programms ausgelöst. */
+		private final CountDownLatch done = new CountDownLatch(1);
+
+		/** Wartet das Programm außerhalb der Warteschlange auf eine Eingabe? */
+		private boolean parked;
+
+		/** Wurde der Auftrag abgebrochen? */
+		private volatile boolean cancelled;
+
+		/** Der Fehler, mit dem das Programm abgebrochen wurde. */
+		private volatile Exception failure;
+
+		private Job(VirtualMachine vm) {
+			this.vm = vm;
+		}
+
+		/**
+		 * Die Methode führt das Programm für eine Zeitscheibe aus und reiht es danach
+		 * wieder ein, sofern es nicht beendet ist oder auf eine Eingabe wartet.
+		 */
+		private void runSlice() {
+			if (this.isDone()) {
+				return;
+			}
+
+			VirtualMachine.State state;
+			try {
+				state = this.vm.step(Scheduler.this.timeSlice);
+			} catch (VMException e) {
+				this.finish(e);
+				return;
+			} catch (IOException e) {
+				this.finish(e);
+				return;
+			}
+
+			switch (state) {
+				case FINISHED:
+					this.finish(null);
+					break;
+				case SUSPENDED:
+					Scheduler.this.ready.add(this);
+					break;
+				case WAITING:
+					synchronized (this) {
+						if (this.input.isReady() || this.cancelled) {
+							Scheduler.this.ready.add(this);
+						} else {
+							this.parked = true;
+						}
+					}
+					break;
+			}
+		}
+
+		/** Die Methode reiht das Programm wieder ein, wenn es auf eine Eingabe wartet. */
+		private synchronized void wake() {
+			if (this.parked) {
+				this.parked = false;
+				Scheduler.this.ready.add(this);
+			}
+		}
+
+		private void finish(Exception failure) {
+			this.failure = failure;
+			this.done.countDown();
+		}
+
+		/**
+		 * Die Methode hängt Zeichen an die Eingabe des Programms an.
+		 *
+		 * @param data
+		 *        Die Zeichen.
+		 */
+		public void write(byte[] data) {
+			this.input.append(data);
+			this.wake();
+		}
+
+		/**
+		 * Die Methode beendet die Eingabe. SYS 0 liefert danach, sobald alle Zeichen
+		 * gelesen wurden, -1.
+		 */
+		public void closeInput() {
+			this.input.close();
+			this.wake();
+		}
+
+		/**
+		 * @return Die virtuelle Maschine des Auftrags.
+		 */
+		public VirtualMachine getVirtualMachine() {
+			return this.vm;
+		}
+
+		/**
+		 * Die Methode bricht das Programm nach der laufenden Zeitscheibe ab.
+		 */
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			if (this.isDone()) {
+				return false;
+			}
+
+			this.cancelled = true;
+			this.finish(null);
+			this.wake();
+			return true;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return this.cancelled;
+		}
+
+		@Override
+		public boolean isDone() {
+			return this.done.getCount() == 0;
+		}
+
+		@Override
+		public VirtualMachine get() throws InterruptedException,
+				ExecutionException {
+			this.done.await();
+			return this.result();
+		}
+
+		@Override
+		public VirtualMachine get(long timeout, TimeUnit unit)
+				throws InterruptedException, ExecutionException,
+				TimeoutException {
+			if (!this.done.await(timeout, unit)) {
+				throw new TimeoutException();
+			}
+			return this.result();
+		}
+
+		private VirtualMachine result() throws ExecutionException {
+			if (this.cancelled) {
+				throw new CancellationException();
+			} else if (this.failure != null) {
+				throw new ExecutionException(this.failure);
+			}
+			return this.vm;
+		}
+	}
+
+	/**
+	 * Die Eingabe eines Auftrags. Die virtuelle Maschine prüft vor SYS 0 mit
+	 * {@link #isReady()}, ob sie lesen kann, ohne zu warten.
+	 */
+	static final class Input extends InputStream {
+		private byte[] data = new byte[0];
+
+		/** Die Position des nächsten Zeichens. */
+		private int position;
+
+		/** Die Anzahl der Zeichen in {@link #data data}. */
+		private int length;
+
+		/** Wurde die Eingabe beendet? */
+		private boolean closed;
+
+		synchronized void append(byte[] bytes) {
+			if (this.closed) {
+				throw new IllegalStateException("Die Eingabe wurde bereits beendet");
+			}
+
+			/* Gelesene Zeichen werden verworfen. */
+			if (this.length - this.position + bytes.length > this.data.length) {
+				this.data = Arrays.copyOfRange(this.data, this.position,
+						Math.max(2 * this.data.length, this.length
+								- this.position + bytes.length));
+			} else {
+				System.arraycopy(this.data, this.position, this.data, 0,
+						this.length - this.position);
+			}
+			this.length -= this.position;
+			this.position = 0;
+
+			System.arraycopy(bytes, 0, this.data, this.length, bytes.length);
+			this.length += bytes.length;
+			this.notifyAll();
+		}
+
+		/**
+		 * @return Kann ein Zeichen oder das Ende der Eingabe gelesen werden, ohne zu
+		 *         warten?
+		 */
+		synchronized boolean isReady() {
+			return this.position < this.length || this.closed;
+		}
+
+		@Override
+		public synchronized void close() {
+			this.closed = true;
+			this.notifyAll();
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return this.read(b, 0, 1) <= 0 ? -1 : b[0] & 0xff;
+		}
+
+		/**
+		 * Die Methode liest die vorhandenen Zeichen. Nur wenn keine vorhanden sind, wird
+		 * auf weitere gewartet.
+		 */
+		@Override
+		public synchronized int read(byte[] b, int off, int len)
+				throws IOException {
+			while (this.position == this.length && !this.closed) {
+				try {
+					this.wait();
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+			}
+
+			if (this.position == this.length) {
+				return -1;
+			}
+
+			int count = Math.min(len, this.length - this.position);
+			System.arraycopy(this.data, this.position, b, off, count);
+			this.position += count;
+			return count;
+		}
+	}
+}
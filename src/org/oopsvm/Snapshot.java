@@ -0,0 +1,310 @@
+package org.oopsvm;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Die Klasse beschreibt den gesicherten Zustand eines laufenden Programms. Aus einem
+ * Speicherabbild können beliebig viele virtuelle Maschinen erzeugt werden, die das
+ * Programm an der gesicherten Stelle fortsetzen. Wird es vor dem ersten SYS 0 erstellt
+ * (siehe {@link #capture(int[], int) capture}), entfällt bei jeder Ausführung die
+ * Initialisierung des Programms.
+ *
+ * Aufbau der Datei (alle Zahlen im Big-Endian-Format, Segmente wie in einer
+ * {@link ObjectFile Objektdatei}, zur Speicherverwaltung siehe
+ * {@link GarbageCollector#write(java.io.DataOutputStream) GarbageCollector}):
+ *
+ * <pre>
+ * file    ::= header { segment } word{registerCount} heap output checksum
+ * header  ::= MAGIC VERSION memorySize segmentCount registerCount
+ * heap    ::= 0 | 1 heapState
+ * output  ::= length byte{length}
+ * </pre>
+ */
+public class Snapshot {
+	/** Die Kennung eines Speicherabbilds ("OOPZ"). */
+	public static final int MAGIC = 0x4f4f505a;
+
+	/** Die Version des Formats. */
+	public static final int VERSION = 1;
+
+	/** Der Inhalt des Hauptspeichers. */
+	private final int[] memory;
+
+	/** Der Inhalt der Register. */
+	private final int[] registers;
+
+	/** Die Speicherverwaltung für {@link #memory} oder null. */
+	private final GarbageCollector heap;
+
+	/** Die Ausgabe des Programms bis zur Sicherung. */
+	private final byte[] output;
+
+	/**
+	 * Konstruktor. Die Daten werden übernommen.
+	 *
+	 * @param memory
+	 *        Der Hauptspeicher.
+	 * @param registers
+	 *        Der Registersatz.
+	 * @param heap
+	 *        Die Speicherverwaltung für den Hauptspeicher und die Register oder null,
+	 *        wenn kein Heap eingerichtet wurde.
+	 * @param output
+	 *        Die Ausgabe des Programms bis zur Sicherung.
+	 */
+	private Snapshot(int[] memory, int[] registers, GarbageCollector heap,
+			byte[] output) {
+		this.memory = memory;
+		this.registers = registers;
+		this.heap = heap;
+		this.output = output;
+	}
+
+	/**
+	 * Die Methode sichert den Zustand einer virtuellen Maschine. Hauptspeicher,
+	 * Register und Speicherverwaltung werden kopiert.
+	 *
+	 * @param memory
+	 *        Der Hauptspeicher.
+	 * @param registers
+	 *        Der Registersatz.
+	 * @param heap
+	 *        Die Speicherverwaltung oder null, wenn kein Heap eingerichtet wurde.
+	 * @param output
+	 *        Die Ausgabe des Programms bis zur Sicherung.
+	 * @return Das Speicherabbild.
+	 */
+	static Snapshot copyOf(int[] memory, int[] registers,
+			GarbageCollector heap, byte[] output) {
+		int[] memoryCopy = memory.clone();
+		int[] registersCopy = registers.clone();
+		return new Snapshot(memoryCopy, registersCopy, heap == null ? null
+				: new GarbageCollector(heap, memoryCopy, registersCopy),
+				output.clone());
+	}
+
+	/**
+	 * Die Methode führt ein Programm bis vor das erste SYS 0 aus und sichert seinen
+	 * Zustand. Die Ausgabe bis dahin wird im Speicherabbild vermerkt.
+	 *
+	 * @param memory
+	 *        Der Hauptspeicher mit dem assemblierten Programm. Er wird nicht verändert.
+	 * @param registers
+	 *        Die Anzahl der Register.
+	 * @return Das Speicherabbild.
+	 * @throws VMException
+	 *         Das Programm ist vor dem ersten SYS 0 abgebrochen.
+	 * @throws IOException
+	 */
+	public static Snapshot capture(int[] memory, int registers)
+			throws VMException, IOException {
+		VirtualMachine vm = new VirtualMachine(memory.clone(),
+				new int[registers]);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		vm.setStreams(new ByteArrayInputStream(new byte[0]), output);
+		vm.runToInput();
+		return vm.snapshot(output.toByteArray());
+	}
+
+	/**
+	 * @return Der Inhalt des Hauptspeichers. Er darf nicht verändert werden.
+	 */
+	public int[] getMemory() {
+		return this.memory;
+	}
+
+	/**
+	 * @return Die Anzahl der Register.
+	 */
+	public int getRegisters() {
+		return this.registers.length;
+	}
+
+	/**
+	 * @return Die Ausgabe des Programms bis zur Sicherung.
+	 */
+	public byte[] getOutput() {
+		return this.output.clone();
+	}
+
+	/**
+	 * Die Methode erzeugt eine virtuelle Maschine, die das Programm an der gesicherten
+	 * Stelle fortsetzt. Die Ausgabe bis zur Sicherung wird nicht wiederholt.
+	 *
+	 * @return Die virtuelle Maschine.
+	 */
+	public VirtualMachine newInstance() {
+		int[] memory = this.memory.clone();
+		int[] registers = this.registers.clone();
+		VirtualMachine vm = new VirtualMachine(memory, registers);
+		if (this.heap != null) {
+			vm.setHeap(new GarbageCollector(this.heap, memory, registers));
+		}
+		return vm;
+	}
+
+	/**
+	 * Die Methode erzeugt eine virtuelle Maschine, die das Programm an der gesicherten
+	 * Stelle fortsetzt, und schreibt die Ausgabe bis zur Sicherung in den Ausgabestrom.
+	 * Die Ausgabe ist danach dieselbe wie bei einer Ausführung von Anfang an.
+	 *
+	 * @param input
+	 *        Der Strom, aus dem SYS 0 liest.
+	 * @param output
+	 *        Der Strom, in den SYS 1 schreibt.
+	 * @return Die virtuelle Maschine.
+	 * @throws IOException
+	 */
+	public VirtualMachine newInstance(InputStream input, OutputStream output)
+			throws IOException {
+		output.write(this.output);
+		VirtualMachine vm = this.newInstance();
+		vm.setStreams(input, output);
+		return vm;
+	}
+
+	/**
+	 * Die Methode schreibt das Speicherabbild in einen Datenstrom.
+	 *
+	 * @param stream
+	 *        Der Datenstrom. Er wird nicht geschlossen.
+	 * @throws IOException
+	 */
+	public void write(OutputStream stream) throws IOException {
+		CRC32 crc = new CRC32();
+		BufferedOutputStream buffered = new BufferedOutputStream(stream);
+		DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+				buffered, crc));
+
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(this.memory.length);
+		out.writeInt(ObjectFile.countSegments(this.memory));
+		out.writeInt(this.registers.length);
+		ObjectFile.writeSegments(out, this.memory);
+
+		for (int register : this.registers) {
+			out.writeInt(register);
+		}
+
+		if (this.heap == null) {
+			out.writeInt(0);
+		} else {
+			out.writeInt(1);
+			this.heap.write(out);
+		}
+
+		out.writeInt(this.output.length);
+		out.write(this.output);
+
+		out.flush();
+		new DataOutputStream(buffered).writeInt((int) crc.getValue());
+		buffered.flush();
+	}
+
+	/**
+	 * Die Methode schreibt das Speicherabbild.
+	 *
+	 * @param file
+	 *        Die Datei.
+	 * @throws IOException
+	 */
+	public void write(File file) throws IOException {
+		try (FileOutputStream stream = new FileOutputStream(file)) {
+			this.write(stream);
+		}
+	}
+
+	/**
+	 * Die Methode prüft, ob eine Datei mit der Kennung eines Speicherabbilds beginnt.
+	 *
+	 * @param file
+	 *        Die Datei.
+	 * @return Ist die Datei ein Speicherabbild?
+	 * @throws IOException
+	 */
+	public static boolean isSnapshot(File file) throws IOException {
+		try (DataInputStream stream = new DataInputStream(new FileInputStream(
+				file))) {
+			return file.length() >= 4 && stream.readInt() == MAGIC;
+		}
+	}
+
+	/**
+	 * Die Methode lädt ein Speicherabbild, indem es in den Speicher eingeblendet wird.
+	 *
+	 * @param file
+	 *        Die Datei.
+	 * @return Das Speicherabbild.
+	 * @throws IOException
+	 *         Die Datei kann nicht gelesen werden oder ist ungültig.
+	 */
+	public static Snapshot read(File file) throws IOException {
+		try (FileChannel channel = new FileInputStream(file).getChannel()) {
+			return read(channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					channel.size()));
+		}
+	}
+
+	/**
+	 * Die Methode liest ein Speicherabbild aus einem Puffer.
+	 *
+	 * @param buffer
+	 *        Der Puffer, der das gesamte Speicherabbild enthält.
+	 * @return Das Speicherabbild.
+	 * @throws IOException
+	 *         Das Speicherabbild ist ungültig.
+	 */
+	public static Snapshot read(ByteBuffer buffer) throws IOException {
+		buffer = ObjectFile.verifyChecksum(buffer, 32);
+
+		try {
+			if (buffer.getInt() != MAGIC) {
+				throw new IOException("Kein Speicherabbild");
+			}
+			int version = buffer.getInt();
+			if (version != VERSION) {
+				throw new IOException(
+						"Nicht unterstützte Version des Speicherabbilds: "
+								+ version);
+			}
+
+			int memorySize = buffer.getInt();
+			int segments = buffer.getInt();
+			int registerCount = buffer.getInt();
+			if (memorySize < 0 || segments < 0 || registerCount < 1) {
+				throw new IOException("Ungültiger Kopf des Speicherabbilds");
+			}
+
+			int[] memory = new int[memorySize];
+			ObjectFile.readSegments(buffer, memory, segments);
+
+			int[] registers = new int[registerCount];
+			buffer.asIntBuffer().get(registers);
+			buffer.position(buffer.position() + registerCount * 4);
+
+			GarbageCollector heap = buffer.getInt() == 0 ? null
+					: new GarbageCollector(buffer, memory, registers);
+
+			byte[] output = new byte[buffer.getInt()];
+			buffer.get(output);
+			return new Snapshot(memory, registers, heap, output);
+		} catch (RuntimeException e) {
+			/* BufferUnderflowException, NegativeArraySizeException usw. */
+			throw new IOException("Speicherabbild ist beschädigt");
+		}
+	}
+}
@@ -0,0 +1,35 @@
+package org.oopsvm;
+
+/**
+ * Schnittstelle für Beobachter der Programmausführung. Ist ein Beobachter
+ * gesetzt, führt die virtuelle Maschine das Programm mit einem langsameren
+ * Interpreter aus, der den Beobachter vor und nach jeder Instruktion
+ * benachrichtigt. Ohne Beobachter entstehen keine zusätzlichen Kosten.
+ */
+public interface Tracer {
+	/**
+	 * Die Methode wird aufgerufen, nachdem eine Instruktion gelesen wurde und bevor
+	 * sie ausgeführt wird.
+	 *
+	 * @param vm
+	 *        Die virtuelle Maschine.
+	 * @param address
+	 *        Die Adresse der Instruktion.
+	 * @param instruction
+	 *        Die Kodierung der Instruktion.
+	 * @param param1
+	 *        Der erste Parameter.
+	 * @param param2
+	 *        Der zweite Parameter.
+	 */
+	void beforeInstruction(VirtualMachine vm, int address, int instruction,
+			int param1, int param2);
+
+	/**
+	 * Die Methode wird nach der Ausführung einer Instruktion aufgerufen.
+	 *
+	 * @param vm
+	 *        Die virtuelle Maschine.
+	 */
+	void afterInstruction(VirtualMachine vm);
+}
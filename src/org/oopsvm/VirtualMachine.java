@@ -2,6 +2,9 @@ package org.oopsvm;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * Die Klasse implementiert eine virtuelle Maschine für einen einfachen
@@ -16,52 +19,52 @@ public class VirtualMachine {
 	 * MRI reg, num.
 	 * Diese Instruktion speichert die Zahl num im Register reg.
 	 */
-	private final int MRI = 0;
+	static final int MRI = 0;
 
 	/**
 	 * MRR reg1, reg2.
 	 * Diese Instruktion speichert den Inhalt von Register <i>reg2</i> im Register <i>reg1</i>.
 	 */
-	private final int MRR = 1;
+	static final int MRR = 1;
 
 	/**
 	 * MRM reg1, (reg2).
 	 * Diese Instruktion speichert den Inhalt der Speicherstelle, auf die Register <i>reg2</i>
 	 * zeigt, im Register <i>reg1</i>.
 	 */
-	private final int MRM = 2;
+	static final int MRM = 2;
 
 	/**
 	 * MMR (reg1), reg2.
 	 * Diese Instruktion speichert den Inhalt von Register <i>reg2</i> in der Speicherstelle,
 	 * auf die Register <i>reg1</i> zeigt.
 	 */
-	private final int MMR = 3;
+	static final int MMR = 3;
 
 	/**
 	 * ADD reg1, reg2.
 	 * Diese Instruktion addiert den Inhalt von Register <i>reg2</i> zum Register <i>reg1</i>.
 	 */
-	private final int ADD = 4;
+	static final int ADD = 4;
 
 	/**
 	 * SUB reg1, reg2.
 	 * Diese Instruktion subtrahiert den Inhalt von Register <i>reg2</i> vom Register <i>reg1</i>.
 	 */
-	private final int SUB = 5;
+	static final int SUB = 5;
 
 	/**
 	 * MUL reg1, reg2.
 	 * Diese Instruktion multipliziert den Inhalt von Register <i>reg2</i> zum Register <i>reg1</i>.
 	 */
-	private final int MUL = 6;
+	static final int MUL = 6;
 
 	/**
 	 * DIV reg1, reg2.
 	 * Diese Instruktion dividiert das Register <i>reg1</i> durch den Inhalt von Register
 	 * <i>reg2</i>.
 	 */
-	private final int DIV = 7;
+	static final int DIV = 7;
 
 	/**
 	 * MOD reg1, reg2.
@@ -69,28 +72,28 @@ public class VirtualMachine {
 	 * <i>reg2</i>
 	 * in Register <i>reg1</i>.
 	 */
-	private final int MOD = 8;
+	static final int MOD = 8;
 
 	/**
 	 * AND reg1, reg2.
 	 * Diese Instruktion und-verknüpft den Inhalt von Register <i>reg2</i> in das Register
 	 * <i>reg1</i>.
 	 */
-	private final int AND = 9;
+	static final int AND = 9;
 
 	/**
 	 * OR reg1, reg2.
 	 * Diese Instruktion oder-verknüpft den Inhalt von Register <i>reg2</i> in das Register
 	 * <i>reg1</i>.
 	 */
-	private final int OR = 10;
+	static final int OR = 10;
 
 	/**
 	 * XOR reg1, reg2.
 	 * Diese Instruktion exklusiv-oder-verknüpft den Inhalt von Register <i>reg2</i> in das Register
 	 * <i>reg1</i>.
 	 */
-	private final int XOR = 11;
+	static final int XOR = 11;
 
 	/**
 	 * ISZ reg1, reg2.
@@ -98,7 +101,7 @@ public class VirtualMachine {
 	 * <i>reg2</i>
 	 * null ist, ansonsten auf null.
 	 */
-	private final int ISZ = 12;
+	static final int ISZ = 12;
 
 	/**
 	 * ISP reg1, reg2.
@@ -106,7 +109,7 @@ public class VirtualMachine {
 	 * <i>reg2</i>
 	 * größer als null ist, ansonsten auf null.
 	 */
-	private final int ISP = 13;
+	static final int ISP = 13;
 
 	/**
 	 * ISP reg1, reg2.
@@ -114,7 +117,7 @@ public class VirtualMachine {
 	 * <i>reg2</i>
 	 * kleiner als null ist, ansonsten auf null.
 	 */
-	private final int ISN = 14;
+	static final int ISN = 14;
 
 	/**
 	 * JPC reg1, addr.
@@ -122,22 +125,108 @@ public class VirtualMachine {
 	 * Inhalt des
 	 * Registers <i>reg1</i> ungleich null ist.
 	 */
-	private final int JPC = 15;
+	static final int JPC = 15;
 
 	/**
 	 * SYS num1, num2.
 	 * Diese Instruktion ruft eine Systemfunktion auf. <i>num1</i> ist dabei die Nummer der
 	 * Funktion,
-	 * <i>num2</i> ein funktionsabhängiger Parameter. Momentan sind nur zwei Funktionen definiert:
+	 * <i>num2</i> ein funktionsabhängiger Parameter. Folgende Funktionen sind definiert:
 	 * <ul>
 	 * <li>0: Es wird ein Zeichen von der Konsole eingelesen. Das Zeichen wird in dem Register mit
 	 * der Nummer <i>num2</i> abgelegt. Das Ende des Eingabestroms wird durch das Zeichen -1
 	 * symbolisiert.</li>
 	 * <li>1: Es wird ein Zeichen auf der Konsole ausgegeben. Das Zeichen wird aus dem Register mit
 	 * der Nummer <i>num2</i> gelesen.</li>
+	 * <li>2: Es wird ein Objekt auf dem Heap alloziert. Das Register mit der Nummer <i>num2</i>
+	 * enthält die Adresse der Methodentabelle der Klasse und erhält die Adresse des Objekts.
+	 * Reicht der Heap nicht aus, werden nicht mehr erreichbare Objekte freigegeben (siehe
+	 * {@link GarbageCollector}).</li>
+	 * <li>3: Der Heap wird eingerichtet. Das Register mit der Nummer <i>num2</i> enthält die
+	 * Adresse der Heap-Beschreibung.</li>
+	 * <li>4: Der Behandler einer Ausnahme wird gesucht (siehe {@link #unwind(int)}). Das
+	 * Register mit der Nummer <i>num2</i> enthält die Adresse der Ausnahmetabelle und
+	 * erhält die Adresse des Behandlers. R3 wird auf den Stapelrahmen der Methode gesetzt,
+	 * die den Behandler enthält.</li>
+	 * <li>5: Es wird eine Zeichenkette auf der Konsole ausgegeben. Das Register mit der Nummer
+	 * <i>num2</i> enthält ihre Adresse. Die erste Speicherstelle enthält die Länge, danach
+	 * folgen die Zeichen (siehe {@link #writeString(int)}).</li>
+	 * <li>6: Es wird eine Zeile von der Konsole eingelesen. Das Register mit der Nummer
+	 * <i>num2</i> enthält die Adresse eines Puffers, dessen erste Speicherstelle seine
+	 * Kapazität enthält und danach die Anzahl der gelesenen Zeichen erhält (siehe
+	 * {@link #readLine(int)}).</li>
 	 * </ul>
 	 */
-	private final int SYS = 16;
+	static final int SYS = 16;
+
+	/*
+	 * Superinstruktionen. Sie fassen Folgen von Instruktionen zusammen, die der Übersetzer
+	 * häufig erzeugt, und werden nur verwendet, wenn er mit --superinstructions aufgerufen
+	 * wird. PSH und POP setzen wie der Übersetzer voraus, dass R1 eins enthält.
+	 */
+
+	/**
+	 * PSH reg1, reg2.
+	 * Diese Instruktion erhöht das Register <i>reg1</i> um eins und speichert den Inhalt von
+	 * Register <i>reg2</i> in der Speicherstelle, auf die <i>reg1</i> danach zeigt. Sie
+	 * entspricht ADD reg1, R1 und MMR (reg1), reg2.
+	 */
+	static final int PSH = 17;
+
+	/**
+	 * POP reg1, reg2.
+	 * Diese Instruktion speichert den Inhalt der Speicherstelle, auf die Register <i>reg2</i>
+	 * zeigt, im Register <i>reg1</i> und verringert danach <i>reg2</i> um eins. Sie entspricht
+	 * MRM reg1, (reg2) und SUB reg2, R1.
+	 */
+	static final int POP = 18;
+
+	/**
+	 * ADI reg, num.
+	 * Diese Instruktion addiert die Zahl <i>num</i> zum Register <i>reg</i>.
+	 */
+	static final int ADI = 19;
+
+	/**
+	 * JPZ reg1, addr.
+	 * Diese Instruktion schreibt <i>addr</i> in den Instruktionszeiger (Register R0), wenn der
+	 * Inhalt des Registers <i>reg1</i> null ist.
+	 */
+	static final int JPZ = 20;
+
+	/**
+	 * LDO reg, num.
+	 * Diese Instruktion speichert den Inhalt der Speicherstelle, deren Adresse die Summe aus
+	 * dem Inhalt des Registers <i>reg</i> und der Zahl <i>num</i> ist, im Register <i>reg</i>.
+	 * Sie entspricht ADI reg, num und MRM reg, (reg), z.B. beim Lesen eines Attributs.
+	 */
+	static final int LDO = 21;
+
+	/*
+	 * Kodierungen der vordekodierten Instruktionen. Die Werte 1 bis 22 entsprechen den
+	 * Instruktionen MRI bis LDO, jeweils um eins verschoben. Die folgenden Werte sind
+	 * Spezialisierungen für Sprünge, die der Übersetzer häufig erzeugt.
+	 */
+
+	/** Noch nicht dekodiert. Die Instruktion wird bei ihrer ersten Ausführung dekodiert. */
+	static final int UNDECODED = 0;
+
+	/** MRI R0, addr: Unbedingter Sprung. */
+	static final int JMP = 23;
+
+	/** MRR R0, reg: Sprung an die Adresse in einem Register (Rücksprung aus einer Methode). */
+	static final int JMPR = 24;
+
+	/** MRM R0, (reg): Sprung an die Adresse in einer Speicherstelle (Methodentabelle). */
+	static final int JMPM = 25;
+
+	/**
+	 * Die Instruktion kann nicht vordekodiert werden (ungültige Instruktion, ungültiges
+	 * Register, Zugriff auf R0 oder Ende des Speichers) und wird daher von
+	 * {@link #executeInstruction() executeInstruction} ausgeführt, das auch alle
+	 * Fehlermeldungen erzeugt.
+	 */
+	static final int GENERIC = 26;
 
 	/** Der Hauptspeicher. Er enthält das Programm und alle Daten. */
 	private final int[] memory;
@@ -145,115 +234,242 @@ public class VirtualMachine {
 	/** Der Registersatz. */
 	private final int[] registers;
 
-	/** Sollen die ausgeführten Instruktionen angezeigt werden? */
-	private final boolean showInstructions;
+	/**
+	 * Die vordekodierten Instruktionen. Für jede Adresse, an der bereits eine Instruktion
+	 * ausgeführt wurde, enthält das Feld die Kodierung (Bits 48 bis 55), den ersten
+	 * Parameter (Bits 32 bis 47) sowie den zweiten Parameter (Bits 0 bis 31). Schreibt
+	 * das Programm in eine Speicherstelle, werden alle Instruktionen, die diese
+	 * Speicherstelle überdecken, verworfen und bei der nächsten Ausführung neu dekodiert.
+	 */
+	private long[] decoded;
 
-	/** Soll der Speicherinhalt nach jeder ausgeführten Instruktion angezeigt werden? */
-	private final boolean showMemory;
+	/**
+	 * Gehören die vordekodierten Instruktionen einem {@link ProgramImage Programmabbild}
+	 * und werden mit anderen virtuellen Maschinen geteilt? Sie werden dann vor der
+	 * ersten Änderung kopiert.
+	 */
+	private boolean sharedDecoded;
 
-	/** Soll der Registersatz nach jeder ausgeführten Instruktion angezeigt werden? */
-	private final boolean showRegisters;
+	/**
+	 * Der Speicherbereich, den der zuletzt ausgeführte Systemaufruf beschrieben hat, von
+	 * <i>writtenStart</i> bis ausschließlich <i>writtenEnd</i>. Der JIT-Übersetzer prüft
+	 * damit, ob übersetzter Code verändert wurde.
+	 */
+	private int writtenStart, writtenEnd;
 
-	/** Zeige R2 Speicherauszug vorwärts */
-	private final boolean showR2f;
+	/**
+	 * Die Anzahl der Änderungen an übersetztem Code, nach der die Ausführung mit dem
+	 * Interpreter fortgesetzt wird.
+	 */
+	private static final int MAX_INVALIDATIONS = 16;
+
+	/** Soll das Programm in JVM-Bytecode übersetzt werden? */
+	private boolean jit;
+
+	/** Die Speicherverwaltung oder null, solange das Programm keinen Heap eingerichtet hat. */
+	private GarbageCollector heap;
 
-	/** Zeige R2 Speicherauszug rückwärts */
-	private final boolean showR2b;
+	/** Der Beobachter der Ausführung oder null, wenn keiner gesetzt ist. */
+	private Tracer tracer;
+
+	/**
+	 * Der Zustand eines Programms nach {@link VirtualMachine#step(int) step}.
+	 */
+	public enum State {
+		/** Das Programm ist beendet. */
+		FINISHED,
 
-	/** Zeige R4 Speicherauszug vorwärts */
-	private final boolean showR4f;
+		/** Die Anzahl der Instruktionen ist erschöpft. */
+		SUSPENDED,
+
+		/** Das Programm wartet mit SYS 0 auf eine Eingabe. */
+		WAITING
+	}
+
+	/**
+	 * Soll die Ausführung vor SYS 0 unterbrochen werden, wenn die Eingabe eines
+	 * {@link Scheduler} noch keine Zeichen enthält?
+	 */
+	private boolean suspendOnInput;
 
-	/** Zeige R4 Speicherauszug rückwärts */
-	private final boolean showR4b;
+	/** Wurde die Ausführung unterbrochen, weil das Programm auf eine Eingabe wartet? */
+	private boolean waiting;
+
+	/** Soll die Ausführung vor jedem SYS 0 unterbrochen werden (siehe {@link #runToInput()})? */
+	private boolean stopAtInput;
+
+	/** Die Größe der Puffer für die Ein- und Ausgabe. */
+	private static final int BUFFER_SIZE = 8192;
 
 	private InputStream input = System.in;
 	private OutputStream output = System.out;
 
+	/** Der Puffer für die Eingabe. */
+	private final byte[] inputBuffer = new byte[BUFFER_SIZE];
+
+	/** Die Position des nächsten Zeichens im Eingabepuffer. */
+	private int inputPosition;
+
+	/** Die Anzahl der Zeichen im Eingabepuffer. */
+	private int inputLength;
+
+	/** Der Puffer für die Ausgabe. */
+	private final byte[] outputBuffer = new byte[BUFFER_SIZE];
+
+	/** Die Anzahl der Zeichen im Ausgabepuffer. */
+	private int outputLength;
+
 	/**
-	 * Die Methode gibt die aktuelle Instruktion aus, wenn {@link #showInstrutions showInstrutions}
-	 * aktiviert ist.
+	 * Die Methode liest ein Zeichen aus dem Eingabestrom. Vorher wird die gepufferte
+	 * Ausgabe geschrieben, damit eine Eingabeaufforderung sichtbar ist.
 	 *
-	 * @param text
-	 *        Die Instruktion mit ihren Parametern.
+	 * @return Das Zeichen oder -1 am Ende des Eingabestroms.
+	 * @throws IOException
 	 */
-	private void printInstruction(String text) {
-		if (this.showInstructions) {
-			System.out.format("%08x  %s%n", this.registers[0] - 3, text);
+	private int read() throws IOException {
+		if (this.inputPosition == this.inputLength) {
+			this.flush();
+			int length = this.input.read(this.inputBuffer);
+			if (length <= 0) {
+				return -1;
+			}
+			this.inputPosition = 0;
+			this.inputLength = length;
 		}
+		return this.inputBuffer[this.inputPosition++] & 0xff;
 	}
 
 	/**
-	 * Die Methode gibt den Hauptspeicher aus, wenn {@link #showMemory showMemory} aktiviert ist.
+	 * Die Methode prüft, ob SYS 0 ein Zeichen lesen kann, ohne zu warten. Nur die
+	 * Eingabe eines {@link Scheduler Schedulers} kann leer sein.
+	 *
+	 * @return Kann ein Zeichen oder das Ende des Eingabestroms gelesen werden?
 	 */
-	private void printMemory() {
-		if (this.showMemory) {
-			String text = "";
-			for (int m : this.memory) {
-				text += m + " ";
-			}
-			System.out.println(text);
+	private boolean isInputReady() {
+		return this.inputPosition < this.inputLength
+				|| !(this.input instanceof Scheduler.Input)
+				|| ((Scheduler.Input) this.input).isReady();
+	}
+
+	/**
+	 * Die Methode prüft vor der Ausführung eines Systemaufrufs, ob das Programm auf eine
+	 * Eingabe warten müsste und daher unterbrochen wird.
+	 *
+	 * @param function
+	 *        Die Nummer der Systemfunktion.
+	 * @return Wird die Ausführung unterbrochen?
+	 */
+	private boolean mustWait(int function) {
+		if ((function == 0 || function == 6) && this.suspendOnInput
+				&& (this.stopAtInput || !this.isInputReady())) {
+			this.waiting = true;
+			return true;
 		}
+		return false;
 	}
 
 	/**
-	 * Die Methode gibt den Registersatz aus, wenn {@link #showRegisters showRegisters} aktiviert
-	 * ist.
+	 * Die Methode schreibt ein Zeichen in den Ausgabepuffer.
+	 *
+	 * @param value
+	 *        Das Zeichen. Es werden nur die unteren acht Bits ausgegeben.
+	 * @throws IOException
 	 */
-	private void printRegisters() {
-		if (this.showRegisters) {
-			String text = "";
-			for (int i = 0; i < this.registers.length; ++i) {
-				text += "R" + i + "=" + this.registers[i] + " ";
-			}
-			System.out.println(text);
+	private void write(int value) throws IOException {
+		if (this.outputLength == this.outputBuffer.length) {
+			this.flush();
 		}
+		this.outputBuffer[this.outputLength++] = (byte) value;
 	}
 
 	/**
-	 * Hilfsfunktion für {@link VirtualMachine#printStacks() printStacks}.
+	 * Die Methode schreibt eine Zeichenkette aus dem Speicher in den Ausgabepuffer. Der
+	 * Bereich wird nur einmal geprüft und dann blockweise kopiert.
 	 *
-	 * @param register
-	 *        Nummer des Registers, das die Basisadresse enthält
-	 * @param upDown
-	 *        ist -1 oder 1 für Abwärts/Aufwärts.
-	 * @return Einen Text, der einen Ausschnitt des Stacks in lesbarer Form
-	 *         enthält, die Adresse 'register' zusätzlich mit '*' markiert.
-	 */
-	private String mem(int register, int upDown) {
-		int limit = 20;
-		String t = "";
-		for (int i = -2; i < limit; i++) {
-			int r = this.registers[register] + upDown * i;
-			t += i == 0 ? "*" : "";
-			if (r < 0) {
-				t += "- ";
-			} else if (r > this.memory.length) {
-				t += "+ ";
-			} else {
-				t += this.memory[r] + " ";
+	 * @param address
+	 *        Die Adresse der Zeichenkette. Die Speicherstelle enthält ihre Länge, die
+	 *        folgenden Speicherstellen die Zeichen.
+	 * @throws VMException
+	 *         Die Zeichenkette liegt nicht vollständig im Speicher.
+	 * @throws IOException
+	 */
+	private void writeString(int address) throws VMException, IOException {
+		final int[] memory = this.memory;
+		if (address < 0 || address >= memory.length || memory[address] < 0
+				|| (long) address + 1 + memory[address] > memory.length) {
+			throw new VMException("Ungültige Zeichenkette an Adresse " + address);
+		}
+
+		int position = address + 1;
+		int end = position + memory[address];
+		while (position < end) {
+			if (this.outputLength == this.outputBuffer.length) {
+				this.flush();
 			}
+			int count = Math.min(end - position, this.outputBuffer.length
+					- this.outputLength);
+			for (int i = 0; i < count; ++i) {
+				this.outputBuffer[this.outputLength + i] = (byte) memory[position + i];
+			}
+			this.outputLength += count;
+			position += count;
 		}
-		return t;
 	}
 
 	/**
-	 * Ausgabe von Speicherauszügen ausgehend von den in Registern R2 bzw.
-	 * R4 gespeicherten Adressen. Dies kann man zur Anzeige von Stack-Inhalten
-	 * benutzen.
+	 * Die Methode liest eine Zeile aus dem Eingabestrom in den Speicher. Das Lesen endet
+	 * nach einem Zeilenumbruch, der mitgespeichert wird, bei vollem Puffer, am Ende des
+	 * Eingabestroms oder wenn die Eingabe eines {@link Scheduler Schedulers} vorerst
+	 * erschöpft ist. Das Ergebnis kann mit SYS 5 wieder ausgegeben werden.
+	 *
+	 * @param address
+	 *        Die Adresse des Puffers. Die Speicherstelle enthält seine Kapazität und erhält
+	 *        die Anzahl der gelesenen Zeichen, die in den folgenden Speicherstellen abgelegt
+	 *        werden. 0 Zeichen bedeuten das Ende des Eingabestroms.
+	 * @throws VMException
+	 *         Der Puffer liegt nicht vollständig im Speicher.
+	 * @throws IOException
 	 */
-	private void printStacks() {
-		if (this.showR2f) {
-			System.out.println("R2 forward: " + this.mem(2, 1));
+	private void readLine(int address) throws VMException, IOException {
+		final int[] memory = this.memory;
+		if (address < 0 || address >= memory.length || memory[address] < 0
+				|| (long) address + 1 + memory[address] > memory.length) {
+			throw new VMException("Ungültiger Puffer an Adresse " + address);
 		}
-		if (this.showR2b) {
-			System.out.println("R2 backward: " + this.mem(2, -1));
+
+		int capacity = memory[address];
+		int length = 0;
+		while (length < capacity && (length == 0 || this.isInputReady())) {
+			int value = this.read();
+			if (value == -1) {
+				break;
+			}
+			memory[address + 1 + length++] = value;
+			if (value == '\n') {
+				break;
+			}
 		}
-		if (this.showR4f) {
-			System.out.println("R4 forward: " + this.mem(4, 1));
+		memory[address] = length;
+
+		/* Der Puffer darf Code überdecken. */
+		for (int i = address; i <= address + length; ++i) {
+			this.invalidate(i);
 		}
-		if (this.showR4b) {
-			System.out.println("R4 backward: " + this.mem(4, -1));
+		this.writtenStart = address;
+		this.writtenEnd = address + length + 1;
+	}
+
+	/**
+	 * Die Methode schreibt die gepufferte Ausgabe in den Ausgabestrom.
+	 *
+	 * @throws IOException
+	 */
+	private void flush() throws IOException {
+		if (this.outputLength > 0) {
+			this.output.write(this.outputBuffer, 0, this.outputLength);
+			this.outputLength = 0;
 		}
+		this.output.flush();
 	}
 
 	/**
@@ -270,15 +486,12 @@ public class VirtualMachine {
 		int param2 = this.memory[this.registers[0]++];
 		switch (instruction) {
 			case MRI:
-				this.printInstruction("MRI R" + param1 + ", " + param2);
 				this.registers[param1] = param2;
 				break;
 			case MRR:
-				this.printInstruction("MRR R" + param1 + ", R" + param2);
 				this.registers[param1] = this.registers[param2];
 				break;
 			case MRM:
-				this.printInstruction("MRM R" + param1 + ", (R" + param2 + ")");
 				if (this.registers[param2] < 0
 						|| this.registers[param2] >= this.memory.length) {
 					throw new VMException(
@@ -289,7 +502,6 @@ public class VirtualMachine {
 				this.registers[param1] = this.memory[this.registers[param2]];
 				break;
 			case MMR:
-				this.printInstruction("MMR (R" + param1 + "), R" + param2);
 				if (this.registers[param1] < 0
 						|| this.registers[param1] >= this.memory.length) {
 					throw new VMException(
@@ -300,70 +512,84 @@ public class VirtualMachine {
 				this.memory[this.registers[param1]] = this.registers[param2];
 				break;
 			case ADD:
-				this.printInstruction("ADD R" + param1 + ", R" + param2);
 				this.registers[param1] += this.registers[param2];
 				break;
 			case SUB:
-				this.printInstruction("SUB R" + param1 + ", R" + param2);
 				this.registers[param1] -= this.registers[param2];
 				break;
 			case MUL:
-				this.printInstruction("MUL R" + param1 + ", R" + param2);
 				this.registers[param1] *= this.registers[param2];
 				break;
 			case DIV:
-				this.printInstruction("DIV R" + param1 + ", R" + param2);
 				this.registers[param1] /= this.registers[param2];
 				break;
 			case MOD:
-				this.printInstruction("MOD R" + param1 + ", R" + param2);
 				this.registers[param1] %= this.registers[param2];
 				break;
 			case AND:
-				this.printInstruction("AND R" + param1 + ", R" + param2);
 				this.registers[param1] &= this.registers[param2];
 				break;
 			case OR:
-				this.printInstruction("OR R" + param1 + ", R" + param2);
 				this.registers[param1] |= this.registers[param2];
 				break;
 			case XOR:
-				this.printInstruction("XOR R" + param1 + ", R" + param2);
 				this.registers[param1] ^= this.registers[param2];
 				break;
 			case ISZ:
-				this.printInstruction("ISZ R" + param1 + ", R" + param2);
 				this.registers[param1] = this.registers[param2] == 0 ? 1 : 0;
 				break;
 			case ISP:
-				this.printInstruction("ISP R" + param1 + ", R" + param2);
 				this.registers[param1] = this.registers[param2] > 0 ? 1 : 0;
 				break;
 			case ISN:
-				this.printInstruction("ISN R" + param1 + ", R" + param2);
 				this.registers[param1] = this.registers[param2] < 0 ? 1 : 0;
 				break;
 			case JPC:
-				this.printInstruction("JPC R" + param1 + ", " + param2);
 				if (this.registers[param1] != 0) {
 					this.registers[0] = param2;
 				}
 				break;
 			case SYS:
-				this.printInstruction("SYS " + param1 + ", " + param2);
-				switch (param1) {
-					case 0:
-						this.registers[param2] = this.input.read();
-						break;
-					case 1:
-						this.output.write(new byte[] {
-							(byte) this.registers[param2]
-						});
-						break;
-					default:
-						throw new VMException("Illegaler Systemaufruf: "
-								+ param1);
+				this.systemCall(param1, param2);
+				break;
+			case PSH:
+				if (this.registers[param1] + 1 < 0
+						|| this.registers[param1] + 1 >= this.memory.length) {
+					throw new VMException(
+							"Zugriff auf nicht existierende Speicherstelle "
+									+ (this.registers[param1] + 1) + " an Adresse "
+									+ (this.registers[0] - 3));
+				}
+				this.memory[++this.registers[param1]] = this.registers[param2];
+				break;
+			case POP:
+				if (this.registers[param2] < 0
+						|| this.registers[param2] >= this.memory.length) {
+					throw new VMException(
+							"Zugriff auf nicht existierende Speicherstelle "
+									+ this.registers[param2] + " an Adresse "
+									+ (this.registers[0] - 3));
 				}
+				this.registers[param1] = this.memory[this.registers[param2]];
+				--this.registers[param2];
+				break;
+			case ADI:
+				this.registers[param1] += param2;
+				break;
+			case JPZ:
+				if (this.registers[param1] == 0) {
+					this.registers[0] = param2;
+				}
+				break;
+			case LDO:
+				if (this.registers[param1] + param2 < 0
+						|| this.registers[param1] + param2 >= this.memory.length) {
+					throw new VMException(
+							"Zugriff auf nicht existierende Speicherstelle "
+									+ (this.registers[param1] + param2)
+									+ " an Adresse " + (this.registers[0] - 3));
+				}
+				this.registers[param1] = this.memory[this.registers[param1] + param2];
 				break;
 			default:
 				throw new VMException("Illegale Instruktion: " + instruction
@@ -371,6 +597,612 @@ public class VirtualMachine {
 		}
 	}
 
+	/**
+	 * Die Methode führt einen Systemaufruf aus.
+	 *
+	 * @param function
+	 *        Die Nummer der Systemfunktion.
+	 * @param register
+	 *        Das Register, mit dem die Systemfunktion arbeitet.
+	 * @throws VMException
+	 *         Die Systemfunktion existiert nicht oder ist fehlgeschlagen.
+	 * @throws IOException
+	 */
+	private void systemCall(int function, int register) throws VMException,
+			IOException {
+		switch (function) {
+			case 0:
+				this.registers[register] = this.read();
+				break;
+			case 1:
+				this.write(this.registers[register]);
+				break;
+			case 2:
+				if (this.heap == null) {
+					throw new VMException("Kein Heap definiert");
+				}
+				this.registers[register] = this.heap
+						.allocate(this.registers[register]);
+				break;
+			case 3:
+				this.heap = new GarbageCollector(this.memory, this.registers,
+						this.registers[register]);
+				break;
+			case 4:
+				this.registers[register] = this.unwind(this.registers[register]);
+				break;
+			case 5:
+				this.writeString(this.registers[register]);
+				break;
+			case 6:
+				this.readLine(this.registers[register]);
+				break;
+			default:
+				throw new VMException("Illegaler Systemaufruf: " + function);
+		}
+	}
+
+	/**
+	 * Die Methode sucht den Behandler einer Ausnahme, die von der laufenden Instruktion
+	 * ausgelöst wird. Die Ausnahmetabelle ist wie folgt aufgebaut:
+	 *
+	 * <pre>
+	 * table ::= uncaught count { start end handler }
+	 * </pre>
+	 *
+	 * Ein Eintrag gilt für die Instruktionen von <i>start</i> bis ausschließlich
+	 * <i>end</i>. Verschachtelte Bereiche müssen vor den sie umgebenden stehen, da der
+	 * erste passende Eintrag verwendet wird. Enthält die Tabelle keinen Eintrag für die
+	 * Adresse, wird die aufrufende Methode durchsucht: R3 zeigt auf den gesicherten
+	 * Rahmenzeiger des Aufrufers, davor liegt die Rücksprungadresse. Ein Rahmenzeiger von
+	 * null beendet die Suche; die Ausnahme wird dann von <i>uncaught</i> behandelt.
+	 *
+	 * @param table
+	 *        Die Adresse der Ausnahmetabelle.
+	 * @return Die Adresse des Behandlers.
+	 * @throws VMException
+	 *         Die Ausnahmetabelle oder ein Stapelrahmen ist ungültig.
+	 */
+	private int unwind(int table) throws VMException {
+		final int[] memory = this.memory;
+		if (table < 0 || table > memory.length - 2 || memory[table + 1] < 0
+				|| table + 2 + 3L * memory[table + 1] > memory.length) {
+			throw new VMException("Ungültige Ausnahmetabelle an Adresse " + table);
+		}
+
+		int end = table + 2 + 3 * memory[table + 1];
+		int address = this.registers[0] - 3;
+		int frame = this.registers[3];
+
+		for (;;) {
+			for (int entry = table + 2; entry < end; entry += 3) {
+				if (memory[entry] <= address && address < memory[entry + 1]) {
+					this.registers[3] = frame;
+					return memory[entry + 2];
+				}
+			}
+
+			if (frame <= 0) {
+				return memory[table];
+			}
+
+			/* Der Stapel wächst nach oben, der Rahmen des Aufrufers liegt also darunter. */
+			if (frame >= memory.length || memory[frame] >= frame) {
+				throw new VMException("Ungültiger Stapelrahmen " + frame
+						+ " beim Auslösen einer Ausnahme");
+			}
+
+			/* Die Rücksprungadresse folgt auf den Aufruf. */
+			address = memory[frame - 1] - 1;
+			frame = memory[frame];
+		}
+	}
+
+	/**
+	 * Die Methode führt das Programm aus und benachrichtigt dabei den
+	 * {@link #tracer Beobachter} vor und nach jeder Instruktion.
+	 *
+	 * @param budget
+	 *        Die Anzahl der Instruktionen, nach der die Ausführung unterbrochen wird.
+	 * @throws VMException
+	 *         Ein Fehler ist aufgetreten (Instruktion, Speicherstelle,
+	 *         Register oder Systemaufruf ungültig).
+	 * @throws IOException
+	 */
+	private void runTraced(long budget) throws VMException, IOException {
+		while (this.registers[0] >= 0
+				&& this.registers[0] < this.memory.length && budget-- > 0) {
+			int address = this.registers[0];
+			if (address <= this.memory.length - 3
+					&& this.memory[address] == SYS
+					&& this.mustWait(this.memory[address + 1])) {
+				return;
+			}
+			if (address <= this.memory.length - 3) {
+				this.tracer.beforeInstruction(this, address,
+						this.memory[address], this.memory[address + 1],
+						this.memory[address + 2]);
+			}
+			this.executeInstruction();
+
+			/* Die Ausgabe des Programms soll zwischen der des Beobachters stehen. */
+			this.flush();
+			this.tracer.afterInstruction(this);
+		}
+	}
+
+	/**
+	 * Die Methode prüft, ob eine Registernummer in einer vordekodierten Instruktion verwendet
+	 * werden kann. R0 ist ausgeschlossen, da der Instruktionszeiger während der schnellen
+	 * Ausführung nur in einer lokalen Variable geführt wird.
+	 *
+	 * @param register
+	 *        Die Registernummer.
+	 * @return Ist das Register gültig und ungleich R0?
+	 */
+	private boolean isDecodableRegister(int register) {
+		return register > 0 && register < this.registers.length && register <= 0xffff;
+	}
+
+	/**
+	 * Die Methode dekodiert die Instruktion an der angegebenen Adresse.
+	 *
+	 * @param address
+	 *        Die Adresse der Instruktion.
+	 * @return Die Kodierung der Instruktion für {@link #decoded decoded}.
+	 */
+	long decode(int address) {
+		if (address > this.memory.length - 3) {
+			return (long) GENERIC << 48;
+		}
+
+		int instruction = this.memory[address];
+		int param1 = this.memory[address + 1];
+		int param2 = this.memory[address + 2];
+		int code = GENERIC;
+
+		switch (instruction) {
+			case MRI:
+				if (param1 == 0) {
+					code = JMP;
+				} else if (this.isDecodableRegister(param1)) {
+					code = MRI + 1;
+				}
+				break;
+			case MRR:
+				if (param1 == 0 && this.isDecodableRegister(param2)) {
+					code = JMPR;
+				} else if (this.isDecodableRegister(param1)
+						&& this.isDecodableRegister(param2)) {
+					code = MRR + 1;
+				}
+				break;
+			case MRM:
+				if (param1 == 0 && this.isDecodableRegister(param2)) {
+					code = JMPM;
+				} else if (this.isDecodableRegister(param1)
+						&& this.isDecodableRegister(param2)) {
+					code = MRM + 1;
+				}
+				break;
+			case MMR:
+			case ADD:
+			case SUB:
+			case MUL:
+			case DIV:
+			case MOD:
+			case AND:
+			case OR:
+			case XOR:
+			case ISZ:
+			case ISP:
+			case ISN:
+				if (this.isDecodableRegister(param1)
+						&& this.isDecodableRegister(param2)) {
+					code = instruction + 1;
+				}
+				break;
+			case JPC:
+			case ADI:
+			case JPZ:
+			case LDO:
+				if (this.isDecodableRegister(param1)) {
+					code = instruction + 1;
+				}
+				break;
+			case PSH:
+			case POP:
+				if (this.isDecodableRegister(param1)
+						&& this.isDecodableRegister(param2)) {
+					code = instruction + 1;
+				}
+				break;
+			case SYS:
+				if (param1 >= 0 && param1 <= 6
+						&& this.isDecodableRegister(param2)) {
+					code = SYS + 1;
+				}
+				break;
+		}
+
+		if (code == GENERIC) {
+			return (long) GENERIC << 48;
+		}
+
+		return (long) code << 48 | (long) (param1 & 0xffff) << 32
+				| (param2 & 0xffffffffL);
+	}
+
+	/**
+	 * Die Methode verwirft alle vordekodierten Instruktionen, die die angegebene
+	 * Speicherstelle überdecken. Da jede Instruktion drei Maschinenworte lang ist, sind dies
+	 * die Instruktionen an der Speicherstelle selbst und an den beiden davor liegenden.
+	 *
+	 * @param address
+	 *        Die beschriebene Speicherstelle.
+	 */
+	private void invalidate(int address) {
+		for (int i = Math.max(address - 2, 0); i <= address; ++i) {
+			if (this.decoded[i] != UNDECODED) {
+				this.unshareDecoded();
+				this.decoded[i] = UNDECODED;
+			}
+		}
+	}
+
+	/**
+	 * Die Methode kopiert die vordekodierten Instruktionen, wenn sie mit anderen
+	 * virtuellen Maschinen geteilt werden, damit sie verändert werden können.
+	 */
+	private void unshareDecoded() {
+		if (this.sharedDecoded) {
+			this.decoded = this.decoded.clone();
+			this.sharedDecoded = false;
+		}
+	}
+
+	/**
+	 * Die Methode bestimmt die Speicherstelle, die die Instruktion an der angegebenen
+	 * Adresse beschreiben wird. Sie muss vor der Ausführung bestimmt werden, da die
+	 * Instruktion das Register verändern kann. Ein Zugriff auf R0 liefert dabei bereits
+	 * die Adresse der nächsten Instruktion.
+	 *
+	 * @param pc
+	 *        Die Adresse der Instruktion.
+	 * @return Die beschriebene Speicherstelle oder -1, wenn die Instruktion nicht in den
+	 *         Speicher schreibt.
+	 */
+	private int storeTarget(int pc) {
+		if (pc >= 0 && pc <= this.memory.length - 3
+				&& (this.memory[pc] == MMR || this.memory[pc] == PSH)
+				&& this.memory[pc + 1] >= 0
+				&& this.memory[pc + 1] < this.registers.length) {
+			int address = this.memory[pc + 1] == 0 ? pc + 3
+					: this.registers[this.memory[pc + 1]];
+			return this.memory[pc] == PSH ? address + 1 : address;
+		}
+		return -1;
+	}
+
+	/**
+	 * Die Methode führt das Programm mit den vordekodierten Instruktionen aus. Der
+	 * Instruktionszeiger wird dabei in einer lokalen Variable geführt und nur für
+	 * Instruktionen, die über {@link #executeInstruction() executeInstruction} laufen,
+	 * in das Register R0 zurückgeschrieben.
+	 *
+	 * @param budget
+	 *        Die Anzahl der Instruktionen, nach der die Ausführung beim nächsten Sprung
+	 *        unterbrochen wird.
+	 * @throws VMException
+	 *         Ein Fehler ist aufgetreten (Instruktion, Speicherstelle,
+	 *         Register oder Systemaufruf ungültig).
+	 * @throws IOException
+	 */
+	private void runDecoded(int budget) throws VMException, IOException {
+		final int[] memory = this.memory;
+		final int[] registers = this.registers;
+		long[] decoded = this.decoded;
+		int pc = registers[0];
+
+		/* Der Beginn des laufenden Grundblocks. Die Instruktionen werden erst beim
+		 * Sprung an dessen Ende gezählt, damit die übrigen Instruktionen nicht
+		 * langsamer werden. */
+		int start = pc;
+
+		dispatch: while (pc >= 0 && pc < memory.length) {
+			long word = decoded[pc];
+			if (word == UNDECODED) {
+				word = this.decode(pc);
+				this.unshareDecoded();
+				decoded = this.decoded;
+				decoded[pc] = word;
+			}
+
+			int param1 = (int) (word >>> 32) & 0xffff;
+			int param2 = (int) word;
+			int address;
+
+			switch ((int) (word >>> 48)) {
+				case MRI + 1:
+					registers[param1] = param2;
+					pc += 3;
+					break;
+				case MRR + 1:
+					registers[param1] = registers[param2];
+					pc += 3;
+					break;
+				case MRM + 1:
+					address = registers[param2];
+					if (address < 0 || address >= memory.length) {
+						registers[0] = pc + 3;
+						throw new VMException(
+								"Zugriff auf nicht existierende Speicherstelle "
+										+ address + " an Adresse " + pc);
+					}
+					registers[param1] = memory[address];
+					pc += 3;
+					break;
+				case MMR + 1:
+					address = registers[param1];
+					if (address < 0 || address >= memory.length) {
+						registers[0] = pc + 3;
+						throw new VMException(
+								"Zugriff auf nicht existierende Speicherstelle "
+										+ address + " an Adresse " + pc);
+					}
+					memory[address] = registers[param2];
+					this.invalidate(address);
+					decoded = this.decoded;
+					pc += 3;
+					break;
+				case ADD + 1:
+					registers[param1] += registers[param2];
+					pc += 3;
+					break;
+				case SUB + 1:
+					registers[param1] -= registers[param2];
+					pc += 3;
+					break;
+				case MUL + 1:
+					registers[param1] *= registers[param2];
+					pc += 3;
+					break;
+				case DIV + 1:
+					registers[0] = pc + 3;
+					registers[param1] /= registers[param2];
+					pc += 3;
+					break;
+				case MOD + 1:
+					registers[0] = pc + 3;
+					registers[param1] %= registers[param2];
+					pc += 3;
+					break;
+				case AND + 1:
+					registers[param1] &= registers[param2];
+					pc += 3;
+					break;
+				case OR + 1:
+					registers[param1] |= registers[param2];
+					pc += 3;
+					break;
+				case XOR + 1:
+					registers[param1] ^= registers[param2];
+					pc += 3;
+					break;
+				case ISZ + 1:
+					registers[param1] = registers[param2] == 0 ? 1 : 0;
+					pc += 3;
+					break;
+				case ISP + 1:
+					registers[param1] = registers[param2] > 0 ? 1 : 0;
+					pc += 3;
+					break;
+				case ISN + 1:
+					registers[param1] = registers[param2] < 0 ? 1 : 0;
+					pc += 3;
+					break;
+				case JPC + 1:
+					budget -= (pc - start) / 3 + 1;
+					pc = start = registers[param1] != 0 ? param2 : pc + 3;
+					if (budget <= 0) {
+						break dispatch;
+					}
+					break;
+				case SYS + 1:
+					if (this.mustWait(param1)) {
+						registers[0] = pc;
+						return;
+					}
+					registers[0] = pc + 3;
+					this.systemCall(param1, param2);
+					decoded = this.decoded;
+					pc += 3;
+					break;
+				case PSH + 1:
+					address = registers[param1] + 1;
+					if (address < 0 || address >= memory.length) {
+						registers[0] = pc + 3;
+						throw new VMException(
+								"Zugriff auf nicht existierende Speicherstelle "
+										+ address + " an Adresse " + pc);
+					}
+					registers[param1] = address;
+					memory[address] = registers[param2];
+					this.invalidate(address);
+					decoded = this.decoded;
+					pc += 3;
+					break;
+				case POP + 1:
+					address = registers[param2];
+					if (address < 0 || address >= memory.length) {
+						registers[0] = pc + 3;
+						throw new VMException(
+								"Zugriff auf nicht existierende Speicherstelle "
+										+ address + " an Adresse " + pc);
+					}
+					registers[param1] = memory[address];
+					--registers[param2];
+					pc += 3;
+					break;
+				case ADI + 1:
+					registers[param1] += param2;
+					pc += 3;
+					break;
+				case JPZ + 1:
+					budget -= (pc - start) / 3 + 1;
+					pc = start = registers[param1] == 0 ? param2 : pc + 3;
+					if (budget <= 0) {
+						break dispatch;
+					}
+					break;
+				case LDO + 1:
+					address = registers[param1] + param2;
+					if (address < 0 || address >= memory.length) {
+						registers[0] = pc + 3;
+						throw new VMException(
+								"Zugriff auf nicht existierende Speicherstelle "
+										+ address + " an Adresse " + pc);
+					}
+					registers[param1] = memory[address];
+					pc += 3;
+					break;
+				case JMP:
+					budget -= (pc - start) / 3 + 1;
+					pc = start = param2;
+					if (budget <= 0) {
+						break dispatch;
+					}
+					break;
+				case JMPR:
+					budget -= (pc - start) / 3 + 1;
+					pc = start = registers[param2];
+					if (budget <= 0) {
+						break dispatch;
+					}
+					break;
+				case JMPM:
+					address = registers[param2];
+					if (address < 0 || address >= memory.length) {
+						registers[0] = pc + 3;
+						throw new VMException(
+								"Zugriff auf nicht existierende Speicherstelle "
+										+ address + " an Adresse " + pc);
+					}
+					budget -= (pc - start) / 3 + 1;
+					pc = start = memory[address];
+					if (budget <= 0) {
+						break dispatch;
+					}
+					break;
+				default:
+					address = this.storeTarget(pc);
+					registers[0] = pc;
+					this.executeInstruction();
+
+					if (address >= 0 && address < memory.length) {
+						this.invalidate(address);
+						decoded = this.decoded;
+					}
+
+					if (registers[0] == pc + 3) {
+						pc += 3;
+					} else {
+						budget -= (pc - start) / 3 + 1;
+						pc = start = registers[0];
+						if (budget <= 0) {
+							break dispatch;
+						}
+					}
+			}
+		}
+
+		registers[0] = pc;
+	}
+
+	/**
+	 * Die Methode führt das Programm mit den vordekodierten Instruktionen bis zu seinem
+	 * Ende aus.
+	 *
+	 * @throws VMException
+	 *         Ein Fehler ist aufgetreten (Instruktion, Speicherstelle,
+	 *         Register oder Systemaufruf ungültig).
+	 * @throws IOException
+	 */
+	private void runDecoded() throws VMException, IOException {
+		do {
+			this.runDecoded(Integer.MAX_VALUE);
+		} while (this.registers[0] >= 0
+				&& this.registers[0] < this.memory.length);
+	}
+
+	/**
+	 * Die Methode prüft, ob ein Speicherbereich übersetzten Code enthält.
+	 *
+	 * @param code
+	 *        Die Speicherstellen, die übersetzter Code enthält.
+	 * @param start
+	 *        Der Beginn des Bereichs.
+	 * @param end
+	 *        Das Ende des Bereichs (ausschließlich).
+	 * @return Enthält der Bereich übersetzten Code?
+	 */
+	private boolean coversCode(boolean[] code, int start, int end) {
+		for (int i = start; i < end; ++i) {
+			if (code[i]) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Die Methode führt das Programm mit dem {@link JitCompiler JIT-Übersetzer} aus. Jeder
+	 * Einsprungpunkt wird bei seiner ersten Ausführung zusammen mit dem von ihm aus
+	 * erreichbaren Code übersetzt. Systemaufrufe und fehlerhafte Instruktionen führt der
+	 * Interpreter aus. Verändert das Programm zu oft seinen eigenen Code, wird es mit
+	 * {@link #runDecoded() runDecoded} zu Ende ausgeführt.
+	 *
+	 * @throws VMException
+	 *         Ein Fehler ist aufgetreten (Instruktion, Speicherstelle,
+	 *         Register oder Systemaufruf ungültig).
+	 * @throws IOException
+	 */
+	private void runCompiled() throws VMException, IOException {
+		final int[] memory = this.memory;
+		final int[] registers = this.registers;
+		JitCompiler jit = new JitCompiler(this);
+		int invalidations = 0;
+
+		while (registers[0] >= 0 && registers[0] < memory.length) {
+			int pc = registers[0];
+			switch (jit.lookup(pc).run(pc, memory, registers, jit.code)) {
+				case CompiledCode.INTERPRET:
+					int address = this.storeTarget(registers[0]);
+					this.writtenStart = this.writtenEnd = 0;
+					this.executeInstruction();
+					if (address >= 0 && address < memory.length
+							&& jit.code[address]
+							|| this.coversCode(jit.code, this.writtenStart,
+									this.writtenEnd)) {
+						jit.invalidate();
+						++invalidations;
+					}
+					break;
+				case CompiledCode.INVALIDATED:
+					jit.invalidate();
+					++invalidations;
+					break;
+			}
+
+			if (invalidations > MAX_INVALIDATIONS) {
+				this.decoded = new long[memory.length];
+				this.sharedDecoded = false;
+				this.runDecoded();
+				return;
+			}
+		}
+	}
+
 	/**
 	 * Konstruiert eine virtuelle Maschine.
 	 *
@@ -378,34 +1210,115 @@ public class VirtualMachine {
 	 *        Der Hauptspeicher. Er enthält das Programm und alle Daten.
 	 * @param registers
 	 *        Der Registersatz.
-	 * @param showInstructions
-	 *        Sollen die ausgeführten Instruktionen angezeigt werden?
-	 * @param showMemory
-	 *        Soll der Speicherinhalt nach jeder ausgeführten Instruktion angezeigt werden?
-	 * @param showRegisters
-	 *        Soll der Registersatz nach jeder ausgeführten Instruktion angezeigt werden?
-	 */
-	public VirtualMachine(int[] memory, int[] registers, boolean showInstructions,
-			boolean showMemory, boolean showRegisters, boolean showR2f,
-			boolean showR2b, boolean showR4f, boolean showR4b) {
+	 */
+	public VirtualMachine(int[] memory, int[] registers) {
 		this.memory = memory;
 		this.registers = registers;
-		this.showInstructions = showInstructions;
-		this.showMemory = showMemory;
-		this.showRegisters = showRegisters;
-		this.showR2f = showR2f;
-		this.showR2b = showR2b;
-		this.showR4f = showR4f;
-		this.showR4b = showR4b;
+		this.decoded = new long[memory.length];
+	}
+
+	/**
+	 * Konstruiert eine virtuelle Maschine für ein {@link ProgramImage Programmabbild}.
+	 * Die vordekodierten Instruktionen werden geteilt, bis das Programm seinen Code
+	 * verändert.
+	 *
+	 * @param memory
+	 *        Die Kopie des Hauptspeichers des Programmabbilds.
+	 * @param registers
+	 *        Der Registersatz.
+	 * @param decoded
+	 *        Die vordekodierten Instruktionen des Programmabbilds.
+	 */
+	VirtualMachine(int[] memory, int[] registers, long[] decoded) {
+		this.memory = memory;
+		this.registers = registers;
+		this.decoded = decoded;
+		this.sharedDecoded = true;
+	}
+
+	/**
+	 * Die Methode setzt einen Beobachter, der über jede ausgeführte Instruktion
+	 * benachrichtigt wird.
+	 *
+	 * @param tracer
+	 *        Der Beobachter oder null, um das Programm ohne Beobachter auszuführen.
+	 */
+	public void setTracer(Tracer tracer) {
+		this.tracer = tracer;
+	}
+
+	/**
+	 * @return Die Speicherverwaltung oder null, solange das Programm keinen Heap
+	 *         eingerichtet hat.
+	 */
+	GarbageCollector getHeap() {
+		return this.heap;
+	}
+
+	/**
+	 * Die Methode setzt die Speicherverwaltung, z.B. beim Wiederherstellen eines
+	 * {@link Snapshot Speicherabbilds}.
+	 *
+	 * @param heap
+	 *        Die Speicherverwaltung für den Hauptspeicher und die Register dieser
+	 *        virtuellen Maschine.
+	 */
+	void setHeap(GarbageCollector heap) {
+		this.heap = heap;
+	}
+
+	/**
+	 * @return Der Hauptspeicher.
+	 */
+	public int[] getMemory() {
+		return this.memory;
+	}
+
+	/**
+	 * @return Der Registersatz.
+	 */
+	public int[] getRegisters() {
+		return this.registers;
+	}
+
+	/**
+	 * Die Methode legt fest, ob das Programm vor der Ausführung in JVM-Bytecode übersetzt
+	 * wird. Ist ein {@link #setTracer(Tracer) Beobachter} gesetzt, wird das Programm
+	 * immer interpretiert. Bei sehr großen Registersätzen ist die Übersetzung nicht
+	 * möglich und die Einstellung wird ignoriert.
+	 *
+	 * @param jit
+	 *        Soll das Programm übersetzt werden?
+	 */
+	public void setJit(boolean jit) {
+		this.jit = jit;
 	}
 
 	public void setStreams(InputStream input, OutputStream output) {
 		this.input = input;
 		this.output = output;
+		this.inputPosition = 0;
+		this.inputLength = 0;
+		this.outputLength = 0;
+	}
+
+	/**
+	 * Die Methode setzt Kanäle für die Ein- und Ausgabe, z.B. für Dateien oder
+	 * Netzwerkverbindungen.
+	 *
+	 * @param input
+	 *        Der Kanal, aus dem SYS 0 liest.
+	 * @param output
+	 *        Der Kanal, in den SYS 1 schreibt.
+	 */
+	public void setStreams(ReadableByteChannel input, WritableByteChannel output) {
+		this.setStreams(Channels.newInputStream(input),
+				Channels.newOutputStream(output));
 	}
 
 	/**
-	 * Die Methode führt das Programm im Hauptspeicher aus.
+	 * Die Methode führt das Programm im Hauptspeicher aus. Die gepufferte Ausgabe wird
+	 * am Ende des Programms und bei Fehlern geschrieben.
 	 *
 	 * @throws VMException
 	 *         Ein Fehler ist aufgetreten (Instruktion, Speicherstelle,
@@ -414,16 +1327,120 @@ public class VirtualMachine {
 	 */
 	public void run() throws VMException, IOException {
 		try {
-			while (this.registers[0] >= 0
-					&& this.registers[0] < this.memory.length) {
-				this.executeInstruction();
-				this.printMemory();
-				this.printRegisters();
-				this.printStacks();
+			if (this.tracer != null) {
+				this.runTraced(Long.MAX_VALUE);
+			} else if (this.jit && JitCompiler.supports(this.registers.length)) {
+				this.runCompiled();
+			} else {
+				this.runDecoded();
 			}
 		} catch (ArrayIndexOutOfBoundsException e) {
 			throw new VMException("Zugriff auf nicht existierendes Register "
 					+ e.getMessage() + " an Adresse " + (this.registers[0] - 3));
+		} finally {
+			this.flush();
 		}
 	}
+
+	/**
+	 * Die Methode führt höchstens die angegebene Anzahl von Instruktionen aus. Ein
+	 * weiterer Aufruf setzt das Programm an derselben Stelle fort. Ohne
+	 * {@link #setTracer(Tracer) Beobachter} wird erst beim nächsten Sprung unterbrochen,
+	 * d.h. der Rest eines Grundblocks wird noch ausgeführt. Die gepufferte
+	 * Ausgabe wird bei jeder Unterbrechung geschrieben. Das Programm wird dabei immer
+	 * interpretiert, da übersetzter Code nicht unterbrochen werden kann.
+	 *
+	 * Liest das Programm mit SYS 0 aus der Eingabe eines {@link Scheduler Schedulers},
+	 * die noch keine Zeichen enthält, wird die Ausführung vor dem Systemaufruf
+	 * unterbrochen. Bei allen anderen Eingabeströmen wartet SYS 0 wie bei
+	 * {@link #run() run}.
+	 *
+	 * @param instructions
+	 *        Die Anzahl der Instruktionen, nach der unterbrochen wird.
+	 * @return Der Zustand des Programms nach der Ausführung.
+	 * @throws VMException
+	 *         Ein Fehler ist aufgetreten (Instruktion, Speicherstelle,
+	 *         Register oder Systemaufruf ungültig).
+	 * @throws IOException
+	 */
+	public State step(int instructions) throws VMException, IOException {
+		this.suspendOnInput = true;
+		this.waiting = false;
+		try {
+			if (this.tracer != null) {
+				this.runTraced(instructions);
+			} else {
+				this.runDecoded(instructions);
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new VMException("Zugriff auf nicht existierendes Register "
+					+ e.getMessage() + " an Adresse " + (this.registers[0] - 3));
+		} finally {
+			this.suspendOnInput = false;
+			this.flush();
+		}
+
+		if (this.waiting) {
+			return State.WAITING;
+		}
+		return this.registers[0] >= 0 && this.registers[0] < this.memory.length
+				? State.SUSPENDED : State.FINISHED;
+	}
+
+	/**
+	 * Die Methode führt das Programm bis vor das erste SYS 0 aus. Die meisten Programme
+	 * richten bis dahin nur den Stapel und den Heap ein und erzeugen das Hauptobjekt, so
+	 * dass der Zustand danach für alle Eingaben derselbe ist und als {@link Snapshot
+	 * Speicherabbild} gesichert werden kann.
+	 *
+	 * @return Wartet das Programm auf eine Eingabe? Bei false ist es beendet.
+	 * @throws VMException
+	 *         Ein Fehler ist aufgetreten (Instruktion, Speicherstelle,
+	 *         Register oder Systemaufruf ungültig).
+	 * @throws IOException
+	 */
+	public boolean runToInput() throws VMException, IOException {
+		this.stopAtInput = true;
+		try {
+			State state;
+			do {
+				state = this.step(Integer.MAX_VALUE);
+			} while (state == State.SUSPENDED);
+			return state == State.WAITING;
+		} finally {
+			this.stopAtInput = false;
+		}
+	}
+
+	/**
+	 * Die Methode sichert den Zustand des Programms, d.h. den Hauptspeicher, die Register
+	 * und die Speicherverwaltung. Die Ausgabe wird vorher geschrieben.
+	 *
+	 * @return Das Speicherabbild.
+	 * @throws IOException
+	 * @throws IllegalStateException
+	 *         Es wurden bereits Zeichen aus dem Eingabestrom gelesen, die das Programm
+	 *         noch nicht verarbeitet hat. Sie wären nach dem Wiederherstellen verloren.
+	 */
+	public Snapshot snapshot() throws IOException {
+		return this.snapshot(new byte[0]);
+	}
+
+	/**
+	 * Die Methode sichert den Zustand des Programms zusammen mit der bisherigen Ausgabe.
+	 *
+	 * @param output
+	 *        Die Ausgabe des Programms bis zu diesem Zeitpunkt.
+	 * @return Das Speicherabbild.
+	 * @throws IOException
+	 */
+	Snapshot snapshot(byte[] output) throws IOException {
+		if (this.inputPosition < this.inputLength) {
+			throw new IllegalStateException(
+					"Die Eingabe wurde bereits teilweise gelesen");
+		}
+
+		this.flush();
+		return Snapshot.copyOf(this.memory, this.registers, this.heap, output);
+	}
 }
\ No newline at end of file
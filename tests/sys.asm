@@ -0,0 +1,53 @@
+; Dieses Programm testet die Systemaufrufe SYS 5 und SYS 6. Das erste gelesene
+; Zeichen ueberschreibt dabei das Sprungziel einer bereits ausgefuehrten
+; Instruktion. Die Ausgabe sollte SYSA bzw. SYSX sein, gefolgt vom Rest der
+; Eingabezeile.
+MRI R1, 1
+MRI R5, hello
+SYS 5, 5 ; SYS
+target:
+JPC R1, first ; Die Kapazitaet 1 des Puffers ab Adresse 10 ist das Register R1.
+first:
+MRR R6, R7
+ADD R7, R1
+JPC R6, stale ; Die alte Instruktion wurde erneut ausgefuehrt.
+MRI R5, 10
+SYS 6, 5 ; Das Sprungziel ist nun das gelesene Zeichen.
+MRI R0, target
+stale:
+MRI R5, fail
+SYS 5, 5
+MRI R0, end
+DAT 58, 0
+; Adresse 97 ('a')
+MRI R5, a
+SYS 5, 5
+MRI R0, echo
+DAT 14, 0
+; Adresse 120 ('x')
+MRI R5, x
+SYS 5, 5
+MRI R0, echo
+echo:
+MRI R5, line
+SYS 6, 5
+SYS 5, 5
+MRI R0, end
+hello:
+DAT 1, 3
+DAT 1, 83
+DAT 1, 89
+DAT 1, 83
+a:
+DAT 1, 1
+DAT 1, 65
+x:
+DAT 1, 1
+DAT 1, 88
+fail:
+DAT 1, 1
+DAT 1, 70
+line:
+DAT 1, 8
+DAT 8, 0
+end: